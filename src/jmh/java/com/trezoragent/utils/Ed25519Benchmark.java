@@ -0,0 +1,39 @@
+package com.trezoragent.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Ed25519 verification added to the sign path (RFC 8032 vector, decoded key
+ * cached after first call) and constant time signing of simulator and
+ * software keys</p>
+ *
+ * @author martin.lizner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Ed25519Benchmark {
+
+    @Benchmark
+    public boolean verify() {
+        return Ed25519.verify(Ed25519Test.pubKeyRfc2, Ed25519Test.messageRfc2, Ed25519Test.signatureRfc2);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return Ed25519.sign(Ed25519Test.secretKeyRfc2, Ed25519Test.messageRfc2);
+    }
+}
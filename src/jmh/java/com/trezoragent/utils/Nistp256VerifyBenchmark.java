@@ -0,0 +1,47 @@
+package com.trezoragent.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Sign path verification of Trezor nistp256 signature: cached key and raw
+ * (r, s) against JCA verification with key factory and DER signature created
+ * per call (provider instance is shared)</p>
+ *
+ * @author martin.lizner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Nistp256VerifyBenchmark {
+
+    byte[] uncompressedKey;
+
+    @Setup
+    public void setUp() {
+        uncompressedKey = IdentityUtils.unframeUncompressedNistpKeyFromSSHKey(ECDSATest.pubKeySSHTrezor);
+    }
+
+    @Benchmark
+    public boolean cachedRawVerify() {
+        return SignatureVerifier.verifyNistp256Signature(ECDSATest.pubKeySSHTrezor, ECDSATest.challengeTrezor, ECDSATest.signatureTrezor);
+    }
+
+    @Benchmark
+    public boolean jcaDerVerify() throws Exception {
+        return IdentityUtils.isValidSignature(uncompressedKey, ECDSATest.challengeTrezor, IdentityUtils.createDERSignResponse(ECDSATest.signatureTrezor));
+    }
+}
@@ -0,0 +1,38 @@
+package com.trezoragent.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Compressed device key to SSH key blob: P256 codec against generic
+ * ECPublicKey decoding and serialization</p>
+ *
+ * @author martin.lizner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class P256DecompressBenchmark {
+
+    @Benchmark
+    public byte[] codec() {
+        return P256.encodeSSHKeyBlob(ECDSATest.pubKeyTrezor);
+    }
+
+    @Benchmark
+    public byte[] generic() throws Exception {
+        return IdentityUtils.encodeSSHKeyBlobFromNistp256(IdentityUtils.decodeNISTP256PublicKeyFromBytes(ECDSATest.pubKeyTrezor));
+    }
+}
@@ -0,0 +1,69 @@
+package com.trezoragent.verify;
+
+import com.trezoragent.utils.SSHSigUtils;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * SSHSIG batch verification against allowed_signers, half ed25519 and half
+ * nistp256 signatures, with fork-join pool of given parallelism (1 is the
+ * sequential baseline)</p>
+ *
+ * @author martin.lizner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchVerifierBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    @Param({"1", "2", "4"})
+    int parallelism;
+
+    ForkJoinPool pool;
+    BatchVerifier verifier;
+    List<SignatureCheck> checks;
+
+    @Setup
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(parallelism);
+        verifier = new BatchVerifier(AllowedSigners.parse(new StringReader(BatchVerifierTest.allowedSigners)), "git", pool);
+        byte[] edSignature = SSHSigUtils.dearmor(BatchVerifierTest.ed25519Signature);
+        byte[] ecSignature = SSHSigUtils.dearmor(BatchVerifierTest.nistp256Signature);
+        checks = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE / 2; i++) {
+            checks.add(new SignatureCheck("ed" + i, BatchVerifierTest.message, edSignature, null));
+            checks.add(new SignatureCheck("ec" + i, BatchVerifierTest.message, ecSignature, null));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int verifyBatch() {
+        return verifier.verifyAll(checks, System.currentTimeMillis());
+    }
+}
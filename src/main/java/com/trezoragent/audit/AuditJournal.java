@@ -0,0 +1,243 @@
+package com.trezoragent.audit;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.struct.AuditRecord;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Append-only binary journal of identity and sign operations</p>
+ *
+ * <p>
+ * Records have fixed size and are written through memory-mapped segment
+ * files, so appending costs a memory copy and no system call. Segment index
+ * keeps time range, record count and a small key filter per segment. Queries
+ * for a key and time range open only segments that may contain it.</p>
+ *
+ * <pre>
+ * record (128 bytes): long timestamp, byte operation, byte outcome, short reserved, int latency,
+ *                     byte[32] key fingerprint, byte user length, byte[39] user, byte target length, byte[39] target
+ * index entry (64 bytes): int record count, int reserved, long first timestamp, long last timestamp,
+ *                         byte[32] key filter, long reserved
+ * </pre>
+ *
+ * @author martin.lizner
+ */
+public class AuditJournal {
+
+    public static final int RECORD_SIZE = 128;
+    public static final int RECORDS_PER_SEGMENT = 8192; // 1 MB segments
+    public static final int MAX_SEGMENTS = 4096;
+
+    static final int INDEX_ENTRY_SIZE = 64;
+    private static final int TEXT_FIELD_SIZE = 39;
+    private static final int FILTER_OFFSET = 24;
+    private static final int FILTER_BITS = 256;
+    private static final String INDEX_FILE_NAME = "journal.idx";
+    private static final String SEGMENT_FILE_FORMAT = "journal-%06d.seg";
+
+    private final File directory;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int segmentCount; // records in current segment
+
+    /**
+     * @param directory journal directory, created if missing
+     * @throws IOException if journal files cannot be opened or mapped
+     */
+    public AuditJournal(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + directory);
+        }
+
+        indexChannel = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw").getChannel();
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) MAX_SEGMENTS * INDEX_ENTRY_SIZE);
+
+        segmentNumber = 0;
+        while (segmentNumber + 1 < MAX_SEGMENTS && index.getInt((segmentNumber + 1) * INDEX_ENTRY_SIZE) > 0) {
+            segmentNumber++; // continue in last used segment
+        }
+        openSegment(segmentNumber);
+        Logger.getLogger(AuditJournal.class.getName()).log(Level.INFO, "Audit journal opened: {0}, segment {1}, {2} records",
+                new Object[]{directory.getPath(), segmentNumber, segmentCount});
+    }
+
+    /**
+     * Append record. Data are in OS page cache right after the call, they are
+     * forced to disk on segment rotation and close.
+     *
+     * @param record record to append
+     * @throws IOException if new segment cannot be created
+     */
+    public synchronized void append(AuditRecord record) throws IOException {
+        if (segmentCount == RECORDS_PER_SEGMENT) {
+            rotate();
+        }
+
+        int position = segmentCount * RECORD_SIZE;
+        segment.putLong(position, record.getTimestamp());
+        segment.put(position + 8, record.getOperation());
+        segment.put(position + 9, record.getOutcome());
+        segment.putInt(position + 12, record.getLatencyMillis());
+        byte[] fingerprint = record.getFingerprint();
+        for (int i = 0; i < AuditRecord.FINGERPRINT_LENGTH; i++) {
+            segment.put(position + 16 + i, fingerprint[i]);
+        }
+        putText(segment, position + 48, record.getUser());
+        putText(segment, position + 88, record.getTarget());
+        segmentCount++;
+
+        // index is updated after record, so count never covers unwritten record
+        int entry = segmentNumber * INDEX_ENTRY_SIZE;
+        if (index.getLong(entry + 8) == 0) {
+            index.putLong(entry + 8, record.getTimestamp());
+        }
+        index.putLong(entry + 16, record.getTimestamp());
+        if (!isEmptyFingerprint(fingerprint)) {
+            for (int bit : filterBits(fingerprint)) {
+                int offset = entry + FILTER_OFFSET + bit / 8;
+                index.put(offset, (byte) (index.get(offset) | (1 << (bit % 8))));
+            }
+        }
+        index.putInt(entry, segmentCount);
+    }
+
+    /**
+     * @param fingerprint raw SHA256 of key blob or null for all keys
+     * @param from epoch millis, inclusive
+     * @param to epoch millis, inclusive
+     * @return matching records in journal order
+     * @throws IOException if segment cannot be read
+     */
+    public synchronized List<AuditRecord> query(byte[] fingerprint, long from, long to) throws IOException {
+        List<AuditRecord> ret = new ArrayList<>();
+        int[] bits = fingerprint == null ? null : filterBits(fingerprint);
+
+        for (int n = 0; n <= segmentNumber; n++) {
+            int entry = n * INDEX_ENTRY_SIZE;
+            int count = index.getInt(entry);
+            if (count == 0 || index.getLong(entry + 16) < from || index.getLong(entry + 8) > to) {
+                continue;
+            }
+            if (bits != null && !filterContains(entry, bits)) {
+                continue; // key certainly not used in this segment
+            }
+
+            ByteBuffer data = (n == segmentNumber) ? segment : mapSegmentReadOnly(n, count);
+            for (int i = 0; i < count; i++) {
+                AuditRecord record = readRecord(data, i * RECORD_SIZE);
+                if (record.getTimestamp() >= from && record.getTimestamp() <= to
+                        && (fingerprint == null || Arrays.equals(fingerprint, record.getFingerprint()))) {
+                    ret.add(record);
+                }
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void close() throws IOException {
+        segment.force();
+        index.force();
+        segmentChannel.close();
+        indexChannel.close();
+    }
+
+    private void rotate() throws IOException {
+        if (segmentNumber + 1 >= MAX_SEGMENTS) {
+            throw new IOException("Audit journal is full: " + directory);
+        }
+        segment.force();
+        index.force();
+        segmentChannel.close();
+        openSegment(segmentNumber + 1);
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        segmentChannel = new RandomAccessFile(segmentFile(number), "rw").getChannel();
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) RECORDS_PER_SEGMENT * RECORD_SIZE);
+        segmentCount = index.getInt(number * INDEX_ENTRY_SIZE);
+    }
+
+    private ByteBuffer mapSegmentReadOnly(int number, int count) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(segmentFile(number), "r").getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) count * RECORD_SIZE);
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(SEGMENT_FILE_FORMAT, number));
+    }
+
+    private boolean filterContains(int entry, int[] bits) {
+        for (int bit : bits) {
+            if ((index.get(entry + FILTER_OFFSET + bit / 8) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Fingerprint is SHA256 output, its bytes can be used as hash functions directly
+     */
+    private static int[] filterBits(byte[] fingerprint) {
+        return new int[]{fingerprint[0] & 0xff, fingerprint[1] & 0xff, fingerprint[2] & 0xff};
+    }
+
+    private static boolean isEmptyFingerprint(byte[] fingerprint) {
+        for (byte b : fingerprint) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static AuditRecord readRecord(ByteBuffer data, int position) {
+        byte[] fingerprint = new byte[AuditRecord.FINGERPRINT_LENGTH];
+        for (int i = 0; i < fingerprint.length; i++) {
+            fingerprint[i] = data.get(position + 16 + i);
+        }
+        return new AuditRecord(data.getLong(position), data.get(position + 8), data.get(position + 9), data.getInt(position + 12),
+                fingerprint, getText(data, position + 48), getText(data, position + 88));
+    }
+
+    /*
+     * UTF-8 text truncated on character boundary, prefixed with length byte
+     */
+    private static void putText(ByteBuffer data, int position, String text) {
+        byte[] bytes = text.getBytes(Charsets.UTF_8);
+        int length = Math.min(bytes.length, TEXT_FIELD_SIZE);
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xc0) == 0x80) {
+            length--; // do not split multi-byte character
+        }
+        data.put(position, (byte) length);
+        for (int i = 0; i < TEXT_FIELD_SIZE; i++) {
+            data.put(position + 1 + i, i < length ? bytes[i] : 0);
+        }
+    }
+
+    private static String getText(ByteBuffer data, int position) {
+        int length = Math.min(data.get(position) & 0xff, TEXT_FIELD_SIZE);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = data.get(position + 1 + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+package com.trezoragent.audit;
+
+import com.trezoragent.struct.AuditRecord;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * <p>
+ * Command line tool to list audit journal records, e.g. who used key X last
+ * week</p>
+ *
+ * <pre>
+ * java -cp trezor-ssh-agent.jar com.trezoragent.audit.QueryJournal journal_dir [SHA256:fingerprint|all] [days]
+ * </pre>
+ *
+ * @author martin.lizner
+ */
+public class QueryJournal {
+
+    private static final String FINGERPRINT_PREFIX = "SHA256:";
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: QueryJournal <journal_dir> [SHA256:fingerprint|all] [days]");
+            System.exit(2);
+        }
+
+        try {
+            byte[] fingerprint = args.length > 1 ? parseFingerprint(args[1]) : null;
+            int days = args.length > 2 ? Integer.parseInt(args[2]) : 7;
+            long to = System.currentTimeMillis();
+            long from = to - TimeUnit.DAYS.toMillis(days);
+
+            AuditJournal journal = new AuditJournal(new File(args[0]));
+            List<AuditRecord> records = journal.query(fingerprint, from, to);
+            journal.close();
+            for (AuditRecord record : records) {
+                System.out.println(record);
+            }
+            System.out.println(records.size() + " record(s)");
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @param fingerprint "SHA256:base64" as printed by ssh-keygen -l, or
+     * "all"
+     * @return raw SHA256 or null for all keys
+     */
+    static byte[] parseFingerprint(String fingerprint) {
+        if ("all".equals(fingerprint)) {
+            return null;
+        }
+        if (!fingerprint.startsWith(FINGERPRINT_PREFIX)) {
+            throw new IllegalArgumentException("Fingerprint must start with " + FINGERPRINT_PREFIX);
+        }
+        String b64 = fingerprint.substring(FINGERPRINT_PREFIX.length());
+        while (b64.length() % 4 != 0) {
+            b64 += "="; // ssh-keygen omits padding
+        }
+        byte[] ret = Base64.decode(b64);
+        if (ret.length != AuditRecord.FINGERPRINT_LENGTH) {
+            throw new IllegalArgumentException("Invalid SHA256 fingerprint: " + fingerprint);
+        }
+        return ret;
+    }
+}
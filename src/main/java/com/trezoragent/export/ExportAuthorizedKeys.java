@@ -0,0 +1,237 @@
+package com.trezoragent.export;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.exception.DeviceTimeoutException;
+import com.trezoragent.exception.GetIdentitiesFailedException;
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.sshagent.DeviceService;
+import com.trezoragent.sshagent.DeviceWrapper;
+import com.trezoragent.sshagent.IdentityRules;
+import com.trezoragent.struct.IdentityRule;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.DerivationPaths;
+import com.trezoragent.utils.LocalizedLogger;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Command line tool to derive many identities in one device session and write
+ * them as OpenSSH authorized_keys lines, e.g. for provisioning of many
+ * hosts</p>
+ *
+ * <pre>
+ * java -cp trezor-ssh-agent.jar com.trezoragent.export.ExportAuthorizedKeys spec_file output_file
+ * </pre>
+ *
+ * <p>
+ * Each line of spec_file is one of:</p>
+ * <pre>
+ * ssh://deploy@web/connect 0-99 nist256p1,ed25519 [comment]   identity URI, index or index range, curves
+ * Host web1.example.com [User deploy]                         identities of matching RULE.n settings
+ * </pre>
+ *
+ * <p>
+ * Device (and PIN/passphrase) is asked once, identities already derived are
+ * taken from the identity index. Derivation paths are computed in parallel
+ * ahead of device requests, in chunks that fit the path cache. Lines are
+ * flushed as soon as key is derived, so partial output survives device
+ * disconnect. Settings file of the agent is used, agent itself does not need
+ * to run. Exit code is 0 when all keys were exported, 1 when some failed and
+ * 2 on usage or IO error.</p>
+ *
+ * @author martin.lizner
+ */
+public class ExportAuthorizedKeys {
+
+    private static final String HOST_KEYWORD = "host";
+    private static final String USER_KEYWORD = "user";
+
+    /**
+     * Identity to export with its authorized_keys comment
+     */
+    static final class Entry {
+
+        final KeyOwner identity;
+        final String comment;
+
+        Entry(KeyOwner identity, String comment) {
+            this.identity = identity;
+            this.comment = comment;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: ExportAuthorizedKeys <spec_file> <output_file>");
+            System.exit(2);
+        }
+
+        try {
+            LocalizedLogger.setUpDefault();
+            TrayProcess.startServices(); // no tray icon and no Pageant window
+            waitForDevice(TrayProcess.deviceService);
+
+            List<Entry> entries;
+            try (Reader reader = Files.newBufferedReader(Paths.get(args[0]), Charsets.UTF_8)) {
+                entries = parseSpec(reader, TrayProcess.deviceService, TrayProcess.identityRules);
+            }
+
+            int exported;
+            long start = System.nanoTime();
+            int cachedBefore = TrayProcess.identityIndex.size();
+            try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]), Charsets.UTF_8)) {
+                exported = export(entries, writer);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            int derived = TrayProcess.identityIndex.size() - cachedBefore;
+            double millis = elapsed / 1e6;
+            System.out.println(String.format("%d of %d keys exported, %d derived by device, %.1f ms (%.1f keys/s)",
+                    exported, entries.size(), derived, millis, exported / Math.max(millis, 0.001) * 1000));
+            System.exit(exported == entries.size() ? 0 : 1);
+        } catch (Exception ex) {
+            System.err.println("Error: " + ex);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @param entries identities to derive
+     * @param writer destination of authorized_keys lines
+     * @return number of exported keys
+     * @throws IOException if output cannot be written
+     */
+    static int export(List<Entry> entries, Writer writer) throws IOException {
+        int exported = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (i % DerivationPaths.MAX_PRELOADED_PATHS == 0) {
+                preloadPaths(entries.subList(i, Math.min(entries.size(), i + DerivationPaths.MAX_PRELOADED_PATHS)));
+            }
+            Entry entry = entries.get(i);
+            SSHPublicKey key;
+            try {
+                key = DeviceWrapper.getIdentity(entry.identity); // cached or derived and registered to index
+            } catch (DeviceTimeoutException | GetIdentitiesFailedException ex) {
+                System.err.println("Failed: " + entry.identity);
+                continue;
+            }
+            writer.write(key.toOpenSSHString(entry.comment));
+            writer.write('\n');
+            writer.flush();
+            exported++;
+        }
+        return exported;
+    }
+
+    /*
+     * Paths of identities not derived yet are computed in parallel ahead of the device requests
+     */
+    private static void preloadPaths(List<Entry> entries) {
+        List<KeyOwner> identities = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (TrayProcess.identityIndex.lookup(entry.identity) == null) {
+                identities.add(entry.identity);
+            }
+        }
+        DerivationPaths.preload(identities);
+    }
+
+    /**
+     * @param reader spec file
+     * @param device device deriving the keys
+     * @param rules rules resolving Host lines
+     * @return identities in spec order, duplicates removed
+     * @throws IOException if spec cannot be read
+     * @throws IllegalArgumentException if spec line is malformed
+     */
+    static List<Entry> parseSpec(Reader reader, DeviceService device, IdentityRules rules) throws IOException {
+        List<Entry> ret = new ArrayList<>();
+        Set<KeyOwner> seen = new HashSet<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+", 4);
+            try {
+                if (HOST_KEYWORD.equalsIgnoreCase(fields[0])) {
+                    addHost(fields, device, rules, ret, seen);
+                } else {
+                    addIdentities(fields, device, ret, seen);
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new IllegalArgumentException("Invalid spec line " + lineNumber + ": " + line, ex);
+            }
+        }
+        return ret;
+    }
+
+    private static void addHost(String[] fields, DeviceService device, IdentityRules rules, List<Entry> ret, Set<KeyOwner> seen) {
+        String host = fields[1];
+        String user = null;
+        if (fields.length > 2) {
+            if (!USER_KEYWORD.equalsIgnoreCase(fields[2]) || fields.length < 4) {
+                throw new IllegalArgumentException("Expected: Host name [User name]");
+            }
+            user = fields[3].trim();
+        }
+        for (IdentityRule rule : rules.match(host, user)) {
+            for (String curveName : rule.getCurveNames()) {
+                add(new KeyOwner(device, rule.getIdentityUri(), rule.getIdentityIndex(), curveName), host, ret, seen);
+            }
+        }
+    }
+
+    private static void addIdentities(String[] fields, DeviceService device, List<Entry> ret, Set<KeyOwner> seen) {
+        URI uri = URI.create(fields[0]);
+        String[] range = fields[1].split("-");
+        int first = Integer.parseInt(range[0]);
+        int last = range.length > 1 ? Integer.parseInt(range[1]) : first;
+        List<String> curveNames = Arrays.asList(fields[2].split(","));
+        for (String curveName : curveNames) {
+            if (!AgentConstants.CURVE_NAME_NISTP256.equals(curveName) && !AgentConstants.CURVE_NAME_ED25519.equals(curveName)) {
+                throw new IllegalArgumentException("Unsupported curve: " + curveName);
+            }
+        }
+        for (int index = first; index <= last; index++) {
+            for (String curveName : curveNames) {
+                String comment = fields.length > 3 ? fields[3] : uri + "#" + index;
+                add(new KeyOwner(device, uri, index, curveName), comment, ret, seen);
+            }
+        }
+    }
+
+    private static void add(KeyOwner identity, String comment, List<Entry> ret, Set<KeyOwner> seen) {
+        if (seen.add(identity)) {
+            ret.add(new Entry(identity, comment));
+        }
+    }
+
+    private static void waitForDevice(DeviceService device) throws DeviceTimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(AgentConstants.DEVICE_WAIT_TIMEOUT);
+        while (!device.isDeviceReady()) {
+            if (System.nanoTime() > deadline) {
+                throw new DeviceTimeoutException();
+            }
+            Thread.sleep(AgentConstants.ASYNC_CHECK_INTERVAL * 10);
+        }
+    }
+}
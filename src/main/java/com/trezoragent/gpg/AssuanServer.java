@@ -0,0 +1,547 @@
+package com.trezoragent.gpg;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.audit.AuditJournal;
+import com.trezoragent.exception.ActionCancelledException;
+import com.trezoragent.exception.DeviceTimeoutException;
+import com.trezoragent.exception.GetIdentitiesFailedException;
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.sshagent.DeviceService;
+import com.trezoragent.sshagent.DeviceWrapper;
+import com.trezoragent.struct.AuditRecord;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bitcoinj.core.Sha256Hash;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * <p>
+ * gpg-agent front end speaking Assuan protocol, so gpg signs with device keys
+ * (GPG_AGENT_SOCKET)</p>
+ *
+ * <p>
+ * Keys are derived from GPG identities "gpg://&lt;user id&gt;" (SLIP-0013,
+ * index 0) on every ready device and named by keygrip, as gpg names secret
+ * keys. PKSIGN goes through DeviceWrapper like SSH sign requests, so SSH and
+ * GPG share one device session, PIN cache and per device operation queue.
+ * Device signs the digest set by SETHASH as is. Only signing is served, there
+ * are no secret key files, decryption or key generation.</p>
+ *
+ * <p>
+ * Socket is emulated as gpg does on Windows: socket file holds TCP port on
+ * 127.0.0.1 and 16 bytes nonce, client sends the nonce first and connection
+ * without it is dropped.</p>
+ *
+ * @author martin.lizner
+ */
+public class AssuanServer {
+
+    static final int NONCE_LENGTH = 16;
+    static final String AGENT_VERSION = "2.2.0"; // GETINFO version, oldest gpg-agent with the same signing commands
+    private static final int MAX_LINE_LENGTH = 1000; // ASSUAN_LINELENGTH
+    private static final int HANDSHAKE_TIMEOUT = 5000; // ms, client sends nonce right after connect
+    private static final int IDENTITY_INDEX = 0;
+    private static final int NISTP256_DIGEST_LENGTH = 32;
+
+    // gpg error codes, error source GPG_ERR_SOURCE_GPGAGENT (4) in upper byte
+    static final int ERR_GENERAL = 4 << 24 | 1;
+    static final int ERR_DIGEST_ALGO = 4 << 24 | 5;
+    static final int ERR_NO_SECKEY = 4 << 24 | 17;
+    static final int ERR_NOT_FOUND = 4 << 24 | 27;
+    static final int ERR_INV_VALUE = 4 << 24 | 55;
+    static final int ERR_NO_DATA = 4 << 24 | 58;
+    static final int ERR_NOT_SUPPORTED = 4 << 24 | 60;
+    static final int ERR_TIMEOUT = 4 << 24 | 62;
+    static final int ERR_CANCELED = 4 << 24 | 99;
+    static final int ERR_UNKNOWN_COMMAND = 4 << 24 | 275;
+    static final int ERR_PARAMETER = 4 << 24 | 280;
+
+    private static final Map<String, String> HASH_ALGO_NAMES = new HashMap<>(); // OpenPGP algo id -> name
+    private static final Map<String, Integer> HASH_LENGTHS = new HashMap<>(); // name -> digest bytes
+
+    static {
+        addHashAlgo("2", "sha1", 20);
+        addHashAlgo("3", "rmd160", 20);
+        addHashAlgo("8", "sha256", 32);
+        addHashAlgo("9", "sha384", 48);
+        addHashAlgo("10", "sha512", 64);
+        addHashAlgo("11", "sha224", 28);
+    }
+
+    private final File socketFile;
+    private final List<URI> identities;
+    private final List<String> curveNames;
+    private final ExecutorService connections;
+    private ServerSocket serverSocket;
+    private byte[] nonce;
+
+    /**
+     * @param socketFile socket file gpg looks for, e.g.
+     * %APPDATA%\gnupg\S.gpg-agent
+     * @param identities GPG identities, gpg://&lt;user id&gt;
+     * @param curveNames curves of keys derived for every identity
+     */
+    public AssuanServer(File socketFile, List<URI> identities, List<String> curveNames) {
+        this.socketFile = socketFile;
+        this.identities = identities;
+        this.curveNames = curveNames;
+        this.connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gpg-agent-connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Listen on loopback port and write socket file
+     *
+     * @throws IOException if port cannot be opened or socket file written
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        nonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        File dir = socketFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Directory not created: " + dir);
+        }
+        Files.write(socketFile.toPath(), ByteUtils.concatenate((serverSocket.getLocalPort() + "\n").getBytes(Charsets.US_ASCII), nonce));
+
+        final ServerSocket listening = serverSocket;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!listening.isClosed()) {
+                    try {
+                        final Socket socket = listening.accept();
+                        connections.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (IOException ex) {
+                                    Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "GPG connection closed", ex);
+                                } finally {
+                                    try {
+                                        socket.close();
+                                    } catch (IOException ex) {
+                                        Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "GPG connection not closed", ex);
+                                    }
+                                }
+                            }
+                        });
+                    } catch (IOException ex) {
+                        Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "GPG agent socket closed");
+                    }
+                }
+            }
+        }, "gpg-agent-server");
+        thread.setDaemon(true);
+        thread.start();
+        Logger.getLogger(AssuanServer.class.getName()).log(Level.INFO, "GPG agent listening on port {0}, socket file: {1}", new Object[]{serverSocket.getLocalPort(), socketFile});
+    }
+
+    public synchronized void close() {
+        connections.shutdownNow();
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "GPG agent socket not closed", ex);
+            }
+            serverSocket = null;
+            if (!socketFile.delete()) {
+                Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "Socket file not deleted: {0}", socketFile);
+            }
+        }
+    }
+
+    /**
+     * @return device keys of GPG identities by keygrip, derived keys are
+     * served from identity index
+     */
+    Map<String, SSHPublicKey> loadKeys() {
+        Map<String, SSHPublicKey> ret = new LinkedHashMap<>();
+        for (DeviceService device : TrayProcess.deviceServices) {
+            if (!device.isDeviceReady()) {
+                continue;
+            }
+            for (URI identity : identities) {
+                for (String curveName : curveNames) {
+                    try {
+                        SSHPublicKey key = DeviceWrapper.getIdentity(new KeyOwner(device, identity, IDENTITY_INDEX, curveName));
+                        String keygrip = Keygrip.of(key.getBlob());
+                        if (!ret.containsKey(keygrip)) { // devices sharing a seed derive the same key
+                            ret.put(keygrip, key);
+                            Logger.getLogger(AssuanServer.class.getName()).log(Level.FINE, "GPG key {0} ({1}) has keygrip {2}", new Object[]{identity, curveName, keygrip});
+                        }
+                    } catch (DeviceTimeoutException | GetIdentitiesFailedException | IllegalArgumentException ex) {
+                        Logger.getLogger(AssuanServer.class.getName()).log(Level.WARNING, "GPG key " + identity + " (" + curveName + ") not derived on " + device.getDeviceLabel(), ex);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        byte[] clientNonce = new byte[NONCE_LENGTH];
+        new DataInputStream(in).readFully(clientNonce);
+        if (!MessageDigest.isEqual(nonce, clientNonce)) {
+            Logger.getLogger(AssuanServer.class.getName()).log(Level.WARNING, "GPG connection without valid nonce refused");
+            return;
+        }
+        socket.setSoTimeout(0);
+
+        Session session = new Session(out);
+        session.writeLine("OK Pleased to meet you");
+        out.flush();
+        String line;
+        while ((line = readLine(in)) != null) {
+            boolean open = session.handle(line);
+            out.flush();
+            if (!open) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * State of one client connection: selected key and digest to sign
+     */
+    private class Session {
+
+        private final OutputStream out;
+        private SSHPublicKey key;
+        private byte[] digest;
+        private String hashAlgo;
+
+        Session(OutputStream out) {
+            this.out = out;
+        }
+
+        /*
+         * Returns false when client said BYE
+         */
+        boolean handle(String line) throws IOException {
+            if (line.isEmpty() || line.startsWith("#")) {
+                return true; // comment line
+            }
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+            String[] args = space < 0 ? new String[0] : line.substring(space + 1).trim().split("\\s+");
+
+            switch (command) {
+                case "NOP":
+                case "OPTION":
+                case "SETKEYDESC":
+                    writeLine("OK");
+                    break;
+                case "RESET":
+                    key = null;
+                    digest = null;
+                    hashAlgo = null;
+                    writeLine("OK");
+                    break;
+                case "BYE":
+                    writeLine("OK closing connection");
+                    return false;
+                case "GETINFO":
+                    getInfo(args);
+                    break;
+                case "HAVEKEY":
+                    haveKey(args);
+                    break;
+                case "KEYINFO":
+                    keyInfo(args);
+                    break;
+                case "SIGKEY":
+                case "SETKEY":
+                    selectKey(args);
+                    break;
+                case "SETHASH":
+                    setHash(args);
+                    break;
+                case "PKSIGN":
+                    pkSign();
+                    break;
+                default:
+                    writeError(ERR_UNKNOWN_COMMAND, "Unknown IPC command");
+            }
+            return true;
+        }
+
+        private void getInfo(String[] args) throws IOException {
+            String what = args.length > 0 ? args[0] : "";
+            if ("version".equals(what)) {
+                writeData(AGENT_VERSION.getBytes(Charsets.US_ASCII));
+            } else if ("pid".equals(what)) {
+                writeData(ManagementFactory.getRuntimeMXBean().getName().split("@")[0].getBytes(Charsets.US_ASCII)); // pid@host
+            } else {
+                writeError(ERR_PARAMETER, "Parameter error");
+                return;
+            }
+            writeLine("OK");
+        }
+
+        private void haveKey(String[] args) throws IOException {
+            Map<String, SSHPublicKey> keys = loadKeys();
+            for (String keygrip : args) {
+                if (keygrip.startsWith("--")) {
+                    writeError(ERR_NOT_SUPPORTED, "Not supported");
+                    return;
+                }
+                if (keys.containsKey(keygrip.toUpperCase())) {
+                    writeLine("OK");
+                    return;
+                }
+            }
+            writeError(ERR_NO_SECKEY, "No secret key");
+        }
+
+        private void keyInfo(String[] args) throws IOException {
+            Map<String, SSHPublicKey> keys = loadKeys();
+            boolean list = false;
+            String keygrip = null;
+            for (String arg : args) {
+                if ("--list".equals(arg)) {
+                    list = true;
+                } else if (!arg.startsWith("--")) {
+                    keygrip = arg.toUpperCase();
+                }
+            }
+            if (list) {
+                for (String each : keys.keySet()) {
+                    writeKeyInfo(each);
+                }
+            } else if (keygrip != null && keys.containsKey(keygrip)) {
+                writeKeyInfo(keygrip);
+            } else {
+                writeError(ERR_NOT_FOUND, "Not found");
+                return;
+            }
+            writeLine("OK");
+        }
+
+        private void writeKeyInfo(String keygrip) throws IOException {
+            writeLine("S KEYINFO " + keygrip + " D - - - - - - -"); // regular key, no serial number, not cached, no protection info
+        }
+
+        private void selectKey(String[] args) throws IOException {
+            SSHPublicKey selected = args.length > 0 ? loadKeys().get(args[0].toUpperCase()) : null;
+            if (selected == null) {
+                writeError(ERR_NO_SECKEY, "No secret key");
+                return;
+            }
+            key = selected;
+            writeLine("OK");
+        }
+
+        private void setHash(String[] args) throws IOException {
+            if (args.length != 2) {
+                writeError(ERR_PARAMETER, "Parameter error");
+                return;
+            }
+            String algo = args[0].startsWith("--hash=") ? args[0].substring("--hash=".length()) : HASH_ALGO_NAMES.get(args[0]);
+            Integer length = (algo == null) ? null : HASH_LENGTHS.get(algo);
+            if (length == null) {
+                writeError(ERR_DIGEST_ALGO, "Invalid digest algorithm");
+                return;
+            }
+            byte[] value;
+            try {
+                value = Hex.decode(args[1]);
+            } catch (RuntimeException ex) {
+                value = null;
+            }
+            if (value == null || value.length != length) {
+                writeError(ERR_INV_VALUE, "Invalid value");
+                return;
+            }
+            digest = value;
+            hashAlgo = algo;
+            writeLine("OK");
+        }
+
+        private void pkSign() throws IOException {
+            if (key == null) {
+                writeError(ERR_NO_SECKEY, "No secret key");
+                return;
+            }
+            if (digest == null) {
+                writeError(ERR_NO_DATA, "No data");
+                return;
+            }
+            boolean ed25519 = IdentityUtils.ED25519_KEY_PREFIX.equals(key.getKeyType());
+            if (!ed25519 && digest.length < NISTP256_DIGEST_LENGTH) {
+                writeError(ERR_DIGEST_ALGO, "Invalid digest algorithm"); // gpg needs 256 bit hash for P-256 key too
+                return;
+            }
+            byte[] challenge = ed25519 ? digest : Arrays.copyOf(digest, NISTP256_DIGEST_LENGTH); // ECDSA uses leftmost bits of longer digest
+            String userId = key.getOwner().getIdentityUri().getSchemeSpecificPart().substring(2); // gpg://<user id>
+
+            long start = System.nanoTime();
+            byte outcome = AuditRecord.OUTCOME_FAILED;
+            try {
+                Logger.getLogger(AssuanServer.class.getName()).log(Level.INFO, "GPG sign request for {0}, hash: {1}", new Object[]{userId, hashAlgo});
+                byte[] signature = DeviceWrapper.signChallenge(key.getBlob(), challenge, userId.getBytes(Charsets.UTF_8));
+                boolean valid = ed25519
+                        ? SignatureVerifier.verifyEd25519Signature(key.getBlob(), challenge, signature)
+                        : SignatureVerifier.verifyNistp256DigestSignature(key.getBlob(), challenge, signature);
+                if (!valid) {
+                    throw new SignFailedException("Device signature does not match GPG key " + userId);
+                }
+                writeData(signatureExpression(ed25519, signature));
+                writeLine("OK");
+                outcome = AuditRecord.OUTCOME_OK;
+            } catch (SignFailedException ex) {
+                Logger.getLogger(AssuanServer.class.getName()).log(Level.WARNING, "GPG sign failed", ex);
+                writeError(ERR_GENERAL, "General error");
+            } catch (DeviceTimeoutException ex) {
+                outcome = AuditRecord.OUTCOME_TIMEOUT;
+                writeError(ERR_TIMEOUT, "Timeout");
+            } catch (ActionCancelledException ex) {
+                outcome = AuditRecord.OUTCOME_CANCELLED;
+                writeError(ERR_CANCELED, "Operation cancelled");
+            } finally {
+                writeAuditRecord(outcome, start, key.getBlob(), userId);
+            }
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write(line.getBytes(Charsets.UTF_8));
+            out.write('\n');
+        }
+
+        void writeError(int code, String description) throws IOException {
+            writeLine("ERR " + code + " " + description + " <GPG Agent>");
+        }
+
+        /*
+         * Data lines, '%', CR and LF percent escaped, long data split to several lines
+         */
+        void writeData(byte[] data) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (byte b : data) {
+                if (line.size() == 0) {
+                    line.write('D');
+                    line.write(' ');
+                }
+                if (b == '%' || b == '\r' || b == '\n') {
+                    byte[] escaped = String.format("%%%02X", b & 0xff).getBytes(Charsets.US_ASCII);
+                    line.write(escaped, 0, escaped.length);
+                } else {
+                    line.write(b);
+                }
+                if (line.size() > MAX_LINE_LENGTH - 4) {
+                    line.write('\n');
+                    line.writeTo(out);
+                    line.reset();
+                }
+            }
+            if (line.size() > 0) {
+                line.write('\n');
+                line.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * @param ed25519 true for EdDSA signature, ECDSA otherwise
+     * @param deviceSignature 65 bytes: 1 byte header, 32 bytes r, 32 bytes s
+     * @return canonical S-expression (sig-val (ecdsa|eddsa (r ..) (s ..)))
+     */
+    static byte[] signatureExpression(boolean ed25519, byte[] deviceSignature) {
+        byte[] r = Arrays.copyOfRange(deviceSignature, 1, 33);
+        byte[] s = Arrays.copyOfRange(deviceSignature, 33, 65);
+        if (!ed25519) { // MPI: no leading zeros, zero byte before high bit
+            r = new BigInteger(1, r).toByteArray();
+            s = new BigInteger(1, s).toByteArray();
+        }
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        writeAtom(ret, "(7:sig-val(5:" + (ed25519 ? "eddsa" : "ecdsa") + "(1:r" + r.length + ":", r);
+        writeAtom(ret, ")(1:s" + s.length + ":", s);
+        writeAtom(ret, ")))", new byte[0]);
+        return ret.toByteArray();
+    }
+
+    private static void writeAtom(ByteArrayOutputStream out, String prefix, byte[] value) {
+        byte[] bytes = prefix.getBytes(Charsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+        out.write(value, 0, value.length);
+    }
+
+    /*
+     * Line without LF, null at end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(Charsets.UTF_8.name());
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Assuan line too long");
+            }
+            line.write(b);
+        }
+        return line.toString(Charsets.UTF_8.name());
+    }
+
+    private static void writeAuditRecord(byte outcome, long startNanos, byte[] keyBlob, String userId) {
+        AuditJournal journal = TrayProcess.auditJournal;
+        if (journal == null) {
+            return; // journal disabled
+        }
+        int latency = (int) ((System.nanoTime() - startNanos) / 1000000);
+        try {
+            journal.append(new AuditRecord(System.currentTimeMillis(), AuditRecord.OPERATION_PKSIGN, outcome, latency, Sha256Hash.hash(keyBlob), userId, AgentConstants.GPG_URI_SCHEME));
+        } catch (IOException ex) {
+            Logger.getLogger(AssuanServer.class.getName()).log(Level.WARNING, "Audit record not written", ex);
+        }
+    }
+
+    private static void addHashAlgo(String id, String name, int length) {
+        HASH_ALGO_NAMES.put(id, name);
+        HASH_LENGTHS.put(name, length);
+    }
+}
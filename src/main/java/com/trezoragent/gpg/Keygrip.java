@@ -0,0 +1,91 @@
+package com.trezoragent.gpg;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SSHBufferReader;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.util.BigIntegers;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * <p>
+ * Keygrip of EC public key, the key id gpg-agent uses to name secret
+ * keys</p>
+ *
+ * <p>
+ * Computed as libgcrypt does for ECC keys: SHA1 of curve parameters p, a, b,
+ * g, n and public point q, each as canonical S-expression "(1:p32:...)".
+ * Numbers are minimal unsigned big endian, Ed25519 negative parameters a and
+ * b are hashed by their magnitude.</p>
+ *
+ * @author martin.lizner
+ */
+public class Keygrip {
+
+    private static final X9ECParameters NISTP256_CURVE = NISTNamedCurves.getByName("P-256");
+    private static final byte[][] NISTP256_PARAMETERS = {
+        BigIntegers.asUnsignedByteArray(NISTP256_CURVE.getCurve().getField().getCharacteristic()),
+        BigIntegers.asUnsignedByteArray(NISTP256_CURVE.getCurve().getA().toBigInteger()),
+        BigIntegers.asUnsignedByteArray(NISTP256_CURVE.getCurve().getB().toBigInteger()),
+        NISTP256_CURVE.getG().getEncoded(false),
+        BigIntegers.asUnsignedByteArray(NISTP256_CURVE.getN())};
+    private static final byte[][] ED25519_PARAMETERS = {
+        BigIntegers.asUnsignedByteArray(BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19))),
+        Hex.decode("01"), // -1
+        Hex.decode("2DFC9311D490018C7338BF8688861767FF8FF5B2BEBE27548A14B235ECA6874A"), // -d
+        Hex.decode("04216936D3CD6E53FEC0A4E231FDD6DC5C692CC7609525A7B2C9562D608F25D51A6666666666666666666666666666666666666666666666666666666666666658"),
+        Hex.decode("1000000000000000000000000000000014DEF9DEA2F79CD65812631A5CF5D3ED")};
+    private static final String[] PARAMETER_NAMES = {"p", "a", "b", "g", "n"};
+
+    /**
+     * @param keyBlob SSH wire encoded ecdsa-sha2-nistp256 or ssh-ed25519
+     * public key
+     * @return keygrip as 40 upper case hex chars, as printed by gpg
+     * --with-keygrip
+     * @throws IllegalArgumentException if key type is not supported
+     */
+    public static String of(byte[] keyBlob) {
+        SSHBufferReader reader = new SSHBufferReader(keyBlob);
+        String keyType = reader.readUTF8String();
+        byte[][] parameters;
+        switch (keyType) {
+            case IdentityUtils.NISTP256_KEY_PREFIX:
+                reader.readString(); // curve name
+                parameters = NISTP256_PARAMETERS;
+                break;
+            case IdentityUtils.ED25519_KEY_PREFIX:
+                parameters = ED25519_PARAMETERS;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported key type: " + keyType);
+        }
+        byte[] q = reader.readString();
+
+        ByteArrayOutputStream hashed = new ByteArrayOutputStream();
+        for (int i = 0; i < parameters.length; i++) {
+            appendParameter(hashed, PARAMETER_NAMES[i], parameters[i]);
+        }
+        appendParameter(hashed, "q", q);
+        return Hex.toHexString(newSha1().digest(hashed.toByteArray())).toUpperCase();
+    }
+
+    private static void appendParameter(ByteArrayOutputStream out, String name, byte[] value) {
+        byte[] prefix = ("(" + name.length() + ":" + name + value.length + ":").getBytes(Charsets.US_ASCII);
+        out.write(prefix, 0, prefix.length);
+        out.write(value, 0, value.length);
+        out.write(')');
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-1 is mandatory for every Java platform
+        }
+    }
+}
@@ -10,6 +10,7 @@ import com.trezoragent.utils.LocalizedLogger;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -114,6 +115,16 @@ public class AgentPopUpMenu extends JPopupMenu {
                 if (agent.isCreatedCorrectly() && agent.isMainLoopStarted()) {
                     agent.exitProcess();
                 }
+                if (TrayProcess.identityRules != null) {
+                    TrayProcess.identityRules.logStatistics(); // rule hits for tuning
+                }
+                if (TrayProcess.auditJournal != null) {
+                    try {
+                        TrayProcess.auditJournal.close(); // flush journal to disk
+                    } catch (IOException ex) {
+                        Logger.getLogger(AgentPopUpMenu.class.getName()).log(Level.WARNING, "Audit journal not closed", ex);
+                    }
+                }
                 System.exit(0);
             }
         });
@@ -126,13 +137,12 @@ public class AgentPopUpMenu extends JPopupMenu {
             public void actionPerformed(ActionEvent event) {
                 if (deviceService.getDeviceKey() != null) {
                     List<String> pubKeys = new ArrayList<>();
-                    pubKeys.add(deviceService.getDeviceKey() + " " + deviceService.getDeviceLabel());
+                    pubKeys.add(deviceService.getDeviceKey().toOpenSSHString(deviceService.getDeviceLabel()));
 
                     PublicKeysFrame frame = new PublicKeysFrame(pubKeys, deviceService.getDeviceLabel() + " " + LocalizedLogger.getLocalizedMessage(PUBKEY_FRAME_TITLE_KEY));
                     frame.setVisible(true);
 
                     deviceService.setDeviceKey(null);
-                    deviceService.checkoutAsyncKeyData(); // clear cache data explicitly, since they were never read by standard call()
                     timer.stop();
                 }
             }
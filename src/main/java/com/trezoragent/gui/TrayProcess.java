@@ -1,11 +1,20 @@
 package com.trezoragent.gui;
 
+import com.trezoragent.audit.AuditJournal;
+import com.trezoragent.gpg.AssuanServer;
 import com.trezoragent.mouselistener.JNIMouseHook;
 import com.trezoragent.mouselistener.MouseClickOutsideComponentEvent;
+import com.trezoragent.sshagent.CertificateStore;
 import com.trezoragent.sshagent.DeviceService;
-import com.trezoragent.sshagent.KeepKeyService;
+import com.trezoragent.sshagent.DeviceWrapper;
+import com.trezoragent.sshagent.IdentityIndex;
+import com.trezoragent.sshagent.IdentityOrdering;
+import com.trezoragent.sshagent.IdentityRules;
 import com.trezoragent.sshagent.SSHAgent;
-import com.trezoragent.sshagent.TrezorService;
+import com.trezoragent.sshagent.SigningBackendProvider;
+import com.trezoragent.sshagent.SigningBackends;
+import com.trezoragent.sshagent.SoftwareKeys;
+import com.trezoragent.sshagent.UpstreamAgent;
 import com.trezoragent.utils.AgentConstants;
 import com.trezoragent.utils.AgentUtils;
 import com.trezoragent.utils.ExceptionHandler;
@@ -22,7 +31,15 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,7 +59,16 @@ public class TrayProcess {
     private final static String VISIBLE_PROPERTY = "visible";
 
     public static SSHAgent agent;
-    public static DeviceService deviceService;
+    public static DeviceService deviceService; // first configured device, used by GUI
+    public static List<DeviceService> deviceServices = Collections.emptyList(); // all devices, sign requests are routed by key owner
+    public static final IdentityIndex identityIndex = new IdentityIndex();
+    public static AuditJournal auditJournal;
+    public static IdentityOrdering identityOrdering;
+    public static IdentityRules identityRules;
+    public static final SoftwareKeys softwareKeys = new SoftwareKeys(Runtime.getRuntime().availableProcessors()); // keys added by ssh-add, signed on CPU pool
+    public static UpstreamAgent upstreamAgent; // null when no upstream agent is configured
+    public static CertificateStore certificateStore; // null when no certificate directory is configured
+    public static AssuanServer gpgAgent; // null when no GPG agent socket is configured
 
     public static Properties settings;
     public static String deviceType;
@@ -54,37 +80,7 @@ public class TrayProcess {
 
         if (agent.isCreatedCorrectly()) {
 
-            File settingsFile = new File(System.getProperty("user.home") + File.separator + AgentConstants.SETTINGS_FILE_NAME);
-
-            if (!settingsFile.exists()) {
-                try {
-                    settings = AgentUtils.initSettingsFile(settingsFile); // create default settings file
-                    Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "New settings file created: {0}", new Object[]{settingsFile.getPath()});
-                } catch (Exception ex) {
-                    TrayProcess.createError(LocalizedLogger.getLocalizedMessage("INIT_SETTINGS_FILE_ERROR", ex.getLocalizedMessage()), false, ex);
-                    //Logger.getLogger(TrayProcess.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            } else {
-                settings = new Properties();
-                try (FileInputStream fileIn = new FileInputStream(settingsFile)) {
-                    settings.load(fileIn);
-                }
-                Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "Existing settings file loaded: {0}", new Object[]{settingsFile.getPath()});
-            }
-
-            // start device USB service depending on device type
-            String deviceTypeProperty = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_DEVICE, AgentConstants.TREZOR_LABEL);
-            switch (deviceTypeProperty.toLowerCase()) {
-                case (AgentConstants.SETTINGS_KEEPKEY_DEVICE):
-                    deviceType = AgentConstants.KEEPKEY_LABEL;
-                    deviceService = KeepKeyService.startKeepKeyService();
-                    break;
-                default:
-                    deviceType = AgentConstants.TREZOR_LABEL;
-                    deviceService = TrezorService.startTrezorService();
-            }
-
-            initSessionTimer(); // start timer to control session (PIN+Passphrase) expiration
+            startServices(); // settings, device and session services
 
             SwingUtilities.invokeLater(new Runnable() { // start GUI
                 @Override
@@ -198,6 +194,75 @@ public class TrayProcess {
         Logger.getLogger(SSHAgent.class.getName()).log(Level.SEVERE, message, ex);
     }
 
+    /**
+     * Load settings and start device USB service without GUI and Pageant
+     * window, also used by command line tools that need the device
+     *
+     * @throws Exception if settings file cannot be read
+     */
+    public static void startServices() throws Exception {
+        File settingsFile = new File(System.getProperty("user.home") + File.separator + AgentConstants.SETTINGS_FILE_NAME);
+
+        if (!settingsFile.exists()) {
+            try {
+                settings = AgentUtils.initSettingsFile(settingsFile); // create default settings file
+                Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "New settings file created: {0}", new Object[]{settingsFile.getPath()});
+            } catch (Exception ex) {
+                TrayProcess.createError(LocalizedLogger.getLocalizedMessage("INIT_SETTINGS_FILE_ERROR", ex.getLocalizedMessage()), false, ex);
+                //Logger.getLogger(TrayProcess.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else {
+            settings = new Properties();
+            try (FileInputStream fileIn = new FileInputStream(settingsFile)) {
+                settings.load(fileIn);
+            }
+            Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "Existing settings file loaded: {0}", new Object[]{settingsFile.getPath()});
+        }
+
+        initAuditJournal(); // journal of identity and sign operations
+        initUpstreamAgent(); // keys of other SSH agent offered next to device keys
+        initCertificateStore(); // OpenSSH certificates of device keys
+        Integer rejectedKeyTtl = new Integer(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_REJECTED_KEY_TTL, AgentConstants.SETTINGS_REJECTED_KEY_TTL));
+        identityOrdering = new IdentityOrdering(1000L * rejectedKeyTtl);
+        identityRules = IdentityRules.fromSettings(settings,
+                URI.create(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_URI, AgentConstants.SETTINGS_BIP32_SSHURI)),
+                new Integer(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_INDEX, AgentConstants.SETTINGS_BIP32_INDEX)),
+                AgentUtils.readListSetting(settings, AgentConstants.SETTINGS_KEY_CURVE_NAME, AgentConstants.CURVE_NAME_NISTP256)); // RULE.n settings
+
+        // start device services depending on device types, backends are discovered by ServiceLoader
+        List<DeviceService> devices = new ArrayList<>();
+        Map<String, Integer> instances = new HashMap<>(); // count of started backends per provider
+        RuntimeException startFailure = null;
+        for (String deviceTypeProperty : AgentUtils.readListSetting(settings, AgentConstants.SETTINGS_KEY_DEVICE, AgentConstants.SETTINGS_TREZOR_DEVICE)) {
+            SigningBackendProvider backend = SigningBackends.find(deviceTypeProperty);
+            if (backend == null) {
+                Logger.getLogger(TrayProcess.class.getName()).log(Level.WARNING, "Unknown device type: {0}, using: {1}", new Object[]{deviceTypeProperty, AgentConstants.SETTINGS_TREZOR_DEVICE});
+                backend = SigningBackends.find(AgentConstants.SETTINGS_TREZOR_DEVICE);
+            }
+            Integer instance = instances.get(backend.getName());
+            instance = (instance == null) ? 0 : instance + 1;
+            instances.put(backend.getName(), instance);
+            try {
+                DeviceService device = SigningBackends.start(backend, settings, instance);
+                if (devices.isEmpty()) {
+                    deviceType = backend.getLabel();
+                }
+                devices.add(device);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(TrayProcess.class.getName()).log(Level.SEVERE, "Device not started: " + deviceTypeProperty, ex); // other devices still serve keys
+                startFailure = ex;
+            }
+        }
+        if (devices.isEmpty()) {
+            throw startFailure;
+        }
+        deviceServices = Collections.unmodifiableList(devices);
+        deviceService = devices.get(0);
+
+        initGpgAgent(); // gpg signs through the same device session
+        initSessionTimer(); // start timer to control session (PIN+Passphrase) expiration
+    }
+
     public static void createInfo(String message) {
         if (trayIcon != null) {
             trayIcon.displayMessage(AgentConstants.APP_PUBLIC_NAME, message, TrayIcon.MessageType.INFO);
@@ -205,12 +270,73 @@ public class TrayProcess {
         Logger.getLogger(SSHAgent.class.getName()).log(Level.INFO, message);
     }
 
+    private static void initAuditJournal() {
+        String defaultDir = System.getProperty("user.home") + File.separator + AgentConstants.AUDIT_JOURNAL_DIR_NAME;
+        String journalDir = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_AUDIT_JOURNAL_DIR, defaultDir).trim();
+        if (journalDir.isEmpty()) {
+            Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "Audit journal disabled");
+            return;
+        }
+        try {
+            auditJournal = new AuditJournal(new File(journalDir));
+        } catch (IOException ex) {
+            Logger.getLogger(TrayProcess.class.getName()).log(Level.WARNING, "Audit journal not available: " + journalDir, ex); // agent works without journal
+        }
+    }
+
+    private static void initUpstreamAgent() {
+        String address = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_UPSTREAM_AGENT, "").trim();
+        if (address.isEmpty()) {
+            return;
+        }
+        Integer ttl = new Integer(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_UPSTREAM_AGENT_TTL, AgentConstants.SETTINGS_UPSTREAM_AGENT_TTL).trim());
+        upstreamAgent = new UpstreamAgent(address, 1000L * ttl); // connected on first request, upstream agent may start later
+        Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "Upstream agent: {0}", address);
+    }
+
+    private static void initCertificateStore() {
+        String dir = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_CERTIFICATE_DIR, "").trim();
+        if (dir.isEmpty()) {
+            return;
+        }
+        certificateStore = new CertificateStore(new File(dir));
+        try {
+            certificateStore.startWatching(); // renewed certificates are picked up without restart
+        } catch (IOException ex) {
+            Logger.getLogger(TrayProcess.class.getName()).log(Level.WARNING, "Certificate directory not watched, certificates loaded once: " + dir, ex);
+        }
+    }
+
+    private static void initGpgAgent() {
+        String socketFile = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_GPG_AGENT_SOCKET, "").trim();
+        if (socketFile.isEmpty()) {
+            return;
+        }
+        List<URI> identities = new ArrayList<>();
+        for (String userId : AgentUtils.readListSetting(settings, AgentConstants.SETTINGS_KEY_GPG_USER_ID, "")) {
+            try {
+                identities.add(new URI(AgentConstants.GPG_URI_SCHEME + "://" + userId));
+            } catch (URISyntaxException ex) {
+                Logger.getLogger(TrayProcess.class.getName()).log(Level.WARNING, "GPG user id is not valid URI authority, skipped: " + userId, ex);
+            }
+        }
+        gpgAgent = new AssuanServer(new File(socketFile), identities,
+                AgentUtils.readListSetting(settings, AgentConstants.SETTINGS_KEY_GPG_CURVE_NAME, AgentConstants.CURVE_NAME_NISTP256));
+        try {
+            gpgAgent.start();
+        } catch (IOException ex) {
+            Logger.getLogger(TrayProcess.class.getName()).log(Level.WARNING, "GPG agent not started: " + socketFile, ex); // SSH agent works without it
+            gpgAgent.close();
+            gpgAgent = null;
+        }
+    }
+
     private static void initSessionTimer() {
         Integer delay = 1000 * 60 * new Integer(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_SESSION_TIMEOUT, AgentConstants.SETTINGS_SESSION_TIMEOUT));
         sessionTimer = new Timer(delay, new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent event) {
-                TrayProcess.deviceService.getClient().clearSession();
+                DeviceWrapper.clearSessions(); // sign in progress keeps its session
                 Logger.getLogger(TrayProcess.class.getName()).log(Level.INFO, "Clear session request has been sent to the device.");
             }
         }
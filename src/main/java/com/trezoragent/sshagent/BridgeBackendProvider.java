@@ -0,0 +1,27 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.Properties;
+
+/**
+ * Trezor through Trezor Bridge, see BridgeService
+ *
+ * @author martin.lizner
+ */
+public class BridgeBackendProvider implements SigningBackendProvider {
+
+    @Override
+    public String getName() {
+        return AgentConstants.SETTINGS_BRIDGE_DEVICE;
+    }
+
+    @Override
+    public String getLabel() {
+        return AgentConstants.TREZOR_LABEL;
+    }
+
+    @Override
+    public SigningBackend start(Properties settings, int instance) {
+        return BridgeService.startBridgeService(settings, instance);
+    }
+}
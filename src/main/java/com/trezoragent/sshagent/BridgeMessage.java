@@ -0,0 +1,283 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bitcoinj.core.Utils;
+
+/**
+ * <p>
+ * Trezor wire message as exchanged with Trezor Bridge: 2 bytes message type,
+ * 4 bytes payload length and protobuf payload, hex encoded in HTTP body</p>
+ *
+ * <p>
+ * Only messages used by the agent are built, protobuf fields are encoded by
+ * hand (varint and length delimited types), field numbers follow
+ * messages.proto of Trezor firmware 1.x.</p>
+ *
+ * @author martin.lizner
+ */
+public final class BridgeMessage {
+
+    public static final int INITIALIZE = 0;
+    public static final int SUCCESS = 2;
+    public static final int FAILURE = 3;
+    public static final int GET_PUBLIC_KEY = 11;
+    public static final int PUBLIC_KEY = 12;
+    public static final int FEATURES = 17;
+    public static final int PIN_MATRIX_REQUEST = 18;
+    public static final int PIN_MATRIX_ACK = 19;
+    public static final int CANCEL = 20;
+    public static final int CLEAR_SESSION = 24;
+    public static final int BUTTON_REQUEST = 26;
+    public static final int BUTTON_ACK = 27;
+    public static final int PASSPHRASE_REQUEST = 41;
+    public static final int PASSPHRASE_ACK = 42;
+    public static final int SIGN_IDENTITY = 53;
+    public static final int SIGNED_IDENTITY = 54;
+    public static final int PASSPHRASE_STATE_REQUEST = 77; // firmware 1.8
+    public static final int PASSPHRASE_STATE_ACK = 78;
+
+    // Features
+    public static final int FEATURES_LABEL = 10;
+    public static final int FEATURES_INITIALIZED = 12;
+    // PublicKey and HDNodeType
+    public static final int PUBLIC_KEY_NODE = 1;
+    public static final int NODE_PUBLIC_KEY = 6;
+    // SignedIdentity
+    public static final int SIGNED_IDENTITY_SIGNATURE = 3;
+    // Failure
+    public static final int FAILURE_CODE = 1;
+    public static final int FAILURE_MESSAGE = 2;
+
+    private static final int HEADER_LENGTH = 6;
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private final int type;
+    private final byte[] payload;
+
+    public BridgeMessage(int type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public String toHex() {
+        return Utils.HEX.encode(ByteBuffer.allocate(HEADER_LENGTH + payload.length).putShort((short) type).putInt(payload.length).put(payload).array());
+    }
+
+    /**
+     * @param hex HTTP body returned by bridge
+     * @return decoded message
+     * @throws IllegalArgumentException if message is truncated
+     */
+    public static BridgeMessage fromHex(String hex) {
+        ByteBuffer buffer = ByteBuffer.wrap(Utils.HEX.decode(hex.trim()));
+        if (buffer.remaining() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated bridge message");
+        }
+        int type = buffer.getShort() & 0xffff;
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated bridge message, type: " + type);
+        }
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new BridgeMessage(type, payload);
+    }
+
+    /*
+     * Requests
+     */
+    public static BridgeMessage initialize() {
+        return new BridgeMessage(INITIALIZE, new byte[0]);
+    }
+
+    public static BridgeMessage getPublicKey(int[] path, String curveName) {
+        Writer writer = new Writer();
+        for (int index : path) {
+            writer.varint(1, index & 0xffffffffL); // address_n
+        }
+        writer.string(2, curveName); // ecdsa_curve_name
+        return new BridgeMessage(GET_PUBLIC_KEY, writer.toByteArray());
+    }
+
+    public static BridgeMessage signIdentity(URI identityUri, int index, byte[] challengeHidden, String challengeVisual, String curveName) {
+        Writer identity = new Writer()
+                .string(1, identityUri.getScheme()) // proto
+                .string(2, identityUri.getUserInfo()) // user
+                .string(3, identityUri.getHost()) // host
+                .string(4, identityUri.getPort() == -1 ? null : Integer.toString(identityUri.getPort())) // port
+                .string(5, identityUri.getPath()) // path
+                .varint(6, index & 0xffffffffL); // index
+        Writer writer = new Writer()
+                .bytes(1, identity.toByteArray())
+                .bytes(2, challengeHidden)
+                .string(3, challengeVisual)
+                .string(4, curveName);
+        return new BridgeMessage(SIGN_IDENTITY, writer.toByteArray());
+    }
+
+    public static BridgeMessage pinMatrixAck(String pin) {
+        return new BridgeMessage(PIN_MATRIX_ACK, new Writer().string(1, pin).toByteArray());
+    }
+
+    public static BridgeMessage passphraseAck(String passphrase) {
+        return new BridgeMessage(PASSPHRASE_ACK, new Writer().string(1, passphrase).toByteArray());
+    }
+
+    public static BridgeMessage passphraseStateAck() {
+        return new BridgeMessage(PASSPHRASE_STATE_ACK, new byte[0]);
+    }
+
+    public static BridgeMessage buttonAck() {
+        return new BridgeMessage(BUTTON_ACK, new byte[0]);
+    }
+
+    public static BridgeMessage cancel() {
+        return new BridgeMessage(CANCEL, new byte[0]);
+    }
+
+    public static BridgeMessage clearSession() {
+        return new BridgeMessage(CLEAR_SESSION, new byte[0]);
+    }
+
+    /*
+     * Response fields
+     */
+    public Map<Integer, List<Object>> getFields() {
+        return decode(payload);
+    }
+
+    /**
+     * @param data protobuf message
+     * @return field values by field number, Long for varint and byte[] for
+     * length delimited fields
+     * @throws IllegalArgumentException on malformed or unsupported encoding
+     */
+    public static Map<Integer, List<Object>> decode(byte[] data) {
+        Map<Integer, List<Object>> fields = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            long key = readVarint(buffer);
+            int field = (int) (key >>> 3);
+            Object value;
+            switch ((int) (key & 0x07)) {
+                case WIRE_VARINT:
+                    value = readVarint(buffer);
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    long length = readVarint(buffer);
+                    if (length > buffer.remaining()) {
+                        throw new IllegalArgumentException("Truncated protobuf field: " + field);
+                    }
+                    byte[] bytes = new byte[(int) length];
+                    buffer.get(bytes);
+                    value = bytes;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported protobuf wire type: " + (key & 0x07));
+            }
+            List<Object> values = fields.get(field);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                fields.put(field, values);
+            }
+            values.add(value);
+        }
+        return fields;
+    }
+
+    public static byte[] getBytes(Map<Integer, List<Object>> fields, int field) {
+        List<Object> values = getValues(fields, field);
+        return values.isEmpty() ? null : (byte[]) values.get(0);
+    }
+
+    public static String getString(Map<Integer, List<Object>> fields, int field) {
+        byte[] value = getBytes(fields, field);
+        return value == null ? null : new String(value, Charsets.UTF_8);
+    }
+
+    public static long getVarint(Map<Integer, List<Object>> fields, int field, long defaultValue) {
+        List<Object> values = getValues(fields, field);
+        return values.isEmpty() ? defaultValue : (Long) values.get(0);
+    }
+
+    public static List<Object> getValues(Map<Integer, List<Object>> fields, int field) {
+        List<Object> values = fields.get(field);
+        return values == null ? Collections.emptyList() : values;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated protobuf varint");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed protobuf varint");
+    }
+
+    @Override
+    public String toString() {
+        return "type " + type + ", " + payload.length + " bytes";
+    }
+
+    /**
+     * Protobuf encoder, null values are skipped as optional fields
+     */
+    public static final class Writer {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        public Writer varint(int field, long value) {
+            writeVarint(((long) field << 3) | WIRE_VARINT);
+            writeVarint(value);
+            return this;
+        }
+
+        public Writer bytes(int field, byte[] value) {
+            if (value != null) {
+                writeVarint(((long) field << 3) | WIRE_LENGTH_DELIMITED);
+                writeVarint(value.length);
+                out.write(value, 0, value.length);
+            }
+            return this;
+        }
+
+        public Writer string(int field, String value) {
+            return bytes(field, value == null ? null : value.getBytes(Charsets.UTF_8));
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.DerivationPaths;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Trezor connected through Trezor Bridge (trezord) HTTP API instead of direct
+ * HID access (DEVICE=bridge)</p>
+ *
+ * <p>
+ * Bridge arbitrates the device between applications, agent acquires bridge
+ * session when device is found and acquires it again when another
+ * application (e.g. wallet in browser) took the device meanwhile. All calls
+ * go over one keep-alive HTTP connection kept by HttpURLConnection, response
+ * bodies are always read till end so the connection is returned for reuse.</p>
+ *
+ * <p>
+ * Messages are exchanged on a single device thread, which also polls bridge
+ * until device is connected. Device answers go through the same event
+ * handlers as USB events, button requests are acknowledged and PIN and
+ * passphrase are asked by the usual dialogs.</p>
+ *
+ * @author martin.lizner
+ */
+public final class BridgeService extends DeviceService {
+
+    private static final String ORIGIN = "http://localhost:8000"; // bridge accepts only known origins
+    private static final int CONNECT_TIMEOUT = 5000; // ms
+    private static final int POLL_INTERVAL = 2; // sec
+    private static final Pattern PATH_PATTERN = Pattern.compile("\"path\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern SESSION_PATTERN = Pattern.compile("\"session\"\\s*:\\s*(null|\"([^\"]*)\")");
+    private static final Pattern ERROR_PATTERN = Pattern.compile("\"error\"\\s*:\\s*\"([^\"]*)\"");
+    private static final List<String> SESSION_LOST_ERRORS = Arrays.asList("session not found", "wrong previous session"); // trezord errors of session taken by other application
+
+    private final String bridgeUrl;
+    private final int deviceNumber;
+    private final ScheduledExecutorService deviceThread;
+    private volatile Thread deviceThreadInstance;
+
+    private volatile boolean ready;
+    private volatile boolean walletPresent;
+    private volatile boolean operationInProgress;
+    private volatile String session;
+    private String devicePath;
+    private String enteredPin; // answer of PIN pad, device thread only
+    private String enteredPassphrase;
+
+    /**
+     * @param bridgeUrl e.g. http://127.0.0.1:21325
+     * @param deviceNumber order of the device in bridge device list
+     */
+    public BridgeService(String bridgeUrl, int deviceNumber) {
+        this.deviceNumber = deviceNumber;
+        this.bridgeUrl = bridgeUrl.endsWith("/") ? bridgeUrl.substring(0, bridgeUrl.length() - 1) : bridgeUrl;
+        this.deviceThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bridge-device-" + deviceNumber);
+                thread.setDaemon(true);
+                deviceThreadInstance = thread;
+                return thread;
+            }
+        });
+
+        deviceLabel = AgentConstants.TREZOR_LABEL;
+        asyncKeyData = new ReadDeviceData<SSHPublicKey>();
+        asyncSignData = new ReadDeviceData<byte[]>();
+
+        deviceThread.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!ready) {
+                    try {
+                        connect();
+                    } catch (IOException | IllegalArgumentException ex) {
+                        Logger.getLogger(BridgeService.class.getName()).log(Level.FINE, "Device not available on bridge: {0}", ex.getMessage());
+                    }
+                }
+            }
+        }, 0, POLL_INTERVAL, TimeUnit.SECONDS);
+
+        Logger.getLogger(BridgeService.class.getName()).log(Level.INFO, "Bridge Service Started, bridge: {0}", this.bridgeUrl);
+    }
+
+    /**
+     * @param settings agent settings
+     * @param instance 0 for the first device connected to bridge, 1 for the
+     * second one etc.
+     * @return started bridge service
+     */
+    public static BridgeService startBridgeService(Properties settings, int instance) {
+        return new BridgeService(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BRIDGE_URL, AgentConstants.SETTINGS_BRIDGE_URL).trim(), instance);
+    }
+
+    @Override
+    public void requestPublicKey(final KeyOwner identity) {
+        deviceThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                perform(BridgeMessage.getPublicKey(DerivationPaths.get(identity.getIdentityUri(), identity.getIdentityIndex()), identity.getCurveName()));
+            }
+        });
+    }
+
+    @Override
+    public void requestSign(final KeyOwner owner, final byte[] challengeHidden, final String challengeVisual) {
+        deviceThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                perform(BridgeMessage.signIdentity(owner.getIdentityUri(), owner.getIdentityIndex(), challengeHidden, challengeVisual, owner.getCurveName()));
+            }
+        });
+    }
+
+    @Override
+    public void requestCancel() {
+        if (Thread.currentThread() == deviceThreadInstance || !operationInProgress) {
+            return; // dialogs cancelled on device thread are answered by Cancel message in perform()
+        }
+        try {
+            post("/post/" + session, BridgeMessage.cancel().toHex()); // pending call receives the failure
+        } catch (IOException ex) {
+            Logger.getLogger(BridgeService.class.getName()).log(Level.FINE, "Cancel not delivered", ex);
+        }
+    }
+
+    @Override
+    public boolean isDeviceReady() {
+        return ready;
+    }
+
+    @Override
+    public boolean isWalletPresent() {
+        return walletPresent;
+    }
+
+    @Override
+    public void clearSession() {
+        deviceThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!ready) {
+                    return;
+                }
+                try {
+                    call(BridgeMessage.clearSession());
+                } catch (IOException | IllegalArgumentException ex) {
+                    disconnected(ex);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void detach() {
+        try {
+            deviceThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (session != null) {
+                        try {
+                            post("/release/" + session, "");
+                        } catch (IOException ex) {
+                            Logger.getLogger(BridgeService.class.getName()).log(Level.FINE, "Session not released", ex);
+                        }
+                    }
+                }
+            }).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            Logger.getLogger(BridgeService.class.getName()).log(Level.FINE, "Session not released", ex);
+        }
+        deviceThread.shutdownNow();
+    }
+
+    @Override
+    protected void providePin(String pin) {
+        enteredPin = pin;
+    }
+
+    @Override
+    protected void providePassphrase(String passphrase) {
+        enteredPassphrase = passphrase;
+    }
+
+    /*
+     * Device thread only. Finds device, takes its bridge session and reads features.
+     */
+    private void connect() throws IOException {
+        String devices = post("/enumerate", "");
+        Matcher path = PATH_PATTERN.matcher(devices);
+        for (int i = 0; i <= deviceNumber; i++) {
+            if (!path.find()) {
+                throw new IOException("Device " + deviceNumber + " not connected to bridge");
+            }
+        }
+        devicePath = path.group(1);
+        Matcher previous = SESSION_PATTERN.matcher(devices);
+        String previousSession = previous.find(path.end()) && previous.group(2) != null ? previous.group(2) : "null"; // session of another application is taken over
+
+        Matcher acquired = SESSION_PATTERN.matcher(post("/acquire/" + devicePath + "/" + previousSession, ""));
+        if (!acquired.find() || acquired.group(2) == null) {
+            throw new IOException("Bridge session not acquired");
+        }
+        session = acquired.group(2);
+
+        BridgeMessage features = call(BridgeMessage.initialize());
+        if (features.getType() != BridgeMessage.FEATURES) {
+            throw new IOException("Unexpected answer to Initialize: " + features);
+        }
+        Map<Integer, List<Object>> fields = features.getFields();
+        walletPresent = BridgeMessage.getVarint(fields, BridgeMessage.FEATURES_INITIALIZED, 0) != 0;
+        String label = BridgeMessage.getString(fields, BridgeMessage.FEATURES_LABEL);
+        ready = true;
+        onDeviceReady(label != null ? label : AgentConstants.TREZOR_LABEL);
+        Logger.getLogger(BridgeService.class.getName()).log(Level.INFO, "Device {0} acquired on bridge, session: {1}", new Object[]{devicePath, session});
+    }
+
+    /*
+     * Device thread only. Sends request and answers device until final message.
+     */
+    private void perform(BridgeMessage request) {
+        operationInProgress = true;
+        try {
+            BridgeMessage response;
+            try {
+                response = call(request);
+            } catch (SessionLostException ex) { // another application took the device, take it back and repeat
+                Logger.getLogger(BridgeService.class.getName()).log(Level.INFO, "Bridge session lost, acquiring device again");
+                connect();
+                response = call(request);
+            }
+
+            while (true) {
+                Map<Integer, List<Object>> fields = response.getFields();
+                switch (response.getType()) {
+                    case BridgeMessage.BUTTON_REQUEST:
+                        response = call(BridgeMessage.buttonAck()); // user confirms on device
+                        break;
+                    case BridgeMessage.PIN_MATRIX_REQUEST:
+                        enteredPin = null;
+                        onPinEntry();
+                        response = call(enteredPin != null ? BridgeMessage.pinMatrixAck(enteredPin) : BridgeMessage.cancel());
+                        break;
+                    case BridgeMessage.PASSPHRASE_REQUEST:
+                        enteredPassphrase = null;
+                        onPassphraseEntry();
+                        response = call(enteredPassphrase != null ? BridgeMessage.passphraseAck(enteredPassphrase) : BridgeMessage.cancel());
+                        break;
+                    case BridgeMessage.PASSPHRASE_STATE_REQUEST:
+                        response = call(BridgeMessage.passphraseStateAck()); // firmware 1.8 reports passphrase state, agent keeps none
+                        break;
+                    case BridgeMessage.PUBLIC_KEY:
+                        Map<Integer, List<Object>> node = BridgeMessage.decode(requireField(fields, BridgeMessage.PUBLIC_KEY_NODE));
+                        onPublicKey(requireField(node, BridgeMessage.NODE_PUBLIC_KEY));
+                        return;
+                    case BridgeMessage.SIGNED_IDENTITY:
+                        onSignedIdentity(requireField(fields, BridgeMessage.SIGNED_IDENTITY_SIGNATURE));
+                        return;
+                    case BridgeMessage.FAILURE:
+                        Logger.getLogger(BridgeService.class.getName()).log(Level.FINE, "Device failure: {0}", BridgeMessage.getString(fields, BridgeMessage.FAILURE_MESSAGE));
+                        onOperationFailed(getOperationFailure(BridgeMessage.getVarint(fields, BridgeMessage.FAILURE_CODE, 0)));
+                        return;
+                    default:
+                        Logger.getLogger(BridgeService.class.getName()).log(Level.WARNING, "Unexpected device message: {0}", response);
+                        onOperationFailed(OperationFailure.OTHER);
+                        return;
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            disconnected(ex);
+            onOperationFailed(OperationFailure.OTHER);
+        } finally {
+            operationInProgress = false;
+        }
+    }
+
+    private void disconnected(Exception ex) {
+        Logger.getLogger(BridgeService.class.getName()).log(Level.WARNING, "Bridge call failed", ex);
+        ready = false;
+        session = null;
+        onDeviceDetached();
+    }
+
+    private BridgeMessage call(BridgeMessage request) throws IOException {
+        if (session == null) {
+            throw new IOException("No bridge session");
+        }
+        return BridgeMessage.fromHex(post("/call/" + session, request.toHex()));
+    }
+
+    /*
+     * Body is always read till end and stream closed, so keep-alive connection is reused by next call.
+     */
+    private String post(String endpoint, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(bridgeUrl + endpoint).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Origin", ORIGIN);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(AgentConstants.SIGN_WAIT_TIMEOUT * 1000); // call waits for user confirmation
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(Charsets.US_ASCII));
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = (status == HttpURLConnection.HTTP_OK) ? connection.getInputStream() : connection.getErrorStream();
+        String response = "";
+        if (in != null) {
+            try (InputStream stream = in) {
+                response = new String(ByteStreams.toByteArray(stream), Charsets.UTF_8);
+            }
+        }
+
+        if (status != HttpURLConnection.HTTP_OK) {
+            if (isSessionLost(status, response)) {
+                throw new SessionLostException(response);
+            }
+            throw new IOException("Bridge returned " + status + " for " + endpoint + ": " + response);
+        }
+        return response;
+    }
+
+    /*
+     * Bridge answers call of session taken by other application with 400 and JSON error
+     */
+    static boolean isSessionLost(int status, String response) {
+        Matcher error = ERROR_PATTERN.matcher(response);
+        return status == HttpURLConnection.HTTP_BAD_REQUEST && error.find() && SESSION_LOST_ERRORS.contains(error.group(1));
+    }
+
+    private static byte[] requireField(Map<Integer, List<Object>> fields, int field) throws IOException {
+        byte[] value = BridgeMessage.getBytes(fields, field);
+        if (value == null) {
+            throw new IOException("Missing field in device message: " + field);
+        }
+        return value;
+    }
+
+    static OperationFailure getOperationFailure(long code) {
+        switch ((int) code) {
+            case 4:
+                return OperationFailure.ACTION_CANCELLED;
+            case 6:
+                return OperationFailure.PIN_CANCELLED;
+            case 7:
+                return OperationFailure.PIN_INVALID;
+            case 11:
+                return OperationFailure.NOT_INITIALIZED;
+            default:
+                return OperationFailure.OTHER; // other Trezor Failure_* codes are not handled by agent
+        }
+    }
+
+    private static class SessionLostException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SessionLostException(String message) {
+            super(message);
+        }
+    }
+}
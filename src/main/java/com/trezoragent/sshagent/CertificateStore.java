@@ -0,0 +1,264 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SSHBufferReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * <p>
+ * OpenSSH certificates (*-cert.pub files issued by SSH CA) offered together
+ * with device keys they certify (CERTIFICATE_DIR)</p>
+ *
+ * <p>
+ * Certificate is paired with a key by public key bytes embedded in it, only
+ * certificates of ecdsa-sha2-nistp256 and ssh-ed25519 keys are loaded. Sign
+ * request naming a certificate is signed by the paired key, signature format
+ * is the same as for the plain key. Files are parsed once and directory is
+ * watched, changed certificates (e.g. renewed short-lived ones) are reloaded
+ * in background. CA signature is not verified, that is up to SSH server.</p>
+ *
+ * @author martin.lizner
+ */
+public class CertificateStore {
+
+    public static final String CERTIFICATE_FILE_SUFFIX = "-cert.pub";
+    public static final String NISTP256_CERT_TYPE = "ecdsa-sha2-nistp256-cert-v01@openssh.com";
+    public static final String ED25519_CERT_TYPE = "ssh-ed25519-cert-v01@openssh.com";
+
+    private final File dir;
+    private volatile Map<String, Certificate> certificates = Collections.emptyMap(); // by certificate fingerprint, replaced as a whole on reload
+    private WatchService watcher;
+
+    /**
+     * Parsed certificate
+     */
+    static final class Certificate {
+
+        final byte[] certificateBlob;
+        final byte[] keyBlob; // plain key certified
+        final String keyFingerprint;
+        final String comment;
+        final String keyId;
+        final long validBefore; // epoch secs, unsigned
+        private volatile SSHPublicKey identity; // last offered, same instance keeps identities answer cached
+
+        Certificate(byte[] certificateBlob, byte[] keyBlob, String comment, String keyId, long validBefore) {
+            this.certificateBlob = certificateBlob;
+            this.keyBlob = keyBlob;
+            this.keyFingerprint = IdentityUtils.fingerprintSHA256(keyBlob);
+            this.comment = comment;
+            this.keyId = keyId;
+            this.validBefore = validBefore;
+        }
+
+        boolean isExpired(long nowMillis) {
+            return Long.compareUnsigned(validBefore, nowMillis / 1000) <= 0;
+        }
+
+        SSHPublicKey getIdentity(KeyOwner owner) {
+            SSHPublicKey ret = identity;
+            if (ret == null || ret.getOwner() != owner) {
+                ret = new SSHPublicKey(certificateBlob, comment, owner);
+                identity = ret;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @param dir directory with certificate files, need not exist yet
+     */
+    public CertificateStore(File dir) {
+        this.dir = dir;
+        reload();
+    }
+
+    /**
+     * Watch directory for changes, certificates are reloaded on every change
+     * of certificate file
+     *
+     * @throws IOException if directory cannot be watched
+     */
+    public synchronized void startWatching() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        final WatchService service = watcher;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = service.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            Object context = event.context();
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || (context instanceof Path && context.toString().endsWith(CERTIFICATE_FILE_SUFFIX));
+                        }
+                        key.reset();
+                        if (changed) {
+                            reload();
+                        }
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    Logger.getLogger(CertificateStore.class.getName()).log(Level.FINE, "Certificate watcher stopped");
+                }
+            }
+        }, "certificate-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CertificateStore.class.getName()).log(Level.FINE, "Certificate watcher not closed", ex);
+            }
+            watcher = null;
+        }
+    }
+
+    /**
+     * Parse all certificate files again, unreadable files are skipped
+     */
+    public final synchronized void reload() {
+        Map<String, Certificate> loaded = new LinkedHashMap<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            List<File> sorted = new ArrayList<>();
+            Collections.addAll(sorted, files);
+            Collections.sort(sorted); // stable order of identities
+            for (File file : sorted) {
+                if (!file.isFile() || !file.getName().endsWith(CERTIFICATE_FILE_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    Certificate certificate = parse(new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8));
+                    loaded.put(IdentityUtils.fingerprintSHA256(certificate.certificateBlob), certificate);
+                    Logger.getLogger(CertificateStore.class.getName()).log(Level.FINE, "Certificate {0} loaded for key {1}", new Object[]{certificate.keyId, certificate.keyFingerprint});
+                } catch (IOException | IllegalArgumentException ex) {
+                    Logger.getLogger(CertificateStore.class.getName()).log(Level.WARNING, "Certificate not loaded: " + file, ex);
+                }
+            }
+        }
+        certificates = Collections.unmodifiableMap(loaded);
+        Logger.getLogger(CertificateStore.class.getName()).log(Level.INFO, "{0} certificate(s) loaded from {1}", new Object[]{loaded.size(), dir});
+    }
+
+    /**
+     * @param keys device keys
+     * @return keys with valid certificates inserted before the key they
+     * certify, certificate identity has the same owner as the key
+     */
+    public List<SSHPublicKey> pair(List<SSHPublicKey> keys) {
+        return pair(keys, System.currentTimeMillis());
+    }
+
+    List<SSHPublicKey> pair(List<SSHPublicKey> keys, long now) {
+        Map<String, Certificate> current = certificates;
+        if (current.isEmpty()) {
+            return keys;
+        }
+        List<SSHPublicKey> ret = new ArrayList<>(keys.size() + current.size());
+        for (SSHPublicKey key : keys) {
+            for (Certificate certificate : current.values()) {
+                if (certificate.keyFingerprint.equals(key.getFingerprint()) && !certificate.isExpired(now)) {
+                    ret.add(certificate.getIdentity(key.getOwner())); // SSH client tries certificate first
+                }
+            }
+            ret.add(key);
+        }
+        return ret;
+    }
+
+    /**
+     * @param certificateBlob SSH wire encoded certificate
+     * @return plain key blob certified by loaded certificate or null when
+     * blob is not a loaded certificate
+     */
+    public byte[] lookupKey(byte[] certificateBlob) {
+        Certificate certificate = certificates.get(IdentityUtils.fingerprintSHA256(certificateBlob));
+        return certificate == null ? null : certificate.keyBlob.clone();
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    /**
+     * @param line certificate file content, OpenSSH format: type, base64 blob
+     * and optional comment
+     * @return parsed certificate
+     * @throws IllegalArgumentException if certificate type is not supported or
+     * certificate is malformed
+     */
+    static Certificate parse(String line) {
+        String[] parts = line.trim().split("\\s+", 3);
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Certificate expected: <type> <base64> [comment]");
+        }
+        byte[] blob;
+        try {
+            blob = Base64.decode(parts[1]);
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Certificate is not base64 encoded", ex);
+        }
+
+        SSHBufferReader reader = new SSHBufferReader(blob);
+        String type = reader.readUTF8String();
+        if (!type.equals(parts[0])) {
+            throw new IllegalArgumentException("Certificate type does not match: " + parts[0]);
+        }
+        reader.readString(); // nonce
+        byte[] keyBlob;
+        switch (type) {
+            case NISTP256_CERT_TYPE:
+                byte[] curveName = reader.readString();
+                byte[] q = reader.readString();
+                keyBlob = ByteUtils.concatenate(AgentUtils.frameArray(IdentityUtils.NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8)),
+                        ByteUtils.concatenate(AgentUtils.frameArray(curveName), AgentUtils.frameArray(q)));
+                break;
+            case ED25519_CERT_TYPE:
+                byte[] publicKey = reader.readString();
+                keyBlob = ByteUtils.concatenate(AgentUtils.frameArray(IdentityUtils.ED25519_KEY_PREFIX.getBytes(Charsets.UTF_8)), AgentUtils.frameArray(publicKey));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported certificate type: " + type);
+        }
+        reader.readInt(); // serial, uint64
+        reader.readInt();
+        reader.readInt(); // user or host certificate
+        String keyId = reader.readUTF8String();
+        reader.readString(); // principals
+        reader.readInt(); // valid after, uint64
+        reader.readInt();
+        long validBefore = ((long) reader.readInt() << 32) | (reader.readInt() & 0xffffffffL);
+
+        String comment = parts.length > 2 ? parts[2] : keyId;
+        return new Certificate(blob, keyBlob, comment, keyId, validBefore);
+    }
+}
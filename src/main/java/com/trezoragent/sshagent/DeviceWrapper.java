@@ -6,120 +6,374 @@ import com.trezoragent.exception.GetIdentitiesFailedException;
 import com.trezoragent.exception.SignFailedException;
 import com.trezoragent.gui.TrayProcess;
 import static com.trezoragent.gui.TrayProcess.settings;
-import com.trezoragent.struct.PublicKeyDTO;
+import com.trezoragent.struct.IdentityRule;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
 import java.util.ArrayList;
 import java.util.List;
-import org.multibit.hd.hardware.core.domain.Identity;
 import java.util.logging.Logger;
 import com.trezoragent.utils.AgentUtils;
 import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.LocalizedLogger;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import javax.xml.bind.DatatypeConverter;
 
 /**
  * Class to provide higher logic on top of DeviceService
  *
+ * <p>
+ * Every operation is routed to the device owning the key. Request-answer
+ * exchange holds device operation lock, so operations of one device are
+ * queued and operations of different devices can overlap. Pageant requests
+ * come one by one from the window thread, so only gpg and GUI calls run
+ * beside them. Key shared by devices restored from the same seed is signed by
+ * one of them not locked by other operation, and by another one when the
+ * device is unplugged. That is failover, it does not add SSH throughput.</p>
+ *
  * @author martin.lizner
  */
 public class DeviceWrapper {
 
+    private static final AtomicInteger NEXT_REPLICA = new AtomicInteger(); // rotation over devices sharing a key
+    private static final ExecutorService DEVICE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "device-operation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public static void getIdentitiesRequest() { // directly used only for GUI calls with explicit swing timer
-        Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Request for operation: {0}", "SSH2_AGENT_GET_IDENTITIES"); // TODO: differentiate in log between call from GUI (e.g. GUI_GET_IDENTITIES) or from SSH Client (SSH2_AGENT_GET_IDENTITIES)
-        if (!AgentUtils.checkDeviceAvailable()) {
+        List<KeyOwner> identities = getConfiguredIdentities(TrayProcess.deviceService); // GUI shows keys of the first device
+        if (identities.isEmpty()) { // token without keys
             AgentUtils.stopGUITimer();
+            TrayProcess.createWarning(LocalizedLogger.getLocalizedMessage(AgentConstants.GET_IDENTITIES_FAILED_KEY));
             return;
         }
+        final KeyOwner identity = identities.get(0); // GUI window shows key of the first configured curve
+        DEVICE_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                requestGUIIdentity(identity);
+            }
+        });
+    }
+
+    /*
+     * Holds device operation lock until the device answers, so GUI request does not interrupt SSH or gpg operation.
+     * Swing timer shows the key set by the device.
+     */
+    private static void requestGUIIdentity(KeyOwner identity) {
+        DeviceService device = identity.getDevice();
+        device.getOperationLock().lock();
+        try {
+            ReadDeviceData<SSHPublicKey> keyData = device.checkoutAsyncKeyData(); // before request, device may answer immediately
+            if (getIdentitiesRequest(identity)) {
+                awaitDeviceKey(device, keyData);
+            }
+        } catch (DeviceTimeoutException ex) {
+            AgentUtils.stopGUITimer();
+            Logger.getLogger(DeviceWrapper.class.getName()).log(Level.WARNING, "Device {0} did not provide key for GUI", device.getDeviceLabel());
+        } finally {
+            device.getOperationLock().unlock();
+        }
+    }
+
+    private static boolean getIdentitiesRequest(KeyOwner identity) {
+        Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Request for operation: {0}", "SSH2_AGENT_GET_IDENTITIES"); // TODO: differentiate in log between call from GUI (e.g. GUI_GET_IDENTITIES) or from SSH Client (SSH2_AGENT_GET_IDENTITIES)
+        DeviceService device = identity.getDevice();
+        if (!AgentUtils.checkDeviceAvailable(device)) {
+            AgentUtils.stopGUITimer();
+            return false;
+        }
+
+        device.setRequestedIdentity(identity); // returned key is registered to identity index under these parameters
+        device.requestPublicKey(identity);
+        return true;
+    }
+
+    /**
+     * Clears PIN and passphrase session of every device once operation in
+     * progress on it finishes. Called by session timer on GUI thread, so the
+     * lock is waited for on device executor.
+     */
+    public static void clearSessions() {
+        for (final DeviceService device : TrayProcess.deviceServices) {
+            DEVICE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    device.getOperationLock().lock();
+                    try {
+                        device.clearSession();
+                        TrayProcess.identityIndex.removeDevice(device); // passphrase may differ in next session, derive keys again
+                    } finally {
+                        device.getOperationLock().unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Keys stored on the backend (token), otherwise identity derivation parameters loaded from settings file,
+     * one identity per configured curve or identities of rules that apply to any host and user,
+     * as agent request does not carry them
+     */
+    private static List<KeyOwner> getConfiguredIdentities(DeviceService device) {
+        List<KeyOwner> storedIdentities = device.listStoredIdentities();
+        if (storedIdentities != null) {
+            return storedIdentities;
+        }
+
+        if (TrayProcess.identityRules != null && !TrayProcess.identityRules.isEmpty()) {
+            List<KeyOwner> identities = new ArrayList<>();
+            for (IdentityRule rule : TrayProcess.identityRules.match(null, null)) {
+                for (String curveName : rule.getCurveNames()) {
+                    KeyOwner identity = new KeyOwner(device, rule.getIdentityUri(), rule.getIdentityIndex(), curveName);
+                    if (!identities.contains(identity)) {
+                        identities.add(identity);
+                    }
+                }
+            }
+            if (!identities.isEmpty()) {
+                return identities;
+            }
+        }
 
-        // Load settings from file
         String bip32Path = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_URI, AgentConstants.SETTINGS_BIP32_SSHURI);
         String bip32Index = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_INDEX, AgentConstants.SETTINGS_BIP32_INDEX);
-        String curveName = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_CURVE_NAME, AgentConstants.CURVE_NAME_NISTP256);
-        
-        TrayProcess.deviceService.getHardwareWalletService().requestPublicKeyForIdentity(URI.create(bip32Path), new Integer(bip32Index), curveName, false);
-    }
+        List<String> curveNames = AgentUtils.readListSetting(settings, AgentConstants.SETTINGS_KEY_CURVE_NAME, AgentConstants.CURVE_NAME_NISTP256);
 
-    public static List<PublicKeyDTO> getIdentitiesResponse(Boolean stripPrefix) throws DeviceTimeoutException, GetIdentitiesFailedException {
-        String trezorKey;
-        List<PublicKeyDTO> idents = new ArrayList<>();
+        List<KeyOwner> identities = new ArrayList<>();
+        for (String curveName : curveNames) {
+            if (!AgentConstants.CURVE_NAME_NISTP256.equals(curveName) && !AgentConstants.CURVE_NAME_ED25519.equals(curveName)) {
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.WARNING, "Ignoring unsupported curve: {0}", curveName);
+                continue;
+            }
+            identities.add(new KeyOwner(device, URI.create(bip32Path), new Integer(bip32Index), curveName));
+        }
+        if (identities.isEmpty()) {
+            identities.add(new KeyOwner(device, URI.create(bip32Path), new Integer(bip32Index), AgentConstants.CURVE_NAME_NISTP256));
+        }
+        return identities;
+    }
 
+    public static List<SSHPublicKey> getIdentitiesResponse() throws DeviceTimeoutException, GetIdentitiesFailedException {
         AgentUtils.stopGUITimer();
-        getIdentitiesRequest();
 
-        if (!AgentUtils.checkDeviceAvailable()) {
+        List<DeviceService> devices = TrayProcess.deviceServices;
+        final boolean quiet = devices.size() > 1; // device that is not ready does not disturb user when others serve keys
+        List<Future<List<SSHPublicKey>>> futures = new ArrayList<>();
+        for (final DeviceService device : devices) {
+            futures.add(DEVICE_EXECUTOR.submit(new Callable<List<SSHPublicKey>>() {
+                @Override
+                public List<SSHPublicKey> call() throws Exception {
+                    return getDeviceIdentities(device, quiet);
+                }
+            }));
+        }
+
+        List<SSHPublicKey> idents = new ArrayList<>();
+        Set<String> fingerprints = new HashSet<>(); // devices restored from the same seed offer the key once
+        for (Future<List<SSHPublicKey>> future : futures) {
+            try {
+                for (SSHPublicKey key : future.get()) {
+                    if (fingerprints.add(key.getFingerprint())) {
+                        idents.add(key);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                throw new DeviceTimeoutException();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof DeviceTimeoutException && !quiet) {
+                    throw (DeviceTimeoutException) ex.getCause();
+                }
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.WARNING, "Unable to get device identities", ex.getCause());
+            }
+        }
+
+        if (idents.isEmpty() && AgentUtils.checkAnyDeviceAvailable(devices)) {
+            throw new GetIdentitiesFailedException();
+        }
+
+        return idents;
+    }
+
+    private static List<SSHPublicKey> getDeviceIdentities(DeviceService device, boolean quiet) throws DeviceTimeoutException {
+        List<SSHPublicKey> idents = new ArrayList<>();
+        if (quiet && !(device.isDeviceReady() && device.isWalletPresent())) {
+            Logger.getLogger(DeviceWrapper.class.getName()).log(Level.FINE, "Skipping device that is not ready: {0}", device.getDeviceLabel());
             return idents;
         }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<String> future = executor.submit(TrayProcess.deviceService.checkoutAsyncKeyData());
+        for (KeyOwner identity : getConfiguredIdentities(device)) {
+            if (!device.supportsCurve(identity.getCurveName())) {
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.WARNING, "Curve not supported by device: {0}", identity.getCurveName());
+                continue;
+            }
+            try {
+                idents.add(getIdentity(identity));
+            } catch (GetIdentitiesFailedException ex) {
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.WARNING, "Unable to get identity: {0}", identity);
+            }
+        }
+        return idents;
+    }
+
+    /**
+     * @param identity derivation parameters
+     * @return key from identity index, or derived by the device and registered
+     * to the index
+     * @throws DeviceTimeoutException if device does not answer in time
+     * @throws GetIdentitiesFailedException if device is not available or
+     * derivation failed
+     */
+    public static SSHPublicKey getIdentity(KeyOwner identity) throws DeviceTimeoutException, GetIdentitiesFailedException {
+        SSHPublicKey deviceKey;
 
+        SSHPublicKey cachedKey = TrayProcess.identityIndex.lookup(identity);
+        if (cachedKey != null) { // identity was already derived in this session, no need to ask device again
+            Logger.getLogger(DeviceWrapper.class.getName()).log(Level.FINE, "Returning cached identity: {0}", cachedKey);
+            return cachedKey;
+        }
+
+        DeviceService device = identity.getDevice();
+        device.getOperationLock().lock();
         try {
-            trezorKey = future.get(AgentConstants.KEY_WAIT_TIMEOUT, TimeUnit.SECONDS);
+            cachedKey = TrayProcess.identityIndex.lookup(identity);
+            if (cachedKey != null) { // derived by operation queued before this one
+                return cachedKey;
+            }
+
+            ReadDeviceData<SSHPublicKey> keyData = device.checkoutAsyncKeyData(); // before request, device may answer immediately
+            if (!getIdentitiesRequest(identity)) {
+                throw new GetIdentitiesFailedException();
+            }
+
+            deviceKey = awaitDeviceKey(device, keyData);
+            if (AgentConstants.GET_IDENTITIES_FAILED_PUBKEY == deviceKey) {
+                device.requestCancel();
+                throw new GetIdentitiesFailedException();
+            }
+
+            return deviceKey;
+        } finally {
+            device.getOperationLock().unlock();
+        }
+    }
+
+    /*
+     * Caller holds device operation lock
+     */
+    private static SSHPublicKey awaitDeviceKey(DeviceService device, ReadDeviceData<SSHPublicKey> keyData) throws DeviceTimeoutException {
+        Future<SSHPublicKey> future = DEVICE_EXECUTOR.submit(keyData);
+        try {
+            return future.get(AgentConstants.KEY_WAIT_TIMEOUT, TimeUnit.SECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException ex) {
-            TrayProcess.deviceService.getHardwareWalletService().requestCancel();
+            future.cancel(true);
+            device.requestCancel();
             throw new DeviceTimeoutException();
         }
+    }
 
-        if (AgentConstants.GET_IDENTITIES_FAILED_STRING.equals(trezorKey)) {
-            TrayProcess.deviceService.getHardwareWalletService().requestCancel();
-            throw new GetIdentitiesFailedException();
+    public static byte[] signChallenge(byte[] keyBlob, byte[] challengeHidden, byte[] challengeVisualBytes) throws DeviceTimeoutException, SignFailedException, ActionCancelledException {
+        Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Request for operation: {0}", "SSH2_AGENT_SIGN_REQUEST");
+
+        List<SSHPublicKey> replicas = TrayProcess.identityIndex.lookupAll(keyBlob); // fail fast, do not bother user with confirmation of foreign key
+        if (replicas.isEmpty()) {
+            throw new SignFailedException("Requested key is not owned by agent: " + IdentityUtils.fingerprintSHA256(keyBlob));
         }
 
-        if (stripPrefix) { // remove ecdsa-sha2... from beginning
-            String[] keySplit = trezorKey.split(" ");
-            if (keySplit[1] != null) {
-                trezorKey = keySplit[1];
+        String challengeVisual = (challengeVisualBytes != null && challengeVisualBytes.length > 0)
+                ? new String(challengeVisualBytes) : "Warn: No user given!"; // display username contained in SSH Server challenge, if no username is provided by SSH Server display warning
+
+        while (true) {
+            SSHPublicKey key = lockIdleReplica(replicas);
+            replicas.remove(key);
+            KeyOwner owner = key.getOwner();
+            DeviceService device = owner.getDevice();
+            try {
+                if (!replicas.isEmpty() && !(device.isDeviceReady() && device.isWalletPresent())) {
+                    Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Device {0} not available, using other device with the same key", device.getDeviceLabel());
+                    continue;
+                }
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.FINE, "Sign request routed to identity: {0} on device: {1}", new Object[]{owner, device.getDeviceLabel()});
+                return signOnDevice(owner, challengeHidden, challengeVisual);
+            } catch (DeviceTimeoutException | SignFailedException ex) {
+                if (replicas.isEmpty() || device.isDeviceReady()) {
+                    throw ex; // device is still there, operation really failed
+                }
+                Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Device {0} disconnected during sign, using other device with the same key", device.getDeviceLabel());
+            } finally {
+                device.getOperationLock().unlock();
             }
         }
+    }
 
-        PublicKeyDTO p = new PublicKeyDTO();
-        p.setbPublicKey(DatatypeConverter.parseBase64Binary(trezorKey));
-        p.setsPublicKey(trezorKey);
-        p.setsComment(TrayProcess.deviceService.getDeviceLabel());
-        p.setbComment(TrayProcess.deviceService.getDeviceLabel().getBytes());
-        idents.add(p);     
+    /*
+     * Picks ready device owning the key that is not busy with gpg or GUI operation, starting from rotating position.
+     * When all devices are busy, waits for the one with the shortest queue. Returned key's device operation lock is held.
+     */
+    private static SSHPublicKey lockIdleReplica(List<SSHPublicKey> replicas) {
+        int start = (NEXT_REPLICA.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        for (int i = 0; i < replicas.size(); i++) {
+            SSHPublicKey key = replicas.get((start + i) % replicas.size());
+            DeviceService device = key.getOwner().getDevice();
+            if (device.isDeviceReady() && device.getOperationLock().tryLock()) {
+                return key;
+            }
+        }
 
-        return idents;
+        SSHPublicKey shortest = replicas.get(start);
+        for (SSHPublicKey key : replicas) {
+            if (key.getOwner().getDevice().getOperationLock().getQueueLength() < shortest.getOwner().getDevice().getOperationLock().getQueueLength()) {
+                shortest = key;
+            }
+        }
+        shortest.getOwner().getDevice().getOperationLock().lock();
+        return shortest;
     }
 
-    public static byte[] signChallenge(byte[] challengeHidden, byte[] challengeVisualBytes) throws DeviceTimeoutException, SignFailedException, ActionCancelledException {
+    /*
+     * Caller holds device operation lock
+     */
+    private static byte[] signOnDevice(KeyOwner owner, byte[] challengeHidden, String challengeVisual) throws DeviceTimeoutException, SignFailedException, ActionCancelledException {
         byte[] signature;
-        Logger.getLogger(DeviceWrapper.class.getName()).log(Level.INFO, "Request for operation: {0}", "SSH2_AGENT_SIGN_REQUEST");
+        DeviceService device = owner.getDevice();
 
-        if (!AgentUtils.checkDeviceAvailable()) {
+        if (!AgentUtils.checkDeviceAvailable(device)) {
             return AgentConstants.SIGN_FAILED_BYTE;
         }
 
-        String bip32Path = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_URI, AgentConstants.SETTINGS_BIP32_SSHURI);
-        String bip32Index = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_BIP32_INDEX, AgentConstants.SETTINGS_BIP32_INDEX);
-
-        String challengeVisual = (challengeVisualBytes != null && challengeVisualBytes.length > 0)
-                ? new String(challengeVisualBytes) : "Warn: No user given!"; // display username contained in SSH Server challenge, if no username is provided by SSH Server display warning
-
-        String curveName = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_CURVE_NAME, AgentConstants.CURVE_NAME_NISTP256);        
-        Identity identity = new Identity(URI.create(bip32Path), new Integer(bip32Index), challengeHidden, challengeVisual, curveName);
-
-        TrayProcess.deviceService.getHardwareWalletService().signIdentity(identity);
+        ReadDeviceData<byte[]> signData = device.checkoutAsyncSignData(); // before request, device may answer immediately
+        device.requestSign(owner, challengeHidden, challengeVisual);
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<byte[]> future = executor.submit(TrayProcess.deviceService.checkoutAsyncSignData());
+        Future<byte[]> future = DEVICE_EXECUTOR.submit(signData);
 
         try {
             signature = future.get(AgentConstants.SIGN_WAIT_TIMEOUT, TimeUnit.SECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException ex) {
-            TrayProcess.deviceService.getHardwareWalletService().requestCancel();
+            future.cancel(true);
+            device.requestCancel();
             throw new DeviceTimeoutException();
         }
 
         if (Arrays.equals(AgentConstants.SIGN_FAILED_BYTE, signature)) {
-            TrayProcess.deviceService.getHardwareWalletService().requestCancel();
+            device.requestCancel();
             throw new SignFailedException("Sign operation failed on HW.");
         }
 
@@ -127,7 +381,6 @@ public class DeviceWrapper {
             throw new ActionCancelledException();
         }
 
-        //TrayProcess.trezorService.checkoutAsyncSignData(); // null sign data        
         return signature;
     }
 
@@ -0,0 +1,85 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-serialized SSH2_AGENT_IDENTITIES_ANSWER frame. The frame is rebuilt only
+ * when the set of identities changes, otherwise the same immutable image is
+ * copied to the transport buffer.
+ *
+ * @author martin.lizner
+ */
+public class IdentitiesAnswer {
+
+    private List<SSHPublicKey> keys = Collections.emptyList();
+    private byte[] frame = buildFrame(keys);
+
+    /**
+     * @param currentKeys identities to be offered to SSH client
+     * @return complete answer frame including length prefix, must not be
+     * modified by caller
+     */
+    public synchronized byte[] getFrame(List<SSHPublicKey> currentKeys) {
+        if (!keys.equals(currentKeys)) { // keys are immutable and cached, so equal list means equal frame
+            keys = new ArrayList<>(currentKeys);
+            frame = buildFrame(keys);
+            Logger.getLogger(IdentitiesAnswer.class.getName()).log(Level.FINE, "Identities answer rebuilt for {0} key(s), {1} bytes", new Object[]{keys.size(), frame.length});
+        }
+        return frame;
+    }
+
+    /**
+     * @param keys identities in offered order
+     * @param expendable keys left out first, from the end, when the answer
+     * does not fit
+     * @return keys whose answer fits in AGENT_MAX_MSGLEN, the list itself when
+     * all of them fit
+     */
+    public static List<SSHPublicKey> fit(List<SSHPublicKey> keys, List<SSHPublicKey> expendable) {
+        int responseLength = 4 + 1 + 4;
+        for (SSHPublicKey i : keys) {
+            responseLength += i.getIdentityFrameLength();
+        }
+        if (responseLength <= AgentConstants.AGENT_MAX_MSGLEN) {
+            return keys;
+        }
+
+        List<SSHPublicKey> ret = new ArrayList<>(keys);
+        List<SSHPublicKey> dropped = new ArrayList<>();
+        for (List<SSHPublicKey> candidates : Arrays.asList(expendable, keys)) {
+            for (int i = candidates.size() - 1; i >= 0 && responseLength > AgentConstants.AGENT_MAX_MSGLEN; i--) {
+                SSHPublicKey key = candidates.get(i);
+                if (ret.remove(key)) {
+                    responseLength -= key.getIdentityFrameLength();
+                    dropped.add(key);
+                }
+            }
+        }
+        Logger.getLogger(IdentitiesAnswer.class.getName()).log(Level.WARNING, "Identities answer over {0} bytes, left out key(s): {1}", new Object[]{AgentConstants.AGENT_MAX_MSGLEN, dropped});
+        return ret;
+    }
+
+    private static byte[] buildFrame(List<SSHPublicKey> keys) {
+        int responseLength = 4 + 1 + 4; // total length (1x int) + result code (1x byte) + no. of keys (1x int)
+        for (SSHPublicKey i : keys) {
+            responseLength += i.getIdentityFrameLength();
+        }
+
+        ByteBuffer ret = ByteBuffer.allocate(responseLength);
+        ret.putInt(responseLength - 4);
+        ret.put(AgentConstants.SSH2_AGENT_IDENTITIES_ANSWER);
+        ret.putInt(keys.size()); // number of keys (not byte size)
+        for (SSHPublicKey i : keys) {
+            i.writeIdentityFrame(ret); // key blob and comment are kept in wire format, no conversion needed
+        }
+        return ret.array();
+    }
+}
@@ -0,0 +1,113 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.IdentityUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of all identities derived so far, keyed by SSH key blob fingerprint.
+ * Sign requests are routed through this index, so keys not owned by the agent
+ * are rejected before the device is asked for anything.
+ *
+ * <p>
+ * Devices restored from the same seed derive the same key, such key has
+ * several owners (replicas) and sign request may go to any of them.</p>
+ *
+ * @author martin.lizner
+ */
+public class IdentityIndex {
+
+    private final Map<String, List<SSHPublicKey>> keys = new ConcurrentHashMap<>();
+    private final Map<KeyOwner, SSHPublicKey> derivedKeys = new ConcurrentHashMap<>();
+
+    public void register(SSHPublicKey key) {
+        List<SSHPublicKey> replicas = keys.get(key.getFingerprint());
+        if (replicas == null) {
+            replicas = new CopyOnWriteArrayList<>();
+            List<SSHPublicKey> existing = keys.putIfAbsent(key.getFingerprint(), replicas);
+            if (existing != null) {
+                replicas = existing;
+            }
+        }
+        for (SSHPublicKey replica : replicas) {
+            if (replica.getOwner().equals(key.getOwner())) {
+                replicas.remove(replica); // derived again, e.g. GUI request
+            } else if (replica.getOwner().getDevice() != key.getOwner().getDevice()) {
+                Logger.getLogger(IdentityIndex.class.getName()).log(Level.INFO, "Devices {0} and {1} share key {2}, sign requests fail over",
+                        new Object[]{replica.getOwner().getDevice().getDeviceLabel(), key.getOwner().getDevice().getDeviceLabel(), key.getFingerprint()});
+            }
+        }
+        replicas.add(key);
+        derivedKeys.put(key.getOwner(), key);
+        Logger.getLogger(IdentityIndex.class.getName()).log(Level.FINE, "Registered identity {0} for key {1}", new Object[]{key.getOwner(), key.getFingerprint()});
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key as sent by SSH client
+     * @return derived key including its owner or null when key was not
+     * derived by the agent
+     */
+    public SSHPublicKey lookup(byte[] keyBlob) {
+        List<SSHPublicKey> replicas = lookupAll(keyBlob);
+        return replicas.isEmpty() ? null : replicas.get(0);
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key as sent by SSH client
+     * @return key as derived by every device owning it, in registration
+     * order, empty when key was not derived by the agent
+     */
+    public List<SSHPublicKey> lookupAll(byte[] keyBlob) {
+        List<SSHPublicKey> replicas = keys.get(IdentityUtils.fingerprintSHA256(keyBlob));
+        return replicas == null ? Collections.<SSHPublicKey>emptyList() : new ArrayList<>(replicas);
+    }
+
+    /**
+     * @param identity device and derivation parameters
+     * @return key previously derived for given parameters or null
+     */
+    public SSHPublicKey lookup(KeyOwner identity) {
+        return derivedKeys.get(identity);
+    }
+
+    /*
+     * Forget all keys derived by given device, e.g. after device was detached or session expired
+     */
+    public void removeDevice(DeviceService device) {
+        Iterator<List<SSHPublicKey>> it = keys.values().iterator();
+        while (it.hasNext()) {
+            List<SSHPublicKey> replicas = it.next();
+            for (SSHPublicKey replica : replicas) {
+                if (replica.getOwner().getDevice() == device) {
+                    replicas.remove(replica);
+                }
+            }
+            if (replicas.isEmpty()) {
+                it.remove();
+            }
+        }
+        Iterator<KeyOwner> owners = derivedKeys.keySet().iterator();
+        while (owners.hasNext()) {
+            if (owners.next().getDevice() == device) {
+                owners.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of keys derived by all devices, shared key is counted
+     * once per device
+     */
+    public int size() {
+        return derivedKeys.size();
+    }
+}
@@ -0,0 +1,102 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.IdentityUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Orders identities offered to SSH client by their past success</p>
+ *
+ * <p>
+ * SSH clients try offered keys in order and ask agent to sign only with the
+ * first key accepted by server. A sign request after identities answer
+ * therefore tells which key was accepted and that keys offered before it were
+ * rejected. Accepted keys are offered first next time, so servers with low
+ * MaxAuthTries are not exhausted by keys they do not know. Rejected keys can
+ * be left out for a configurable time, at least one key is always offered.</p>
+ *
+ * <p>
+ * Note: SSH agent protocol does not tell which server the client talks to, so
+ * ordering is shared by all servers.</p>
+ *
+ * @author martin.lizner
+ */
+public class IdentityOrdering {
+
+    private final long rejectedKeyTtl;
+    private final Map<String, Long> lastAccepted = new HashMap<>();
+    private final Map<String, Long> lastRejected = new HashMap<>();
+    private List<String> lastOffered = Collections.emptyList();
+
+    /**
+     * @param rejectedKeyTtl millis for which rejected key is not offered, 0
+     * disables leaving out keys
+     */
+    public IdentityOrdering(long rejectedKeyTtl) {
+        this.rejectedKeyTtl = rejectedKeyTtl;
+    }
+
+    public List<SSHPublicKey> order(List<SSHPublicKey> keys) {
+        return order(keys, System.currentTimeMillis());
+    }
+
+    synchronized List<SSHPublicKey> order(List<SSHPublicKey> keys, long now) {
+        List<SSHPublicKey> ret = new ArrayList<>(keys.size());
+        for (SSHPublicKey key : keys) {
+            Long rejected = lastRejected.get(key.getFingerprint());
+            if (rejected != null && now - rejected < rejectedKeyTtl) {
+                Logger.getLogger(IdentityOrdering.class.getName()).log(Level.FINE, "Key recently rejected, not offered: {0}", key.getFingerprint());
+                continue;
+            }
+            ret.add(key);
+        }
+        if (ret.isEmpty()) {
+            ret.addAll(keys); // never offer nothing, rejection may be specific to other server
+        }
+
+        Collections.sort(ret, new Comparator<SSHPublicKey>() { // stable, keys never accepted keep configured order
+            @Override
+            public int compare(SSHPublicKey k1, SSHPublicKey k2) {
+                return Long.compare(acceptedTime(k2), acceptedTime(k1));
+            }
+        });
+
+        lastOffered = new ArrayList<>(ret.size());
+        for (SSHPublicKey key : ret) {
+            lastOffered.add(key.getFingerprint());
+        }
+        return ret;
+    }
+
+    public void recordAccepted(byte[] keyBlob) {
+        recordAccepted(keyBlob, System.currentTimeMillis());
+    }
+
+    synchronized void recordAccepted(byte[] keyBlob, long now) {
+        String fingerprint = IdentityUtils.fingerprintSHA256(keyBlob);
+        int position = lastOffered.indexOf(fingerprint);
+        if (position < 0) {
+            return; // key was not offered by last answer, e.g. SSHSIG or stale client
+        }
+        for (int i = 0; i < position; i++) {
+            lastRejected.put(lastOffered.get(i), now); // tried by client before accepted key
+        }
+        lastRejected.remove(fingerprint);
+        lastAccepted.put(fingerprint, now);
+        lastOffered = Collections.emptyList(); // outcome of this answer is known
+        Logger.getLogger(IdentityOrdering.class.getName()).log(Level.FINE, "Key accepted: {0}, rejected before it: {1}", new Object[]{fingerprint, position});
+    }
+
+    private long acceptedTime(SSHPublicKey key) {
+        Long time = lastAccepted.get(key.getFingerprint());
+        return time == null ? 0 : time;
+    }
+}
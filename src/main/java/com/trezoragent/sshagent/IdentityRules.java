@@ -0,0 +1,310 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.AllowedSigner;
+import com.trezoragent.struct.IdentityRule;
+import com.trezoragent.utils.AgentConstants;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Identity selection rules compiled into a trie over reversed host name
+ * labels</p>
+ *
+ * <p>
+ * Literal right-hand labels of host pattern ("prod.example.com" in
+ * "web*.prod.example.com") form the trie path, the rest of the pattern stays
+ * as a glob on the node. Lookup walks the host labels from the right and tests
+ * only globs on visited nodes, so its cost depends on host name depth and not
+ * on number of rules. Patterns without literal suffix (e.g. "10.0.0.*") stay on
+ * the root node.</p>
+ *
+ * <p>
+ * All matching rules contribute identities in rule number order, same as
+ * multiple IdentityFile lines in ssh_config. Agent does not know the host
+ * and calls match(null, null), so host lookup serves ExportAuthorizedKeys
+ * only.</p>
+ *
+ * @author martin.lizner
+ */
+public class IdentityRules {
+
+    public static final String RULE_KEY_PREFIX = "RULE.";
+
+    private static final String HOST = "host";
+    private static final String USER = "user";
+    private static final String URI_KEY = "uri";
+    private static final String INDEX = "index";
+    private static final String CURVE = "curve";
+
+    private final List<IdentityRule> rules; // sorted by rule number
+    private final Node root = new Node();
+    private final BitSet anyHostRules = new BitSet();
+    private final AtomicLongArray hits;
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Node {
+
+        final Map<String, Node> children = new HashMap<>(2);
+        final List<Glob> globs = new ArrayList<>(1);
+    }
+
+    private static final class Glob {
+
+        final int rule; // position in rules list
+        final String pattern; // remaining left part of host pattern, empty for exact match
+
+        Glob(int rule, String pattern) {
+            this.rule = rule;
+            this.pattern = pattern;
+        }
+    }
+
+    public IdentityRules(List<IdentityRule> rules) {
+        List<IdentityRule> sorted = new ArrayList<>(rules);
+        Collections.sort(sorted, new Comparator<IdentityRule>() {
+            @Override
+            public int compare(IdentityRule r1, IdentityRule r2) {
+                return Integer.compare(r1.getNumber(), r2.getNumber());
+            }
+        });
+        this.rules = Collections.unmodifiableList(sorted);
+        this.hits = new AtomicLongArray(sorted.size());
+
+        for (int i = 0; i < sorted.size(); i++) {
+            IdentityRule rule = sorted.get(i);
+            if (rule.matchesAnyHost()) {
+                anyHostRules.set(i);
+            }
+            for (String pattern : rule.getHostPatterns()) {
+                if (!pattern.startsWith("!")) {
+                    insert(i, pattern);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read RULE.n properties from settings. Invalid rules are logged and
+     * skipped.
+     *
+     * @param settings agent settings
+     * @param defaultUri used when rule has no URI
+     * @param defaultIndex used when rule has no INDEX
+     * @param defaultCurves used when rule has no CURVE
+     * @return compiled rules, empty if settings has none
+     */
+    public static IdentityRules fromSettings(Properties settings, URI defaultUri, int defaultIndex, List<String> defaultCurves) {
+        List<IdentityRule> rules = new ArrayList<>();
+        if (settings != null) {
+            for (String key : settings.stringPropertyNames()) {
+                if (!key.startsWith(RULE_KEY_PREFIX)) {
+                    continue;
+                }
+                try {
+                    int number = Integer.parseInt(key.substring(RULE_KEY_PREFIX.length()));
+                    rules.add(parseRule(number, settings.getProperty(key), defaultUri, defaultIndex, defaultCurves));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(IdentityRules.class.getName()).log(Level.WARNING, "Ignoring invalid rule {0}: {1}", new Object[]{key, ex.getMessage()});
+                }
+            }
+        }
+        IdentityRules ret = new IdentityRules(rules);
+        if (!rules.isEmpty()) {
+            Logger.getLogger(IdentityRules.class.getName()).log(Level.INFO, "Identity rules loaded: {0}", rules.size());
+        }
+        return ret;
+    }
+
+    /**
+     * @param number rule number, defines rule order
+     * @param value "Keyword value ..." pairs, keywords are case insensitive,
+     * Host takes all values up to next keyword
+     * @param defaultUri used when rule has no URI
+     * @param defaultIndex used when rule has no INDEX
+     * @param defaultCurves used when rule has no CURVE
+     * @return parsed rule
+     * @throws IllegalArgumentException if rule is malformed
+     */
+    public static IdentityRule parseRule(int number, String value, URI defaultUri, int defaultIndex, List<String> defaultCurves) {
+        List<String> hostPatterns = new ArrayList<>();
+        String user = null;
+        URI uri = defaultUri;
+        int index = defaultIndex;
+        List<String> curves = defaultCurves;
+
+        String[] tokens = value.trim().split("\\s+");
+        int i = 0;
+        while (i < tokens.length) {
+            String keyword = tokens[i++].toLowerCase(Locale.ROOT);
+            if (HOST.equals(keyword)) {
+                while (i < tokens.length && !isKeyword(tokens[i])) {
+                    hostPatterns.add(normalizeHost(tokens[i++]));
+                }
+                continue;
+            }
+            if (i == tokens.length) {
+                throw new IllegalArgumentException("Missing value for " + keyword);
+            }
+            String argument = tokens[i++];
+            switch (keyword) {
+                case USER:
+                    user = argument;
+                    break;
+                case URI_KEY:
+                    uri = URI.create(argument);
+                    break;
+                case INDEX:
+                    index = Integer.parseInt(argument);
+                    break;
+                case CURVE:
+                    curves = new ArrayList<>();
+                    for (String curve : argument.split(",")) {
+                        if (!AgentConstants.CURVE_NAME_NISTP256.equals(curve) && !AgentConstants.CURVE_NAME_ED25519.equals(curve)) {
+                            throw new IllegalArgumentException("Unsupported curve: " + curve);
+                        }
+                        curves.add(curve);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown keyword: " + keyword);
+            }
+        }
+        if (hostPatterns.isEmpty()) {
+            hostPatterns.add("*"); // like ssh_config Match all
+        }
+        return new IdentityRule(number, hostPatterns, user, uri, index, curves);
+    }
+
+    /**
+     * @param host host name or null if not known, then only rules for any host
+     * ("Host *") apply
+     * @param user user name or null if not known
+     * @return matching rules in rule order, empty if none matches
+     */
+    public List<IdentityRule> match(String host, String user) {
+        String normalized = host == null ? null : normalizeHost(host);
+        BitSet candidates;
+        if (normalized == null) {
+            candidates = anyHostRules;
+        } else {
+            candidates = new BitSet();
+            collect(normalized, candidates);
+        }
+
+        List<IdentityRule> ret = new ArrayList<>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            IdentityRule rule = rules.get(i);
+            if (!rule.matchesUser(user) || (normalized != null && rule.excludesHost(normalized))) {
+                continue;
+            }
+            hits.incrementAndGet(i);
+            ret.add(rule);
+        }
+        if (ret.isEmpty()) {
+            misses.incrementAndGet();
+        }
+        return ret;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public List<IdentityRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return hit count per rule number, for finding dead or too broad rules
+     */
+    public Map<Integer, Long> getHitCounts() {
+        Map<Integer, Long> ret = new TreeMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            ret.put(rules.get(i).getNumber(), hits.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of lookups no rule matched
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void logStatistics() {
+        if (rules.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Integer, Long> entry : getHitCounts().entrySet()) {
+            Logger.getLogger(IdentityRules.class.getName()).log(Level.INFO, "Rule hits: {0}{1} = {2}", new Object[]{RULE_KEY_PREFIX, entry.getKey(), entry.getValue()});
+        }
+        Logger.getLogger(IdentityRules.class.getName()).log(Level.INFO, "Rule misses: {0}", getMisses());
+    }
+
+    private void insert(int rule, String pattern) {
+        Node node = root;
+        int end = pattern.length();
+        while (end > 0) {
+            int dot = pattern.lastIndexOf('.', end - 1);
+            String label = pattern.substring(dot + 1, end);
+            if (label.isEmpty() || label.indexOf('*') >= 0 || label.indexOf('?') >= 0) {
+                break; // rest of pattern is a glob
+            }
+            Node child = node.children.get(label);
+            if (child == null) {
+                child = new Node();
+                node.children.put(label, child);
+            }
+            node = child;
+            end = Math.max(dot, 0);
+        }
+        node.globs.add(new Glob(rule, pattern.substring(0, end)));
+    }
+
+    private void collect(String host, BitSet candidates) {
+        Node node = root;
+        int end = host.length();
+        while (true) {
+            String remaining = host.substring(0, end); // labels not consumed by trie path
+            for (Glob glob : node.globs) {
+                if (glob.pattern.isEmpty() ? remaining.isEmpty() : !remaining.isEmpty() && AllowedSigner.matchesPattern(remaining, glob.pattern)) {
+                    candidates.set(glob.rule);
+                }
+            }
+            if (end == 0) {
+                return;
+            }
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                return;
+            }
+            end = Math.max(dot, 0);
+        }
+    }
+
+    private static boolean isKeyword(String token) {
+        String keyword = token.toLowerCase(Locale.ROOT);
+        return USER.equals(keyword) || URI_KEY.equals(keyword) || INDEX.equals(keyword) || CURVE.equals(keyword);
+    }
+
+    private static String normalizeHost(String host) {
+        String ret = host.toLowerCase(Locale.ROOT);
+        return ret.endsWith(".") ? ret.substring(0, ret.length() - 1) : ret;
+    }
+}
@@ -0,0 +1,27 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.Properties;
+
+/**
+ * KeepKey over USB HID
+ *
+ * @author martin.lizner
+ */
+public class KeepKeyBackendProvider implements SigningBackendProvider {
+
+    @Override
+    public String getName() {
+        return AgentConstants.SETTINGS_KEEPKEY_DEVICE;
+    }
+
+    @Override
+    public String getLabel() {
+        return AgentConstants.KEEPKEY_LABEL;
+    }
+
+    @Override
+    public SigningBackend start(Properties settings, int instance) {
+        return KeepKeyService.startKeepKeyService();
+    }
+}
@@ -0,0 +1,16 @@
+package com.trezoragent.sshagent;
+
+/**
+ * Reason of failed device operation, decides how the failure is shown to user
+ * (see DeviceService.onOperationFailed)
+ *
+ * @author martin.lizner
+ */
+public enum OperationFailure {
+
+    PIN_INVALID,
+    PIN_CANCELLED,
+    ACTION_CANCELLED,
+    NOT_INITIALIZED,
+    OTHER
+}
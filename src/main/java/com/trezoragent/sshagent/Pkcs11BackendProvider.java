@@ -0,0 +1,27 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.Properties;
+
+/**
+ * PKCS#11 token, see Pkcs11Service
+ *
+ * @author martin.lizner
+ */
+public class Pkcs11BackendProvider implements SigningBackendProvider {
+
+    @Override
+    public String getName() {
+        return AgentConstants.SETTINGS_PKCS11_DEVICE;
+    }
+
+    @Override
+    public String getLabel() {
+        return AgentConstants.PKCS11_LABEL;
+    }
+
+    @Override
+    public SigningBackend start(Properties settings, int instance) {
+        return Pkcs11Service.startPkcs11Service(settings, instance);
+    }
+}
@@ -0,0 +1,387 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.P256;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.AuthProvider;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.ASN1Sequence;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.util.BigIntegers;
+
+/**
+ * <p>
+ * PKCS#11 token (smart card, HSM, SoftHSM) as signing backend
+ * (DEVICE=pkcs11)</p>
+ *
+ * <p>
+ * Token is accessed by SunPKCS11 provider configured with PKCS11_LIBRARY and
+ * PKCS11_SLOT settings. Token EC P-256 keys are offered as identities instead
+ * of configured URI and index, identity URI is pkcs11:object=&lt;label&gt;.
+ * SunPKCS11 key store lists only private keys stored together with
+ * certificate, self-signed certificate is enough.</p>
+ *
+ * <p>
+ * Every token operation runs on a single token thread, as USB device
+ * operations do, and answers go through the same public key, signed identity
+ * and operation failed handlers. User logs in once per session (PKCS11_PIN or
+ * PIN typed in passphrase dialog), private keys and initialized Signature
+ * objects are kept until session timeout, so sign request does not search
+ * token objects again and token sessions are reused from the provider
+ * pool.</p>
+ *
+ * @author martin.lizner
+ */
+public final class Pkcs11Service extends DeviceService {
+
+    private static final String SUN_PKCS11 = "SunPKCS11";
+    private static final String KEY_STORE_TYPE = "PKCS11";
+    private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    private static final String URI_SCHEME = "pkcs11";
+    private static final String URI_OBJECT_ATTRIBUTE = "object=";
+    private static final X9ECParameters NISTP256_CURVE = NISTNamedCurves.getByName("P-256");
+
+    private final Provider provider;
+    private final String configuredPin;
+    private final ExecutorService tokenThread;
+
+    // token thread only:
+    private String pin;
+    private KeyStore keyStore;
+    private List<KeyOwner> storedIdentities;
+    private final Map<String, byte[]> publicKeys = new HashMap<>(); // compressed point by object label
+    private final Map<String, Signature> signers = new HashMap<>(); // initialized for sign by object label
+
+    /**
+     * @param provider configured SunPKCS11 provider
+     * @param pin token user PIN, null or empty to ask user
+     */
+    public Pkcs11Service(Provider provider, String pin) {
+        this.provider = provider;
+        this.configuredPin = (pin == null || pin.isEmpty()) ? null : pin;
+        this.tokenThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pkcs11-token");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        deviceLabel = AgentConstants.PKCS11_LABEL;
+        asyncKeyData = new ReadDeviceData<SSHPublicKey>();
+        asyncSignData = new ReadDeviceData<byte[]>();
+
+        Logger.getLogger(Pkcs11Service.class.getName()).log(Level.INFO, "PKCS#11 Service Started, provider: {0}", provider.getName());
+    }
+
+    /**
+     * @param settings agent settings
+     * @param instance 0 for the first token, others use following slots
+     * @return started token service
+     */
+    public static Pkcs11Service startPkcs11Service(Properties settings, int instance) {
+        String library = settings.getProperty(AgentConstants.SETTINGS_KEY_PKCS11_LIBRARY);
+        if (library == null || library.trim().isEmpty()) {
+            throw new ProviderException("Missing setting: " + AgentConstants.SETTINGS_KEY_PKCS11_LIBRARY);
+        }
+        String slot = AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_PKCS11_SLOT, AgentConstants.SETTINGS_PKCS11_SLOT).trim();
+        return new Pkcs11Service(createProvider(library.trim(), Integer.parseInt(slot) + instance), settings.getProperty(AgentConstants.SETTINGS_KEY_PKCS11_PIN));
+    }
+
+    /**
+     * @param library path to PKCS#11 module (.dll or .so)
+     * @param slot index in token slot list
+     * @return SunPKCS11 provider bound to the token
+     * @throws ProviderException if module cannot be loaded
+     */
+    static Provider createProvider(String library, int slot) {
+        String config = "--name=TrezorAgent\n"
+                + "library=" + library + "\n"
+                + "slotListIndex=" + slot + "\n";
+        try {
+            Provider prototype = Security.getProvider(SUN_PKCS11);
+            if (prototype != null) {
+                try {
+                    return (Provider) Provider.class.getMethod("configure", String.class).invoke(prototype, config); // Java 9 and later
+                } catch (NoSuchMethodException ex) {
+                    // Java 8, provider is created by constructor below
+                }
+            }
+            return (Provider) Class.forName("sun.security.pkcs11.SunPKCS11").getConstructor(String.class).newInstance(config);
+        } catch (InvocationTargetException ex) {
+            throw new ProviderException("Unable to load PKCS#11 library: " + library, ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new ProviderException("SunPKCS11 provider is not available", ex);
+        }
+    }
+
+    @Override
+    public boolean supportsCurve(String curveName) {
+        return AgentConstants.CURVE_NAME_NISTP256.equals(curveName); // SunPKCS11 has no EdDSA
+    }
+
+    @Override
+    public List<KeyOwner> listStoredIdentities() {
+        try {
+            return tokenThread.submit(new Callable<List<KeyOwner>>() {
+                @Override
+                public List<KeyOwner> call() throws Exception {
+                    login();
+                    return storedIdentities;
+                }
+            }).get(AgentConstants.KEY_WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+            Logger.getLogger(Pkcs11Service.class.getName()).log(Level.WARNING, "Unable to list token keys", ex);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void requestPublicKey(final KeyOwner identity) {
+        tokenThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    login();
+                    byte[] rawPub = publicKeys.get(getObjectLabel(identity));
+                    if (rawPub == null) {
+                        Logger.getLogger(Pkcs11Service.class.getName()).log(Level.WARNING, "No P-256 key on token: {0}", identity);
+                        onOperationFailed(OperationFailure.OTHER);
+                        return;
+                    }
+                    onPublicKey(rawPub);
+                } catch (GeneralSecurityException | IOException | IllegalArgumentException ex) {
+                    onTokenFailed(ex);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void requestSign(final KeyOwner owner, final byte[] challengeHidden, String challengeVisual) {
+        Logger.getLogger(Pkcs11Service.class.getName()).log(Level.FINE, "Token signs for: {0}", challengeVisual); // token has no display
+        tokenThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    login();
+                    Signature signer = getSigner(getObjectLabel(owner));
+                    signer.update(challengeHidden);
+                    onSignedIdentity(toDeviceSignature(signer.sign())); // signer is reset by sign() and stays initialized
+                } catch (GeneralSecurityException | IOException | IllegalArgumentException ex) {
+                    onTokenFailed(ex);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void requestCancel() {
+        // token operations are not interactive, there is nothing to cancel
+    }
+
+    @Override
+    public boolean isDeviceReady() {
+        return !tokenThread.isShutdown();
+    }
+
+    @Override
+    public boolean isWalletPresent() {
+        return true; // missing token is reported by login
+    }
+
+    @Override
+    public void clearSession() {
+        tokenThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                logout();
+            }
+        });
+    }
+
+    @Override
+    public void detach() {
+        clearSession();
+        tokenThread.shutdown();
+    }
+
+    @Override
+    protected void providePin(String pin) {
+        providePassphrase(pin); // token PIN is asked by passphrase dialog, pin pad is not used
+    }
+
+    @Override
+    protected void providePassphrase(String passphrase) {
+        pin = passphrase; // called on token thread from login()
+    }
+
+    /*
+     * Token thread only. Opens key store once per session and caches P-256 keys.
+     */
+    private void login() throws GeneralSecurityException, IOException {
+        if (keyStore != null) {
+            return;
+        }
+        pin = configuredPin;
+        if (pin == null) {
+            onPassphraseEntry(); // token PIN is not a digit matrix, plain text dialog is used
+            if (pin == null || AgentConstants.PASSPHRASE_CANCELLED_MSG.equals(pin)) {
+                throw new GeneralSecurityException("PIN entry cancelled");
+            }
+        }
+
+        KeyStore store = KeyStore.getInstance(KEY_STORE_TYPE, provider);
+        store.load(null, pin.toCharArray());
+
+        List<String> labels = Collections.list(store.aliases());
+        Collections.sort(labels);
+        List<KeyOwner> identities = new ArrayList<>();
+        for (String label : labels) {
+            if (!store.isKeyEntry(label)) {
+                continue;
+            }
+            Certificate certificate = store.getCertificate(label);
+            if (certificate == null || !(certificate.getPublicKey() instanceof ECPublicKey)) {
+                continue;
+            }
+            ECPublicKey publicKey = (ECPublicKey) certificate.getPublicKey();
+            if (!isNistp256(publicKey.getParams())) { // other 256-bit curves, e.g. secp256k1 or brainpoolP256r1
+                Logger.getLogger(Pkcs11Service.class.getName()).log(Level.WARNING, "Skipping token key of unsupported curve: {0}", label);
+                continue;
+            }
+            publicKeys.put(label, P256.compress(publicKey.getW().getAffineX(), publicKey.getW().getAffineY()));
+            identities.add(new KeyOwner(this, getObjectUri(label), identities.size(), AgentConstants.CURVE_NAME_NISTP256));
+        }
+
+        keyStore = store;
+        storedIdentities = Collections.unmodifiableList(identities);
+        Logger.getLogger(Pkcs11Service.class.getName()).log(Level.INFO, "Logged in to token, {0} P-256 keys found", identities.size());
+    }
+
+    /**
+     * @param params curve of token key
+     * @return True if curve is NIST P-256 (prime, coefficients, generator and
+     * order match)
+     */
+    static boolean isNistp256(ECParameterSpec params) {
+        if (!(params.getCurve().getField() instanceof ECFieldFp)) {
+            return false;
+        }
+        ECCurve curve = NISTP256_CURVE.getCurve();
+        return ((ECFieldFp) params.getCurve().getField()).getP().equals(curve.getField().getCharacteristic())
+                && params.getCurve().getA().equals(curve.getA().toBigInteger())
+                && params.getCurve().getB().equals(curve.getB().toBigInteger())
+                && params.getGenerator().getAffineX().equals(NISTP256_CURVE.getG().normalize().getAffineXCoord().toBigInteger())
+                && params.getGenerator().getAffineY().equals(NISTP256_CURVE.getG().normalize().getAffineYCoord().toBigInteger())
+                && params.getOrder().equals(NISTP256_CURVE.getN())
+                && params.getCofactor() == 1;
+    }
+
+    private Signature getSigner(String label) throws GeneralSecurityException {
+        Signature signer = signers.get(label);
+        if (signer == null) {
+            PrivateKey privateKey = (PrivateKey) keyStore.getKey(label, null);
+            if (privateKey == null) {
+                throw new GeneralSecurityException("No private key on token: " + label);
+            }
+            signer = Signature.getInstance(SIGNATURE_ALGORITHM, provider);
+            signer.initSign(privateKey);
+            signers.put(label, signer);
+        }
+        return signer;
+    }
+
+    private void logout() {
+        signers.clear();
+        publicKeys.clear();
+        storedIdentities = null;
+        keyStore = null;
+        pin = null;
+        if (provider instanceof AuthProvider) {
+            try {
+                ((AuthProvider) provider).logout();
+            } catch (LoginException ex) {
+                Logger.getLogger(Pkcs11Service.class.getName()).log(Level.FINE, "Token logout failed", ex);
+            }
+        }
+    }
+
+    private void onTokenFailed(Exception ex) {
+        Logger.getLogger(Pkcs11Service.class.getName()).log(Level.WARNING, "Token operation failed", ex);
+        if (keyStore == null) { // login failed or was cancelled, ask again next time
+            logout();
+            onOperationFailed(ex.getCause() instanceof FailedLoginException ? OperationFailure.PIN_INVALID : OperationFailure.PIN_CANCELLED);
+        } else {
+            signers.clear(); // signer may be left in broken state, token may be re-inserted
+            onOperationFailed(OperationFailure.OTHER);
+        }
+    }
+
+    static URI getObjectUri(String label) {
+        try {
+            return new URI(URI_SCHEME, URI_OBJECT_ATTRIBUTE + label, null);
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    static String getObjectLabel(KeyOwner identity) {
+        URI uri = identity.getIdentityUri();
+        String attribute = uri.getSchemeSpecificPart();
+        if (!URI_SCHEME.equals(uri.getScheme()) || attribute == null || !attribute.startsWith(URI_OBJECT_ATTRIBUTE)) {
+            throw new IllegalArgumentException("Not a PKCS#11 object URI: " + uri);
+        }
+        return attribute.substring(URI_OBJECT_ATTRIBUTE.length());
+    }
+
+    /**
+     * @param der ASN.1 ECDSA signature returned by JCA
+     * @return 65 bytes signature in device format, 0x00 header followed by
+     * r||s
+     */
+    static byte[] toDeviceSignature(byte[] der) {
+        ASN1Sequence sequence = ASN1Sequence.getInstance(der);
+        byte[] ret = new byte[65];
+        System.arraycopy(BigIntegers.asUnsignedByteArray(32, ASN1Integer.getInstance(sequence.getObjectAt(0)).getValue()), 0, ret, 1, 32);
+        System.arraycopy(BigIntegers.asUnsignedByteArray(32, ASN1Integer.getInstance(sequence.getObjectAt(1)).getValue()), 0, ret, 33, 32);
+        return ret;
+    }
+}
@@ -2,8 +2,13 @@ package com.trezoragent.sshagent;
 
 import com.trezoragent.struct.PuttyStruct64;
 import com.trezoragent.struct.PuttyStruct32;
-import com.trezoragent.struct.PublicKeyDTO;
+import com.trezoragent.struct.SSHPublicKey;
 import com.trezoragent.struct.PuttyStruct;
+import com.trezoragent.audit.AuditJournal;
+import com.trezoragent.struct.AuditRecord;
+import com.trezoragent.struct.SSHSigRequest;
+import com.trezoragent.struct.UserAuthChallenge;
+import com.google.common.base.Charsets;
 import com.sun.jna.Platform;
 import com.sun.jna.Pointer;
 import com.sun.jna.WString;
@@ -21,15 +26,26 @@ import com.trezoragent.exception.GetIdentitiesFailedException;
 import com.trezoragent.exception.SignFailedException;
 import com.trezoragent.gui.TrayProcess;
 import com.trezoragent.utils.AgentConstants;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import static com.trezoragent.utils.AgentConstants.*;
 import com.trezoragent.utils.AgentUtils;
 import com.trezoragent.utils.LocalizedLogger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.ChallengeUtils;
+import com.trezoragent.utils.SSHSigUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
 import org.spongycastle.util.encoders.Base64;
 
 /**
@@ -49,8 +65,21 @@ public class SSHAgent implements WindowProc {
     private boolean mainLoopStarted = false;
 
     private HANDLE mutex = null; // mutex ref, for installer
+    private final IdentitiesAnswer identitiesAnswer = new IdentitiesAnswer();
 
     public SSHAgent() throws Exception {
+        this(true);
+    }
+
+    /**
+     * @param createWindow false for agent without Pageant window, requests
+     * are passed to answerMessage directly (tests)
+     * @throws Exception if Windows libraries cannot be loaded
+     */
+    SSHAgent(boolean createWindow) throws Exception {
+        if (!createWindow) {
+            return;
+        }
         initCoreClasses();
         if (checkIfNoPageantProcessIsRunning()) {
             createProcess();
@@ -138,7 +167,7 @@ public class SSHAgent implements WindowProc {
                         psa,
                         WinNT.PAGE_READWRITE,
                         0,
-                        8192, // AGENT_MAX_MSGLEN
+                        AgentConstants.AGENT_MAX_MSGLEN,
                         mapname);
 
         sharedMemory
@@ -146,7 +175,7 @@ public class SSHAgent implements WindowProc {
                         WinNT.SECTION_MAP_WRITE,
                         0, 0, 0);
 
-        int ret = answerIfDevicePresent(sharedMemory);
+        int ret = answerMessage(sharedMemory);
         disconnectFromSharedMemory();
 
         return new LRESULT(ret);
@@ -156,7 +185,7 @@ public class SSHAgent implements WindowProc {
      *  Method answers to recieved message and writes response to shared memory
      *  1 = success, 0 = fail - Putty protocol defined
      */
-    private int answerMessage(Pointer sharedMemory) {
+    int answerMessage(Pointer sharedMemory) {
         byte[] buff = new byte[5];
         sharedMemory.read(0, buff, 0, 5);
         AgentUtils.stopGUITimer(); // Cancel pubkey window request when SSH operations are in progress
@@ -164,11 +193,36 @@ public class SSHAgent implements WindowProc {
         byte type = buff[4];
         switch (type) {
             case SSH2_AGENTC_REQUEST_IDENTITIES:
-                processKeysRequest(sharedMemory);
+                boolean devicePresent = AgentUtils.checkAnyDeviceAvailable(TrayProcess.deviceServices); // keys of ready devices are listed
+                if (!devicePresent && TrayProcess.upstreamAgent == null && TrayProcess.softwareKeys.isEmpty()) {
+                    writeAndLogFailure(sharedMemory, "Device not available.");
+                    return 0;
+                }
+                processKeysRequest(sharedMemory, devicePresent); // software and upstream keys work without device
                 return 1;
             case SSH2_AGENTC_SIGN_REQUEST:
+                byte[] keyBlob = resolveCertificate(getDataFromRequest(sharedMemory, 5));
+                if (isUpstreamKey(keyBlob)) {
+                    processUpstreamSignRequest(sharedMemory);
+                    return 1;
+                }
+                List<DeviceService> owners = getOwnerDevices(keyBlob);
+                if (TrayProcess.softwareKeys.lookup(keyBlob) == null && !owners.isEmpty() && !AgentUtils.checkAnyDeviceAvailable(owners)) { // key not owned by agent is refused by DeviceWrapper
+                    writeAndLogFailure(sharedMemory, "Device not available.");
+                    return 0;
+                }
                 processSignRequest(sharedMemory);
                 return 1;
+            case SSH2_AGENTC_ADD_IDENTITY:
+            case SSH2_AGENTC_ADD_ID_CONSTRAINED:
+                return processAddIdentity(sharedMemory);
+            case SSH2_AGENTC_REMOVE_IDENTITY:
+                return processRemoveIdentity(sharedMemory);
+            case SSH2_AGENTC_REMOVE_ALL_IDENTITIES:
+                TrayProcess.softwareKeys.removeAll(); // device keys cannot be removed
+                writeSuccess(sharedMemory);
+                writeAuditRecord(AuditRecord.OPERATION_REMOVE_IDENTITY, AuditRecord.OUTCOME_OK, System.nanoTime(), null, null, null);
+                return 1;
             default:
                 writeAndLogFailure(sharedMemory, "Request for unsupported operation: " + type);
                 return 0;
@@ -176,19 +230,158 @@ public class SSHAgent implements WindowProc {
         }
     }
 
-    private void processKeysRequest(final Pointer sharedMemory) {
-        java.util.List<PublicKeyDTO> certs;
+    private void processKeysRequest(final Pointer sharedMemory, boolean devicePresent) {
+        java.util.List<SSHPublicKey> certs;
+        long start = System.nanoTime();
+        byte outcome = AuditRecord.OUTCOME_FAILED;
         try {
-            certs = DeviceWrapper.getIdentitiesResponse(true);
-            // TODO: If subsequent ssh sign request wont come, it means server doesnt know provided key, should we report? log? all? none?
+            List<SSHPublicKey> deviceKeys = devicePresent ? DeviceWrapper.getIdentitiesResponse() : Collections.<SSHPublicKey>emptyList();
+            certs = TrayProcess.identityOrdering.order(mergeIdentities(deviceKeys)); // keys accepted before go first, subsequent sign request tells which key server accepted
+            certs = IdentitiesAnswer.fit(certs, getUpstreamKeys(certs)); // answer must fit in shared memory
 
-            ByteBuffer ret = writeCertificatesToFrame(certs, SSH2_AGENT_IDENTITIES_ANSWER);
-            sharedMemory.write(0, ret.array(), 0, ret.array().length);
+            byte[] frame = identitiesAnswer.getFrame(certs);
+            sharedMemory.write(0, frame, 0, frame.length);
+            outcome = AuditRecord.OUTCOME_OK;
 
         } catch (DeviceTimeoutException ex) {
+            outcome = AuditRecord.OUTCOME_TIMEOUT;
             TrayProcess.handleException(ex);
         } catch (GetIdentitiesFailedException ex) {
             Logger.getLogger(SSHAgent.class.getName()).log(Level.SEVERE, "Operation {0} failed", "SSH2_AGENT_GET_IDENTITIES");
+        } finally {
+            writeAuditRecord(AuditRecord.OPERATION_IDENTITIES, outcome, start, null, null, null);
+        }
+    }
+
+    /*
+     * Device keys with their certificates go first, then software keys and upstream keys, keys already offered are left out
+     */
+    private List<SSHPublicKey> mergeIdentities(List<SSHPublicKey> deviceKeys) {
+        if (TrayProcess.certificateStore != null) {
+            deviceKeys = TrayProcess.certificateStore.pair(deviceKeys);
+        }
+        List<SSHPublicKey> softwareKeys = TrayProcess.softwareKeys.getIdentities();
+        List<SSHPublicKey> upstreamKeys = (TrayProcess.upstreamAgent == null) ? Collections.<SSHPublicKey>emptyList() : TrayProcess.upstreamAgent.getIdentities(); // cached for UPSTREAM_AGENT_TTL
+        if (softwareKeys.isEmpty() && upstreamKeys.isEmpty()) {
+            return deviceKeys;
+        }
+        List<SSHPublicKey> ret = new ArrayList<>(deviceKeys.size() + softwareKeys.size() + upstreamKeys.size());
+        Set<String> fingerprints = new HashSet<>();
+        for (List<SSHPublicKey> keys : Arrays.asList(deviceKeys, softwareKeys, upstreamKeys)) {
+            for (SSHPublicKey key : keys) {
+                if (fingerprints.add(key.getFingerprint())) {
+                    ret.add(key);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Offered keys signed by upstream agent, these are left out first when answer is too long
+     */
+    private List<SSHPublicKey> getUpstreamKeys(List<SSHPublicKey> keys) {
+        List<SSHPublicKey> ret = new ArrayList<>();
+        if (TrayProcess.upstreamAgent != null) {
+            for (SSHPublicKey key : keys) {
+                if (isUpstreamKey(key.getBlob())) {
+                    ret.add(key);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * @return key certified by loaded certificate or key blob itself when it is not a certificate
+     */
+    private byte[] resolveCertificate(byte[] keyBlob) {
+        byte[] ret = (TrayProcess.certificateStore == null) ? null : TrayProcess.certificateStore.lookupKey(keyBlob);
+        return ret == null ? keyBlob : ret;
+    }
+
+    /*
+     * Devices owning the key, sign request goes to any ready one of them
+     */
+    private List<DeviceService> getOwnerDevices(byte[] keyBlob) {
+        List<DeviceService> ret = new ArrayList<>();
+        for (SSHPublicKey key : TrayProcess.identityIndex.lookupAll(keyBlob)) {
+            ret.add(key.getOwner().getDevice());
+        }
+        return ret;
+    }
+
+    /*
+     * Key is signed by upstream agent when neither device nor software key owns it
+     */
+    private boolean isUpstreamKey(byte[] keyBlob) {
+        return TrayProcess.upstreamAgent != null
+                && TrayProcess.identityIndex.lookup(keyBlob) == null
+                && TrayProcess.softwareKeys.lookup(keyBlob) == null
+                && TrayProcess.upstreamAgent.lookup(keyBlob) != null;
+    }
+
+    /*
+     * ssh-add, request carries private key which is overwritten in memory right after parsing
+     */
+    private int processAddIdentity(Pointer sharedMemory) {
+        byte[] message = getDataFromRequest(sharedMemory, 0);
+        byte outcome = AuditRecord.OUTCOME_FAILED;
+        byte[] keyBlob = null;
+        long start = System.nanoTime();
+        try {
+            keyBlob = TrayProcess.softwareKeys.add(message).getBlob();
+            writeSuccess(sharedMemory);
+            outcome = AuditRecord.OUTCOME_OK;
+            return 1;
+        } catch (IllegalArgumentException ex) {
+            writeAndLogFailure(sharedMemory, "Software key not added: " + ex.getMessage());
+            return 0;
+        } finally {
+            Arrays.fill(message, (byte) 0);
+            sharedMemory.setMemory(5, message.length - 1, (byte) 0); // answer is 5 bytes long, rest of request goes away
+            writeAuditRecord(AuditRecord.OPERATION_ADD_IDENTITY, outcome, start, keyBlob, null, null);
+        }
+    }
+
+    private int processRemoveIdentity(Pointer sharedMemory) {
+        byte[] keyBlob = getDataFromRequest(sharedMemory, 5);
+        long start = System.nanoTime();
+        if (TrayProcess.softwareKeys.remove(keyBlob)) {
+            writeSuccess(sharedMemory);
+            writeAuditRecord(AuditRecord.OPERATION_REMOVE_IDENTITY, AuditRecord.OUTCOME_OK, start, keyBlob, null, null);
+            return 1;
+        }
+        writeAndLogFailure(sharedMemory, "Key not removed, only keys added by ssh-add can be removed: " + IdentityUtils.fingerprintSHA256(keyBlob));
+        writeAuditRecord(AuditRecord.OPERATION_REMOVE_IDENTITY, AuditRecord.OUTCOME_FAILED, start, keyBlob, null, null);
+        return 0;
+    }
+
+    /*
+     * Request is forwarded as is, upstream answer (sign response or failure) goes back to SSH client unchanged
+     */
+    private void processUpstreamSignRequest(Pointer sharedMemory) {
+        byte[] keyInBytes = getDataFromRequest(sharedMemory, 5);
+        byte[] challengeData = getDataFromRequest(sharedMemory, 5 + 4 + keyInBytes.length);
+        byte outcome = AuditRecord.OUTCOME_FAILED;
+        long start = System.nanoTime();
+        try {
+            byte[] message = getDataFromRequest(sharedMemory, 0);
+            byte[] answer = TrayProcess.upstreamAgent.forward(ByteBuffer.allocate(4 + message.length).putInt(message.length).put(message).array());
+            sharedMemory.write(0, answer, 0, answer.length);
+            if (answer[4] == SSH2_AGENT_SIGN_RESPONSE) {
+                outcome = AuditRecord.OUTCOME_OK;
+                if (!SSHSigUtils.isSSHSigData(challengeData)) {
+                    TrayProcess.identityOrdering.recordAccepted(keyInBytes);
+                }
+                Logger.getLogger(SSHAgent.class.getName()).log(Level.INFO, "Sign request for key {0} served by upstream agent", IdentityUtils.fingerprintSHA256(keyInBytes));
+            } else {
+                Logger.getLogger(SSHAgent.class.getName()).log(Level.WARNING, "Upstream agent refused sign request, answer type: {0}", answer[4]);
+            }
+        } catch (IOException ex) {
+            writeAndLogFailure(sharedMemory, "Upstream agent sign request failed: " + ex.getMessage());
+        } finally {
+            writeAuditRecord(AuditRecord.OPERATION_SIGN, outcome, start, keyInBytes, null, null);
         }
     }
 
@@ -219,13 +412,11 @@ public class SSHAgent implements WindowProc {
         }
     }
 
-    private int answerIfDevicePresent(Pointer sharedMemory) {
-        if (AgentUtils.checkDeviceAvailable()) {
-            return answerMessage(sharedMemory);
-        } else {
-            writeAndLogFailure(sharedMemory, "Device not available.");
-            return 0;
-        }
+    private void writeSuccess(Pointer sharedMemory) {
+        byte[] buff = new byte[5];
+        buff[4] = SSH_AGENT_SUCCESS;
+        buff[3] = 1;
+        sharedMemory.write(0, buff, 0, buff.length);
     }
 
     private void writeAndLogFailure(Pointer sharedMemory, String messageToLog) {
@@ -239,18 +430,45 @@ public class SSHAgent implements WindowProc {
     private void processSignRequest(Pointer sharedMemory) {
         byte[] keyInBytes = getDataFromRequest(sharedMemory, 5);
         byte[] challengeData = getDataFromRequest(sharedMemory, 5 + 4 + keyInBytes.length);
+        byte[] signingKey = resolveCertificate(keyInBytes); // certificate is signed by the key it certifies
         byte[] signedDataRaw;
         byte[] signedData = null;
-        byte[] userName = unframeUsernameFromChallengeBytes(challengeData);
+        byte[] userName;
+        String sshSigNamespace = null;
+        String auditUser = null;
+        String auditTarget = null;
+        byte outcome = AuditRecord.OUTCOME_FAILED;
+        long start = System.nanoTime();
         boolean isSignatureValid = false;
-        String keyTypeProvided = unframeKeyTypeFromProvidedSSHKey(keyInBytes);
+        String keyTypeProvided = unframeKeyTypeFromProvidedSSHKey(signingKey);
+        boolean softwareKey = TrayProcess.softwareKeys.lookup(signingKey) != null;
 
         Logger.getLogger(SSHAgent.class.getName()).log(Level.FINE, "Server sent challenge: {0}", Base64.toBase64String(challengeData));
-        Logger.getLogger(SSHAgent.class.getName()).log(Level.FINE, "Effective username: {0}", new String(userName));
         Logger.getLogger(SSHAgent.class.getName()).log(Level.FINE, "Effective public key: {0}", Base64.toBase64String(keyInBytes));
 
         try {
-            signedDataRaw = DeviceWrapper.signChallenge(challengeData, userName);
+            if (SSHSigUtils.isSSHSigData(challengeData)) { // ssh-keygen -Y sign, e.g. git commit signing
+                SSHSigRequest sigRequest = SSHSigUtils.parseSignedData(challengeData);
+                sshSigNamespace = sigRequest.getNamespace();
+                userName = sshSigNamespace.getBytes(Charsets.UTF_8); // namespace is displayed on device instead of user name
+                auditTarget = sshSigNamespace;
+                Logger.getLogger(SSHAgent.class.getName()).log(Level.INFO, "SSHSIG sign request for {0}, key: {1}",
+                        new Object[]{sigRequest, IdentityUtils.fingerprintSHA256(keyInBytes)});
+            } else {
+                UserAuthChallenge challenge = ChallengeUtils.parseUserAuthChallenge(challengeData);
+                ChallengeUtils.checkChallengeMatchesKey(challenge, keyInBytes); // reject malformed or mismatched challenge before any device work
+                userName = challenge.getUser().getBytes(Charsets.UTF_8);
+                auditUser = challenge.getUser();
+                auditTarget = challenge.getService();
+                Logger.getLogger(SSHAgent.class.getName()).log(Level.INFO, "Sign request for {0}, session: {1}, key: {2}",
+                        new Object[]{challenge, Utils.HEX.encode(challenge.getSessionId()), IdentityUtils.fingerprintSHA256(keyInBytes)}); // SSH userauth request does not carry server host name
+            }
+
+            if (softwareKey) {
+                signedDataRaw = TrayProcess.softwareKeys.sign(signingKey, challengeData); // no device lock, but Pageant requests are serial: waits behind a pending device sign
+            } else {
+                signedDataRaw = DeviceWrapper.signChallenge(signingKey, challengeData, userName);
+            }
             if (signedDataRaw == null || signedDataRaw.length != 65) {
                 throw new SignFailedException("HW sign response must have 65 bytes, length: " + signedDataRaw.length);
             }
@@ -259,8 +477,7 @@ public class SSHAgent implements WindowProc {
             switch (keyTypeProvided) {
                 case IdentityUtils.NISTP256_KEY_PREFIX:
                     try {
-                        isSignatureValid = IdentityUtils.isValidSignature(IdentityUtils.unframeUncompressedNistpKeyFromSSHKey(keyInBytes),
-                                challengeData, IdentityUtils.createDERSignResponse(signedDataRaw)); // double check that SSH server sent public key that can verify signature provided by HW
+                        isSignatureValid = SignatureVerifier.verifyNistp256Signature(signingKey, challengeData, signedDataRaw); // double check that SSH server sent public key that can verify signature provided by HW
                     } catch (Throwable th) {
                         throw new SignFailedException("Error occured while validating signature.", th);
                     }
@@ -273,8 +490,18 @@ public class SSHAgent implements WindowProc {
 
                     break;
                 case IdentityUtils.ED25519_KEY_PREFIX:
-                    // TODO: isSignatureValid missing, find secure java validator for ed25519
-                    signedData = IdentityUtils.createSSHSignResponseFromEd25519Key(signedDataRaw);
+                    try {
+                        isSignatureValid = SignatureVerifier.verifyEd25519Signature(signingKey, challengeData, signedDataRaw);
+                    } catch (Throwable th) {
+                        throw new SignFailedException("Error occured while validating signature.", th);
+                    }
+
+                    if (isSignatureValid) {
+                        signedData = IdentityUtils.createSSHSignResponseFromEd25519Key(signedDataRaw);
+                    } else {
+                        throw new SignFailedException("Signature was validated using provided public key with negative result.");
+                    }
+
                     break;
                 default:
                     throw new SignFailedException("SSH server returned unknown key type: " + keyTypeProvided);
@@ -282,47 +509,45 @@ public class SSHAgent implements WindowProc {
 
             if (signedData != null) {
                 sharedMemory.write(0, signedData, 0, signedData.length);
-                TrayProcess.createInfo(LocalizedLogger.getLocalizedMessage("CERT_USE_SUCCESS", new String(userName), TrayProcess.deviceService.getDeviceLabel()));
+                outcome = AuditRecord.OUTCOME_OK;
+                if (sshSigNamespace == null) {
+                    TrayProcess.identityOrdering.recordAccepted(keyInBytes);
+                }
+                if (softwareKey) {
+                    Logger.getLogger(SSHAgent.class.getName()).log(Level.FINE, "Signed by software key"); // batch jobs sign at high rate, no tray message
+                } else if (sshSigNamespace != null) {
+                    TrayProcess.createInfo(LocalizedLogger.getLocalizedMessage("SSHSIG_USE_SUCCESS", sshSigNamespace, getDeviceLabel(signingKey)));
+                } else {
+                    TrayProcess.createInfo(LocalizedLogger.getLocalizedMessage("CERT_USE_SUCCESS", new String(userName), getDeviceLabel(signingKey)));
+                }
             } else {
                 TrayProcess.createWarning(LocalizedLogger.getLocalizedMessage("CERT_USED_ERROR"));
             }
-        } catch (DeviceTimeoutException | SignFailedException ex) {
+        } catch (DeviceTimeoutException ex) {
+            outcome = AuditRecord.OUTCOME_TIMEOUT;
+            TrayProcess.handleException(ex);
+        } catch (SignFailedException ex) {
             TrayProcess.handleException(ex);
         } catch (ActionCancelledException ex) {
+            outcome = AuditRecord.OUTCOME_CANCELLED;
             Logger.getLogger(SSHAgent.class.getName()).log(Level.FINE, "Sign operation cancelled on HW.");
+        } finally {
+            writeAuditRecord(sshSigNamespace != null ? AuditRecord.OPERATION_SSHSIG : AuditRecord.OPERATION_SIGN, outcome, start, keyInBytes, auditUser, auditTarget);
         }
     }
 
-    private int getResponseLength(List<PublicKeyDTO> certs) {
-        int length = 4 + 1 + 4; // total length (1x int) + result code (1x byte) + no. of keys (1x int)
-        for (PublicKeyDTO i : certs) {
-            length += 4;
-            length += i.getbPublicKey().length;
-            length += 4;
-            length += i.getbComment().length;
+    private void writeAuditRecord(byte operation, byte outcome, long startNanos, byte[] keyBlob, String user, String target) {
+        AuditJournal journal = TrayProcess.auditJournal;
+        if (journal == null) {
+            return; // journal disabled
         }
-        return length;
-    }
-
-    private ByteBuffer writeCertificatesToFrame(List<PublicKeyDTO> certs, byte resultCode) {
-        int responseLength = getResponseLength(certs);
-        ByteBuffer ret = ByteBuffer.allocate(responseLength);
-        ret.put(AgentUtils.frameArray(writeCertificatesToArray(certs, resultCode, responseLength - 4)));
-        return ret;
-    }
-
-    private byte[] writeCertificatesToArray(List<PublicKeyDTO> certs, byte resultCode, int frameLength) {
-        ByteBuffer ret = ByteBuffer.allocate(frameLength);
-
-        ret.put(resultCode);
-        if (!certs.isEmpty()) {
-            ret.putInt(certs.size()); // number of keys (not byte size)
-            for (PublicKeyDTO i : certs) {
-                ret.put(AgentUtils.frameArray(i.getbPublicKey()));
-                ret.put(AgentUtils.frameArray(i.getbComment()));
-            }
+        int latency = (int) ((System.nanoTime() - startNanos) / 1000000);
+        byte[] fingerprint = keyBlob == null ? null : Sha256Hash.hash(keyBlob);
+        try {
+            journal.append(new AuditRecord(System.currentTimeMillis(), operation, outcome, latency, fingerprint, user, target));
+        } catch (IOException ex) {
+            Logger.getLogger(SSHAgent.class.getName()).log(Level.WARNING, "Audit record not written", ex);
         }
-        return ret.array();
     }
 
     private void initCoreClasses() throws Exception {
@@ -369,20 +594,30 @@ public class SSHAgent implements WindowProc {
 
         //TrayProcess.deviceService.getWallet().disconnect();
         //TrayProcess.deviceService.getHardwareWalletService().stopAndWait();
-        TrayProcess.deviceService.getClient().softDetach();
+        for (DeviceService device : TrayProcess.deviceServices) {
+            device.detach();
+        }
+        if (TrayProcess.gpgAgent != null) {
+            TrayProcess.gpgAgent.close();
+        }
+        TrayProcess.softwareKeys.shutdown(); // zero private keys
+        if (TrayProcess.certificateStore != null) {
+            TrayProcess.certificateStore.close();
+        }
+        if (TrayProcess.upstreamAgent != null) {
+            TrayProcess.upstreamAgent.close();
+        }
     }
 
-    private byte[] unframeUsernameFromChallengeBytes(byte[] challengeData) {
-        byte[] username;
-
-        ByteBuffer bb = ByteBuffer.wrap(challengeData, 0, challengeData.length);
-        int dataLength = bb.getInt(0); // = should be 32 bytes, random data generated on SSH server side      
-        bb.position(4 + dataLength + 4 + 1); // forward buffer to position where username frame starts
-        int userNameLength = bb.getInt(4 + dataLength + 1); // determine the length of username
-        username = new byte[userNameLength];
-        bb.get(username, 0, userNameLength);
-
-        return username;
+    /*
+     * Label of the device that signed with the key
+     */
+    private String getDeviceLabel(byte[] keyBlob) {
+        SSHPublicKey key = TrayProcess.identityIndex.lookup(keyBlob);
+        if (key != null && key.getOwner() != null) {
+            return key.getOwner().getDevice().getDeviceLabel();
+        }
+        return TrayProcess.deviceService.getDeviceLabel();
     }
 
     private String unframeKeyTypeFromProvidedSSHKey(byte[] sshKey) {
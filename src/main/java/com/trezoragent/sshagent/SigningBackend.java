@@ -0,0 +1,75 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import java.util.List;
+
+/**
+ * <p>
+ * Device operations used by agent core (DeviceWrapper, GUI, session timer).
+ * Returned by SigningBackendProvider. Implementations extend DeviceService,
+ * which turns device answers into state events (ready, PIN entry, public key,
+ * signed identity, operation failed) and hands results over in async key and
+ * sign data.</p>
+ *
+ * <p>
+ * Operations are asynchronous, caller checks out async data before the
+ * request and waits for it.</p>
+ *
+ * @author martin.lizner
+ */
+public interface SigningBackend {
+
+    /**
+     * @return device label, e.g. name set by user on the device
+     */
+    String getDeviceLabel();
+
+    /**
+     * @param curveName nist256p1 or ed25519
+     * @return True if backend can derive keys and sign on the curve
+     */
+    boolean supportsCurve(String curveName);
+
+    /**
+     * @return keys kept on the backend (e.g. token objects), null when keys
+     * are derived from configured URI, index and curve
+     */
+    List<KeyOwner> listStoredIdentities();
+
+    boolean isDeviceReady();
+
+    boolean isWalletPresent();
+
+    /**
+     * Derive public key, answer is delivered to async key data
+     *
+     * @param identity derivation parameters
+     */
+    void requestPublicKey(KeyOwner identity);
+
+    /**
+     * Sign challenge, answer (65 bytes) is delivered to async sign data
+     *
+     * @param owner derivation parameters of signing key
+     * @param challengeHidden data to sign
+     * @param challengeVisual text displayed to user for confirmation
+     */
+    void requestSign(KeyOwner owner, byte[] challengeHidden, String challengeVisual);
+
+    void requestCancel();
+
+    ReadDeviceData<SSHPublicKey> checkoutAsyncKeyData();
+
+    ReadDeviceData<byte[]> checkoutAsyncSignData();
+
+    /**
+     * Forget PIN and passphrase, next operation asks for them again
+     */
+    void clearSession();
+
+    /**
+     * Release the device on agent exit
+     */
+    void detach();
+}
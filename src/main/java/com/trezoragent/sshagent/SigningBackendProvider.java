@@ -0,0 +1,42 @@
+package com.trezoragent.sshagent;
+
+import java.util.Properties;
+
+/**
+ * <p>
+ * Service provider of a signing backend, discovered by ServiceLoader from
+ * META-INF/services/com.trezoragent.sshagent.SigningBackendProvider</p>
+ *
+ * <p>
+ * Provider must have public no-arg constructor and must not touch the device
+ * until start() is called, all providers on class path are instantiated when
+ * backend is looked up.</p>
+ *
+ * <p>
+ * Started backend extends DeviceService, which turns device answers into
+ * agent state and does not depend on multibit-hardware. Only Trezor and
+ * KeepKey backends use multibit, through UsbDeviceService.</p>
+ *
+ * @author martin.lizner
+ */
+public interface SigningBackendProvider {
+
+    /**
+     * @return name used in DEVICE setting, e.g. trezor
+     */
+    String getName();
+
+    /**
+     * @return device type displayed to user, e.g. Trezor
+     */
+    String getLabel();
+
+    /**
+     * @param settings agent settings, backend specific options may be read
+     * @param instance 0 for the first backend of this provider in DEVICE list,
+     * 1 for the second one etc., e.g. to pick another device or slot
+     * @return started backend, instance of DeviceService
+     * @throws IllegalStateException if provider cannot start another instance
+     */
+    SigningBackend start(Properties settings, int instance);
+}
@@ -0,0 +1,57 @@
+package com.trezoragent.sshagent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+/**
+ * Lookup of signing backend providers available on class path
+ *
+ * @author martin.lizner
+ */
+public class SigningBackends {
+
+    /**
+     * @return all providers in class path order
+     */
+    public static List<SigningBackendProvider> list() {
+        List<SigningBackendProvider> ret = new ArrayList<>();
+        for (SigningBackendProvider provider : ServiceLoader.load(SigningBackendProvider.class)) {
+            ret.add(provider);
+        }
+        return ret;
+    }
+
+    /**
+     * @param name DEVICE setting value, case insensitive
+     * @return provider or null if none has the name
+     */
+    public static SigningBackendProvider find(String name) {
+        for (SigningBackendProvider provider : ServiceLoader.load(SigningBackendProvider.class)) {
+            if (provider.getName().equalsIgnoreCase(name.trim())) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param provider provider of the backend
+     * @param settings agent settings
+     * @param instance see SigningBackendProvider.start
+     * @return started backend
+     * @throws IllegalStateException if backend cannot be started or does not
+     * extend DeviceService
+     */
+    public static DeviceService start(SigningBackendProvider provider, Properties settings, int instance) {
+        SigningBackend backend = provider.start(settings, instance);
+        if (!(backend instanceof DeviceService)) {
+            if (backend != null) {
+                backend.detach();
+            }
+            throw new IllegalStateException("Backend " + provider.getName() + " does not extend DeviceService");
+        }
+        return (DeviceService) backend;
+    }
+}
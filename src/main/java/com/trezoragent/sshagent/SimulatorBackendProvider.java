@@ -0,0 +1,27 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.Properties;
+
+/**
+ * Software device for tests, see SimulatorService
+ *
+ * @author martin.lizner
+ */
+public class SimulatorBackendProvider implements SigningBackendProvider {
+
+    @Override
+    public String getName() {
+        return AgentConstants.SETTINGS_SIMULATOR_DEVICE;
+    }
+
+    @Override
+    public String getLabel() {
+        return AgentConstants.SIMULATOR_LABEL;
+    }
+
+    @Override
+    public SigningBackend start(Properties settings, int instance) {
+        return SimulatorService.startSimulatorService(settings, instance);
+    }
+}
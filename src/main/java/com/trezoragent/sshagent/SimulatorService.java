@@ -0,0 +1,296 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.DerivationPaths;
+import com.trezoragent.utils.Ed25519;
+import com.trezoragent.utils.Slip10;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.util.BigIntegers;
+
+/**
+ * <p>
+ * Software device for load tests and benchmarks without hardware attached
+ * (DEVICE=simulator)</p>
+ *
+ * <p>
+ * Keys are derived from a seed in settings by SLIP-0013 path and SLIP-0010,
+ * as the device does, and answers go through the same event handlers as USB
+ * events: ready, PIN entry, public key, signed identity and operation failed.
+ * Every operation is answered on a single device thread after configured
+ * latency, sign operation waits also for simulated user confirmation. PIN
+ * entered in PIN pad is compared as is, there is no scrambled matrix.</p>
+ *
+ * <p>
+ * Seed is kept in settings file in plain text, never use simulator seed for
+ * real keys.</p>
+ *
+ * @author martin.lizner
+ */
+public final class SimulatorService extends DeviceService {
+
+    private static final X9ECParameters NISTP256_CURVE = NISTNamedCurves.getByName("P-256");
+    private static final ECDomainParameters NISTP256_DOMAIN = new ECDomainParameters(NISTP256_CURVE.getCurve(), NISTP256_CURVE.getG(), NISTP256_CURVE.getN(), NISTP256_CURVE.getH());
+
+    private final byte[] seed;
+    private final long latency;
+    private final long confirmDelay;
+    private final String pin;
+    private final ScheduledExecutorService deviceThread;
+
+    private boolean unlocked;
+    private Runnable waitingForPin; // operation requested while device was locked
+    private ScheduledFuture<?> pendingAnswer;
+    private volatile Semaphore confirmationStarted; // tests only, see holdConfirmation
+    private volatile CountDownLatch confirmationRelease;
+
+    /**
+     * @param seed BIP39 seed
+     * @param latency millis of every device round trip
+     * @param confirmDelay millis until simulated user confirms sign operation
+     * @param pin PIN asked once per session, null or empty for no PIN
+     */
+    public SimulatorService(byte[] seed, long latency, long confirmDelay, String pin) {
+        this.seed = seed.clone();
+        this.latency = latency;
+        this.confirmDelay = confirmDelay;
+        this.pin = (pin == null || pin.isEmpty()) ? null : pin;
+        this.unlocked = (this.pin == null);
+        this.deviceThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "simulator-device");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        deviceLabel = AgentConstants.SIMULATOR_LABEL;
+        asyncKeyData = new ReadDeviceData<SSHPublicKey>();
+        asyncSignData = new ReadDeviceData<byte[]>();
+
+        deviceThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onDeviceReady(AgentConstants.SIMULATOR_LABEL);
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+
+        Logger.getLogger(SimulatorService.class.getName()).log(Level.INFO, "Simulator Service Started, latency: {0} ms, confirm delay: {1} ms", new Object[]{latency, confirmDelay});
+    }
+
+    /**
+     * @param settings agent settings
+     * @param instance 0 for the first simulator, others get seed with
+     * instance number appended, so each simulated device has own keys
+     * @return started simulator
+     */
+    public static SimulatorService startSimulatorService(Properties settings, int instance) {
+        byte[] seed = Utils.HEX.decode(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_SIMULATOR_SEED, AgentConstants.SETTINGS_SIMULATOR_SEED).trim());
+        if (instance > 0) {
+            seed = Arrays.copyOf(seed, seed.length + 1);
+            seed[seed.length - 1] = (byte) instance;
+        }
+        long latency = Long.parseLong(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_SIMULATOR_LATENCY, AgentConstants.SETTINGS_SIMULATOR_LATENCY).trim());
+        long confirmDelay = Long.parseLong(AgentUtils.readSetting(settings, AgentConstants.SETTINGS_KEY_SIMULATOR_CONFIRM_DELAY, AgentConstants.SETTINGS_SIMULATOR_CONFIRM_DELAY).trim());
+        String pin = settings.getProperty(AgentConstants.SETTINGS_KEY_SIMULATOR_PIN);
+        return new SimulatorService(seed, latency, confirmDelay, pin);
+    }
+
+    @Override
+    public void requestPublicKey(final KeyOwner identity) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onPublicKey(derivePublicKey(identity));
+            }
+        }, latency);
+    }
+
+    @Override
+    public void requestSign(final KeyOwner owner, final byte[] challengeHidden, String challengeVisual) {
+        Logger.getLogger(SimulatorService.class.getName()).log(Level.FINE, "Simulator confirms: {0}", challengeVisual);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (awaitConfirmation()) {
+                    onSignedIdentity(sign(owner, challengeHidden));
+                }
+            }
+        }, latency + confirmDelay);
+    }
+
+    /**
+     * Sign operations wait on device thread as for user who did not confirm
+     * yet, so tests observe overlapping operations without timing
+     *
+     * @param started released once by every sign operation that starts
+     * waiting
+     * @param release confirms all waiting and later sign operations
+     */
+    void holdConfirmation(Semaphore started, CountDownLatch release) {
+        confirmationRelease = release; // assigned first, started is read first
+        confirmationStarted = started;
+    }
+
+    /*
+     * False when device was detached while waiting, operation is then not answered
+     */
+    private boolean awaitConfirmation() {
+        Semaphore started = confirmationStarted;
+        CountDownLatch release = confirmationRelease;
+        if (started == null) {
+            return true;
+        }
+        started.release();
+        try {
+            release.await();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void requestCancel() {
+        final OperationFailure failure;
+        if (waitingForPin != null) {
+            failure = OperationFailure.PIN_CANCELLED;
+            waitingForPin = null;
+        } else if (pendingAnswer != null && pendingAnswer.cancel(false)) {
+            failure = OperationFailure.ACTION_CANCELLED;
+        } else {
+            return; // nothing in progress
+        }
+        deviceThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                onOperationFailed(failure);
+            }
+        });
+    }
+
+    @Override
+    public boolean isDeviceReady() {
+        return !deviceThread.isShutdown();
+    }
+
+    @Override
+    public boolean isWalletPresent() {
+        return true;
+    }
+
+    @Override
+    public synchronized void clearSession() {
+        unlocked = (pin == null);
+    }
+
+    @Override
+    public void detach() {
+        deviceThread.shutdownNow();
+    }
+
+    @Override
+    protected void providePin(String enteredPin) {
+        Runnable operation;
+        boolean valid;
+        synchronized (this) {
+            operation = waitingForPin;
+            waitingForPin = null;
+            valid = pin.equals(enteredPin);
+            unlocked = valid;
+        }
+        if (!valid) {
+            deviceThread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onOperationFailed(OperationFailure.PIN_INVALID);
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+        } else if (operation != null) {
+            execute(operation, 0);
+        }
+    }
+
+    @Override
+    protected void providePassphrase(String passphrase) {
+        // simulator has no passphrase, seed is used as is
+    }
+
+    private synchronized void execute(final Runnable operation, long delay) {
+        if (!unlocked) {
+            waitingForPin = operation;
+            deviceThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPinEntry(); // PIN pad blocks the device thread, as the device does
+                }
+            });
+            return;
+        }
+        pendingAnswer = deviceThread.schedule(operation, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return public key in device format: 33 bytes compressed nistp256 point
+     * or 0x00 followed by 32 bytes ed25519 key
+     */
+    byte[] derivePublicKey(KeyOwner identity) {
+        byte[] privateKey = derivePrivateKey(identity);
+        if (AgentConstants.CURVE_NAME_ED25519.equals(identity.getCurveName())) {
+            byte[] ret = new byte[33];
+            System.arraycopy(Ed25519.publicKey(privateKey), 0, ret, 1, 32);
+            return ret;
+        }
+        return NISTP256_DOMAIN.getG().multiply(new BigInteger(1, privateKey)).getEncoded(true);
+    }
+
+    /**
+     * @return 65 bytes signature in device format, 0x00 header followed by
+     * r||s (SHA256 of challenge signed, GPG identity signs challenge as digest)
+     * or ed25519 signature (challenge signed)
+     */
+    byte[] sign(KeyOwner owner, byte[] challenge) {
+        byte[] privateKey = derivePrivateKey(owner);
+        byte[] ret = new byte[65];
+        if (AgentConstants.CURVE_NAME_ED25519.equals(owner.getCurveName())) {
+            System.arraycopy(Ed25519.sign(privateKey, challenge), 0, ret, 1, 64);
+            return ret;
+        }
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())); // deterministic k, RFC 6979
+        signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, privateKey), NISTP256_DOMAIN));
+        byte[] digest = AgentConstants.GPG_URI_SCHEME.equals(owner.getIdentityUri().getScheme()) ? challenge : Sha256Hash.hash(challenge); // device signs GPG digest as is
+        BigInteger[] rs = signer.generateSignature(digest);
+        System.arraycopy(BigIntegers.asUnsignedByteArray(32, rs[0]), 0, ret, 1, 32);
+        System.arraycopy(BigIntegers.asUnsignedByteArray(32, rs[1]), 0, ret, 33, 32);
+        return ret;
+    }
+
+    private byte[] derivePrivateKey(KeyOwner identity) {
+        int[] path = DerivationPaths.get(identity.getIdentityUri(), identity.getIdentityIndex());
+        return Slip10.derivePrivateKey(identity.getCurveName(), seed, path);
+    }
+}
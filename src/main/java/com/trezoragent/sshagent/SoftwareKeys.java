@@ -0,0 +1,319 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.Ed25519;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.P256;
+import com.trezoragent.utils.SSHBufferReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bitcoinj.core.Sha256Hash;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.util.BigIntegers;
+
+/**
+ * <p>
+ * Software keys added by ssh-add (SSH2_AGENTC_ADD_IDENTITY), e.g. short-lived
+ * keys of batch jobs that sign too often for confirmation on device</p>
+ *
+ * <p>
+ * Only ecdsa-sha2-nistp256 and ssh-ed25519 keys are accepted. Private key is
+ * kept in direct buffer outside of Java heap, so garbage collector never
+ * copies it, and the buffer is overwritten by zeroes when key is removed or
+ * its lifetime (ssh-add -t) expires. Ed25519 signing works on zeroed arrays
+ * only. Nistp256 scalar passes through spongycastle BigInteger (when added and
+ * on each sign), such copies are immutable and stay on heap until garbage
+ * collected.</p>
+ *
+ * <p>
+ * Signing runs on own CPU bound pool and never takes device operation lock.
+ * Pageant requests are still answered one by one on the window thread, so
+ * software sign request that comes while a device sign waits for
+ * confirmation is answered after it.</p>
+ *
+ * @author martin.lizner
+ */
+public class SoftwareKeys {
+
+    private static final X9ECParameters NISTP256_CURVE = NISTNamedCurves.getByName("P-256");
+    private static final ECDomainParameters NISTP256_DOMAIN = new ECDomainParameters(NISTP256_CURVE.getCurve(), NISTP256_CURVE.getG(), NISTP256_CURVE.getN(), NISTP256_CURVE.getH());
+    private static final int PRIVATE_KEY_LENGTH = 32;
+
+    private final Map<String, SoftwareKey> keys = new LinkedHashMap<>(); // by fingerprint, in order of adding
+    private final ScheduledThreadPoolExecutor signers; // signatures and lifetime expiry
+
+    /**
+     * @param threads size of signing pool, e.g. number of CPUs
+     */
+    public SoftwareKeys(int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        signers = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "software-key-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        signers.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param request SSH2_AGENTC_ADD_IDENTITY or SSH2_AGENTC_ADD_ID_CONSTRAINED
+     * message without length prefix, caller should overwrite it after the call
+     * @return public key of added identity
+     * @throws IllegalArgumentException when key type or constraint is not
+     * supported or message is malformed
+     */
+    public SSHPublicKey add(byte[] request) {
+        SSHBufferReader reader = new SSHBufferReader(request);
+        byte type = reader.readByte();
+        String keyType = reader.readUTF8String();
+        byte[] blob;
+        String comment;
+        long lifetime = 0; // secs, 0 = until removed
+        ByteBuffer privateKey = ByteBuffer.allocateDirect(PRIVATE_KEY_LENGTH);
+        byte[] secret = null;
+        byte[] seed = new byte[PRIVATE_KEY_LENGTH];
+        try {
+            switch (keyType) {
+                case IdentityUtils.ED25519_KEY_PREFIX:
+                    byte[] publicKey = reader.readString();
+                    secret = reader.readString(); // seed || public key
+                    if (publicKey.length != Ed25519.PUBLIC_KEY_LENGTH || secret.length != PRIVATE_KEY_LENGTH + Ed25519.PUBLIC_KEY_LENGTH) {
+                        throw new IllegalArgumentException("Invalid ed25519 key length");
+                    }
+                    System.arraycopy(secret, 0, seed, 0, PRIVATE_KEY_LENGTH);
+                    if (!Arrays.equals(Ed25519.publicKey(seed), publicKey)) {
+                        throw new IllegalArgumentException("Public key does not match private key");
+                    }
+                    privateKey.put(seed);
+                    byte[] devicePublicKey = new byte[1 + Ed25519.PUBLIC_KEY_LENGTH]; // zero byte prefix as returned by device, key itself may start with zero
+                    System.arraycopy(publicKey, 0, devicePublicKey, 1, Ed25519.PUBLIC_KEY_LENGTH);
+                    blob = IdentityUtils.encodeSSHKeyBlobFromEd25519(devicePublicKey);
+                    break;
+                case IdentityUtils.NISTP256_KEY_PREFIX:
+                    if (!IdentityUtils.NISTP256_CURVE_NAME.equals(reader.readUTF8String())) {
+                        throw new IllegalArgumentException("Curve name does not match key type");
+                    }
+                    byte[] q = reader.readString();
+                    secret = reader.readString(); // mpint, may have leading zero byte
+                    BigInteger d = new BigInteger(1, secret); // immutable copy, cannot be zeroed
+                    if (d.signum() == 0 || d.compareTo(NISTP256_DOMAIN.getN()) >= 0) {
+                        throw new IllegalArgumentException("Invalid nistp256 private key");
+                    }
+                    ECPoint point = NISTP256_DOMAIN.getG().multiply(d).normalize();
+                    blob = P256.encodeSSHKeyBlob(P256.compress(point.getAffineXCoord().toBigInteger(), point.getAffineYCoord().toBigInteger()));
+                    if (!Arrays.equals(Arrays.copyOfRange(blob, blob.length - P256.UNCOMPRESSED_LENGTH, blob.length), q)) {
+                        throw new IllegalArgumentException("Public key does not match private key");
+                    }
+                    privateKey.put(BigIntegers.asUnsignedByteArray(PRIVATE_KEY_LENGTH, d));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported software key type: " + keyType);
+            }
+            comment = reader.readUTF8String();
+            while (type == AgentConstants.SSH2_AGENTC_ADD_ID_CONSTRAINED && reader.hasRemaining()) {
+                byte constraint = reader.readByte();
+                if (constraint != AgentConstants.SSH_AGENT_CONSTRAIN_LIFETIME) {
+                    throw new IllegalArgumentException("Unsupported key constraint: " + constraint); // e.g. confirmation, refuse rather than ignore
+                }
+                lifetime = reader.readInt() & 0xffffffffL;
+            }
+        } catch (IllegalArgumentException ex) {
+            zero(privateKey);
+            throw ex;
+        } finally {
+            if (secret != null) {
+                Arrays.fill(secret, (byte) 0);
+            }
+            Arrays.fill(seed, (byte) 0);
+        }
+
+        final SoftwareKey key = new SoftwareKey(new SSHPublicKey(blob, comment, null), keyType, privateKey);
+        synchronized (this) {
+            SoftwareKey replaced = keys.put(key.publicKey.getFingerprint(), key);
+            if (replaced != null) {
+                replaced.destroy(); // added again, e.g. with new lifetime
+            }
+            if (lifetime > 0) {
+                key.expiry = signers.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remove(key)) {
+                            Logger.getLogger(SoftwareKeys.class.getName()).log(Level.INFO, "Software key expired: {0}", key.publicKey);
+                        }
+                    }
+                }, lifetime, TimeUnit.SECONDS);
+            }
+        }
+        Logger.getLogger(SoftwareKeys.class.getName()).log(Level.INFO, "Software key added: {0}, lifetime: {1} s", new Object[]{key.publicKey, lifetime});
+        return key.publicKey;
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key
+     * @return false when key is not known
+     */
+    public boolean remove(byte[] keyBlob) {
+        SoftwareKey key;
+        synchronized (this) {
+            key = keys.get(IdentityUtils.fingerprintSHA256(keyBlob));
+        }
+        return key != null && remove(key);
+    }
+
+    public synchronized void removeAll() {
+        for (SoftwareKey key : keys.values()) {
+            key.destroy();
+        }
+        keys.clear();
+    }
+
+    public synchronized List<SSHPublicKey> getIdentities() {
+        List<SSHPublicKey> ret = new ArrayList<>(keys.size());
+        for (SoftwareKey key : keys.values()) {
+            ret.add(key.publicKey);
+        }
+        return ret;
+    }
+
+    public synchronized boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public synchronized SSHPublicKey lookup(byte[] keyBlob) {
+        SoftwareKey key = keys.get(IdentityUtils.fingerprintSHA256(keyBlob));
+        return key == null ? null : key.publicKey;
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key
+     * @param data data to sign, e.g. SSH userauth request
+     * @return signature in device format, 0x00 header followed by r||s or
+     * ed25519 signature, so it goes through the same checks as device answer
+     * @throws SignFailedException when key was removed or signing failed
+     */
+    public byte[] sign(byte[] keyBlob, final byte[] data) throws SignFailedException {
+        final SoftwareKey key;
+        synchronized (this) {
+            key = keys.get(IdentityUtils.fingerprintSHA256(keyBlob));
+        }
+        if (key == null) {
+            throw new SignFailedException("Software key not available: " + IdentityUtils.fingerprintSHA256(keyBlob));
+        }
+        Future<byte[]> signature = signers.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return key.sign(data);
+            }
+        });
+        try {
+            return signature.get(AgentConstants.SIGN_WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            throw new SignFailedException("Software key sign failed", ex.getCause());
+        } catch (InterruptedException | TimeoutException ex) {
+            signature.cancel(true);
+            throw new SignFailedException("Software key sign not finished", ex);
+        }
+    }
+
+    public void shutdown() {
+        removeAll();
+        signers.shutdownNow();
+    }
+
+    private boolean remove(SoftwareKey key) {
+        synchronized (this) {
+            if (!keys.remove(key.publicKey.getFingerprint(), key)) {
+                return false; // already removed or replaced
+            }
+        }
+        key.destroy();
+        return true;
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Key pair, private key is readable until destroyed
+     */
+    private static final class SoftwareKey {
+
+        final SSHPublicKey publicKey;
+        final String keyType;
+        private final ByteBuffer privateKey;
+        private boolean destroyed;
+        volatile ScheduledFuture<?> expiry;
+
+        SoftwareKey(SSHPublicKey publicKey, String keyType, ByteBuffer privateKey) {
+            this.publicKey = publicKey;
+            this.keyType = keyType;
+            this.privateKey = privateKey;
+        }
+
+        byte[] sign(byte[] data) throws SignFailedException {
+            byte[] secret = new byte[PRIVATE_KEY_LENGTH];
+            synchronized (this) {
+                if (destroyed) {
+                    throw new SignFailedException("Software key removed: " + publicKey);
+                }
+                privateKey.clear();
+                privateKey.get(secret);
+            }
+            try {
+                byte[] ret = new byte[65];
+                if (IdentityUtils.ED25519_KEY_PREFIX.equals(keyType)) {
+                    System.arraycopy(Ed25519.sign(secret, data), 0, ret, 1, Ed25519.SIGNATURE_LENGTH);
+                    return ret;
+                }
+                ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())); // deterministic k, RFC 6979
+                signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, secret), NISTP256_DOMAIN)); // BigInteger copy left to GC
+                BigInteger[] rs = signer.generateSignature(Sha256Hash.hash(data));
+                System.arraycopy(BigIntegers.asUnsignedByteArray(32, rs[0]), 0, ret, 1, 32);
+                System.arraycopy(BigIntegers.asUnsignedByteArray(32, rs[1]), 0, ret, 33, 32);
+                return ret;
+            } finally {
+                Arrays.fill(secret, (byte) 0);
+            }
+        }
+
+        synchronized void destroy() {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            zero(privateKey);
+            destroyed = true;
+        }
+    }
+}
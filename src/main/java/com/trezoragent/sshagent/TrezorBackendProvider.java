@@ -0,0 +1,27 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.Properties;
+
+/**
+ * Trezor over USB HID
+ *
+ * @author martin.lizner
+ */
+public class TrezorBackendProvider implements SigningBackendProvider {
+
+    @Override
+    public String getName() {
+        return AgentConstants.SETTINGS_TREZOR_DEVICE;
+    }
+
+    @Override
+    public String getLabel() {
+        return AgentConstants.TREZOR_LABEL;
+    }
+
+    @Override
+    public SigningBackend start(Properties settings, int instance) {
+        return TrezorService.startTrezorService();
+    }
+}
@@ -0,0 +1,278 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.SSHBufferReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Client of another SSH agent (e.g. Windows OpenSSH agent on named pipe
+ * \\.\pipe\openssh-ssh-agent) whose keys are offered next to device keys
+ * (UPSTREAM_AGENT)</p>
+ *
+ * <p>
+ * Identity list of upstream agent is cached for a short time, so merging it
+ * does not add a round trip to every identities request of SSH client. Sign
+ * requests for upstream keys are forwarded as they came and upstream answer is
+ * passed back unchanged, agent never sees upstream private keys. Connection is
+ * kept open between requests and opened again when upstream agent restarts.</p>
+ *
+ * <p>
+ * Requests come from Pageant window thread, so exchange runs on a worker
+ * thread and is abandoned after a timeout. Connection of an unanswered
+ * request is closed on another worker thread: on Windows, closing a named
+ * pipe channel waits until the read blocked on it returns, so the window
+ * thread never closes it nor interrupts the reading worker. The abandoned
+ * pipe is released once upstream agent answers or exits. This was verified
+ * with a stand-in channel that blocks close like Windows does, not against a
+ * stalled Windows pipe.</p>
+ *
+ * @author martin.lizner
+ */
+public class UpstreamAgent {
+
+    private static final int MAX_FRAME_LENGTH = AgentConstants.AGENT_MAX_MSGLEN;
+    private static final byte[] IDENTITIES_REQUEST = {0, 0, 0, 1, AgentConstants.SSH2_AGENTC_REQUEST_IDENTITIES};
+    private static final ExecutorService UPSTREAM_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "upstream-agent");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Opens connection to upstream agent
+     */
+    interface Connector {
+
+        ByteChannel open() throws IOException;
+    }
+
+    private final Connector connector;
+    private final long identitiesTtl;
+    private final long identitiesTimeout; // millis
+    private final long signTimeout; // millis, upstream agent may ask user to confirm
+    private final String address;
+
+    private ByteChannel channel;
+    private List<SSHPublicKey> identities = Collections.emptyList();
+    private long identitiesExpiry; // millis, identity list is requested again after
+
+    /**
+     * @param address named pipe (\\.\pipe\name) or other path opened as
+     * read/write file
+     * @param identitiesTtl millis for which upstream identity list is reused
+     */
+    public UpstreamAgent(final String address, long identitiesTtl) {
+        this(new Connector() {
+            @Override
+            public ByteChannel open() throws IOException {
+                return new RandomAccessFile(address, "rw").getChannel();
+            }
+        }, identitiesTtl, 1000L * AgentConstants.UPSTREAM_WAIT_TIMEOUT, 1000L * AgentConstants.SIGN_WAIT_TIMEOUT, address);
+    }
+
+    UpstreamAgent(Connector connector, long identitiesTtl, long identitiesTimeout, long signTimeout, String address) {
+        this.connector = connector;
+        this.identitiesTtl = identitiesTtl;
+        this.identitiesTimeout = identitiesTimeout;
+        this.signTimeout = signTimeout;
+        this.address = address;
+    }
+
+    /**
+     * @return keys of upstream agent, empty list when upstream agent is not
+     * available (failure is cached as well, so missing agent does not slow
+     * down every request)
+     */
+    public List<SSHPublicKey> getIdentities() {
+        return getIdentities(System.currentTimeMillis());
+    }
+
+    synchronized List<SSHPublicKey> getIdentities(long now) {
+        if (now < identitiesExpiry) {
+            return identities;
+        }
+        try {
+            identities = parseIdentities(transact(IDENTITIES_REQUEST, identitiesTimeout));
+            Logger.getLogger(UpstreamAgent.class.getName()).log(Level.FINE, "Upstream agent offers {0} key(s)", identities.size());
+        } catch (IOException ex) {
+            identities = Collections.emptyList();
+            Logger.getLogger(UpstreamAgent.class.getName()).log(Level.WARNING, "Upstream agent not available: " + address, ex);
+        }
+        identitiesExpiry = now + identitiesTtl;
+        return identities;
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key
+     * @return upstream key with the same blob or null
+     */
+    public SSHPublicKey lookup(byte[] keyBlob) {
+        return lookup(keyBlob, System.currentTimeMillis());
+    }
+
+    synchronized SSHPublicKey lookup(byte[] keyBlob, long now) {
+        ByteBuffer blob = ByteBuffer.wrap(keyBlob);
+        for (SSHPublicKey key : getIdentities(now)) {
+            if (ByteBuffer.wrap(key.getBlob()).equals(blob)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param request complete request frame including length prefix, e.g.
+     * SSH2_AGENTC_SIGN_REQUEST as sent by SSH client
+     * @return complete answer frame including length prefix
+     * @throws IOException when upstream agent is not available, does not
+     * answer in time or answer is malformed
+     */
+    public synchronized byte[] forward(byte[] request) throws IOException {
+        return transact(request, signTimeout);
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(UpstreamAgent.class.getName()).log(Level.FINE, "Upstream connection not closed", ex);
+            }
+            channel = null;
+        }
+    }
+
+    private byte[] transact(byte[] request, long timeout) throws IOException {
+        if (channel != null) {
+            try {
+                return exchange(request, timeout);
+            } catch (InterruptedIOException ex) { // no answer in time, reconnect would wait again
+                throw ex;
+            } catch (IOException ex) { // upstream agent restarted since last request, open connection fails on first use
+                Logger.getLogger(UpstreamAgent.class.getName()).log(Level.FINE, "Upstream connection lost, reconnecting", ex);
+            }
+        }
+        channel = connector.open();
+        return exchange(request, timeout);
+    }
+
+    private byte[] exchange(final byte[] request, long timeout) throws IOException {
+        final ByteChannel connection = channel;
+        Future<byte[]> answer = UPSTREAM_EXECUTOR.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return exchange(connection, request);
+            }
+        });
+        try {
+            return answer.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            answer.cancel(false); // interrupt would close the channel in this thread
+            abandon(); // connection is never reused
+            throw new InterruptedIOException("Upstream agent did not answer in " + timeout + " ms: " + address);
+        } catch (InterruptedException ex) {
+            answer.cancel(false);
+            abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upstream agent: " + address);
+        } catch (ExecutionException ex) {
+            close(); // connection state unknown, never reuse it
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Upstream exchange failed", ex.getCause());
+        }
+    }
+
+    /*
+     * Closes connection with unanswered request on a worker thread, close blocks while the worker reads
+     */
+    private void abandon() {
+        final ByteChannel connection = channel;
+        channel = null;
+        UPSTREAM_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(UpstreamAgent.class.getName()).log(Level.FINE, "Abandoned upstream connection not closed", ex);
+                }
+            }
+        });
+    }
+
+    private static byte[] exchange(ByteChannel channel, byte[] request) throws IOException {
+        writeFully(channel, request);
+        ByteBuffer length = readFully(channel, 4);
+        int frameLength = length.getInt(0);
+        if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH - 4) {
+            throw new IOException("Upstream answer has invalid length: " + frameLength);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + frameLength);
+        frame.put(length.array());
+        frame.put(readFully(channel, frameLength));
+        return frame.array();
+    }
+
+    private static List<SSHPublicKey> parseIdentities(byte[] frame) throws IOException {
+        try {
+            SSHBufferReader reader = new SSHBufferReader(frame, 4, frame.length - 4);
+            byte type = reader.readByte();
+            if (type != AgentConstants.SSH2_AGENT_IDENTITIES_ANSWER) {
+                throw new IOException("Upstream agent answered identities request with type: " + type);
+            }
+            int count = reader.readInt();
+            List<SSHPublicKey> ret = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                byte[] blob = reader.readString();
+                String comment = reader.readUTF8String();
+                ret.add(new SSHPublicKey(blob, comment, null)); // no owner, key lives in upstream agent
+            }
+            return Collections.unmodifiableList(ret);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Malformed upstream identities answer", ex);
+        }
+    }
+
+    private static void writeFully(ByteChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(ByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Upstream agent closed connection");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,193 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.eventbus.Subscribe;
+import com.trezoragent.exception.GetIdentitiesFailedException;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.multibit.hd.hardware.core.HardwareWalletClient;
+import org.multibit.hd.hardware.core.HardwareWalletService;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvent;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
+import org.multibit.hd.hardware.core.messages.Failure;
+import org.multibit.hd.hardware.core.messages.FailureType;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.messages.PinMatrixRequest;
+import org.multibit.hd.hardware.core.messages.PublicKey;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+
+/**
+ * <p>
+ * Common start of multibit-hardware USB devices (Trezor, KeepKey)</p>
+ *
+ * <p>
+ * Only one USB device can be served per agent, multibit events are delivered
+ * on a static event bus and do not tell which device sent them. Other devices
+ * may be served side by side through bridge. Multibit events are translated
+ * to DeviceService handlers here, operations delegate to multibit
+ * HardwareWalletService.</p>
+ *
+ * @author martin.lizner
+ */
+public abstract class UsbDeviceService extends DeviceService {
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    protected HardwareWalletService hardwareWalletService;
+    protected HardwareWalletClient client;
+
+    /**
+     * @param client client wrapping the USB hardware wallet
+     * @param defaultLabel device name used before real one is obtained from
+     * device
+     */
+    protected UsbDeviceService(HardwareWalletClient client, String defaultLabel) {
+        if (!STARTED.compareAndSet(false, true)) {
+            throw new IllegalStateException("Only one USB device is supported, use bridge for another Trezor");
+        }
+        this.client = client;
+        this.deviceLabel = defaultLabel;
+
+        // Wrap the client in a service for high level API suitable for downstream applications
+        hardwareWalletService = new HardwareWalletService(client);
+        hardwareWalletService.start();
+        HardwareWalletEvents.subscribe(this);
+
+        asyncKeyData = new ReadDeviceData<SSHPublicKey>();
+        asyncSignData = new ReadDeviceData<byte[]>();
+
+        Logger.getLogger(UsbDeviceService.class.getName()).log(Level.INFO, "{0} Service Started", defaultLabel);
+    }
+
+    public HardwareWalletService getHardwareWalletService() {
+        return hardwareWalletService;
+    }
+
+    public HardwareWalletClient getClient() {
+        return client;
+    }
+
+    /**
+     * <p>
+     * Downstream consumer applications should respond to hardware wallet
+     * events</p>
+     *
+     * @param event The hardware wallet event indicating a state change
+     */
+    @Subscribe
+    public void onHardwareWalletEvent(HardwareWalletEvent event) throws GetIdentitiesFailedException {
+        Logger.getLogger(UsbDeviceService.class.getName()).log(Level.INFO, "Received USB event: {0}", new Object[]{event.getEventType().name()});
+        Logger.getLogger(UsbDeviceService.class.getName()).log(Level.FINE, "Received USB event message: {0}", new Object[]{event.getMessage()});
+
+        switch (event.getEventType()) {
+            case SHOW_DEVICE_FAILED:
+                onDeviceFailed();
+                break;
+
+            case SHOW_DEVICE_DETACHED:
+                onDeviceDetached();
+                break;
+
+            case SHOW_DEVICE_READY:
+                onDeviceReady(((Features) event.getMessage().get()).getLabel());
+                break;
+
+            case SHOW_PIN_ENTRY:
+                // Device requires the current PIN to proceed
+                PinMatrixRequest request = (PinMatrixRequest) event.getMessage().get();
+                switch (request.getPinMatrixRequestType()) {
+                    case CURRENT:
+                        onPinEntry();
+                        break;
+                }
+                break;
+
+            case SHOW_PASSPHRASE_ENTRY:
+                // Device requires the current passphrase to proceed
+                onPassphraseEntry();
+                break;
+
+            case PUBLIC_KEY_FOR_IDENTITY:
+                // Successful identity public key
+                PublicKey pubKey = (PublicKey) event.getMessage().get();
+                onPublicKey(pubKey.getHdNodeType().get().getPublicKey().get());
+                break;
+
+            case SIGNED_IDENTITY:
+                // Successful identity signature
+                SignedIdentity signature = (SignedIdentity) event.getMessage().get();
+                onSignedIdentity(signature.getSignatureBytes().get());
+                break;
+
+            case SHOW_OPERATION_FAILED:
+                onOperationFailed(getOperationFailure(((Failure) event.getMessage().get()).getType()));
+                break;
+
+            default:
+            // Ignore
+        }
+    }
+
+    static OperationFailure getOperationFailure(FailureType failureType) {
+        switch (failureType) {
+            case PIN_INVALID:
+                return OperationFailure.PIN_INVALID;
+            case PIN_CANCELLED:
+                return OperationFailure.PIN_CANCELLED;
+            case ACTION_CANCELLED:
+                return OperationFailure.ACTION_CANCELLED;
+            case NOT_INITIALIZED:
+                return OperationFailure.NOT_INITIALIZED;
+            default:
+                return OperationFailure.OTHER;
+        }
+    }
+
+    @Override
+    public void requestPublicKey(KeyOwner identity) {
+        hardwareWalletService.requestPublicKeyForIdentity(identity.getIdentityUri(), identity.getIdentityIndex(), identity.getCurveName(), false);
+    }
+
+    @Override
+    public void requestSign(KeyOwner owner, byte[] challengeHidden, String challengeVisual) {
+        hardwareWalletService.signIdentity(new Identity(owner.getIdentityUri(), owner.getIdentityIndex(), challengeHidden, challengeVisual, owner.getCurveName()));
+    }
+
+    @Override
+    public void requestCancel() {
+        hardwareWalletService.requestCancel();
+    }
+
+    @Override
+    public boolean isDeviceReady() {
+        return hardwareWalletService.isDeviceReady();
+    }
+
+    @Override
+    public boolean isWalletPresent() {
+        return hardwareWalletService.isWalletPresent();
+    }
+
+    @Override
+    public void clearSession() {
+        client.clearSession();
+    }
+
+    @Override
+    public void detach() {
+        client.softDetach();
+    }
+
+    @Override
+    protected void providePin(String pin) {
+        hardwareWalletService.providePIN(pin);
+    }
+
+    @Override
+    protected void providePassphrase(String passphrase) {
+        hardwareWalletService.providePassphrase(passphrase);
+    }
+}
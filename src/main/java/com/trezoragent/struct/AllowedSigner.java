@@ -0,0 +1,120 @@
+package com.trezoragent.struct;
+
+import com.trezoragent.utils.IdentityUtils;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One line of OpenSSH allowed_signers file: principals allowed to sign with
+ * given key, optionally restricted to namespaces and validity interval
+ *
+ * @author martin.lizner
+ */
+public final class AllowedSigner {
+
+    private final List<String> principals;
+    private final List<String> namespaces;
+    private final Long validAfter;
+    private final Long validBefore;
+    private final byte[] keyBlob;
+    private final String fingerprint;
+    private final int lineNumber;
+
+    /**
+     * @param principals principal patterns, wildcards "*" and "?" and negation
+     * "!" are allowed
+     * @param namespaces allowed namespaces or null if not restricted
+     * @param validAfter epoch millis or null
+     * @param validBefore epoch millis or null
+     * @param keyBlob SSH wire encoded public key
+     * @param lineNumber line in allowed_signers file, used for reporting
+     */
+    public AllowedSigner(List<String> principals, List<String> namespaces, Long validAfter, Long validBefore, byte[] keyBlob, int lineNumber) {
+        this.principals = Collections.unmodifiableList(principals);
+        this.namespaces = namespaces == null ? null : Collections.unmodifiableList(namespaces);
+        this.validAfter = validAfter;
+        this.validBefore = validBefore;
+        this.keyBlob = keyBlob;
+        this.fingerprint = IdentityUtils.fingerprintSHA256(keyBlob);
+        this.lineNumber = lineNumber;
+    }
+
+    public List<String> getPrincipals() {
+        return principals;
+    }
+
+    public List<String> getNamespaces() {
+        return namespaces;
+    }
+
+    public byte[] getKeyBlob() {
+        return keyBlob.clone();
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public boolean allowsNamespace(String namespace) {
+        return namespaces == null || namespaces.contains(namespace);
+    }
+
+    public boolean isValidAt(long time) {
+        return (validAfter == null || time >= validAfter) && (validBefore == null || time <= validBefore);
+    }
+
+    /**
+     * @param principal e.g. e-mail of commit author
+     * @return True if principal matches the pattern list, negated match wins
+     */
+    public boolean matchesPrincipal(String principal) {
+        boolean matched = false;
+        for (String pattern : principals) {
+            if (pattern.startsWith("!")) {
+                if (matchesPattern(principal, pattern.substring(1))) {
+                    return false;
+                }
+            } else if (matchesPattern(principal, pattern)) {
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /*
+     * Glob match supporting "*" and "?", same as OpenSSH match_pattern()
+     */
+    public static boolean matchesPattern(String s, String pattern) {
+        int si = 0;
+        int pi = 0;
+        int starPi = -1;
+        int starSi = 0;
+        while (si < s.length()) {
+            if (pi < pattern.length() && (pattern.charAt(pi) == '?' || pattern.charAt(pi) == s.charAt(si))) {
+                si++;
+                pi++;
+            } else if (pi < pattern.length() && pattern.charAt(pi) == '*') {
+                starPi = pi++;
+                starSi = si;
+            } else if (starPi >= 0) {
+                pi = starPi + 1;
+                si = ++starSi;
+            } else {
+                return false;
+            }
+        }
+        while (pi < pattern.length() && pattern.charAt(pi) == '*') {
+            pi++;
+        }
+        return pi == pattern.length();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", principals) + " " + fingerprint + " (line " + lineNumber + ")";
+    }
+}
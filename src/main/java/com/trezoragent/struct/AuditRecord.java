@@ -0,0 +1,96 @@
+package com.trezoragent.struct;
+
+import java.util.Date;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * One entry of the audit journal: identity or sign operation, who asked for it
+ * and how it ended
+ *
+ * @author martin.lizner
+ */
+public final class AuditRecord {
+
+    public static final byte OPERATION_IDENTITIES = 1;
+    public static final byte OPERATION_SIGN = 2;
+    public static final byte OPERATION_SSHSIG = 3;
+    public static final byte OPERATION_ADD_IDENTITY = 4;
+    public static final byte OPERATION_REMOVE_IDENTITY = 5;
+    public static final byte OPERATION_PKSIGN = 6; // GPG sign
+
+    public static final byte OUTCOME_OK = 0;
+    public static final byte OUTCOME_FAILED = 1;
+    public static final byte OUTCOME_CANCELLED = 2;
+    public static final byte OUTCOME_TIMEOUT = 3;
+
+    public static final int FINGERPRINT_LENGTH = 32;
+
+    private static final String[] OPERATION_NAMES = {"?", "identities", "sign", "sshsig", "add", "remove", "pksign"};
+    private static final String[] OUTCOME_NAMES = {"ok", "failed", "cancelled", "timeout"};
+
+    private final long timestamp;
+    private final byte operation;
+    private final byte outcome;
+    private final int latencyMillis;
+    private final byte[] fingerprint;
+    private final String user;
+    private final String target;
+
+    /**
+     * @param timestamp epoch millis
+     * @param operation one of OPERATION_* constants
+     * @param outcome one of OUTCOME_* constants
+     * @param latencyMillis duration of the operation
+     * @param fingerprint raw SHA256 of SSH key blob, null for operations
+     * without key
+     * @param user user name from userauth request, GPG user id
+     * @param target userauth service or SSHSIG namespace, SSH agent protocol
+     * does not carry server host name
+     */
+    public AuditRecord(long timestamp, byte operation, byte outcome, int latencyMillis, byte[] fingerprint, String user, String target) {
+        this.timestamp = timestamp;
+        this.operation = operation;
+        this.outcome = outcome;
+        this.latencyMillis = latencyMillis;
+        this.fingerprint = fingerprint == null ? new byte[FINGERPRINT_LENGTH] : fingerprint;
+        this.user = user == null ? "" : user;
+        this.target = target == null ? "" : target;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte getOperation() {
+        return operation;
+    }
+
+    public byte getOutcome() {
+        return outcome;
+    }
+
+    public int getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        String b64 = Base64.toBase64String(fingerprint);
+        String operationName = operation > 0 && operation < OPERATION_NAMES.length ? OPERATION_NAMES[operation] : OPERATION_NAMES[0];
+        String outcomeName = outcome >= 0 && outcome < OUTCOME_NAMES.length ? OUTCOME_NAMES[outcome] : "?";
+        return new Date(timestamp) + " " + operationName + " " + outcomeName + " " + latencyMillis + "ms"
+                + " key=SHA256:" + b64.replace("=", "") + " user=" + user + " target=" + target;
+    }
+}
@@ -0,0 +1,112 @@
+package com.trezoragent.struct;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * One identity selection rule from settings file, ssh_config style:</p>
+ *
+ * <pre>
+ * RULE.10=Host *.prod.example.com !bastion.prod.example.com User deploy URI ssh://deploy@prod/connect INDEX 1 CURVE ed25519
+ * </pre>
+ *
+ * <p>
+ * Host patterns are matched as in ssh_config Host line, at least one positive
+ * pattern must match and no negated one. Missing User matches any user.
+ * Missing URI, INDEX and CURVE are taken from BIP32_URI, BIP32_INDEX and
+ * CURVE_NAME settings.</p>
+ *
+ * @author martin.lizner
+ */
+public final class IdentityRule {
+
+    private final int number;
+    private final List<String> hostPatterns;
+    private final String userPattern;
+    private final URI identityUri;
+    private final int identityIndex;
+    private final List<String> curveNames;
+
+    public IdentityRule(int number, List<String> hostPatterns, String userPattern, URI identityUri, int identityIndex, List<String> curveNames) {
+        this.number = number;
+        this.hostPatterns = Collections.unmodifiableList(hostPatterns);
+        this.userPattern = userPattern;
+        this.identityUri = identityUri;
+        this.identityIndex = identityIndex;
+        this.curveNames = Collections.unmodifiableList(curveNames);
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public List<String> getHostPatterns() {
+        return hostPatterns;
+    }
+
+    public String getUserPattern() {
+        return userPattern;
+    }
+
+    public URI getIdentityUri() {
+        return identityUri;
+    }
+
+    public int getIdentityIndex() {
+        return identityIndex;
+    }
+
+    public List<String> getCurveNames() {
+        return curveNames;
+    }
+
+    /**
+     * @return True if rule applies to any host, i.e. also when host is not
+     * known
+     */
+    public boolean matchesAnyHost() {
+        return hostPatterns.contains("*") && !hasNegatedHostPattern();
+    }
+
+    public boolean hasNegatedHostPattern() {
+        for (String pattern : hostPatterns) {
+            if (pattern.startsWith("!")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param host lower case host name
+     * @return True if host matches any negated pattern
+     */
+    public boolean excludesHost(String host) {
+        for (String pattern : hostPatterns) {
+            if (pattern.startsWith("!") && AllowedSigner.matchesPattern(host, pattern.substring(1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param user user name or null if not known
+     * @return True if rule applies to the user, unknown user matches only rule
+     * without user restriction
+     */
+    public boolean matchesUser(String user) {
+        if (userPattern == null || "*".equals(userPattern)) {
+            return true;
+        }
+        return user != null && AllowedSigner.matchesPattern(user, userPattern);
+    }
+
+    @Override
+    public String toString() {
+        return "RULE." + number + " Host " + String.join(" ", hostPatterns) + (userPattern != null ? " User " + userPattern : "")
+                + " URI " + identityUri + " INDEX " + identityIndex + " CURVE " + String.join(",", curveNames);
+    }
+}
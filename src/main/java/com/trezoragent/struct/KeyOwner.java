@@ -0,0 +1,67 @@
+package com.trezoragent.struct;
+
+import com.trezoragent.sshagent.DeviceService;
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * Immutable description of where a public key comes from: the device that
+ * derived it and the SLIP-0013 derivation parameters (URI, index, curve)
+ *
+ * @author martin.lizner
+ */
+public final class KeyOwner {
+
+    private final DeviceService device;
+    private final URI identityUri;
+    private final int identityIndex;
+    private final String curveName;
+
+    public KeyOwner(DeviceService device, URI identityUri, int identityIndex, String curveName) {
+        this.device = device;
+        this.identityUri = identityUri;
+        this.identityIndex = identityIndex;
+        this.curveName = curveName;
+    }
+
+    public DeviceService getDevice() {
+        return device;
+    }
+
+    public URI getIdentityUri() {
+        return identityUri;
+    }
+
+    public int getIdentityIndex() {
+        return identityIndex;
+    }
+
+    public String getCurveName() {
+        return curveName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyOwner)) {
+            return false;
+        }
+        KeyOwner other = (KeyOwner) o;
+        return device == other.device
+                && identityIndex == other.identityIndex
+                && Objects.equals(identityUri, other.identityUri)
+                && Objects.equals(curveName, other.curveName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(device, identityUri, identityIndex, curveName);
+    }
+
+    @Override
+    public String toString() {
+        return identityUri + "#" + identityIndex + " (" + curveName + ")";
+    }
+}
@@ -0,0 +1,114 @@
+package com.trezoragent.struct;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.utils.IdentityUtils;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * Immutable public key as derived by the device. Holds SSH wire encoded key
+ * blob together with derivation parameters and precomputed fingerprint, text
+ * forms are produced only on demand.
+ *
+ * @author martin.lizner
+ */
+public final class SSHPublicKey {
+
+    private final byte[] blob;
+    private final byte[] comment;
+    private final String keyType;
+    private final String fingerprint;
+    private final KeyOwner owner;
+
+    public SSHPublicKey(byte[] blob, String comment, KeyOwner owner) {
+        this.blob = blob.clone();
+        this.comment = (comment == null) ? new byte[0] : comment.getBytes(Charsets.UTF_8);
+        this.keyType = (blob.length > 4) ? IdentityUtils.readKeyType(blob) : null;
+        this.fingerprint = IdentityUtils.fingerprintSHA256(blob);
+        this.owner = owner;
+    }
+
+    /**
+     * @return copy of SSH wire encoded key blob
+     */
+    public byte[] getBlob() {
+        return blob.clone();
+    }
+
+    public int getBlobLength() {
+        return blob.length;
+    }
+
+    public String getComment() {
+        return new String(comment, Charsets.UTF_8);
+    }
+
+    /**
+     * @return SSH key type, e.g. ecdsa-sha2-nistp256
+     */
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return device and derivation parameters of this key
+     */
+    public KeyOwner getOwner() {
+        return owner;
+    }
+
+    public String getCurveName() {
+        return owner.getCurveName();
+    }
+
+    public URI getIdentityUri() {
+        return owner.getIdentityUri();
+    }
+
+    public int getIdentityIndex() {
+        return owner.getIdentityIndex();
+    }
+
+    /**
+     * @return length of this key entry in SSH2_AGENT_IDENTITIES_ANSWER
+     */
+    public int getIdentityFrameLength() {
+        return 4 + blob.length + 4 + comment.length;
+    }
+
+    /*
+     * Write key entry (string key blob, string comment) as used in SSH2_AGENT_IDENTITIES_ANSWER
+     */
+    public void writeIdentityFrame(ByteBuffer buffer) {
+        buffer.putInt(blob.length);
+        buffer.put(blob);
+        buffer.putInt(comment.length);
+        buffer.put(comment);
+    }
+
+    /**
+     * @param comment optional comment (null will be ignored)
+     * @return key in OpenSSH authorized_keys format
+     */
+    public String toOpenSSHString(String comment) {
+        StringBuilder openSSH = new StringBuilder();
+        openSSH.append(keyType);
+        openSSH.append(" ");
+        openSSH.append(Base64.toBase64String(blob));
+        if (comment != null) {
+            openSSH.append(" ");
+            openSSH.append(comment);
+        }
+        return openSSH.toString();
+    }
+
+    @Override
+    public String toString() {
+        return keyType + " " + fingerprint;
+    }
+}
@@ -0,0 +1,37 @@
+package com.trezoragent.struct;
+
+/**
+ * Parsed view of the SSHSIG signed data that "ssh-keygen -Y sign" asks the
+ * agent to sign (PROTOCOL.sshsig)
+ *
+ * @author martin.lizner
+ */
+public final class SSHSigRequest {
+
+    private final String namespace;
+    private final String hashAlgorithm;
+    private final byte[] messageHash;
+
+    public SSHSigRequest(String namespace, String hashAlgorithm, byte[] messageHash) {
+        this.namespace = namespace;
+        this.hashAlgorithm = hashAlgorithm;
+        this.messageHash = messageHash;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public byte[] getMessageHash() {
+        return messageHash.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "namespace=" + namespace + ", hash=" + hashAlgorithm;
+    }
+}
@@ -0,0 +1,55 @@
+package com.trezoragent.struct;
+
+/**
+ * Parsed SSHSIG signature as produced by "ssh-keygen -Y sign"
+ * (PROTOCOL.sshsig)
+ *
+ * @author martin.lizner
+ */
+public final class SSHSignature {
+
+    private final byte[] publicKey;
+    private final String namespace;
+    private final byte[] reserved;
+    private final String hashAlgorithm;
+    private final byte[] signature;
+
+    public SSHSignature(byte[] publicKey, String namespace, byte[] reserved, String hashAlgorithm, byte[] signature) {
+        this.publicKey = publicKey;
+        this.namespace = namespace;
+        this.reserved = reserved;
+        this.hashAlgorithm = hashAlgorithm;
+        this.signature = signature;
+    }
+
+    /*
+     * SSH wire encoded public key of signer
+     */
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public byte[] getReserved() {
+        return reserved.clone();
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /*
+     * SSH signature blob: string key type, string signature
+     */
+    public byte[] getSignature() {
+        return signature.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "namespace=" + namespace + ", hash=" + hashAlgorithm;
+    }
+}
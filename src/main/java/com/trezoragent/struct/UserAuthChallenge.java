@@ -0,0 +1,69 @@
+package com.trezoragent.struct;
+
+/**
+ * Parsed view of the SSH_MSG_USERAUTH_REQUEST data that SSH client asks the
+ * agent to sign (RFC 4252 section 7)
+ *
+ * @author martin.lizner
+ */
+public final class UserAuthChallenge {
+
+    private final byte[] sessionId;
+    private final String user;
+    private final String service;
+    private final String method;
+    private final String algorithm;
+    private final byte[] keyBlob;
+    private final byte[] hostKeyBlob; // null unless hostbound method
+
+    public UserAuthChallenge(byte[] sessionId, String user, String service, String method, String algorithm, byte[] keyBlob) {
+        this(sessionId, user, service, method, algorithm, keyBlob, null);
+    }
+
+    public UserAuthChallenge(byte[] sessionId, String user, String service, String method, String algorithm, byte[] keyBlob, byte[] hostKeyBlob) {
+        this.sessionId = sessionId;
+        this.user = user;
+        this.service = service;
+        this.method = method;
+        this.algorithm = algorithm;
+        this.keyBlob = keyBlob;
+        this.hostKeyBlob = hostKeyBlob;
+    }
+
+    public byte[] getSessionId() {
+        return sessionId.clone();
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public byte[] getKeyBlob() {
+        return keyBlob.clone();
+    }
+
+    /**
+     * @return SSH wire encoded host key of server the client authenticates
+     * to, null if challenge is not publickey-hostbound-v00@openssh.com
+     */
+    public byte[] getHostKeyBlob() {
+        return hostKeyBlob == null ? null : hostKeyBlob.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "user=" + user + ", service=" + service + ", method=" + method + ", algorithm=" + algorithm;
+    }
+}
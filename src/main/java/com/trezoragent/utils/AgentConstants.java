@@ -1,5 +1,7 @@
 package com.trezoragent.utils;
 
+import com.trezoragent.struct.SSHPublicKey;
+
 /**
  *
  * @author martin.lizner
@@ -27,17 +29,22 @@ public final class AgentConstants {
     public static final String CURVE_NAME_ED25519 = "ed25519";
     public static final String TREZOR_LABEL = "Trezor";
     public static final String KEEPKEY_LABEL = "KeepKey";
+    public static final String SIMULATOR_LABEL = "Simulator";
+    public static final String PKCS11_LABEL = "PKCS#11 token";
+    public static final String GPG_URI_SCHEME = "gpg"; // SLIP-0013 proto of GPG identities, device signs digest as is
 
     public static final String PIN_CANCELLED_MSG = "_PIN_CANCEL_"; // for pinpad
     public static final String PASSPHRASE_CANCELLED_MSG = "_PASSPHRASE_CANCEL_"; // for passphrase
     public static final byte[] SIGN_FAILED_BYTE = {(byte) 0x00}; // sign operation failed
     public static final byte[] SIGN_CANCELLED_BYTE = {(byte) 0x01}; // sign operation failed because user cancelled
-    public static final String GET_IDENTITIES_FAILED_STRING = "_FAILED_"; // for getpub operation
+    public static final SSHPublicKey GET_IDENTITIES_FAILED_PUBKEY = new SSHPublicKey(new byte[0], null, null); // for getpub operation
 
     public static final int PIN_WAIT_TIMEOUT = 120; //sec
     public static final int PASSPHRASE_WAIT_TIMEOUT = 120; //sec
     public static final int KEY_WAIT_TIMEOUT = 120; //sec
     public static final int SIGN_WAIT_TIMEOUT = 120; //sec
+    public static final int DEVICE_WAIT_TIMEOUT = 60; //sec, USB init may take 20-30 sec
+    public static final int UPSTREAM_WAIT_TIMEOUT = 5; //sec, upstream agent identities, sign requests use SIGN_WAIT_TIMEOUT
     public static final int ASYNC_CHECK_INTERVAL = 10; //ms    
 
     /*
@@ -48,11 +55,37 @@ public final class AgentConstants {
     public static final String SETTINGS_KEY_BIP32_INDEX = "BIP32_INDEX";
     public static final String SETTINGS_KEY_SESSION_TIMEOUT = "SESSION_TIMEOUT";
     public static final String SETTINGS_KEY_CURVE_NAME = "CURVE_NAME";
+    public static final String SETTINGS_KEY_AUDIT_JOURNAL_DIR = "AUDIT_JOURNAL_DIR";
+    public static final String SETTINGS_KEY_REJECTED_KEY_TTL = "REJECTED_KEY_TTL";
+    public static final String SETTINGS_KEY_SIMULATOR_SEED = "SIMULATOR_SEED";
+    public static final String SETTINGS_KEY_SIMULATOR_LATENCY = "SIMULATOR_LATENCY";
+    public static final String SETTINGS_KEY_SIMULATOR_CONFIRM_DELAY = "SIMULATOR_CONFIRM_DELAY";
+    public static final String SETTINGS_KEY_SIMULATOR_PIN = "SIMULATOR_PIN";
+    public static final String SETTINGS_KEY_PKCS11_LIBRARY = "PKCS11_LIBRARY";
+    public static final String SETTINGS_KEY_PKCS11_SLOT = "PKCS11_SLOT";
+    public static final String SETTINGS_KEY_PKCS11_PIN = "PKCS11_PIN";
+    public static final String SETTINGS_KEY_BRIDGE_URL = "BRIDGE_URL";
+    public static final String SETTINGS_KEY_UPSTREAM_AGENT = "UPSTREAM_AGENT";
+    public static final String SETTINGS_KEY_UPSTREAM_AGENT_TTL = "UPSTREAM_AGENT_TTL";
+    public static final String SETTINGS_KEY_CERTIFICATE_DIR = "CERTIFICATE_DIR";
+    public static final String SETTINGS_KEY_GPG_AGENT_SOCKET = "GPG_AGENT_SOCKET";
+    public static final String SETTINGS_KEY_GPG_USER_ID = "GPG_USER_ID";
+    public static final String SETTINGS_KEY_GPG_CURVE_NAME = "GPG_CURVE_NAME";
     public static final String SETTINGS_TREZOR_DEVICE = "trezor";
     public static final String SETTINGS_KEEPKEY_DEVICE = "keepkey";    
+    public static final String SETTINGS_SIMULATOR_DEVICE = "simulator";
+    public static final String SETTINGS_PKCS11_DEVICE = "pkcs11";
+    public static final String SETTINGS_BRIDGE_DEVICE = "bridge";
     public static final String SETTINGS_BIP32_SSHURI = "ssh://btc.rulez/connect";
     public static final String SETTINGS_BIP32_INDEX = "0";
     public static final String SETTINGS_SESSION_TIMEOUT = "60"; //mins
+    public static final String SETTINGS_REJECTED_KEY_TTL = "0"; //secs, 0 = rejected keys are still offered
+    public static final String SETTINGS_SIMULATOR_SEED = "000102030405060708090a0b0c0d0e0f"; // SLIP-0010 test seed, never use for real keys
+    public static final String SETTINGS_SIMULATOR_LATENCY = "0"; //ms per device round trip
+    public static final String SETTINGS_SIMULATOR_CONFIRM_DELAY = "0"; //ms until simulated user confirms sign
+    public static final String SETTINGS_PKCS11_SLOT = "0"; // index in slot list
+    public static final String SETTINGS_BRIDGE_URL = "http://127.0.0.1:21325"; // Trezor Bridge default
+    public static final String SETTINGS_UPSTREAM_AGENT_TTL = "5"; //secs, upstream identity list is reused
 
     /*
      * Logger and local settings
@@ -65,6 +98,7 @@ public final class AgentConstants {
     public static final String LOCALE_BUNDLES_PATH = "MessagesBundle";
     public static final String LOG_FILE_NAME = "Trezor_Agent.log"; // + change path in logger.properties
     public static final String SETTINGS_FILE_NAME = "Trezor_Agent.properties";
+    public static final String AUDIT_JOURNAL_DIR_NAME = "Trezor_Agent_journal";
 
     public static String MUTEX_NAME = "Trezor_Agent_Mutex"; // mutex for installer - correlates with instaler.iss
     public static final String VERSION = "1.0.4-SNAPSHOT"; // global version, pom.xml
@@ -95,9 +129,16 @@ public final class AgentConstants {
      */
     public static final byte SSH2_AGENTC_REQUEST_IDENTITIES = 11;
     public static final byte SSH2_AGENT_SIGN_RESPONSE = 14;
+    public static final byte SSH2_AGENTC_ADD_IDENTITY = 17;
+    public static final byte SSH2_AGENTC_REMOVE_IDENTITY = 18;
+    public static final byte SSH2_AGENTC_REMOVE_ALL_IDENTITIES = 19;
+    public static final byte SSH2_AGENTC_ADD_ID_CONSTRAINED = 25;
+    public static final byte SSH_AGENT_CONSTRAIN_LIFETIME = 1;
     /*
      * SSH-1 and OpenSSH SSH-2 protocol commons
      */
     public static final int SSH_AGENT_FAILURE = 5;
+    public static final byte SSH_AGENT_SUCCESS = 6;
     public static final int MY_WM_COPYDATA = 74;
+    public static final int AGENT_MAX_MSGLEN = 8192; // Pageant shared memory, length prefix included
 }
@@ -2,6 +2,7 @@ package com.trezoragent.utils;
 
 import com.trezoragent.gui.StartAgentGUI;
 import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.sshagent.DeviceService;
 import com.trezoragent.sshagent.DeviceWrapper;
 import java.awt.Image;
 import java.io.File;
@@ -55,15 +56,33 @@ public class AgentUtils {
         return icons;
     }
 
-    public static boolean checkDeviceAvailable() {
-        if (TrayProcess.deviceService.getHardwareWalletService().isDeviceReady()) {
-            if (TrayProcess.deviceService.getHardwareWalletService().isWalletPresent()) {
+    public static boolean checkDeviceAvailable(DeviceService device) {
+        if (device.isDeviceReady()) {
+            if (device.isWalletPresent()) {
                 return true;
             } else {
                 TrayProcess.createWarning(LocalizedLogger.getLocalizedMessage("WALLET_NOT_PRESENT_KEY"));
             }
         } else {
-            TrayProcess.createWarning(LocalizedLogger.getLocalizedMessage("DEVICE_NOT_READY_KEY", new Object[]{TrayProcess.deviceType}));
+            String deviceType = (device == TrayProcess.deviceService) ? TrayProcess.deviceType : device.getDeviceLabel();
+            TrayProcess.createWarning(LocalizedLogger.getLocalizedMessage("DEVICE_NOT_READY_KEY", new Object[]{deviceType}));
+        }
+        return false;
+    }
+
+    /**
+     * @param devices devices that can serve the operation
+     * @return true if at least one of devices is ready, user is warned about
+     * the first device when none is ready
+     */
+    public static boolean checkAnyDeviceAvailable(List<DeviceService> devices) {
+        for (DeviceService device : devices) {
+            if (device.isDeviceReady() && device.isWalletPresent()) {
+                return true;
+            }
+        }
+        if (!devices.isEmpty()) {
+            checkDeviceAvailable(devices.get(0)); // warns user
         }
         return false;
     }
@@ -97,6 +116,24 @@ public class AgentUtils {
         return property;
     }
 
+    /**
+     * @param settings settings properties
+     * @param key property key
+     * @param defaultValue value used when property is missing
+     * @return comma separated property value split to trimmed non-empty items,
+     * duplicates removed
+     */
+    public static List<String> readListSetting(Properties settings, String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : readSetting(settings, key, defaultValue).split(",")) {
+            String trimmed = value.trim();
+            if (!trimmed.isEmpty() && !values.contains(trimmed)) {
+                values.add(trimmed);
+            }
+        }
+        return values;
+    }
+
     public static void stopGUITimer() {
         // GUI workaround, TODO: replace timers and do-whiles with proper async messaging
         Timer timer = TrayProcess.deviceService.getTimer();
@@ -0,0 +1,94 @@
+package com.trezoragent.utils;
+
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.UserAuthChallenge;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Utility class to parse and check data that SSH client asks to sign</p>
+ *
+ * @author martin.lizner
+ */
+public class ChallengeUtils {
+
+    public static final byte SSH_MSG_USERAUTH_REQUEST = 50;
+    public static final String PUBLICKEY_METHOD = "publickey";
+    public static final String HOSTBOUND_METHOD = "publickey-hostbound-v00@openssh.com"; // OpenSSH 8.9+ with agent restrictions
+
+    /**
+     * <p>
+     * Parse SSH_MSG_USERAUTH_REQUEST signature data:</p>
+     * <pre>
+     * string    session identifier
+     * byte      SSH_MSG_USERAUTH_REQUEST
+     * string    user name
+     * string    service name
+     * string    "publickey" or "publickey-hostbound-v00@openssh.com"
+     * boolean   TRUE
+     * string    public key algorithm name
+     * string    public key to be used for authentication
+     * string    server host key (hostbound method only)
+     * </pre>
+     *
+     * @param challengeData data received in SSH2_AGENTC_SIGN_REQUEST
+     *
+     * @return parsed challenge
+     *
+     * @throws SignFailedException if data are not well formed publickey
+     * userauth request
+     */
+    public static UserAuthChallenge parseUserAuthChallenge(byte[] challengeData) throws SignFailedException {
+        try {
+            SSHBufferReader reader = new SSHBufferReader(challengeData);
+            byte[] sessionId = reader.readString();
+            byte messageType = reader.readByte();
+            if (messageType != SSH_MSG_USERAUTH_REQUEST) {
+                throw new SignFailedException("Challenge is not userauth request, message type: " + messageType);
+            }
+            String user = reader.readUTF8String();
+            String service = reader.readUTF8String();
+            String method = reader.readUTF8String();
+            if (!PUBLICKEY_METHOD.equals(method) && !HOSTBOUND_METHOD.equals(method)) {
+                throw new SignFailedException("Challenge contains unsupported userauth method: " + method);
+            }
+            if (!reader.readBoolean()) {
+                throw new SignFailedException("Challenge is a key query without signature flag.");
+            }
+            String algorithm = reader.readUTF8String();
+            byte[] keyBlob = reader.readString();
+            byte[] hostKeyBlob = HOSTBOUND_METHOD.equals(method) ? reader.readString() : null;
+            if (reader.hasRemaining()) {
+                throw new SignFailedException("Challenge contains " + reader.remaining() + " unexpected trailing bytes.");
+            }
+            return new UserAuthChallenge(sessionId, user, service, method, algorithm, keyBlob, hostKeyBlob);
+        } catch (IllegalArgumentException ex) {
+            throw new SignFailedException("Malformed challenge.", ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Check that challenge asks to authenticate with the same key and
+     * algorithm as given in agent sign request</p>
+     *
+     * @param challenge parsed challenge
+     * @param keyBlob SSH wire encoded public key from agent sign request
+     *
+     * @throws SignFailedException if challenge does not match the key
+     */
+    public static void checkChallengeMatchesKey(UserAuthChallenge challenge, byte[] keyBlob) throws SignFailedException {
+        String keyType;
+        try {
+            keyType = IdentityUtils.readKeyType(keyBlob);
+        } catch (IllegalArgumentException ex) {
+            throw new SignFailedException("Malformed public key in sign request.", ex);
+        }
+        if (!keyType.equals(challenge.getAlgorithm())) {
+            throw new SignFailedException("Challenge algorithm " + challenge.getAlgorithm() + " does not match key type " + keyType);
+        }
+        if (!Arrays.equals(keyBlob, challenge.getKeyBlob())) {
+            throw new SignFailedException("Challenge public key does not match key in sign request.");
+        }
+    }
+}
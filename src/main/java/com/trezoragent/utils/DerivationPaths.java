@@ -0,0 +1,208 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.struct.KeyOwner;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.bitcoinj.crypto.ChildNumber;
+
+/**
+ * <p>
+ * SLIP-0013 derivation paths (m/13'/A'/B'/C'/D') kept as primitive arrays</p>
+ *
+ * <p>
+ * Paths of identities used by the agent are memoized in a bounded LRU cache
+ * keyed by (URI, index). Batch methods compute thousands of paths in parallel
+ * for provisioning runs, preloaded batch is kept small enough not to evict
+ * all identities in use.</p>
+ *
+ * @author martin.lizner
+ * @see IdentityUtils#buildAddressN(URI, int)
+ */
+public class DerivationPaths {
+
+    public static final int PATH_LENGTH = 5;
+    private static final int SLIP13_PURPOSE = 13;
+    private static final int MAX_CACHED_PATHS = 1024;
+    public static final int MAX_PRELOADED_PATHS = MAX_CACHED_PATHS / 2;
+    private static final int SEQUENTIAL_THRESHOLD = 256; // one path costs ~µs, fork only large batches
+
+    private static final Map<PathKey, int[]> CACHE = new LinkedHashMap<PathKey, int[]>(64, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PathKey, int[]> eldest) {
+            return size() > MAX_CACHED_PATHS;
+        }
+    };
+
+    /**
+     * @param identityUri The identity URI
+     * @param index The index of the identity
+     *
+     * @return hardened path m/13'/A'/B'/C'/D', served from cache when possible
+     */
+    public static int[] get(URI identityUri, int index) {
+        PathKey key = new PathKey(identityUri.toASCIIString(), index);
+        int[] path;
+        synchronized (CACHE) {
+            path = CACHE.get(key);
+        }
+        if (path == null) {
+            path = compute(key.uri, index);
+            synchronized (CACHE) {
+                CACHE.put(key, path);
+            }
+        }
+        return path.clone(); // cached array must stay intact
+    }
+
+    /**
+     * @param identityUris identity URIs
+     * @param indexes index of identity for each URI
+     *
+     * @return paths in the same order as given URIs, not cached
+     */
+    public static int[][] computeBatch(List<URI> identityUris, int[] indexes) {
+        if (identityUris.size() != indexes.length) {
+            throw new IllegalArgumentException("Got " + identityUris.size() + " URIs and " + indexes.length + " indexes");
+        }
+        int[][] ret = new int[indexes.length][];
+        ForkJoinPool.commonPool().invoke(new BatchTask(identityUris, indexes, ret, 0, ret.length));
+        return ret;
+    }
+
+    /**
+     * @param identityUri The identity URI
+     * @param firstIndex first identity index
+     * @param count number of consecutive indexes
+     *
+     * @return paths for indexes firstIndex .. firstIndex + count - 1, not
+     * cached
+     */
+    public static int[][] computeRange(URI identityUri, int firstIndex, int count) {
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = firstIndex + i;
+        }
+        return computeBatch(Collections.nCopies(count, identityUri), indexes);
+    }
+
+    /**
+     * Computes paths of identities in parallel and caches them, so device
+     * answers are not delayed by path computation
+     *
+     * @param identities at most MAX_PRELOADED_PATHS identities about to be
+     * derived
+     */
+    public static void preload(List<KeyOwner> identities) {
+        if (identities.size() > MAX_PRELOADED_PATHS) {
+            throw new IllegalArgumentException("Preloaded batch over " + MAX_PRELOADED_PATHS + " paths: " + identities.size());
+        }
+        List<URI> uris = new ArrayList<>(identities.size());
+        int[] indexes = new int[identities.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            uris.add(identities.get(i).getIdentityUri());
+            indexes[i] = identities.get(i).getIdentityIndex();
+        }
+        int[][] paths = computeBatch(uris, indexes);
+        synchronized (CACHE) {
+            for (int i = 0; i < paths.length; i++) {
+                CACHE.put(new PathKey(uris.get(i).toASCIIString(), indexes[i]), paths[i]);
+            }
+        }
+    }
+
+    static int[] compute(String identityUri, int index) {
+        byte[] uriBytes = identityUri.getBytes(Charsets.UTF_8);
+
+        // SHA256(little endian index + URI)
+        MessageDigest sha256 = newSha256();
+        sha256.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(index).array());
+        sha256.update(uriBytes);
+        ByteBuffer hash = ByteBuffer.wrap(sha256.digest()).order(ByteOrder.LITTLE_ENDIAN);
+
+        // first 128 bits as four little endian numbers A, B, C, D, all hardened
+        int[] path = new int[PATH_LENGTH];
+        path[0] = SLIP13_PURPOSE | ChildNumber.HARDENED_BIT;
+        for (int i = 1; i < PATH_LENGTH; i++) {
+            path[i] = hash.getInt() | ChildNumber.HARDENED_BIT;
+        }
+        return path;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 is mandatory for every Java platform
+        }
+    }
+
+    private static final class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<URI> identityUris;
+        private final int[] indexes;
+        private final int[][] paths;
+        private final int from;
+        private final int to;
+
+        BatchTask(List<URI> identityUris, int[] indexes, int[][] paths, int from, int to) {
+            this.identityUris = identityUris;
+            this.indexes = indexes;
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    paths[i] = DerivationPaths.compute(identityUris.get(i).toASCIIString(), indexes[i]);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(identityUris, indexes, paths, from, middle), new BatchTask(identityUris, indexes, paths, middle, to));
+            }
+        }
+    }
+
+    private static final class PathKey {
+
+        private final String uri;
+        private final int index;
+
+        PathKey(String uri, int index) {
+            this.uri = uri;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            return index == other.index && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uri.hashCode() + index;
+        }
+    }
+}
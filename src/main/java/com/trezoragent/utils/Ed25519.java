@@ -0,0 +1,552 @@
+package com.trezoragent.utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Pure Java Ed25519 signature verification and signing (RFC 8032)</p>
+ *
+ * <p>
+ * Verification keeps points in extended twisted Edwards coordinates and
+ * computes [S]B - [k]A in one joint double-and-add pass. BigInteger
+ * arithmetic is not constant time, which is acceptable as verification only
+ * handles public data. Decoded public keys are cached, so repeated
+ * verification with the same identity skips point decompression.</p>
+ *
+ * <p>
+ * Signing handles the private key of device simulator and of software keys
+ * added by ssh-add. It follows TweetNaCl: field elements are 16 limbs of 16
+ * bits in long arrays, scalar multiplication is a Montgomery ladder with
+ * masked conditional swap and scalars are reduced mod L limb by limb, so no
+ * branch or memory access depends on secret bits. Secret intermediates live
+ * in arrays that are overwritten by zeroes before signing returns.</p>
+ *
+ * @author martin.lizner
+ */
+public class Ed25519 {
+
+    public static final int PUBLIC_KEY_LENGTH = 32;
+    public static final int SIGNATURE_LENGTH = 64;
+
+    private static final int MAX_CACHED_KEYS = 256;
+
+    static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(new BigInteger("27742317777372353535851937790883648493"));
+    static final BigInteger D = BigInteger.valueOf(-121665).multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+    static final BigInteger D2 = D.shiftLeft(1).mod(P);
+    static final BigInteger SQRT_M1 = BigInteger.valueOf(2).modPow(P.subtract(BigInteger.ONE).shiftRight(2), P);
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    static final Point IDENTITY = new Point(BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO);
+    static final Point BASE;
+
+    static {
+        BigInteger y = BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(P)).mod(P);
+        BASE = decodePoint(encodeInt(y)); // x is even (positive) for base point
+    }
+
+    private static final Map<ByteBuffer, Point> PUBLIC_KEYS = new ConcurrentHashMap<>();
+
+    /**
+     * <p>
+     * Verify Ed25519 signature</p>
+     *
+     * @param publicKey 32 bytes public key
+     * @param message signed message
+     * @param signature 64 bytes signature (R || S)
+     *
+     * @return True if the signature is valid
+     */
+    public static boolean verify(byte[] publicKey, byte[] message, byte[] signature) {
+        if (publicKey == null || publicKey.length != PUBLIC_KEY_LENGTH || signature == null || signature.length != SIGNATURE_LENGTH) {
+            return false;
+        }
+
+        Point a = getPublicKey(publicKey);
+        byte[] rBytes = Arrays.copyOfRange(signature, 0, 32);
+        Point r = decodePoint(rBytes);
+        BigInteger s = decodeInt(Arrays.copyOfRange(signature, 32, 64));
+        if (a == null || r == null || s.compareTo(L) >= 0) {
+            return false;
+        }
+
+        BigInteger k = decodeInt(sha512(rBytes, publicKey, message)).mod(L);
+
+        return doubleScalarMultiply(s, BASE, k, a.negate()).isEqual(r); // [S]B - [k]A == R
+    }
+
+    /**
+     * @param secretKey 32 bytes private key (RFC 8032 seed)
+     * @return 32 bytes public key
+     */
+    public static byte[] publicKey(byte[] secretKey) {
+        byte[] d = sha512(secretKey);
+        clamp(d);
+        long[][] p = newPoint();
+        scalarMultiplyBase(p, d);
+        byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+        pack(publicKey, p);
+        Arrays.fill(d, (byte) 0);
+        wipe(p);
+        return publicKey;
+    }
+
+    /**
+     * <p>
+     * Create Ed25519 signature in constant time</p>
+     *
+     * @param secretKey 32 bytes private key (RFC 8032 seed)
+     * @param message message to sign
+     *
+     * @return 64 bytes signature (R || S)
+     */
+    public static byte[] sign(byte[] secretKey, byte[] message) {
+        byte[] d = sha512(secretKey); // clamped scalar || nonce prefix
+        clamp(d);
+        long[][] p = newPoint();
+        scalarMultiplyBase(p, d);
+        byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+        pack(publicKey, p);
+
+        byte[] r = sha512(Arrays.copyOfRange(d, 32, 64), message);
+        reduce(r);
+        scalarMultiplyBase(p, r);
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        pack(signature, p);
+
+        byte[] k = sha512(Arrays.copyOf(signature, 32), publicKey, message);
+        reduce(k);
+        long[] x = new long[64]; // S = r + k * a mod L
+        for (int i = 0; i < 32; i++) {
+            x[i] = r[i] & 0xff;
+        }
+        for (int i = 0; i < 32; i++) {
+            for (int j = 0; j < 32; j++) {
+                x[i + j] += (k[i] & 0xff) * (long) (d[j] & 0xff);
+            }
+        }
+        modL(signature, 32, x);
+
+        Arrays.fill(d, (byte) 0);
+        Arrays.fill(r, (byte) 0);
+        Arrays.fill(x, 0);
+        wipe(p);
+        return signature;
+    }
+
+    private static void clamp(byte[] h) {
+        h[0] &= (byte) 0xf8;
+        h[31] &= 0x7f;
+        h[31] |= 0x40;
+    }
+
+    static byte[] encodePoint(Point p) {
+        BigInteger zInverse = p.z.modInverse(P);
+        BigInteger x = p.x.multiply(zInverse).mod(P);
+        BigInteger y = p.y.multiply(zInverse).mod(P);
+        byte[] encoded = encodeInt(y);
+        if (x.testBit(0)) {
+            encoded[31] |= (byte) 0x80;
+        }
+        return encoded;
+    }
+
+    private static Point getPublicKey(byte[] publicKey) {
+        ByteBuffer cacheKey = ByteBuffer.wrap(publicKey.clone());
+        Point a = PUBLIC_KEYS.get(cacheKey);
+        if (a == null) {
+            a = decodePoint(publicKey);
+            if (a == null) {
+                return null;
+            }
+            if (PUBLIC_KEYS.size() >= MAX_CACHED_KEYS) {
+                PUBLIC_KEYS.clear();
+            }
+            PUBLIC_KEYS.put(cacheKey, a);
+        }
+        return a;
+    }
+
+    /*
+     * Joint double-and-add (Shamir's trick), one doubling and one addition for each of 256 bits
+     */
+    static Point doubleScalarMultiply(BigInteger a, Point p, BigInteger b, Point q) {
+        Point[] table = {IDENTITY, p, q, p.add(q)};
+        Point result = IDENTITY;
+        for (int i = 255; i >= 0; i--) {
+            result = result.twice();
+            int index = (a.testBit(i) ? 1 : 0) | (b.testBit(i) ? 2 : 0);
+            result = result.add(table[index]);
+        }
+        return result;
+    }
+
+    /*
+     * Constant time arithmetic for signing, field element is long[16] of 16 bit limbs, point is {X, Y, Z, T}
+     */
+    private static final long[] GF_D2 = unpack(encodeInt(D2));
+    private static final long[] GF_BASE_X;
+    private static final long[] GF_BASE_Y;
+    private static final int[] L_BYTES = new int[32];
+
+    static {
+        BigInteger zInverse = BASE.z.modInverse(P);
+        GF_BASE_X = unpack(encodeInt(BASE.x.multiply(zInverse).mod(P)));
+        GF_BASE_Y = unpack(encodeInt(BASE.y.multiply(zInverse).mod(P)));
+        byte[] l = encodeInt(L);
+        for (int i = 0; i < 32; i++) {
+            L_BYTES[i] = l[i] & 0xff;
+        }
+    }
+
+    private static long[][] newPoint() {
+        return new long[4][16];
+    }
+
+    private static void wipe(long[][] point) {
+        for (long[] coordinate : point) {
+            Arrays.fill(coordinate, 0);
+        }
+    }
+
+    private static long[] unpack(byte[] n) {
+        long[] o = new long[16];
+        for (int i = 0; i < 16; i++) {
+            o[i] = (n[2 * i] & 0xff) + ((long) (n[2 * i + 1] & 0xff) << 8);
+        }
+        o[15] &= 0x7fff;
+        return o;
+    }
+
+    private static void carry(long[] o) {
+        for (int i = 0; i < 16; i++) {
+            o[i] += 1L << 16;
+            long c = o[i] >> 16;
+            if (i < 15) { // branch on limb index only
+                o[i + 1] += c - 1;
+            } else {
+                o[0] += 38 * (c - 1);
+            }
+            o[i] -= c << 16;
+        }
+    }
+
+    /*
+     * Swaps p and q when b is 1, leaves them when b is 0, without branch
+     */
+    private static void select(long[] p, long[] q, int b) {
+        long c = ~(b - 1L);
+        for (int i = 0; i < 16; i++) {
+            long t = c & (p[i] ^ q[i]);
+            p[i] ^= t;
+            q[i] ^= t;
+        }
+    }
+
+    private static void pack25519(byte[] o, int offset, long[] n) {
+        long[] t = n.clone();
+        long[] m = new long[16];
+        carry(t);
+        carry(t);
+        carry(t);
+        for (int j = 0; j < 2; j++) { // subtract p twice when not negative
+            m[0] = t[0] - 0xffed;
+            for (int i = 1; i < 15; i++) {
+                m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+                m[i - 1] &= 0xffff;
+            }
+            m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+            int b = (int) ((m[15] >> 16) & 1);
+            m[14] &= 0xffff;
+            select(t, m, 1 - b);
+        }
+        for (int i = 0; i < 16; i++) {
+            o[offset + 2 * i] = (byte) t[i];
+            o[offset + 2 * i + 1] = (byte) (t[i] >> 8);
+        }
+        Arrays.fill(t, 0);
+        Arrays.fill(m, 0);
+    }
+
+    private static void add(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] + b[i];
+        }
+    }
+
+    private static void subtract(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] - b[i];
+        }
+    }
+
+    private static void multiply(long[] o, long[] a, long[] b) {
+        long[] t = new long[31];
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++) {
+                t[i + j] += a[i] * b[j];
+            }
+        }
+        for (int i = 0; i < 15; i++) {
+            t[i] += 38 * t[i + 16]; // 2^256 = 38 mod p
+        }
+        System.arraycopy(t, 0, o, 0, 16);
+        carry(o);
+        carry(o);
+        Arrays.fill(t, 0);
+    }
+
+    /*
+     * Inverse by Fermat, a^(p-2) with fixed exponent
+     */
+    private static void invert(long[] o, long[] a) {
+        long[] c = a.clone();
+        for (int i = 253; i >= 0; i--) {
+            multiply(c, c, c);
+            if (i != 2 && i != 4) {
+                multiply(c, c, a);
+            }
+        }
+        System.arraycopy(c, 0, o, 0, 16);
+        Arrays.fill(c, 0);
+    }
+
+    /*
+     * p = p + q, unified addition formula also used for doubling
+     */
+    private static void addPoint(long[][] p, long[][] q) {
+        long[] a = new long[16], b = new long[16], c = new long[16], d = new long[16], t = new long[16];
+        long[] e = new long[16], f = new long[16], g = new long[16], h = new long[16];
+        subtract(a, p[1], p[0]);
+        subtract(t, q[1], q[0]);
+        multiply(a, a, t);
+        add(b, p[0], p[1]);
+        add(t, q[0], q[1]);
+        multiply(b, b, t);
+        multiply(c, p[3], q[3]);
+        multiply(c, c, GF_D2);
+        multiply(d, p[2], q[2]);
+        add(d, d, d);
+        subtract(e, b, a);
+        subtract(f, d, c);
+        add(g, d, c);
+        add(h, b, a);
+        multiply(p[0], e, f);
+        multiply(p[1], h, g);
+        multiply(p[2], g, f);
+        multiply(p[3], e, h);
+        for (long[] temporary : new long[][]{a, b, c, d, t, e, f, g, h}) {
+            Arrays.fill(temporary, 0);
+        }
+    }
+
+    private static void pack(byte[] r, long[][] p) {
+        long[] zInverse = new long[16], x = new long[16], y = new long[16];
+        invert(zInverse, p[2]);
+        multiply(x, p[0], zInverse);
+        multiply(y, p[1], zInverse);
+        pack25519(r, 0, y);
+        byte[] xBytes = new byte[32];
+        pack25519(xBytes, 0, x);
+        r[31] ^= (xBytes[0] & 1) << 7;
+        Arrays.fill(xBytes, (byte) 0);
+        Arrays.fill(zInverse, 0);
+        Arrays.fill(x, 0);
+        Arrays.fill(y, 0);
+    }
+
+    /*
+     * p = [s]B by Montgomery ladder over all 256 bits of little endian scalar s
+     */
+    private static void scalarMultiplyBase(long[][] p, byte[] s) {
+        long[][] q = newPoint();
+        System.arraycopy(GF_BASE_X, 0, q[0], 0, 16);
+        System.arraycopy(GF_BASE_Y, 0, q[1], 0, 16);
+        q[2][0] = 1;
+        multiply(q[3], GF_BASE_X, GF_BASE_Y);
+        wipe(p);
+        p[1][0] = 1; // neutral element (0, 1, 1, 0)
+        p[2][0] = 1;
+        for (int i = 255; i >= 0; i--) {
+            int b = (s[i >> 3] >> (i & 7)) & 1;
+            swap(p, q, b);
+            addPoint(q, p);
+            addPoint(p, p);
+            swap(p, q, b);
+        }
+        wipe(q);
+    }
+
+    private static void swap(long[][] p, long[][] q, int b) {
+        for (int i = 0; i < 4; i++) {
+            select(p[i], q[i], b);
+        }
+    }
+
+    /*
+     * r[offset..offset+32) = x mod L, x is 64 limbs of up to ~2^21, overwritten
+     */
+    private static void modL(byte[] r, int offset, long[] x) {
+        long carry;
+        for (int i = 63; i >= 32; i--) {
+            carry = 0;
+            int j;
+            for (j = i - 32; j < i - 12; j++) {
+                x[j] += carry - 16 * x[i] * L_BYTES[j - (i - 32)];
+                carry = (x[j] + 128) >> 8;
+                x[j] -= carry << 8;
+            }
+            x[j] += carry;
+            x[i] = 0;
+        }
+        carry = 0;
+        for (int j = 0; j < 32; j++) {
+            x[j] += carry - (x[31] >> 4) * L_BYTES[j];
+            carry = x[j] >> 8;
+            x[j] &= 255;
+        }
+        for (int j = 0; j < 32; j++) {
+            x[j] -= carry * L_BYTES[j];
+        }
+        for (int i = 0; i < 32; i++) {
+            x[i + 1] += x[i] >> 8;
+            r[offset + i] = (byte) (x[i] & 255);
+        }
+    }
+
+    /*
+     * Reduces 64 bytes little endian hash mod L into its first 32 bytes, rest is zeroed
+     */
+    private static void reduce(byte[] h) {
+        long[] x = new long[64];
+        for (int i = 0; i < 64; i++) {
+            x[i] = h[i] & 0xff;
+        }
+        Arrays.fill(h, (byte) 0);
+        modL(h, 0, x);
+        Arrays.fill(x, 0);
+    }
+
+    static byte[] sha512(byte[]... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-512");
+            for (byte[] part : parts) {
+                md.update(part);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-512 is mandatory for every Java platform
+        }
+    }
+
+    /*
+     * Little endian decoding as used by RFC 8032
+     */
+    static BigInteger decodeInt(byte[] bytes) {
+        byte[] be = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            be[i] = bytes[bytes.length - 1 - i];
+        }
+        return new BigInteger(1, be);
+    }
+
+    static byte[] encodeInt(BigInteger value) {
+        byte[] be = value.toByteArray();
+        byte[] le = new byte[32];
+        for (int i = 0; i < be.length && i < 32; i++) {
+            le[i] = be[be.length - 1 - i];
+        }
+        return le;
+    }
+
+    /**
+     * @param encoded 32 bytes point encoding
+     * @return decoded point or null if encoding is not valid curve point
+     */
+    static Point decodePoint(byte[] encoded) {
+        byte[] yBytes = encoded.clone();
+        int sign = (yBytes[31] >> 7) & 1;
+        yBytes[31] &= 0x7f;
+        BigInteger y = decodeInt(yBytes);
+        if (y.compareTo(P) >= 0) {
+            return null;
+        }
+
+        BigInteger y2 = y.multiply(y).mod(P);
+        BigInteger u = y2.subtract(BigInteger.ONE).mod(P);
+        BigInteger v = D.multiply(y2).add(BigInteger.ONE).mod(P);
+        BigInteger x2 = u.multiply(v.modInverse(P)).mod(P);
+
+        BigInteger x = x2.modPow(P.add(BigInteger.valueOf(3)).shiftRight(3), P);
+        if (!x.multiply(x).mod(P).equals(x2)) {
+            x = x.multiply(SQRT_M1).mod(P);
+        }
+        if (!x.multiply(x).mod(P).equals(x2)) {
+            return null;
+        }
+        if (x.signum() == 0 && sign == 1) {
+            return null;
+        }
+        if (x.testBit(0) != (sign == 1)) {
+            x = P.subtract(x);
+        }
+        return new Point(x, y, BigInteger.ONE, x.multiply(y).mod(P));
+    }
+
+    /**
+     * Point in extended coordinates (X:Y:Z:T), x = X/Z, y = Y/Z, x*y = T/Z
+     */
+    static final class Point {
+
+        final BigInteger x;
+        final BigInteger y;
+        final BigInteger z;
+        final BigInteger t;
+
+        Point(BigInteger x, BigInteger y, BigInteger z, BigInteger t) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.t = t;
+        }
+
+        Point add(Point q) {
+            BigInteger a = y.subtract(x).multiply(q.y.subtract(q.x)).mod(P);
+            BigInteger b = y.add(x).multiply(q.y.add(q.x)).mod(P);
+            BigInteger c = t.multiply(D2).multiply(q.t).mod(P);
+            BigInteger d = z.multiply(TWO).multiply(q.z).mod(P);
+            BigInteger e = b.subtract(a);
+            BigInteger f = d.subtract(c);
+            BigInteger g = d.add(c);
+            BigInteger h = b.add(a);
+            return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P), e.multiply(h).mod(P));
+        }
+
+        Point twice() {
+            BigInteger a = x.multiply(x).mod(P);
+            BigInteger b = y.multiply(y).mod(P);
+            BigInteger c = z.multiply(z).shiftLeft(1).mod(P);
+            BigInteger h = a.add(b);
+            BigInteger xy = x.add(y);
+            BigInteger e = h.subtract(xy.multiply(xy)).mod(P);
+            BigInteger g = a.subtract(b);
+            BigInteger f = c.add(g);
+            return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P), e.multiply(h).mod(P));
+        }
+
+        Point negate() {
+            return new Point(P.subtract(x).mod(P), y, z, P.subtract(t).mod(P));
+        }
+
+        boolean isEqual(Point q) {
+            return x.multiply(q.z).subtract(q.x.multiply(z)).mod(P).signum() == 0
+                    && y.multiply(q.z).subtract(q.y.multiply(z)).mod(P).signum() == 0;
+        }
+    }
+}
@@ -2,15 +2,14 @@ package com.trezoragent.utils;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import org.bitcoinj.core.Sha256Hash;
-import org.bitcoinj.crypto.ChildNumber;
 import org.spongycastle.jce.ECNamedCurveTable;
 import org.spongycastle.jce.ECPointUtil;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.jce.spec.ECNamedCurveParameterSpec;
 import org.spongycastle.jce.spec.ECNamedCurveSpec;
 import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
-import org.spongycastle.pqc.math.linearalgebra.LittleEndianConversions;
 import org.spongycastle.util.encoders.Base64;
 import java.net.URI;
 import java.nio.ByteBuffer;
@@ -38,6 +37,7 @@ public class IdentityUtils {
     static final byte[] OCTET30 = {(byte) 48};
     static final byte[] SSH2_AGENT_SIGN_RESPONSE_ARRAY = {AgentConstants.SSH2_AGENT_SIGN_RESPONSE};
     static final byte[] OCTET02 = {(byte) 2};
+    static final Provider PROVIDER = new BouncyCastleProvider(); // provider bootstrap is expensive, create it only once
 
     /**
      * <p>
@@ -68,35 +68,11 @@ public class IdentityUtils {
      *
      * @return The list representing the chain code (only a simple chain is
      * currently supported)
+     *
+     * @see DerivationPaths
      */
     public static List<Integer> buildAddressN(URI identityUri, int index) {
-
-        // Convert index to little endian (Java is big endian by default)
-        byte[] leIndex = LittleEndianConversions.I2OSP(index);
-
-        // Convert URI to bytes
-        byte[] identityUriBytes = identityUri.toASCIIString().getBytes(Charsets.UTF_8);
-
-        // Concatenate index and URI
-        byte[] canonicalBytes = ByteUtils.concatenate(leIndex, identityUriBytes);
-
-        // SHA256(canonical)
-        byte[] sha256CanonicalBytes = Sha256Hash.hash(canonicalBytes);
-
-        // Truncate to first 128 bits (16 bytes) of SHA256
-        byte[] truncatedSha256CanonicalBytes = ByteUtils.subArray(sha256CanonicalBytes, 0, 16);
-
-        // Extract A,B,C,D in little endian form
-        int[] abcdBytes = LittleEndianConversions.toIntArray(truncatedSha256CanonicalBytes);
-
-        // Build m/13'/a'/b'/c'/d'
-        return Lists.newArrayList(
-                13 | ChildNumber.HARDENED_BIT,
-                abcdBytes[0] | ChildNumber.HARDENED_BIT,
-                abcdBytes[1] | ChildNumber.HARDENED_BIT,
-                abcdBytes[2] | ChildNumber.HARDENED_BIT,
-                abcdBytes[3] | ChildNumber.HARDENED_BIT
-        );
+        return Lists.newArrayList(Ints.asList(DerivationPaths.get(identityUri, index))); // computed and memoized by DerivationPaths
     }
 
     /**
@@ -117,7 +93,7 @@ public class IdentityUtils {
     public static ECPublicKey decodeNISTP256PublicKeyFromBytes(byte[] pubKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
 
         ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("P-256");
-        KeyFactory kf = KeyFactory.getInstance("ECDSA", new BouncyCastleProvider());
+        KeyFactory kf = KeyFactory.getInstance("ECDSA", PROVIDER);
         ECNamedCurveSpec params = new ECNamedCurveSpec("P-256", spec.getCurve(), spec.getG(), spec.getN());
         ECPoint point = ECPointUtil.decodePoint(params.getCurve(), pubKey);
         ECPublicKeySpec pubKeySpec = new ECPublicKeySpec(point, params);
@@ -136,6 +112,18 @@ public class IdentityUtils {
      * key
      */
     public static String serializeSSHKeyFromNistp256(ECPublicKey publicKey) {
+        return Base64.toBase64String(encodeSSHKeyBlobFromNistp256(publicKey));
+    }
+
+    /**
+     * <p>
+     * Get an SSH wire encoded key blob from the EC public key</p>
+     *
+     * @param publicKey The ecdsa-sha2-nistp256 EC public key
+     *
+     * @return key blob (string key type, string curve name, string Q)
+     */
+    public static byte[] encodeSSHKeyBlobFromNistp256(ECPublicKey publicKey) {
 
         ByteBuffer buffer = ByteBuffer.allocate(104);
         buffer.putInt(NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8).length);
@@ -154,10 +142,24 @@ public class IdentityUtils {
         buffer.putInt(data.length);
         buffer.put(data);
 
-        return Base64.toBase64String(buffer.array());
+        return buffer.array();
     }
 
     public static String serializeSSHKeyFromEd25519(byte[] pubKey) {
+        String serializedKey = Base64.toBase64String(encodeSSHKeyBlobFromEd25519(pubKey));
+        return ED25519_KEY_PREFIX + " " + serializedKey;
+    }
+
+    /**
+     * <p>
+     * Get an SSH wire encoded key blob from the ed25519 public key as returned
+     * by device</p>
+     *
+     * @param pubKey The ed25519 public key, optionally prefixed with zero byte
+     *
+     * @return key blob (string key type, string key)
+     */
+    public static byte[] encodeSSHKeyBlobFromEd25519(byte[] pubKey) {
         byte[] pubKeyWorking = ByteUtils.clone(pubKey);
         if (pubKeyWorking[0] == 0x00) {
             pubKeyWorking = ByteUtils.subArray(pubKeyWorking, 1); //strip the first byte
@@ -165,9 +167,16 @@ public class IdentityUtils {
 
         byte[] keyTypeFrame = AgentUtils.frameArray(ED25519_KEY_PREFIX.getBytes(Charsets.UTF_8));
         byte[] pubKeyFrame = AgentUtils.frameArray(pubKeyWorking);
-        String serializedKey = Base64.toBase64String(ByteUtils.concatenate(keyTypeFrame, pubKeyFrame)); // easier than nistp256, we do not need to uncompress pubkey to x and y, we just send it compressed as device provided
+        return ByteUtils.concatenate(keyTypeFrame, pubKeyFrame); // easier than nistp256, we do not need to uncompress pubkey to x and y, we just send it compressed as device provided
+    }
 
-        return ED25519_KEY_PREFIX + " " + serializedKey;
+    /**
+     * @param keyBlob SSH wire encoded public key
+     * @return key type, i.e. the first string in the blob
+     * @throws IllegalArgumentException if blob is malformed
+     */
+    public static String readKeyType(byte[] keyBlob) {
+        return new SSHBufferReader(keyBlob).readUTF8String();
     }
 
     /**
@@ -215,7 +224,7 @@ public class IdentityUtils {
             throws NoSuchAlgorithmException, NoSuchProviderException,
             InvalidKeyException, SignatureException, InvalidKeySpecException {
 
-        Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA", new BouncyCastleProvider());
+        Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA", PROVIDER);
         ecdsaVerify.initVerify(decodeNISTP256PublicKeyFromBytes(pubKey));
         ecdsaVerify.update(message);
 
@@ -249,6 +258,24 @@ public class IdentityUtils {
         return AgentUtils.frameArray(SSH2_AGENT_SIGN_RESPONSE_ARRAY, dataArray);
     }
 
+    /**
+     * <p>
+     * Compute OpenSSH style SHA256 fingerprint of SSH public key blob</p>
+     *
+     * @param keyBlob SSH wire encoded public key (without key type prefix
+     * text)
+     *
+     * @return fingerprint in "SHA256:base64" format as printed by ssh-keygen
+     */
+    public static String fingerprintSHA256(byte[] keyBlob) {
+        String b64 = Base64.toBase64String(Sha256Hash.hash(keyBlob));
+        int end = b64.length();
+        while (end > 0 && b64.charAt(end - 1) == '=') {
+            end--; // ssh-keygen prints fingerprint without padding
+        }
+        return "SHA256:" + b64.substring(0, end);
+    }
+
     /*
     - First byte in return value is encoding type, SSH use "4" to signalize uncompressed POINT. (uncompressed means both X and Y are provided)
     - Doc: http://grepcode.com/file/repo1.maven.org/maven2/com.madgag/scprov-jdk15on/1.47.0.1/org/spongycastle/math/ec/ECCurve.java
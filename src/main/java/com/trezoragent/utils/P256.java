@@ -0,0 +1,165 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Point codec for NIST P-256 (secp256r1) public keys</p>
+ *
+ * <p>
+ * Curve parameters are kept as constants, device keys in compressed form (33
+ * bytes) are decompressed straight into the fixed-width uncompressed encoding
+ * (65 bytes) used by SSH, without going through JCA key objects.</p>
+ *
+ * @author martin.lizner
+ */
+public class P256 {
+
+    public static final int COMPRESSED_LENGTH = 33;
+    public static final int UNCOMPRESSED_LENGTH = 65;
+    public static final int SSH_KEY_BLOB_LENGTH = 104;
+
+    private static final int FIELD_LENGTH = 32;
+
+    static final BigInteger P = new BigInteger("ffffffff00000001000000000000000000000000ffffffffffffffffffffffff", 16);
+    static final BigInteger B = new BigInteger("5ac635d8aa3a93e7b3ebbd55769886bc651d06b0cc53b0f63bce3c3e27d2604b", 16);
+
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final BigInteger SQRT_EXPONENT = P.add(BigInteger.ONE).shiftRight(2); // p = 3 mod 4
+
+    private static final byte[] SSH_KEY_BLOB_HEADER = buildSSHKeyBlobHeader();
+
+    /**
+     * <p>
+     * Decompress P-256 point</p>
+     *
+     * @param compressed 33 bytes point (0x02 or 0x03 prefix and X), 65 bytes
+     * uncompressed point is accepted too
+     *
+     * @return 65 bytes uncompressed point (0x04 prefix, X and Y)
+     *
+     * @throws IllegalArgumentException If the encoding is not a valid curve
+     * point
+     */
+    public static byte[] decompress(byte[] compressed) {
+        byte[] ret = new byte[UNCOMPRESSED_LENGTH];
+        decompress(compressed, ret, 0);
+        return ret;
+    }
+
+    /**
+     * <p>
+     * Get SSH wire encoded ecdsa-sha2-nistp256 key blob from the device public
+     * key</p>
+     *
+     * @param compressed 33 bytes compressed public key as returned by device
+     *
+     * @return key blob (string key type, string curve name, string Q)
+     *
+     * @throws IllegalArgumentException If the encoding is not a valid curve
+     * point
+     */
+    public static byte[] encodeSSHKeyBlob(byte[] compressed) {
+        byte[] ret = new byte[SSH_KEY_BLOB_LENGTH];
+        System.arraycopy(SSH_KEY_BLOB_HEADER, 0, ret, 0, SSH_KEY_BLOB_HEADER.length);
+        decompress(compressed, ret, SSH_KEY_BLOB_HEADER.length);
+        return ret;
+    }
+
+    /**
+     * <p>
+     * Compress P-256 point into the form returned by device</p>
+     *
+     * @param x affine X
+     * @param y affine Y
+     *
+     * @return 33 bytes point (0x02 or 0x03 prefix and X)
+     *
+     * @throws IllegalArgumentException If the point is not on curve
+     */
+    public static byte[] compress(BigInteger x, BigInteger y) {
+        if (!isOnCurve(x, y)) {
+            throw new IllegalArgumentException("Invalid P-256 point, not on curve");
+        }
+        byte[] ret = new byte[COMPRESSED_LENGTH];
+        ret[0] = (byte) (y.testBit(0) ? 0x03 : 0x02);
+        writeFieldElement(x, ret, 1);
+        return ret;
+    }
+
+    public static boolean isOnCurve(BigInteger x, BigInteger y) {
+        if (x.signum() < 0 || x.compareTo(P) >= 0 || y.signum() < 0 || y.compareTo(P) >= 0) {
+            return false;
+        }
+        return y.multiply(y).mod(P).equals(curveRightSide(x));
+    }
+
+    private static void decompress(byte[] encoded, byte[] out, int offset) {
+        if (encoded == null) {
+            throw new IllegalArgumentException("Missing P-256 point");
+        }
+
+        BigInteger x;
+        BigInteger y;
+        if (encoded.length == COMPRESSED_LENGTH && (encoded[0] == 0x02 || encoded[0] == 0x03)) {
+            x = new BigInteger(1, slice(encoded, 1));
+            if (x.compareTo(P) >= 0) {
+                throw new IllegalArgumentException("Invalid P-256 point, X out of range");
+            }
+            BigInteger rhs = curveRightSide(x);
+            y = rhs.modPow(SQRT_EXPONENT, P);
+            if (!y.multiply(y).mod(P).equals(rhs)) {
+                throw new IllegalArgumentException("Invalid P-256 point, X is not on curve");
+            }
+            if (y.testBit(0) != (encoded[0] == 0x03)) {
+                y = P.subtract(y);
+            }
+        } else if (encoded.length == UNCOMPRESSED_LENGTH && encoded[0] == 0x04) {
+            x = new BigInteger(1, slice(encoded, 1));
+            y = new BigInteger(1, slice(encoded, 1 + FIELD_LENGTH));
+            if (!isOnCurve(x, y)) {
+                throw new IllegalArgumentException("Invalid P-256 point, not on curve");
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid P-256 point encoding, length: " + encoded.length);
+        }
+
+        out[offset] = 0x04; // uncompressed point marker
+        writeFieldElement(x, out, offset + 1);
+        writeFieldElement(y, out, offset + 1 + FIELD_LENGTH);
+    }
+
+    private static BigInteger curveRightSide(BigInteger x) {
+        return x.multiply(x).subtract(THREE).multiply(x).add(B).mod(P); // x^3 - 3x + b
+    }
+
+    private static byte[] slice(byte[] data, int offset) {
+        byte[] ret = new byte[FIELD_LENGTH];
+        System.arraycopy(data, offset, ret, 0, FIELD_LENGTH);
+        return ret;
+    }
+
+    /*
+     * Big endian, left padded to 32 bytes. BigInteger.toByteArray() may add sign byte or drop leading zeroes.
+     */
+    private static void writeFieldElement(BigInteger value, byte[] out, int offset) {
+        byte[] raw = value.toByteArray();
+        int length = Math.min(raw.length, FIELD_LENGTH);
+        System.arraycopy(raw, raw.length - length, out, offset + FIELD_LENGTH - length, length);
+    }
+
+    private static byte[] buildSSHKeyBlobHeader() {
+        byte[] keyType = IdentityUtils.NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8);
+        byte[] curveName = IdentityUtils.NISTP256_CURVE_NAME.getBytes(Charsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + keyType.length + 4 + curveName.length + 4);
+        buffer.putInt(keyType.length);
+        buffer.put(keyType);
+        buffer.putInt(curveName.length);
+        buffer.put(curveName);
+        buffer.putInt(UNCOMPRESSED_LENGTH); // length of Q, point data follows
+        return buffer.array();
+    }
+}
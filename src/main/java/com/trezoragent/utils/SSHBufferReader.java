@@ -0,0 +1,72 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounds checked reader of SSH wire encoded data (RFC 4251 section 5)
+ *
+ * @author martin.lizner
+ */
+public class SSHBufferReader {
+
+    private final ByteBuffer buffer;
+
+    public SSHBufferReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public SSHBufferReader(byte[] data, int offset, int length) {
+        buffer = ByteBuffer.wrap(data, offset, length);
+    }
+
+    public byte readByte() {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Malformed SSH data: byte expected at position " + buffer.position());
+        }
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readInt() {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Malformed SSH data: uint32 expected at position " + buffer.position());
+        }
+    }
+
+    /*
+     * Read length-prefixed string as raw bytes
+     */
+    public byte[] readString() {
+        int length = readInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed SSH data: string length " + length + " exceeds remaining " + buffer.remaining() + " bytes");
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    public String readUTF8String() {
+        return new String(readString(), Charsets.UTF_8);
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+}
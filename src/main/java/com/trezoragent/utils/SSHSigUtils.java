@@ -0,0 +1,212 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.SSHSigRequest;
+import com.trezoragent.struct.SSHSignature;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * <p>
+ * Utility class for SSHSIG signatures (ssh-keygen -Y sign / verify), e.g. git
+ * commit signing</p>
+ *
+ * <p>
+ * See https://github.com/openssh/openssh-portable/blob/master/PROTOCOL.sshsig
+ * for more details</p>
+ *
+ * @author martin.lizner
+ */
+public class SSHSigUtils {
+
+    public static final byte[] MAGIC_PREAMBLE = "SSHSIG".getBytes(Charsets.US_ASCII);
+    public static final int SIG_VERSION = 1;
+    public static final String HASH_SHA256 = "sha256";
+    public static final String HASH_SHA512 = "sha512";
+    public static final String BEGIN_SIGNATURE = "-----BEGIN SSH SIGNATURE-----";
+    public static final String END_SIGNATURE = "-----END SSH SIGNATURE-----";
+
+    private static final int ARMOR_LINE_LENGTH = 70; // same as ssh-keygen
+    private static final int SIGN_RESPONSE_HEADER_LENGTH = 4 + 1 + 4; // total length, response code, signature blob length
+
+    /**
+     * @param data data received in SSH2_AGENTC_SIGN_REQUEST
+     * @return True if data are SSHSIG signed data rather than userauth
+     * challenge
+     */
+    public static boolean isSSHSigData(byte[] data) {
+        return data != null && data.length >= MAGIC_PREAMBLE.length
+                && Arrays.equals(Arrays.copyOf(data, MAGIC_PREAMBLE.length), MAGIC_PREAMBLE);
+    }
+
+    /**
+     * <p>
+     * Parse SSHSIG signed data:</p>
+     * <pre>
+     * byte[6]   MAGIC_PREAMBLE
+     * string    namespace
+     * string    reserved
+     * string    hash_algorithm
+     * string    H(message)
+     * </pre>
+     *
+     * @param data data received in SSH2_AGENTC_SIGN_REQUEST
+     *
+     * @return parsed request
+     *
+     * @throws SignFailedException if data are not well formed SSHSIG signed
+     * data
+     */
+    public static SSHSigRequest parseSignedData(byte[] data) throws SignFailedException {
+        if (!isSSHSigData(data)) {
+            throw new SignFailedException("Data are not SSHSIG signed data.");
+        }
+        try {
+            SSHBufferReader reader = new SSHBufferReader(data, MAGIC_PREAMBLE.length, data.length - MAGIC_PREAMBLE.length);
+            String namespace = reader.readUTF8String();
+            reader.readString(); // reserved, ignored
+            String hashAlgorithm = reader.readUTF8String();
+            byte[] messageHash = reader.readString();
+            if (reader.hasRemaining()) {
+                throw new SignFailedException("SSHSIG data contain " + reader.remaining() + " unexpected trailing bytes.");
+            }
+            if (namespace.isEmpty()) {
+                throw new SignFailedException("SSHSIG namespace must not be empty.");
+            }
+            if (messageHash.length != digest(hashAlgorithm).getDigestLength()) {
+                throw new SignFailedException("SSHSIG message hash has invalid length: " + messageHash.length);
+            }
+            return new SSHSigRequest(namespace, hashAlgorithm, messageHash);
+        } catch (IllegalArgumentException ex) {
+            throw new SignFailedException("Malformed SSHSIG data.", ex);
+        }
+    }
+
+    /**
+     * @param namespace e.g. "git" or "file"
+     * @param hashAlgorithm "sha256" or "sha512"
+     * @param message message to be signed
+     *
+     * @return SSHSIG signed data, i.e. the bytes actually signed by the key
+     */
+    public static byte[] buildSignedData(String namespace, String hashAlgorithm, byte[] message) {
+        return buildSignedData(namespace, new byte[0], hashAlgorithm, digest(hashAlgorithm).digest(message));
+    }
+
+    public static byte[] buildSignedData(String namespace, byte[] reserved, String hashAlgorithm, byte[] messageHash) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, MAGIC_PREAMBLE);
+        write(out, AgentUtils.frameArray(namespace.getBytes(Charsets.UTF_8)));
+        write(out, AgentUtils.frameArray(reserved));
+        write(out, AgentUtils.frameArray(hashAlgorithm.getBytes(Charsets.UTF_8)));
+        write(out, AgentUtils.frameArray(messageHash));
+        return out.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Extract SSH signature blob from SSH2_AGENT_SIGN_RESPONSE</p>
+     *
+     * @param signResponse response as built by IdentityUtils, e.g.
+     * createSSHSignResponseFromNistpKey
+     *
+     * @return signature blob (string key type, string signature)
+     */
+    public static byte[] signatureFromSignResponse(byte[] signResponse) {
+        return Arrays.copyOfRange(signResponse, SIGN_RESPONSE_HEADER_LENGTH, signResponse.length);
+    }
+
+    /**
+     * @param signature parsed signature
+     * @return binary SSHSIG signature
+     */
+    public static byte[] encodeSignature(SSHSignature signature) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, MAGIC_PREAMBLE);
+        write(out, ByteBuffer.allocate(4).putInt(SIG_VERSION).array());
+        write(out, AgentUtils.frameArray(signature.getPublicKey()));
+        write(out, AgentUtils.frameArray(signature.getNamespace().getBytes(Charsets.UTF_8)));
+        write(out, AgentUtils.frameArray(signature.getReserved()));
+        write(out, AgentUtils.frameArray(signature.getHashAlgorithm().getBytes(Charsets.UTF_8)));
+        write(out, AgentUtils.frameArray(signature.getSignature()));
+        return out.toByteArray();
+    }
+
+    /**
+     * @param signature binary SSHSIG signature
+     * @return parsed signature
+     * @throws IllegalArgumentException if signature is malformed
+     */
+    public static SSHSignature decodeSignature(byte[] signature) {
+        if (!isSSHSigData(signature)) {
+            throw new IllegalArgumentException("Malformed SSH data: missing SSHSIG preamble");
+        }
+        SSHBufferReader reader = new SSHBufferReader(signature, MAGIC_PREAMBLE.length, signature.length - MAGIC_PREAMBLE.length);
+        int version = reader.readInt();
+        if (version != SIG_VERSION) {
+            throw new IllegalArgumentException("Unsupported SSHSIG version: " + version);
+        }
+        SSHSignature ret = new SSHSignature(reader.readString(), reader.readUTF8String(), reader.readString(), reader.readUTF8String(), reader.readString());
+        if (reader.hasRemaining()) {
+            throw new IllegalArgumentException("Malformed SSH data: trailing bytes after SSHSIG signature");
+        }
+        return ret;
+    }
+
+    /**
+     * @param signature binary SSHSIG signature
+     * @return armored signature as printed by ssh-keygen -Y sign
+     */
+    public static String armor(byte[] signature) {
+        String b64 = Base64.toBase64String(signature);
+        StringBuilder sb = new StringBuilder(BEGIN_SIGNATURE).append('\n');
+        for (int i = 0; i < b64.length(); i += ARMOR_LINE_LENGTH) {
+            sb.append(b64, i, Math.min(b64.length(), i + ARMOR_LINE_LENGTH)).append('\n');
+        }
+        return sb.append(END_SIGNATURE).append('\n').toString();
+    }
+
+    /**
+     * @param armored armored signature as printed by ssh-keygen -Y sign
+     * @return binary SSHSIG signature
+     * @throws IllegalArgumentException if armor is missing or malformed
+     */
+    public static byte[] dearmor(String armored) {
+        int begin = armored.indexOf(BEGIN_SIGNATURE);
+        int end = armored.indexOf(END_SIGNATURE);
+        if (begin < 0 || end < begin) {
+            throw new IllegalArgumentException("Missing SSH signature armor");
+        }
+        String b64 = armored.substring(begin + BEGIN_SIGNATURE.length(), end).replaceAll("\\s", "");
+        return Base64.decode(b64);
+    }
+
+    /**
+     * @param hashAlgorithm "sha256" or "sha512"
+     * @return new digest instance
+     * @throws IllegalArgumentException if algorithm is not allowed by SSHSIG
+     */
+    public static MessageDigest digest(String hashAlgorithm) {
+        try {
+            switch (hashAlgorithm) {
+                case HASH_SHA256:
+                    return MessageDigest.getInstance("SHA-256");
+                case HASH_SHA512:
+                    return MessageDigest.getInstance("SHA-512");
+                default:
+                    throw new IllegalArgumentException("Unsupported SSHSIG hash algorithm: " + hashAlgorithm);
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // both are mandatory for every Java platform
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+}
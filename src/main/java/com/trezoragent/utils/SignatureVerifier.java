@@ -0,0 +1,163 @@
+package com.trezoragent.utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bitcoinj.core.Sha256Hash;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.ec.CustomNamedCurves;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+/**
+ * <p>
+ * Verification engine for signatures returned by the device</p>
+ *
+ * <p>
+ * Curve parameters are loaded once and decoded public keys are cached per SSH
+ * key blob. Curve is spongycastle custom P-256 implementation, generic prime
+ * field arithmetic of NISTNamedCurves is about twice as slow. Raw (r, s)
+ * signature is verified directly, no DER encoding and no JCA provider lookup
+ * is involved. Ed25519 signatures are checked by {@link Ed25519}.</p>
+ *
+ * @author martin.lizner
+ */
+public class SignatureVerifier {
+
+    private static final int MAX_CACHED_KEYS = 256;
+    private static final X9ECParameters NISTP256_CURVE = CustomNamedCurves.getByName("secp256r1"); // P-256 with specialized field arithmetic
+    private static final ECDomainParameters NISTP256_DOMAIN = new ECDomainParameters(NISTP256_CURVE.getCurve(), NISTP256_CURVE.getG(), NISTP256_CURVE.getN(), NISTP256_CURVE.getH());
+
+    private static final Map<ByteBuffer, ECPublicKeyParameters> NISTP256_KEYS = new ConcurrentHashMap<>();
+
+    /**
+     * <p>
+     * Verify ecdsa-sha2-nistp256 signature as returned by the device</p>
+     *
+     * @param keyBlob SSH wire encoded ecdsa-sha2-nistp256 public key
+     * @param message signed data
+     * @param deviceSignature 65 bytes: 1 byte header, 32 bytes r, 32 bytes s
+     *
+     * @return True if the signature is valid
+     */
+    public static boolean verifyNistp256Signature(byte[] keyBlob, byte[] message, byte[] deviceSignature) {
+        if (deviceSignature == null || deviceSignature.length != 65) {
+            return false;
+        }
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(deviceSignature, 1, 33));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(deviceSignature, 33, 65));
+        return verifyNistp256Signature(keyBlob, message, r, s);
+    }
+
+    /**
+     * <p>
+     * Verify ecdsa-sha2-nistp256 signature given as (r, s) pair</p>
+     *
+     * @param keyBlob SSH wire encoded ecdsa-sha2-nistp256 public key
+     * @param message signed data, SHA256 is computed here
+     * @param r signature r value
+     * @param s signature s value
+     *
+     * @return True if the signature is valid
+     */
+    public static boolean verifyNistp256Signature(byte[] keyBlob, byte[] message, BigInteger r, BigInteger s) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, getNistp256Key(keyBlob));
+        return signer.verifySignature(Sha256Hash.hash(message), r, s);
+    }
+
+    /**
+     * <p>
+     * Verify ecdsa-sha2-nistp256 signature of prehashed data, as returned by
+     * the device for GPG identities</p>
+     *
+     * @param keyBlob SSH wire encoded ecdsa-sha2-nistp256 public key
+     * @param digest signed digest, longer digest is truncated to 256 bits
+     * @param deviceSignature 65 bytes: 1 byte header, 32 bytes r, 32 bytes s
+     *
+     * @return True if the signature is valid
+     */
+    public static boolean verifyNistp256DigestSignature(byte[] keyBlob, byte[] digest, byte[] deviceSignature) {
+        if (deviceSignature == null || deviceSignature.length != 65) {
+            return false;
+        }
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, getNistp256Key(keyBlob));
+        return signer.verifySignature(digest, new BigInteger(1, Arrays.copyOfRange(deviceSignature, 1, 33)), new BigInteger(1, Arrays.copyOfRange(deviceSignature, 33, 65)));
+    }
+
+    /**
+     * <p>
+     * Verify ssh-ed25519 signature as returned by the device</p>
+     *
+     * @param keyBlob SSH wire encoded ssh-ed25519 public key
+     * @param message signed data
+     * @param deviceSignature 65 bytes: 1 byte header, 64 bytes signature
+     *
+     * @return True if the signature is valid
+     */
+    public static boolean verifyEd25519Signature(byte[] keyBlob, byte[] message, byte[] deviceSignature) {
+        if (deviceSignature == null || deviceSignature.length != 65) {
+            return false;
+        }
+        SSHBufferReader reader = new SSHBufferReader(keyBlob);
+        reader.readString(); // key type, checked by caller
+        byte[] publicKey = reader.readString();
+        return Ed25519.verify(publicKey, message, Arrays.copyOfRange(deviceSignature, 1, 65));
+    }
+
+    /**
+     * <p>
+     * Verify signature in SSH wire format, e.g. taken from SSHSIG
+     * signature</p>
+     *
+     * @param keyBlob SSH wire encoded public key
+     * @param message signed data
+     * @param signatureBlob SSH signature blob (string key type, string
+     * signature)
+     *
+     * @return True if the signature is valid
+     *
+     * @throws IllegalArgumentException if key type is not supported or
+     * signature is malformed
+     */
+    public static boolean verifySSHSignature(byte[] keyBlob, byte[] message, byte[] signatureBlob) {
+        String keyType = IdentityUtils.readKeyType(keyBlob);
+        SSHBufferReader reader = new SSHBufferReader(signatureBlob);
+        if (!keyType.equals(reader.readUTF8String())) {
+            return false; // signature algorithm does not match key
+        }
+        byte[] signature = reader.readString();
+
+        switch (keyType) {
+            case IdentityUtils.NISTP256_KEY_PREFIX:
+                SSHBufferReader rs = new SSHBufferReader(signature); // mpint r, mpint s
+                BigInteger r = new BigInteger(rs.readString());
+                BigInteger s = new BigInteger(rs.readString());
+                return verifyNistp256Signature(keyBlob, message, r, s);
+            case IdentityUtils.ED25519_KEY_PREFIX:
+                SSHBufferReader key = new SSHBufferReader(keyBlob);
+                key.readString();
+                return Ed25519.verify(key.readString(), message, signature);
+            default:
+                throw new IllegalArgumentException("Unsupported key type: " + keyType);
+        }
+    }
+
+    static ECPublicKeyParameters getNistp256Key(byte[] keyBlob) {
+        ByteBuffer cacheKey = ByteBuffer.wrap(keyBlob.clone());
+        ECPublicKeyParameters key = NISTP256_KEYS.get(cacheKey);
+        if (key == null) {
+            byte[] point = IdentityUtils.unframeUncompressedNistpKeyFromSSHKey(keyBlob);
+            key = new ECPublicKeyParameters(NISTP256_DOMAIN.getCurve().decodePoint(point), NISTP256_DOMAIN);
+            if (NISTP256_KEYS.size() >= MAX_CACHED_KEYS) {
+                NISTP256_KEYS.clear(); // agent normally uses handful of keys, simple bound is enough
+            }
+            NISTP256_KEYS.put(cacheKey, key);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,92 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.util.BigIntegers;
+
+/**
+ * <p>
+ * SLIP-0010 private key derivation for nist256p1 and ed25519 curves, as done
+ * by the device for SLIP-0013 identity paths</p>
+ *
+ * <p>
+ * Only hardened derivation is implemented, SLIP-0013 paths are hardened in
+ * every level and ed25519 does not support other.</p>
+ *
+ * @author martin.lizner
+ */
+public class Slip10 {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA512";
+    private static final String NISTP256_SEED_KEY = "Nist256p1 seed";
+    private static final String ED25519_SEED_KEY = "ed25519 seed";
+    private static final BigInteger NISTP256_ORDER = NISTNamedCurves.getByName("P-256").getN();
+    private static final int HARDENED_BIT = 0x80000000;
+
+    /**
+     * @param curveName nist256p1 or ed25519
+     * @param seed BIP39 seed
+     * @param path hardened child indexes, e.g. from DerivationPaths
+     * @return 32 bytes private key
+     * @throws IllegalArgumentException if curve is not supported or path is
+     * not hardened
+     */
+    public static byte[] derivePrivateKey(String curveName, byte[] seed, int[] path) {
+        boolean nist = AgentConstants.CURVE_NAME_NISTP256.equals(curveName);
+        if (!nist && !AgentConstants.CURVE_NAME_ED25519.equals(curveName)) {
+            throw new IllegalArgumentException("Unsupported curve: " + curveName);
+        }
+
+        byte[] i = hmac((nist ? NISTP256_SEED_KEY : ED25519_SEED_KEY).getBytes(Charsets.US_ASCII), seed);
+        while (nist && !isValidNistKey(new BigInteger(1, Arrays.copyOfRange(i, 0, 32)))) {
+            i = hmac(NISTP256_SEED_KEY.getBytes(Charsets.US_ASCII), i); // retry with whole I as data
+        }
+        byte[] key = Arrays.copyOfRange(i, 0, 32);
+        byte[] chainCode = Arrays.copyOfRange(i, 32, 64);
+
+        for (int index : path) {
+            if ((index & HARDENED_BIT) == 0) {
+                throw new IllegalArgumentException("Only hardened derivation is supported: " + (index & 0xffffffffL));
+            }
+            byte[] data = ByteBuffer.allocate(37).put((byte) 0).put(key).putInt(index).array();
+            while (true) {
+                i = hmac(chainCode, data);
+                byte[] il = Arrays.copyOfRange(i, 0, 32);
+                chainCode = Arrays.copyOfRange(i, 32, 64);
+                if (!nist) {
+                    key = il;
+                    break;
+                }
+                BigInteger parsed = new BigInteger(1, il);
+                BigInteger child = parsed.add(new BigInteger(1, key)).mod(NISTP256_ORDER);
+                if (parsed.compareTo(NISTP256_ORDER) < 0 && child.signum() != 0) {
+                    key = BigIntegers.asUnsignedByteArray(32, child);
+                    break;
+                }
+                data = ByteBuffer.allocate(37).put((byte) 1).put(chainCode).putInt(index).array(); // invalid key, SLIP-0010 retry
+            }
+        }
+        return key;
+    }
+
+    private static boolean isValidNistKey(BigInteger key) {
+        return key.signum() != 0 && key.compareTo(NISTP256_ORDER) < 0;
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac.doFinal(data);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new IllegalStateException(ex); // HmacSHA512 is mandatory for every Java platform
+        }
+    }
+}
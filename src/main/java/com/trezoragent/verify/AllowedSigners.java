@@ -0,0 +1,274 @@
+package com.trezoragent.verify;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.struct.AllowedSigner;
+import com.trezoragent.utils.IdentityUtils;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * <p>
+ * OpenSSH allowed_signers file indexed by key fingerprint</p>
+ *
+ * <p>
+ * Format of each line: principals [options] keytype base64-key [comment].
+ * Supported options are namespaces, valid-after and valid-before. Lines with
+ * cert-authority option are skipped, certificates are not supported.</p>
+ *
+ * @author martin.lizner
+ */
+public class AllowedSigners {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter MINUTE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+    private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final Map<String, List<AllowedSigner>> signersByFingerprint = new HashMap<>();
+    private int size;
+
+    public static AllowedSigners load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, Charsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * @param reader allowed_signers content
+     * @return indexed table of signers
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if a line is malformed, message
+     * contains line number
+     */
+    public static AllowedSigners parse(Reader reader) throws IOException {
+        AllowedSigners ret = new AllowedSigners();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            try {
+                AllowedSigner signer = parseLine(trimmed, lineNumber);
+                if (signer != null) {
+                    ret.add(signer);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("allowed_signers line " + lineNumber + ": " + ex.getMessage(), ex);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key of the signature
+     * @return all entries for given key, empty list if key is unknown
+     */
+    public List<AllowedSigner> findSigners(byte[] keyBlob) {
+        List<AllowedSigner> signers = signersByFingerprint.get(IdentityUtils.fingerprintSHA256(keyBlob));
+        return signers == null ? Collections.<AllowedSigner>emptyList() : signers;
+    }
+
+    /**
+     * @param keyBlob SSH wire encoded public key of the signature
+     * @param principal expected signer or null to accept any principal
+     * @param namespace signature namespace
+     * @param time verification time, epoch millis
+     * @return first entry which allows the key for given principal, namespace
+     * and time or null
+     */
+    public AllowedSigner findSigner(byte[] keyBlob, String principal, String namespace, long time) {
+        for (AllowedSigner signer : findSigners(keyBlob)) {
+            if ((principal == null || signer.matchesPrincipal(principal)) && signer.allowsNamespace(namespace) && signer.isValidAt(time)) {
+                return signer;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void add(AllowedSigner signer) {
+        List<AllowedSigner> signers = signersByFingerprint.get(signer.getFingerprint());
+        if (signers == null) {
+            signers = new ArrayList<>(1);
+            signersByFingerprint.put(signer.getFingerprint(), signers);
+        }
+        signers.add(signer);
+        size++;
+    }
+
+    static AllowedSigner parseLine(String line, int lineNumber) {
+        List<String> tokens = tokenize(line);
+        if (tokens.size() < 3) {
+            throw new IllegalArgumentException("expected principals, key type and key");
+        }
+
+        List<String> principals = Arrays.asList(unquote(tokens.get(0)).split(","));
+        int keyTypeIndex = 1;
+        List<String> namespaces = null;
+        Long validAfter = null;
+        Long validBefore = null;
+
+        if (!isKeyType(tokens.get(1))) { // options present
+            keyTypeIndex = 2;
+            for (String option : splitOptions(tokens.get(1))) {
+                String name = option;
+                String value = null;
+                int eq = option.indexOf('=');
+                if (eq > 0) {
+                    name = option.substring(0, eq);
+                    value = unquote(option.substring(eq + 1));
+                }
+                switch (name.toLowerCase()) {
+                    case "cert-authority":
+                        return null; // certificates are not supported, CA keys must not be used as plain keys
+                    case "namespaces":
+                        namespaces = Arrays.asList(requireValue(name, value).split(","));
+                        break;
+                    case "valid-after":
+                        validAfter = parseTime(requireValue(name, value));
+                        break;
+                    case "valid-before":
+                        validBefore = parseTime(requireValue(name, value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unsupported option: " + name);
+                }
+            }
+        }
+
+        if (tokens.size() <= keyTypeIndex + 1) {
+            throw new IllegalArgumentException("missing key");
+        }
+        String keyType = tokens.get(keyTypeIndex);
+        byte[] keyBlob;
+        try {
+            keyBlob = Base64.decode(tokens.get(keyTypeIndex + 1));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("key is not valid base64");
+        }
+        if (!keyType.equals(IdentityUtils.readKeyType(keyBlob))) {
+            throw new IllegalArgumentException("key type " + keyType + " does not match key");
+        }
+        return new AllowedSigner(principals, namespaces, validAfter, validBefore, keyBlob, lineNumber);
+    }
+
+    private static boolean isKeyType(String token) {
+        return token.startsWith("ssh-") || token.startsWith("ecdsa-") || token.startsWith("sk-");
+    }
+
+    private static String requireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("option " + name + " requires value");
+        }
+        return value;
+    }
+
+    /*
+     * YYYYMMDD[HHMM[SS]] with optional Z suffix for UTC, local time otherwise
+     */
+    static long parseTime(String value) {
+        ZoneId zone = ZoneId.systemDefault();
+        String time = value;
+        if (time.endsWith("Z") || time.endsWith("z")) {
+            zone = ZoneOffset.UTC;
+            time = time.substring(0, time.length() - 1);
+        }
+        try {
+            LocalDateTime dateTime;
+            switch (time.length()) {
+                case 8:
+                    dateTime = LocalDate.parse(time, DATE_FORMAT).atStartOfDay();
+                    break;
+                case 12:
+                    dateTime = LocalDateTime.parse(time, MINUTE_FORMAT);
+                    break;
+                case 14:
+                    dateTime = LocalDateTime.parse(time, SECOND_FORMAT);
+                    break;
+                default:
+                    throw new IllegalArgumentException("invalid time: " + value);
+            }
+            return dateTime.atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("invalid time: " + value);
+        }
+    }
+
+    /*
+     * Split on whitespace outside of double quotes
+     */
+    private static List<String> tokenize(String line) {
+        List<String> ret = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (Character.isWhitespace(c) && !quoted) {
+                if (current.length() > 0) {
+                    ret.add(current.toString());
+                    current.setLength(0);
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        if (current.length() > 0) {
+            ret.add(current.toString());
+        }
+        return ret;
+    }
+
+    /*
+     * Split on commas outside of double quotes
+     */
+    private static List<String> splitOptions(String options) {
+        List<String> ret = new ArrayList<>();
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i < options.length(); i++) {
+            char c = options.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                ret.add(options.substring(start, i));
+                start = i + 1;
+            }
+        }
+        ret.add(options.substring(start));
+        return ret;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
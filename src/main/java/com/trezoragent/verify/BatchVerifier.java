@@ -0,0 +1,126 @@
+package com.trezoragent.verify;
+
+import com.trezoragent.struct.AllowedSigner;
+import com.trezoragent.struct.SSHSignature;
+import com.trezoragent.utils.SSHSigUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Verifies SSHSIG signatures against allowed_signers table</p>
+ *
+ * <p>
+ * Batches are split with fork-join so verification scales with available
+ * cores. Decoded public keys are cached by {@link SignatureVerifier} and
+ * shared by all worker threads.</p>
+ *
+ * @author martin.lizner
+ */
+public class BatchVerifier {
+
+    private static final int SEQUENTIAL_THRESHOLD = 16; // one verification costs ~ms, small chunks keep cores busy
+
+    private final AllowedSigners allowedSigners;
+    private final String namespace;
+    private final ForkJoinPool pool;
+
+    public BatchVerifier(AllowedSigners allowedSigners, String namespace) {
+        this(allowedSigners, namespace, ForkJoinPool.commonPool());
+    }
+
+    public BatchVerifier(AllowedSigners allowedSigners, String namespace, ForkJoinPool pool) {
+        this.allowedSigners = allowedSigners;
+        this.namespace = namespace;
+        this.pool = pool;
+    }
+
+    /**
+     * @param checks signatures to verify, outcome is stored in each check
+     * @param time verification time, epoch millis
+     * @return number of valid signatures
+     */
+    public int verifyAll(List<SignatureCheck> checks, long time) {
+        pool.invoke(new VerifyTask(checks, 0, checks.size(), time));
+        int valid = 0;
+        for (SignatureCheck check : checks) {
+            if (check.isValid()) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @param check signature to verify, outcome is stored in the check
+     * @param time verification time, epoch millis
+     * @return True if signature is valid and made by allowed signer
+     */
+    public boolean verify(SignatureCheck check, long time) {
+        SSHSignature signature;
+        try {
+            signature = SSHSigUtils.decodeSignature(check.getSignature());
+        } catch (RuntimeException ex) { // truncated blob fails with buffer exceptions as well
+            check.setInvalid("malformed signature: " + ex.getMessage());
+            return false;
+        }
+
+        if (!namespace.equals(signature.getNamespace())) {
+            check.setInvalid("namespace mismatch: " + signature.getNamespace());
+            return false;
+        }
+
+        byte[] publicKey = signature.getPublicKey();
+        AllowedSigner signer = allowedSigners.findSigner(publicKey, check.getPrincipal(), namespace, time);
+        if (signer == null) {
+            check.setInvalid("no allowed signer for key");
+            return false;
+        }
+
+        try {
+            byte[] signedData = SSHSigUtils.buildSignedData(namespace, signature.getReserved(), signature.getHashAlgorithm(),
+                    SSHSigUtils.digest(signature.getHashAlgorithm()).digest(check.getMessage()));
+            if (!SignatureVerifier.verifySSHSignature(publicKey, signedData, signature.getSignature())) {
+                check.setInvalid("signature does not verify");
+                return false;
+            }
+        } catch (RuntimeException ex) { // malformed key or signature fails this check only, not the batch
+            check.setInvalid("malformed key or signature: " + ex);
+            return false;
+        }
+
+        check.setValid(signer);
+        return true;
+    }
+
+    private class VerifyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<SignatureCheck> checks;
+        private final int from;
+        private final int to;
+        private final long time;
+
+        VerifyTask(List<SignatureCheck> checks, int from, int to, long time) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+            this.time = time;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    verify(checks.get(i), time);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyTask(checks, from, middle, time), new VerifyTask(checks, middle, to, time));
+            }
+        }
+    }
+}
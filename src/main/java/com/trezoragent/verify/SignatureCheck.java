@@ -0,0 +1,77 @@
+package com.trezoragent.verify;
+
+import com.trezoragent.struct.AllowedSigner;
+
+/**
+ * One signature to be verified by {@link BatchVerifier} together with its
+ * outcome
+ *
+ * @author martin.lizner
+ */
+public final class SignatureCheck {
+
+    private final String name;
+    private final byte[] message;
+    private final byte[] signature;
+    private final String principal;
+
+    private volatile boolean valid;
+    private volatile AllowedSigner signer;
+    private volatile String error;
+
+    /**
+     * @param name label used in reports, e.g. commit id or file name
+     * @param message signed message
+     * @param signature binary SSHSIG signature
+     * @param principal expected signer or null to accept any allowed principal
+     */
+    public SignatureCheck(String name, byte[] message, byte[] signature, String principal) {
+        this.name = name;
+        this.message = message;
+        this.signature = signature;
+        this.principal = principal;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    byte[] getMessage() {
+        return message;
+    }
+
+    byte[] getSignature() {
+        return signature;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public AllowedSigner getSigner() {
+        return signer;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setValid(AllowedSigner signer) {
+        this.signer = signer;
+        this.valid = true;
+    }
+
+    void setInvalid(String error) {
+        this.error = error;
+        this.valid = false;
+    }
+
+    @Override
+    public String toString() {
+        return valid ? "OK " + name + " " + signer : "FAIL " + name + " " + error;
+    }
+}
@@ -0,0 +1,85 @@
+package com.trezoragent.verify;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.utils.SSHSigUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>
+ * Command line tool for bulk verification of SSHSIG signatures, e.g. when
+ * auditing signed git history</p>
+ *
+ * <pre>
+ * java -cp trezor-ssh-agent.jar com.trezoragent.verify.VerifySignatures allowed_signers namespace list_file [threads]
+ * </pre>
+ *
+ * <p>
+ * Each line of list_file contains: message_file signature_file [principal].
+ * Signature files are armored as produced by ssh-keygen -Y sign. Exit code is
+ * 0 when all signatures are valid, 1 otherwise and 2 on usage or IO
+ * error.</p>
+ *
+ * @author martin.lizner
+ */
+public class VerifySignatures {
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: VerifySignatures <allowed_signers> <namespace> <list_file> [threads]");
+            System.exit(2);
+        }
+
+        try {
+            AllowedSigners allowedSigners = AllowedSigners.load(Paths.get(args[0]));
+            List<SignatureCheck> checks = readChecks(Paths.get(args[2]));
+            int threads = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            BatchVerifier verifier = new BatchVerifier(allowedSigners, args[1], pool);
+
+            long start = System.nanoTime();
+            int valid = verifier.verifyAll(checks, System.currentTimeMillis());
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+
+            for (SignatureCheck check : checks) {
+                System.out.println(check);
+            }
+            double millis = elapsed / 1e6;
+            System.out.println(String.format("%d of %d signatures valid, %d allowed signers, %d threads, %.1f ms (%.0f signatures/s)",
+                    valid, checks.size(), allowedSigners.size(), threads, millis, checks.size() / Math.max(millis, 0.001) * 1000));
+            System.exit(valid == checks.size() ? 0 : 1);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /*
+     * Files are read upfront, so measured time covers verification only
+     */
+    static List<SignatureCheck> readChecks(Path listFile) throws IOException {
+        Path baseDir = listFile.toAbsolutePath().getParent();
+        List<SignatureCheck> ret = new ArrayList<>();
+        for (String line : Files.readAllLines(listFile, Charsets.UTF_8)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+");
+            if (fields.length < 2) {
+                throw new IllegalArgumentException("Expected message and signature file: " + line);
+            }
+            byte[] message = Files.readAllBytes(baseDir.resolve(fields[0]));
+            String armored = new String(Files.readAllBytes(baseDir.resolve(fields[1])), Charsets.US_ASCII);
+            ret.add(new SignatureCheck(fields[0], message, SSHSigUtils.dearmor(armored), fields.length > 2 ? fields[2] : null));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,67 @@
+package com.trezoragent.audit;
+
+import com.trezoragent.struct.AuditRecord;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class AuditJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static byte[] keyA = Sha256Hash.hash("key A".getBytes());
+    static byte[] keyB = Sha256Hash.hash("key B".getBytes());
+
+    @Test
+    public void testAppendQueryAndReopen() throws Exception {
+        File dir = folder.newFolder("journal");
+        AuditJournal journal = new AuditJournal(dir);
+        int total = AuditJournal.RECORDS_PER_SEGMENT + 100; // spans two segments
+        for (int i = 1; i <= total; i++) {
+            byte[] key = (i % 1000 == 0) ? keyB : keyA;
+            journal.append(new AuditRecord(i, AuditRecord.OPERATION_SIGN, AuditRecord.OUTCOME_OK, 5, key, "root", "ssh-connection"));
+        }
+        journal.append(new AuditRecord(total + 1, AuditRecord.OPERATION_IDENTITIES, AuditRecord.OUTCOME_TIMEOUT, 120000, null, null, null));
+
+        List<AuditRecord> usesOfB = journal.query(keyB, 0, Long.MAX_VALUE);
+        Assert.assertEquals(total / 1000, usesOfB.size());
+        Assert.assertEquals(1000, usesOfB.get(0).getTimestamp());
+        Assert.assertEquals("root", usesOfB.get(0).getUser());
+        Assert.assertTrue(Arrays.equals(keyB, usesOfB.get(0).getFingerprint()));
+
+        Assert.assertEquals(11, journal.query(null, 10, 20).size());
+        journal.close();
+
+        AuditJournal reopened = new AuditJournal(dir);
+        Assert.assertEquals(total + 1, reopened.query(null, 0, Long.MAX_VALUE).size());
+        reopened.append(new AuditRecord(total + 2, AuditRecord.OPERATION_SIGN, AuditRecord.OUTCOME_CANCELLED, 1, keyB, "admin", "ssh-connection"));
+        List<AuditRecord> last = reopened.query(keyB, total + 2, total + 2);
+        Assert.assertEquals(1, last.size());
+        Assert.assertEquals(AuditRecord.OUTCOME_CANCELLED, last.get(0).getOutcome());
+        Assert.assertEquals(0, reopened.query(Sha256Hash.hash("key C".getBytes()), 0, Long.MAX_VALUE).size());
+        reopened.close();
+    }
+
+    @Test
+    public void testLongTextIsTruncated() throws Exception {
+        AuditJournal journal = new AuditJournal(folder.newFolder("text"));
+        String user = "\u017elu\u0165ou\u010dk\u00fd-k\u016f\u0148-\u00fap\u011bl-\u010f\u00e1belsk\u00e9-\u00f3dy-\u017elu\u0165ou\u010dk\u00fd";
+        journal.append(new AuditRecord(1, AuditRecord.OPERATION_SSHSIG, AuditRecord.OUTCOME_OK, 1, keyA, user, "git"));
+
+        AuditRecord record = journal.query(keyA, 0, 1).get(0);
+        Assert.assertTrue(user.startsWith(record.getUser()));
+        Assert.assertTrue(record.getUser().length() > 20);
+        Assert.assertEquals("git", record.getTarget());
+        journal.close();
+    }
+}
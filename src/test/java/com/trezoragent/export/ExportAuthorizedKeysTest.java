@@ -0,0 +1,78 @@
+package com.trezoragent.export;
+
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.sshagent.IdentityRules;
+import com.trezoragent.sshagent.SimulatorService;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.DerivationPaths;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class ExportAuthorizedKeysTest {
+
+    static IdentityRules rules = new IdentityRules(Arrays.asList(
+            IdentityRules.parseRule(1, "Host *.prod.example.com URI ssh://prod/connect CURVE nist256p1,ed25519",
+                    URI.create(AgentConstants.SETTINGS_BIP32_SSHURI), 0, Arrays.asList(AgentConstants.CURVE_NAME_NISTP256))));
+
+    @Test
+    public void testParseSpec() throws Exception {
+        String spec = "# provisioning\n"
+                + "ssh://deploy@web/connect 0-2 ed25519\n"
+                + "\n"
+                + "ssh://deploy@web/connect 1 ed25519,nist256p1 web one\n" // ed25519 #1 already listed
+                + "Host app1.prod.example.com\n"
+                + "host app2.prod.example.com user root\n" // same identities as app1
+                + "Host unknown.example.com\n";
+        List<ExportAuthorizedKeys.Entry> entries = ExportAuthorizedKeys.parseSpec(new StringReader(spec), null, rules);
+
+        Assert.assertEquals(6, entries.size());
+        Assert.assertEquals(URI.create("ssh://deploy@web/connect"), entries.get(0).identity.getIdentityUri());
+        Assert.assertEquals(2, entries.get(2).identity.getIdentityIndex());
+        Assert.assertEquals("ssh://deploy@web/connect#2", entries.get(2).comment);
+        Assert.assertEquals(AgentConstants.CURVE_NAME_NISTP256, entries.get(3).identity.getCurveName());
+        Assert.assertEquals("web one", entries.get(3).comment);
+        Assert.assertEquals(URI.create("ssh://prod/connect"), entries.get(4).identity.getIdentityUri());
+        Assert.assertEquals("app1.prod.example.com", entries.get(5).comment);
+    }
+
+    @Test
+    public void testExportOverSeveralPreloadedChunks() throws Exception {
+        SimulatorService device = SimulatorService.startSimulatorService(new Properties(), 0);
+        try {
+            int count = DerivationPaths.MAX_PRELOADED_PATHS + 10;
+            List<ExportAuthorizedKeys.Entry> entries = ExportAuthorizedKeys.parseSpec(
+                    new StringReader("ssh://deploy@web/connect 0-" + (count - 1) + " nist256p1\n"), device, rules);
+            StringWriter output = new StringWriter();
+
+            Assert.assertEquals(count, ExportAuthorizedKeys.export(entries, output));
+            String[] lines = output.toString().split("\n");
+            Assert.assertEquals(count, lines.length);
+            Assert.assertTrue(lines[count - 1].endsWith("ssh://deploy@web/connect#" + (count - 1)));
+            Assert.assertEquals(count, new HashSet<>(Arrays.asList(lines)).size()); // every index has own key
+        } finally {
+            TrayProcess.identityIndex.removeDevice(device);
+            device.detach();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedCurve() throws Exception {
+        ExportAuthorizedKeys.parseSpec(new StringReader("ssh://web/connect 0 secp256k1\n"), null, rules);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingCurve() throws Exception {
+        ExportAuthorizedKeys.parseSpec(new StringReader("ssh://web/connect 0\n"), null, rules);
+    }
+}
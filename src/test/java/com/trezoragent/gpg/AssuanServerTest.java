@@ -0,0 +1,243 @@
+package com.trezoragent.gpg;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.sshagent.DeviceService;
+import com.trezoragent.sshagent.SimulatorService;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.Ed25519;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SSHBufferReader;
+import com.trezoragent.utils.SignatureVerifier;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+import org.spongycastle.util.BigIntegers;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * gpg-agent front end against simulated device, client talks as gpg on
+ * Windows does
+ *
+ * @author martin.lizner
+ */
+public class AssuanServerTest {
+
+    static URI identity = URI.create("gpg://john@example.com");
+    static byte[] data = "tag v1.0.4\n".getBytes(Charsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    SimulatorService device;
+    AssuanServer server;
+    File socketFile;
+    Socket client;
+    InputStream in;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties settings = new Properties();
+        device = SimulatorService.startSimulatorService(settings, 0);
+        TrayProcess.settings = settings;
+        TrayProcess.deviceService = device;
+        TrayProcess.deviceServices = Arrays.<DeviceService>asList(device);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!device.isDeviceReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        socketFile = new File(folder.getRoot(), "gnupg" + File.separator + "S.gpg-agent");
+        server = new AssuanServer(socketFile, Arrays.asList(identity), Arrays.asList(AgentConstants.CURVE_NAME_NISTP256, AgentConstants.CURVE_NAME_ED25519));
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        server.close();
+        TrayProcess.identityIndex.removeDevice(device);
+        device.detach();
+        TrayProcess.deviceService = null;
+        TrayProcess.deviceServices = Collections.emptyList();
+    }
+
+    @Test
+    public void testSignNistp256() throws Exception {
+        SSHPublicKey key = keyOfType(IdentityUtils.NISTP256_KEY_PREFIX);
+        connect(socketNonce());
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+
+        Assert.assertEquals("OK", command("HAVEKEY 0000000000000000000000000000000000000000 " + Keygrip.of(key.getBlob())).get(0));
+        Assert.assertEquals("OK", command("SIGKEY " + Keygrip.of(key.getBlob()).toLowerCase()).get(0));
+        Assert.assertEquals("OK", command("SETKEYDESC Please+enter+the+passphrase").get(0));
+        Assert.assertEquals("OK", command("SETHASH 8 " + Hex.toHexString(digest)).get(0));
+        List<String> answer = command("PKSIGN");
+        Assert.assertEquals("OK", answer.get(answer.size() - 1));
+
+        byte[] signature = data(answer);
+        Assert.assertTrue(new String(signature, Charsets.ISO_8859_1).startsWith("(7:sig-val(5:ecdsa(1:r"));
+        byte[] deviceSignature = ByteUtils.concatenate(new byte[1], ByteUtils.concatenate(
+                BigIntegers.asUnsignedByteArray(32, new BigInteger(1, atom(signature, "r"))), BigIntegers.asUnsignedByteArray(32, new BigInteger(1, atom(signature, "s")))));
+        Assert.assertTrue(SignatureVerifier.verifyNistp256DigestSignature(key.getBlob(), digest, deviceSignature)); // device signed digest, not its hash
+    }
+
+    @Test
+    public void testSignEd25519() throws Exception {
+        SSHPublicKey key = keyOfType(IdentityUtils.ED25519_KEY_PREFIX);
+        connect(socketNonce());
+        byte[] digest = MessageDigest.getInstance("SHA-512").digest(data);
+
+        Assert.assertEquals("OK", command("SIGKEY " + Keygrip.of(key.getBlob())).get(0));
+        Assert.assertEquals("OK", command("SETHASH --hash=sha512 " + Hex.toHexString(digest)).get(0));
+        byte[] signature = data(command("PKSIGN"));
+        Assert.assertTrue(new String(signature, Charsets.ISO_8859_1).startsWith("(7:sig-val(5:eddsa(1:r32:"));
+
+        SSHBufferReader reader = new SSHBufferReader(key.getBlob());
+        reader.readString(); // key type
+        Assert.assertTrue(Ed25519.verify(reader.readString(), digest, ByteUtils.concatenate(atom(signature, "r"), atom(signature, "s"))));
+    }
+
+    @Test
+    public void testProtocolErrors() throws Exception {
+        connect(socketNonce());
+        Assert.assertEquals(Arrays.asList("D " + AssuanServer.AGENT_VERSION, "OK"), command("GETINFO version"));
+        Assert.assertEquals("ERR " + AssuanServer.ERR_UNKNOWN_COMMAND + " Unknown IPC command <GPG Agent>", command("GENKEY").get(0));
+        Assert.assertTrue(command("HAVEKEY 0000000000000000000000000000000000000000").get(0).startsWith("ERR " + AssuanServer.ERR_NO_SECKEY));
+        Assert.assertTrue(command("PKSIGN").get(0).startsWith("ERR " + AssuanServer.ERR_NO_SECKEY));
+
+        String keygrip = Keygrip.of(keyOfType(IdentityUtils.NISTP256_KEY_PREFIX).getBlob());
+        Assert.assertEquals("S KEYINFO " + keygrip + " D - - - - - - -", command("KEYINFO " + keygrip).get(0));
+        Assert.assertEquals(3, command("KEYINFO --list").size()); // two keys and OK
+        Assert.assertEquals("OK", command("SIGKEY " + keygrip).get(0));
+        Assert.assertTrue(command("PKSIGN").get(0).startsWith("ERR " + AssuanServer.ERR_NO_DATA));
+        Assert.assertTrue(command("SETHASH 8 00ff").get(0).startsWith("ERR " + AssuanServer.ERR_INV_VALUE));
+        Assert.assertTrue(command("SETHASH 1 00ff").get(0).startsWith("ERR " + AssuanServer.ERR_DIGEST_ALGO)); // MD5
+        Assert.assertTrue(command("SETHASH 2 " + Hex.toHexString(new byte[20])).get(0).startsWith("OK"));
+        Assert.assertTrue(command("PKSIGN").get(0).startsWith("ERR " + AssuanServer.ERR_DIGEST_ALGO)); // SHA1 too short for P-256
+
+        Assert.assertEquals("OK closing connection", command("BYE").get(0));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testConnectionWithoutNonceRefused() throws Exception {
+        byte[] nonce = socketNonce();
+        nonce[0] ^= 1;
+        client = new Socket(InetAddress.getLoopbackAddress(), port());
+        client.getOutputStream().write(nonce);
+        Assert.assertEquals(-1, client.getInputStream().read());
+
+        server.close();
+        Assert.assertFalse(socketFile.exists());
+    }
+
+    private SSHPublicKey keyOfType(String keyType) {
+        Map<String, SSHPublicKey> keys = server.loadKeys();
+        Assert.assertEquals(2, keys.size());
+        for (Map.Entry<String, SSHPublicKey> entry : keys.entrySet()) {
+            Assert.assertEquals(identity, entry.getValue().getOwner().getIdentityUri());
+            if (entry.getValue().getKeyType().equals(keyType)) {
+                return entry.getValue();
+            }
+        }
+        throw new AssertionError("No key of type " + keyType);
+    }
+
+    private void connect(byte[] nonce) throws IOException {
+        client = new Socket(InetAddress.getLoopbackAddress(), port());
+        client.getOutputStream().write(nonce);
+        in = client.getInputStream();
+        Assert.assertTrue(readLine().startsWith("OK Pleased to meet you"));
+    }
+
+    /*
+     * Answer lines up to OK or ERR, decoded byte per char
+     */
+    private List<String> command(String line) throws IOException {
+        client.getOutputStream().write((line + "\n").getBytes(Charsets.UTF_8));
+        List<String> ret = new ArrayList<>();
+        String answer;
+        do {
+            answer = readLine();
+            ret.add(answer);
+        } while (!answer.startsWith("OK") && !answer.startsWith("ERR"));
+        return ret;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            Assert.assertTrue("Connection closed", b >= 0);
+            line.write(b);
+        }
+        return new String(line.toByteArray(), Charsets.ISO_8859_1);
+    }
+
+    private int port() throws IOException {
+        String content = new String(Files.readAllBytes(socketFile.toPath()), Charsets.ISO_8859_1);
+        return Integer.parseInt(content.substring(0, content.indexOf('\n')));
+    }
+
+    private byte[] socketNonce() throws IOException {
+        byte[] content = Files.readAllBytes(socketFile.toPath());
+        Assert.assertEquals(content.length - AssuanServer.NONCE_LENGTH - 1, Integer.toString(port()).length());
+        return Arrays.copyOfRange(content, content.length - AssuanServer.NONCE_LENGTH, content.length);
+    }
+
+    /*
+     * Data of D lines with percent escapes decoded
+     */
+    static byte[] data(List<String> lines) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        for (String line : lines) {
+            if (!line.startsWith("D ")) {
+                continue;
+            }
+            for (int i = 2; i < line.length(); i++) {
+                if (line.charAt(i) == '%') {
+                    ret.write(Integer.parseInt(line.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    ret.write(line.charAt(i));
+                }
+            }
+        }
+        return ret.toByteArray();
+    }
+
+    /*
+     * Value of (1:<name><length>:<value>) in canonical S-expression
+     */
+    static byte[] atom(byte[] expression, String name) {
+        String text = new String(expression, Charsets.ISO_8859_1);
+        int start = text.indexOf("(1:" + name) + 3 + name.length();
+        int colon = text.indexOf(':', start);
+        int length = Integer.parseInt(text.substring(start, colon));
+        return Arrays.copyOfRange(expression, colon + 1, colon + 1 + length);
+    }
+}
@@ -0,0 +1,36 @@
+package com.trezoragent.gpg;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.IdentityUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * Keygrips as computed by libgcrypt
+ *
+ * @author martin.lizner
+ */
+public class KeygripTest {
+
+    @Test
+    public void testNistp256Keygrip() {
+        byte[] q = Hex.decode("04C8A4CEC2E9A9BC8E173531A67B0840DF345C32E261ADD780E6D83D56EFADFD5DE872F8B854819B59543CE0B7F822330464FBC4E6324DADDCD9D059554F63B344");
+        byte[] keyBlob = ByteUtils.concatenate(AgentUtils.frameArray(IdentityUtils.NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8)),
+                ByteUtils.concatenate(AgentUtils.frameArray(IdentityUtils.NISTP256_CURVE_NAME.getBytes(Charsets.UTF_8)), AgentUtils.frameArray(q)));
+        Assert.assertEquals("E6DF942DBD8C7705A3DD416EFC0401DB310E99B6", Keygrip.of(keyBlob));
+    }
+
+    @Test
+    public void testEd25519Keygrip() {
+        byte[] devicePublicKey = Hex.decode("00773E72848C1FD5F9652B29E2E7AF79571A04990E96F2016BF4E0EC1890C2B7DB"); // 0x00 header
+        Assert.assertEquals("9DB6C64A38830F4960701789475520BE8C821F47", Keygrip.of(IdentityUtils.encodeSSHKeyBlobFromEd25519(devicePublicKey)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedKeyType() {
+        Keygrip.of(ByteUtils.concatenate(AgentUtils.frameArray("ssh-rsa".getBytes(Charsets.UTF_8)), AgentUtils.frameArray(new byte[3])));
+    }
+}
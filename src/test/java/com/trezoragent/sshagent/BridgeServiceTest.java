@@ -0,0 +1,197 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.DerivationPaths;
+import com.trezoragent.utils.SignatureVerifier;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Bridge backend against stand-in trezord, device answers are computed by
+ * simulator
+ *
+ * @author martin.lizner
+ */
+public class BridgeServiceTest {
+
+    static URI uri = URI.create("ssh://deploy@web.example.com:2222/connect");
+    static byte[] challenge = "bridged userauth request".getBytes();
+
+    HttpServer server;
+    BridgeService bridge;
+    SimulatorService device = new SimulatorService(Utils.HEX.decode(AgentConstants.SETTINGS_SIMULATOR_SEED), 0, 0, null);
+    KeyOwner owner;
+
+    // stand-in bridge state
+    String session;
+    int sessionCounter;
+    byte[] pendingSignature;
+    BridgeMessage pendingPublicKey;
+    boolean passphraseState; // firmware 1.8 with passphrase protection
+    Set<Integer> clientPorts = new HashSet<>();
+    List<String> acquires = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.US_ASCII);
+                String path = exchange.getRequestURI().getPath();
+                String answer;
+                int status = 200;
+                if (path.equals("/enumerate")) {
+                    answer = "[{\"path\":\"1\",\"vendor\":4617,\"product\":21441,\"debug\":false,\"session\":"
+                            + (session == null ? "null" : "\"" + session + "\"") + ",\"debugSession\":null}]";
+                } else if (path.startsWith("/acquire/1/")) {
+                    acquires.add(path);
+                    session = Integer.toString(++sessionCounter);
+                    answer = "{\"session\":\"" + session + "\"}";
+                } else if (path.equals("/call/" + session)) {
+                    answer = answer(BridgeMessage.fromHex(body)).toHex();
+                } else {
+                    status = 400;
+                    answer = "{\"error\":\"session not found\"}";
+                }
+                byte[] bytes = answer.getBytes(Charsets.US_ASCII);
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+
+        bridge = new BridgeService("http://127.0.0.1:" + server.getAddress().getPort() + "/", 0);
+        owner = new KeyOwner(bridge, uri, 3, AgentConstants.CURVE_NAME_NISTP256);
+        TrayProcess.settings = new Properties();
+        TrayProcess.deviceService = bridge;
+        waitForDevice();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TrayProcess.identityIndex.removeDevice(bridge);
+        bridge.detach();
+        device.detach();
+        server.stop(0);
+        TrayProcess.deviceService = null;
+    }
+
+    private BridgeMessage answer(BridgeMessage request) {
+        Map<Integer, List<Object>> fields = request.getFields();
+        switch (request.getType()) {
+            case BridgeMessage.INITIALIZE:
+                return new BridgeMessage(BridgeMessage.FEATURES, new BridgeMessage.Writer()
+                        .string(BridgeMessage.FEATURES_LABEL, "My Trezor").varint(BridgeMessage.FEATURES_INITIALIZED, 1).toByteArray());
+            case BridgeMessage.GET_PUBLIC_KEY:
+                int[] path = new int[fields.get(1).size()];
+                for (int i = 0; i < path.length; i++) {
+                    path[i] = ((Long) fields.get(1).get(i)).intValue();
+                }
+                Assert.assertTrue(Arrays.equals(DerivationPaths.get(uri, 3), path));
+                byte[] node = new BridgeMessage.Writer().bytes(BridgeMessage.NODE_PUBLIC_KEY, device.derivePublicKey(owner)).toByteArray();
+                BridgeMessage publicKey = new BridgeMessage(BridgeMessage.PUBLIC_KEY, new BridgeMessage.Writer().bytes(BridgeMessage.PUBLIC_KEY_NODE, node).toByteArray());
+                if (passphraseState) {
+                    pendingPublicKey = publicKey;
+                    return new BridgeMessage(BridgeMessage.PASSPHRASE_STATE_REQUEST, new BridgeMessage.Writer().bytes(1, new byte[64]).toByteArray()); // state
+                }
+                return publicKey;
+            case BridgeMessage.PASSPHRASE_STATE_ACK:
+                return pendingPublicKey;
+            case BridgeMessage.SIGN_IDENTITY:
+                Map<Integer, List<Object>> identity = BridgeMessage.decode(BridgeMessage.getBytes(fields, 1));
+                Assert.assertEquals("web.example.com", BridgeMessage.getString(identity, 3));
+                Assert.assertEquals("2222", BridgeMessage.getString(identity, 4));
+                Assert.assertEquals(3, BridgeMessage.getVarint(identity, 6, 0));
+                Assert.assertEquals("user", BridgeMessage.getString(fields, 3));
+                pendingSignature = device.sign(owner, BridgeMessage.getBytes(fields, 2));
+                return new BridgeMessage(BridgeMessage.BUTTON_REQUEST, new byte[0]); // user confirms on device
+            case BridgeMessage.BUTTON_ACK:
+                return new BridgeMessage(BridgeMessage.SIGNED_IDENTITY, new BridgeMessage.Writer().bytes(BridgeMessage.SIGNED_IDENTITY_SIGNATURE, pendingSignature).toByteArray());
+            default:
+                return new BridgeMessage(BridgeMessage.FAILURE, new BridgeMessage.Writer().varint(BridgeMessage.FAILURE_CODE, 1).toByteArray());
+        }
+    }
+
+    private void waitForDevice() throws InterruptedException {
+        for (int i = 0; i < 500 && !bridge.isDeviceReady(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(bridge.isDeviceReady());
+    }
+
+    @Test
+    public void testIdentityAndSign() throws Exception {
+        Assert.assertEquals("My Trezor", bridge.getDeviceLabel());
+        Assert.assertTrue(bridge.isWalletPresent());
+
+        SSHPublicKey key = DeviceWrapper.getIdentity(owner);
+        for (int i = 0; i < 5; i++) {
+            byte[] signature = DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes());
+            Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature));
+        }
+        Assert.assertEquals(1, clientPorts.size()); // every call went over one keep-alive connection
+    }
+
+    @Test
+    public void testSessionTakenByOtherApplication() throws Exception {
+        session = "other"; // e.g. wallet in browser acquired the device
+        Assert.assertNotNull(DeviceWrapper.getIdentity(owner));
+
+        Assert.assertEquals(Arrays.asList("/acquire/1/null", "/acquire/1/other"), acquires);
+        Assert.assertTrue(bridge.isDeviceReady());
+    }
+
+    @Test
+    public void testPassphraseStateAcknowledged() throws Exception {
+        passphraseState = true;
+        SSHPublicKey key = DeviceWrapper.getIdentity(owner);
+        Assert.assertNotNull(pendingPublicKey); // answered after PassphraseStateAck
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge,
+                DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes())));
+    }
+
+    @Test
+    public void testSessionLostDetectedByBridgeError() throws Exception {
+        Assert.assertTrue(BridgeService.isSessionLost(400, "{\"error\":\"session not found\"}"));
+        Assert.assertTrue(BridgeService.isSessionLost(400, "{\"error\": \"wrong previous session\"}"));
+        Assert.assertFalse(BridgeService.isSessionLost(400, "{\"error\":\"other call in progress\"}"));
+        Assert.assertFalse(BridgeService.isSessionLost(400, "{\"error\":\"device disconnected during action, session released\"}"));
+        Assert.assertFalse(BridgeService.isSessionLost(500, "{\"error\":\"session not found\"}"));
+    }
+
+    @Test
+    public void testMessageEncoding() throws Exception {
+        BridgeMessage message = BridgeMessage.getPublicKey(new int[]{0x8000000d, 5}, AgentConstants.CURVE_NAME_ED25519);
+        Assert.assertTrue(message.toHex().startsWith("000b00000011")); // type 11, 17 bytes payload
+        BridgeMessage decoded = BridgeMessage.fromHex(message.toHex());
+        Assert.assertEquals(BridgeMessage.GET_PUBLIC_KEY, decoded.getType());
+        Assert.assertEquals(Arrays.<Object>asList(0x8000000dL, 5L), decoded.getFields().get(1));
+        Assert.assertEquals(AgentConstants.CURVE_NAME_ED25519, BridgeMessage.getString(decoded.getFields(), 2));
+    }
+}
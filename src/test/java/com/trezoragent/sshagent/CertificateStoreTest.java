@@ -0,0 +1,134 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.IdentityUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class CertificateStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static byte[] publicKeyA = filled(1);
+    static byte[] publicKeyB = filled(2);
+    static KeyOwner owner = new KeyOwner(null, URI.create(AgentConstants.SETTINGS_BIP32_SSHURI), 0, AgentConstants.CURVE_NAME_ED25519);
+    static long forever = -1L; // uint64 max
+
+    @Test
+    public void testPairCertificateWithKey() throws Exception {
+        File dir = folder.newFolder("certs");
+        write(dir, "id_a-cert.pub", certificate(publicKeyA, "deploy@prod", forever) + " user@host");
+        write(dir, "id_b-cert.pub", certificate(publicKeyB, "expired", 1000));
+        write(dir, "id_a.pub", "ssh-ed25519 " + Base64.toBase64String(ed25519Blob(publicKeyA))); // plain key, not a certificate
+        CertificateStore store = new CertificateStore(dir);
+        Assert.assertEquals(2, store.size());
+
+        SSHPublicKey keyA = new SSHPublicKey(ed25519Blob(publicKeyA), "a", owner);
+        SSHPublicKey keyB = new SSHPublicKey(ed25519Blob(publicKeyB), "b", owner);
+        List<SSHPublicKey> paired = store.pair(Arrays.asList(keyA, keyB), 2000000L);
+        Assert.assertEquals(3, paired.size()); // expired certificate is not offered
+        Assert.assertEquals(CertificateStore.ED25519_CERT_TYPE, paired.get(0).getKeyType());
+        Assert.assertEquals("user@host", paired.get(0).getComment());
+        Assert.assertSame(owner, paired.get(0).getOwner());
+        Assert.assertSame(keyA, paired.get(1));
+        Assert.assertSame(paired.get(0), store.pair(Arrays.asList(keyA), 2000000L).get(0)); // identities answer stays cached
+
+        Assert.assertArrayEquals(ed25519Blob(publicKeyA), store.lookupKey(paired.get(0).getBlob()));
+        Assert.assertNull(store.lookupKey(keyA.getBlob()));
+        Assert.assertEquals(2, store.pair(Arrays.asList(keyB), 999000L).size()); // valid before expiry
+    }
+
+    @Test
+    public void testInvalidCertificatesSkipped() throws Exception {
+        File dir = folder.newFolder("certs");
+        write(dir, "rsa-cert.pub", "ssh-rsa-cert-v01@openssh.com " + Base64.toBase64String(AgentUtils.frameArray("ssh-rsa-cert-v01@openssh.com".getBytes(Charsets.UTF_8))));
+        write(dir, "broken-cert.pub", "ssh-ed25519-cert-v01@openssh.com AAAA");
+        write(dir, "id_a-cert.pub", certificate(publicKeyA, "deploy@prod", forever));
+        Assert.assertEquals(1, new CertificateStore(dir).size());
+        Assert.assertEquals(0, new CertificateStore(new File(dir, "missing")).size());
+    }
+
+    @Test
+    public void testReloadOnChange() throws Exception {
+        File dir = folder.newFolder("certs");
+        CertificateStore store = new CertificateStore(dir);
+        store.startWatching();
+        try {
+            write(dir, "id_a-cert.pub", certificate(publicKeyA, "deploy@prod", forever));
+            waitForSize(store, 1);
+            write(dir, "id_b-cert.pub", certificate(publicKeyB, "deploy@test", forever));
+            waitForSize(store, 2);
+            Files.delete(new File(dir, "id_a-cert.pub").toPath());
+            waitForSize(store, 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    static void waitForSize(CertificateStore store, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000; // polling watch service may take seconds
+        while (store.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(size, store.size());
+    }
+
+    static void write(File dir, String name, String content) throws IOException {
+        Files.write(new File(dir, name).toPath(), (content + "\n").getBytes(Charsets.UTF_8));
+    }
+
+    /*
+     * User certificate of ed25519 key, CA key and signature are dummy
+     */
+    static String certificate(byte[] publicKey, String keyId, long validBefore) throws IOException {
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(blob);
+        out.write(AgentUtils.frameArray(CertificateStore.ED25519_CERT_TYPE.getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(new byte[32])); // nonce
+        out.write(AgentUtils.frameArray(publicKey));
+        out.writeLong(7); // serial
+        out.writeInt(1); // SSH_CERT_TYPE_USER
+        out.write(AgentUtils.frameArray(keyId.getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(AgentUtils.frameArray("deploy".getBytes(Charsets.UTF_8)))); // principals
+        out.writeLong(0); // valid after
+        out.writeLong(validBefore);
+        out.write(AgentUtils.frameArray(new byte[0])); // critical options
+        out.write(AgentUtils.frameArray(new byte[0])); // extensions
+        out.write(AgentUtils.frameArray(new byte[0])); // reserved
+        out.write(AgentUtils.frameArray(ed25519Blob(filled(9)))); // CA key
+        out.write(AgentUtils.frameArray(new byte[64])); // CA signature
+        return CertificateStore.ED25519_CERT_TYPE + " " + Base64.toBase64String(blob.toByteArray());
+    }
+
+    static byte[] ed25519Blob(byte[] publicKey) {
+        byte[] devicePublicKey = new byte[33];
+        System.arraycopy(publicKey, 0, devicePublicKey, 1, 32);
+        return IdentityUtils.encodeSSHKeyBlobFromEd25519(devicePublicKey);
+    }
+
+    static byte[] filled(int value) {
+        byte[] ret = new byte[32];
+        Arrays.fill(ret, (byte) value);
+        return ret;
+    }
+}
@@ -0,0 +1,198 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.SignatureVerifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Simulated devices served side by side
+ *
+ * @author martin.lizner
+ */
+public class DeviceWrapperTest {
+
+    static final long WAIT = 10; // seconds, only bounds a broken test
+    static byte[] challenge = "parallel userauth request".getBytes();
+
+    SimulatorService first;
+    SimulatorService second;
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    Semaphore confirming = new Semaphore(0); // sign operations waiting for confirmation on any device
+    CountDownLatch confirmed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty(AgentConstants.SETTINGS_KEY_SIMULATOR_CONFIRM_DELAY, "0");
+        first = SimulatorService.startSimulatorService(settings, 0);
+        second = SimulatorService.startSimulatorService(settings, 1);
+        TrayProcess.settings = settings;
+        TrayProcess.deviceService = first;
+        TrayProcess.deviceServices = Arrays.<DeviceService>asList(first, second);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (DeviceService device : Arrays.<DeviceService>asList(first, second)) {
+            TrayProcess.identityIndex.removeDevice(device);
+            device.detach();
+        }
+        clients.shutdownNow();
+        TrayProcess.deviceService = null;
+        TrayProcess.deviceServices = Collections.emptyList();
+    }
+
+    @Test
+    public void testSignRoutedByKeyOwner() throws Exception {
+        List<SSHPublicKey> keys = DeviceWrapper.getIdentitiesResponse();
+        Assert.assertEquals(2, keys.size());
+        Assert.assertSame(first, keys.get(0).getOwner().getDevice());
+        Assert.assertSame(second, keys.get(1).getOwner().getDevice());
+        Assert.assertNotEquals(keys.get(0).getFingerprint(), keys.get(1).getFingerprint()); // each instance has own seed
+
+        holdConfirmation();
+        Future<byte[]> firstSignature = sign(keys.get(0));
+        Future<byte[]> secondSignature = sign(keys.get(1));
+        Assert.assertTrue(confirming.tryAcquire(2, WAIT, TimeUnit.SECONDS)); // devices wait for confirmation at the same time
+        confirmed.countDown();
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(keys.get(0).getBlob(), challenge, firstSignature.get()));
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(keys.get(1).getBlob(), challenge, secondSignature.get()));
+    }
+
+    @Test
+    public void testOperationsOfOneDeviceAreQueued() throws Exception {
+        SSHPublicKey key = DeviceWrapper.getIdentitiesResponse().get(0);
+
+        holdConfirmation();
+        Future<byte[]> firstSignature = sign(key);
+        Assert.assertTrue(confirming.tryAcquire(WAIT, TimeUnit.SECONDS));
+        Future<byte[]> secondSignature = sign(key);
+        awaitQueued(first);
+        Assert.assertEquals(0, confirming.availablePermits()); // second operation did not reach the device
+        confirmed.countDown();
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, firstSignature.get()));
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, secondSignature.get()));
+        Assert.assertEquals(1, confirming.availablePermits());
+    }
+
+    @Test
+    public void testGUIRequestWaitsForDeviceOperation() throws Exception {
+        SSHPublicKey key = DeviceWrapper.getIdentitiesResponse().get(0);
+
+        holdConfirmation();
+        Future<byte[]> signature = sign(key);
+        Assert.assertTrue(confirming.tryAcquire(WAIT, TimeUnit.SECONDS));
+        first.setDeviceKey(null); // view keys menu item
+        DeviceWrapper.getIdentitiesRequest();
+        awaitQueued(first);
+        Assert.assertNull(first.getDeviceKey()); // device was not asked during sign
+        confirmed.countDown();
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature.get()));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT);
+        while (first.getDeviceKey() == null) { // swing timer polls the same way
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        Assert.assertArrayEquals(key.getBlob(), first.getDeviceKey().getBlob());
+    }
+
+    @Test
+    public void testSessionClearedAfterDeviceOperation() throws Exception {
+        SSHPublicKey key = DeviceWrapper.getIdentitiesResponse().get(0);
+
+        holdConfirmation();
+        Future<byte[]> signature = sign(key);
+        Assert.assertTrue(confirming.tryAcquire(WAIT, TimeUnit.SECONDS));
+        DeviceWrapper.clearSessions(); // session timer expired
+        awaitQueued(first);
+        Assert.assertNotNull(TrayProcess.identityIndex.lookup(key.getBlob())); // session of sign in progress is kept
+        confirmed.countDown();
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature.get()));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT);
+        while (TrayProcess.identityIndex.lookup(key.getBlob()) != null) { // keys are derived again in next session
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testSameSeedDevicesSignConcurrentRequests() throws Exception {
+        useSameSeedDevices();
+        List<SSHPublicKey> keys = DeviceWrapper.getIdentitiesResponse();
+        Assert.assertEquals(1, keys.size()); // shared key is offered once
+        Assert.assertEquals(2, TrayProcess.identityIndex.lookupAll(keys.get(0).getBlob()).size());
+
+        holdConfirmation();
+        List<Future<byte[]>> signatures = Arrays.asList(sign(keys.get(0)), sign(keys.get(0)));
+        Assert.assertTrue(confirming.tryAcquire(2, WAIT, TimeUnit.SECONDS)); // second request went to the idle device
+        confirmed.countDown();
+        for (Future<byte[]> signature : signatures) {
+            Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(keys.get(0).getBlob(), challenge, signature.get()));
+        }
+    }
+
+    @Test
+    public void testFailoverToDeviceWithSameSeed() throws Exception {
+        useSameSeedDevices();
+        SSHPublicKey key = DeviceWrapper.getIdentitiesResponse().get(0);
+        first.detach(); // unplugged without detach event
+
+        for (int i = 0; i < 2; i++) { // whichever device is picked first
+            Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, sign(key).get()));
+        }
+    }
+
+    private void useSameSeedDevices() {
+        first.detach();
+        second.detach();
+        byte[] seed = Utils.HEX.decode(AgentConstants.SETTINGS_SIMULATOR_SEED);
+        first = new SimulatorService(seed, 0, 0, null);
+        second = new SimulatorService(seed, 0, 0, null);
+        TrayProcess.deviceService = first;
+        TrayProcess.deviceServices = Arrays.<DeviceService>asList(first, second);
+    }
+
+    private void holdConfirmation() {
+        first.holdConfirmation(confirming, confirmed);
+        second.holdConfirmation(confirming, confirmed);
+    }
+
+    /*
+     * Waits until a client thread blocks on operation lock of the device
+     */
+    private static void awaitQueued(DeviceService device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT);
+        while (!device.getOperationLock().hasQueuedThreads()) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private Future<byte[]> sign(final SSHPublicKey key) {
+        return clients.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes());
+            }
+        });
+    }
+}
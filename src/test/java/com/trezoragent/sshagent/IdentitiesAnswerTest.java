@@ -0,0 +1,69 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Strings;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.IdentityUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class IdentitiesAnswerTest {
+
+    static final String LONG_COMMENT = Strings.repeat("c", 200); // about 260 bytes per key entry
+
+    static SSHPublicKey createKey(int seed) {
+        byte[] pubKey = new byte[32];
+        Arrays.fill(pubKey, (byte) seed);
+        return new SSHPublicKey(IdentityUtils.encodeSSHKeyBlobFromEd25519(pubKey), LONG_COMMENT, null);
+    }
+
+    @Test
+    public void testUpstreamKeysLeftOutFirst() throws Exception {
+        List<SSHPublicKey> keys = new ArrayList<>();
+        List<SSHPublicKey> upstream = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            SSHPublicKey key = createKey(i);
+            keys.add(key);
+            if (i % 4 == 0) { // ordering may mix upstream keys between own keys
+                upstream.add(key);
+            }
+        }
+        Assert.assertTrue(new IdentitiesAnswer().getFrame(keys).length > AgentConstants.AGENT_MAX_MSGLEN);
+
+        List<SSHPublicKey> fitting = IdentitiesAnswer.fit(keys, upstream);
+        int frameLength = new IdentitiesAnswer().getFrame(fitting).length;
+        Assert.assertTrue(frameLength <= AgentConstants.AGENT_MAX_MSGLEN);
+        Assert.assertTrue(frameLength + LONG_COMMENT.length() > AgentConstants.AGENT_MAX_MSGLEN); // no key left out needlessly
+        List<SSHPublicKey> own = new ArrayList<>(keys);
+        own.removeAll(upstream);
+        Assert.assertTrue(fitting.containsAll(own));
+        Assert.assertTrue(fitting.contains(upstream.get(0))); // dropped from the end, only as many as needed
+        Assert.assertFalse(fitting.contains(upstream.get(upstream.size() - 1)));
+    }
+
+    @Test
+    public void testOwnKeysLeftOutWhenNoUpstreamKeys() throws Exception {
+        List<SSHPublicKey> keys = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            keys.add(createKey(i));
+        }
+
+        List<SSHPublicKey> fitting = IdentitiesAnswer.fit(keys, Collections.<SSHPublicKey>emptyList());
+        Assert.assertTrue(new IdentitiesAnswer().getFrame(fitting).length <= AgentConstants.AGENT_MAX_MSGLEN);
+        Assert.assertEquals(keys.subList(0, fitting.size()), fitting); // first offered keys are kept
+    }
+
+    @Test
+    public void testFittingListReturnedAsIs() throws Exception {
+        List<SSHPublicKey> keys = Arrays.asList(createKey(1), createKey(2));
+        Assert.assertSame(keys, IdentitiesAnswer.fit(keys, keys));
+    }
+}
@@ -0,0 +1,62 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.IdentityUtils;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class IdentityOrderingTest {
+
+    static SSHPublicKey keyA = createKey(1);
+    static SSHPublicKey keyB = createKey(2);
+    static SSHPublicKey keyC = createKey(3);
+
+    static SSHPublicKey createKey(int seed) {
+        byte[] pubKey = new byte[32];
+        Arrays.fill(pubKey, (byte) seed);
+        return new SSHPublicKey(IdentityUtils.encodeSSHKeyBlobFromEd25519(pubKey), "key" + seed, null);
+    }
+
+    @Test
+    public void testAcceptedKeyIsOfferedFirst() throws Exception {
+        IdentityOrdering ordering = new IdentityOrdering(0);
+        List<SSHPublicKey> configured = Arrays.asList(keyA, keyB, keyC);
+        Assert.assertEquals(configured, ordering.order(configured, 1000));
+
+        ordering.recordAccepted(keyC.getBlob(), 1001);
+        Assert.assertEquals(Arrays.asList(keyC, keyA, keyB), ordering.order(configured, 2000)); // TTL 0: rejected keys still offered
+
+        ordering.recordAccepted(keyB.getBlob(), 2001); // C was tried first and rejected
+        Assert.assertEquals(Arrays.asList(keyB, keyC, keyA), ordering.order(configured, 3000));
+    }
+
+    @Test
+    public void testRejectedKeyIsLeftOutForTtl() throws Exception {
+        IdentityOrdering ordering = new IdentityOrdering(60000);
+        List<SSHPublicKey> configured = Arrays.asList(keyA, keyB, keyC);
+        ordering.order(configured, 1000);
+        ordering.recordAccepted(keyC.getBlob(), 1001); // A and B rejected
+
+        Assert.assertEquals(Arrays.asList(keyC), ordering.order(configured, 2000));
+        Assert.assertEquals(Arrays.asList(keyA, keyB), ordering.order(Arrays.asList(keyA, keyB), 3000)); // never offer nothing
+        Assert.assertEquals(Arrays.asList(keyC, keyA, keyB), ordering.order(configured, 62000)); // TTL expired
+    }
+
+    @Test
+    public void testSignWithoutListingIsIgnored() throws Exception {
+        IdentityOrdering ordering = new IdentityOrdering(60000);
+        List<SSHPublicKey> configured = Arrays.asList(keyA, keyB);
+        ordering.order(configured, 1000);
+        ordering.recordAccepted(keyB.getBlob(), 1001);
+        ordering.recordAccepted(keyB.getBlob(), 1002); // second sign with the same answer, e.g. client reusing key list
+        ordering.recordAccepted(keyC.getBlob(), 1003); // key not offered at all
+
+        Assert.assertEquals(Arrays.asList(keyB), ordering.order(configured, 2000));
+    }
+}
@@ -0,0 +1,91 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.struct.IdentityRule;
+import com.trezoragent.utils.AgentConstants;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class IdentityRulesTest {
+
+    static URI defaultUri = URI.create(AgentConstants.SETTINGS_BIP32_SSHURI);
+    static List<String> defaultCurves = Arrays.asList(AgentConstants.CURVE_NAME_NISTP256);
+
+    static IdentityRules createRules() {
+        Properties settings = new Properties();
+        settings.setProperty("RULE.10", "Host *.prod.example.com !bastion.prod.example.com URI ssh://prod/connect CURVE ed25519");
+        settings.setProperty("RULE.20", "Host web?.example.com db-*.example.com User deploy INDEX 3");
+        settings.setProperty("RULE.30", "Host example.com 10.0.0.*");
+        settings.setProperty("RULE.5", "Host * CURVE nist256p1,ed25519");
+        settings.setProperty("RULE.40", "Host broken.example.com CURVE secp256k1"); // ignored
+        return IdentityRules.fromSettings(settings, defaultUri, 0, defaultCurves);
+    }
+
+    static List<Integer> numbers(List<IdentityRule> rules) {
+        List<Integer> ret = new ArrayList<>();
+        for (IdentityRule rule : rules) {
+            ret.add(rule.getNumber());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        IdentityRules rules = createRules();
+        Assert.assertEquals(4, rules.getRules().size());
+
+        Assert.assertEquals(Arrays.asList(5, 10), numbers(rules.match("app1.eu.PROD.example.com.", "root")));
+        Assert.assertEquals(Arrays.asList(5), numbers(rules.match("bastion.prod.example.com", "root")));
+        Assert.assertEquals(Arrays.asList(5), numbers(rules.match("prod.example.com", "root"))); // "*." needs a label
+        Assert.assertEquals(Arrays.asList(5, 20), numbers(rules.match("web1.example.com", "deploy")));
+        Assert.assertEquals(Arrays.asList(5), numbers(rules.match("web1.example.com", "root")));
+        Assert.assertEquals(Arrays.asList(5, 20), numbers(rules.match("db-main.example.com", "deploy")));
+        Assert.assertEquals(Arrays.asList(5, 30), numbers(rules.match("example.com", null)));
+        Assert.assertEquals(Arrays.asList(5, 30), numbers(rules.match("10.0.0.17", null)));
+        Assert.assertEquals(Arrays.asList(5), numbers(rules.match(null, null))); // host unknown
+
+        IdentityRule prod = rules.match("app.prod.example.com", null).get(1);
+        Assert.assertEquals(URI.create("ssh://prod/connect"), prod.getIdentityUri());
+        Assert.assertEquals(Arrays.asList(AgentConstants.CURVE_NAME_ED25519), prod.getCurveNames());
+        Assert.assertEquals(3, rules.match("web2.example.com", "deploy").get(1).getIdentityIndex());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        IdentityRules rules = new IdentityRules(Arrays.asList(
+                IdentityRules.parseRule(1, "Host *.example.com", defaultUri, 0, defaultCurves),
+                IdentityRules.parseRule(2, "Host example.org", defaultUri, 0, defaultCurves)));
+        rules.match("a.example.com", null);
+        rules.match("b.example.com", null);
+        rules.match("example.net", null);
+
+        Assert.assertEquals(Long.valueOf(2), rules.getHitCounts().get(1));
+        Assert.assertEquals(Long.valueOf(0), rules.getHitCounts().get(2));
+        Assert.assertEquals(1, rules.getMisses());
+    }
+
+    @Test
+    public void testManyRules() throws Exception {
+        List<IdentityRule> list = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            list.add(IdentityRules.parseRule(i, "Host *.host" + i + ".example.com INDEX " + i, defaultUri, 0, defaultCurves));
+        }
+        IdentityRules rules = new IdentityRules(list);
+        List<IdentityRule> matched = rules.match("x.host4321.example.com", null);
+        Assert.assertEquals(1, matched.size());
+        Assert.assertEquals(4321, matched.get(0).getIdentityIndex());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownKeyword() throws Exception {
+        IdentityRules.parseRule(1, "Port 22 Host a.example.com", defaultUri, 0, defaultCurves);
+    }
+}
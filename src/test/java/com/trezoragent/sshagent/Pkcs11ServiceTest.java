@@ -0,0 +1,97 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Token test runs against SoftHSM (or other token) when PKCS11_TEST_LIBRARY
+ * and PKCS11_TEST_PIN environment variables are set, token must hold P-256
+ * key with certificate, e.g.:
+ * <pre>
+ * softhsm2-util --init-token --slot 0 --label agent --pin 1234 --so-pin 1234
+ * keytool -genkeypair -keyalg EC -groupname secp256r1 -alias ssh -dname CN=ssh \
+ *   -keystore NONE -storetype PKCS11 -providerclass sun.security.pkcs11.SunPKCS11 \
+ *   -providerarg softhsm.cfg -storepass 1234
+ * </pre>
+ *
+ * @author martin.lizner
+ */
+public class Pkcs11ServiceTest {
+
+    static byte[] challenge = "token userauth request".getBytes();
+
+    @Test
+    public void testOnlyNistp256KeysAccepted() throws Exception {
+        Assert.assertTrue(Pkcs11Service.isNistp256(generateKey("secp256r1").getParams()));
+        Assert.assertFalse(Pkcs11Service.isNistp256(generateKey("secp256k1").getParams())); // 256-bit field as well
+        Assert.assertFalse(Pkcs11Service.isNistp256(generateKey("secp384r1").getParams()));
+    }
+
+    static ECPublicKey generateKey(String curveName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curveName));
+        return (ECPublicKey) generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testToDeviceSignature() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(challenge);
+
+        byte[] signature = Pkcs11Service.toDeviceSignature(signer.sign());
+        byte[] keyBlob = IdentityUtils.encodeSSHKeyBlobFromNistp256((ECPublicKey) keyPair.getPublic());
+        Assert.assertEquals(65, signature.length);
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(keyBlob, challenge, signature));
+    }
+
+    @Test
+    public void testObjectUri() throws Exception {
+        KeyOwner owner = new KeyOwner(null, Pkcs11Service.getObjectUri("ssh key #1"), 0, AgentConstants.CURVE_NAME_NISTP256);
+        Assert.assertEquals("ssh key #1", Pkcs11Service.getObjectLabel(owner));
+    }
+
+    @Test
+    public void testSoftHsmToken() throws Exception {
+        String library = System.getenv("PKCS11_TEST_LIBRARY");
+        Assume.assumeTrue(library != null && System.getenv("PKCS11_TEST_PIN") != null);
+
+        Properties settings = new Properties();
+        settings.setProperty(AgentConstants.SETTINGS_KEY_PKCS11_LIBRARY, library);
+        settings.setProperty(AgentConstants.SETTINGS_KEY_PKCS11_PIN, System.getenv("PKCS11_TEST_PIN"));
+        Pkcs11Service token = Pkcs11Service.startPkcs11Service(settings, 0);
+        TrayProcess.settings = settings;
+        TrayProcess.deviceService = token;
+        try {
+            List<KeyOwner> identities = token.listStoredIdentities();
+            Assert.assertFalse(identities.isEmpty());
+
+            SSHPublicKey key = DeviceWrapper.getIdentity(identities.get(0));
+            for (int i = 0; i < 10; i++) { // signer is reused
+                byte[] signature = DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes());
+                Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature));
+            }
+        } finally {
+            TrayProcess.identityIndex.removeDevice(token);
+            token.detach();
+            TrayProcess.deviceService = null;
+        }
+    }
+}
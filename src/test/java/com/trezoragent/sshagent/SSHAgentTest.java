@@ -0,0 +1,149 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.sun.jna.Memory;
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.AgentUtils;
+import com.trezoragent.utils.ChallengeUtils;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SSHBufferReader;
+import com.trezoragent.utils.SignatureVerifier;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pageant requests answered by agent without Windows window, simulated
+ * devices behind it
+ *
+ * @author martin.lizner
+ */
+public class SSHAgentTest {
+
+    SimulatorService first;
+    SimulatorService second;
+    SSHAgent agent;
+    Memory sharedMemory = new Memory(8192); // AGENT_MAX_MSGLEN
+
+    @Before
+    public void setUp() throws Exception {
+        Properties settings = new Properties();
+        first = SimulatorService.startSimulatorService(settings, 0);
+        second = SimulatorService.startSimulatorService(settings, 1);
+        TrayProcess.settings = settings;
+        TrayProcess.identityOrdering = new IdentityOrdering(0);
+        useDevices(first, second);
+        agent = new SSHAgent(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (DeviceService device : TrayProcess.deviceServices) {
+            TrayProcess.identityIndex.removeDevice(device);
+            device.detach();
+        }
+        TrayProcess.deviceService = null;
+        TrayProcess.deviceServices = Collections.emptyList();
+        TrayProcess.identityOrdering = null;
+    }
+
+    @Test
+    public void testOtherDevicesServeWhenFirstDetached() throws Exception {
+        Assert.assertEquals(2, requestIdentities().size());
+        first.detach(); // unplugged
+
+        List<byte[]> keys = requestIdentities();
+        Assert.assertEquals(1, keys.size()); // keys of second device are still offered
+        Assert.assertSame(second, TrayProcess.identityIndex.lookup(keys.get(0)).getOwner().getDevice());
+        assertSigned(keys.get(0));
+    }
+
+    @Test
+    public void testFailoverToDeviceWithSameSeed() throws Exception {
+        first.detach();
+        second.detach();
+        byte[] seed = Utils.HEX.decode(AgentConstants.SETTINGS_SIMULATOR_SEED);
+        first = new SimulatorService(seed, 0, 0, null);
+        second = new SimulatorService(seed, 0, 0, null);
+        useDevices(first, second);
+
+        List<byte[]> keys = requestIdentities();
+        Assert.assertEquals(1, keys.size()); // shared key is offered once
+        Assert.assertEquals(2, TrayProcess.identityIndex.lookupAll(keys.get(0)).size());
+        first.detach(); // unplugged without detach event
+
+        for (int i = 0; i < 2; i++) { // whichever device is picked first
+            assertSigned(keys.get(0));
+        }
+    }
+
+    void useDevices(SimulatorService... devices) {
+        TrayProcess.deviceService = devices[0];
+        TrayProcess.deviceServices = Arrays.<DeviceService>asList(devices);
+    }
+
+    List<byte[]> requestIdentities() throws IOException {
+        byte[] answer = exchange(new byte[]{AgentConstants.SSH2_AGENTC_REQUEST_IDENTITIES});
+        Assert.assertEquals(AgentConstants.SSH2_AGENT_IDENTITIES_ANSWER, answer[0]);
+        SSHBufferReader reader = new SSHBufferReader(Arrays.copyOfRange(answer, 1, answer.length));
+        List<byte[]> ret = new ArrayList<>();
+        for (int count = reader.readInt(); count > 0; count--) {
+            ret.add(reader.readString());
+            reader.readString(); // comment
+        }
+        return ret;
+    }
+
+    void assertSigned(byte[] keyBlob) throws IOException {
+        byte[] challenge = userAuthChallenge(keyBlob);
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        out.writeByte(AgentConstants.SSH2_AGENTC_SIGN_REQUEST);
+        out.write(AgentUtils.frameArray(keyBlob));
+        out.write(AgentUtils.frameArray(challenge));
+        out.writeInt(0); // flags
+
+        byte[] answer = exchange(request.toByteArray());
+        Assert.assertEquals(AgentConstants.SSH2_AGENT_SIGN_RESPONSE, answer[0]);
+        byte[] signature = new SSHBufferReader(Arrays.copyOfRange(answer, 1, answer.length)).readString();
+        Assert.assertTrue(SignatureVerifier.verifySSHSignature(keyBlob, challenge, signature));
+    }
+
+    /*
+     * Writes framed request to shared memory as Pageant client does, returns answer without length
+     */
+    byte[] exchange(byte[] message) {
+        byte[] frame = AgentUtils.frameArray(message);
+        sharedMemory.clear();
+        sharedMemory.write(0, frame, 0, frame.length);
+        agent.answerMessage(sharedMemory);
+        int length = ByteBuffer.wrap(sharedMemory.getByteArray(0, 4)).getInt(); // big endian, JNA getInt reads native order
+        return sharedMemory.getByteArray(4, length);
+    }
+
+    static byte[] userAuthChallenge(byte[] keyBlob) throws IOException {
+        ByteArrayOutputStream challenge = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(challenge);
+        out.write(AgentUtils.frameArray(new byte[32])); // session id
+        out.writeByte(ChallengeUtils.SSH_MSG_USERAUTH_REQUEST);
+        out.write(AgentUtils.frameArray("root".getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray("ssh-connection".getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(ChallengeUtils.PUBLICKEY_METHOD.getBytes(Charsets.UTF_8)));
+        out.writeBoolean(true);
+        out.write(AgentUtils.frameArray(IdentityUtils.readKeyType(keyBlob).getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(keyBlob));
+        return challenge.toByteArray();
+    }
+}
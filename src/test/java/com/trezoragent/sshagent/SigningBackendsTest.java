@@ -0,0 +1,41 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.utils.AgentConstants;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class SigningBackendsTest {
+
+    @Test
+    public void testProvidersAreDiscovered() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (SigningBackendProvider provider : SigningBackends.list()) {
+            names.add(provider.getName());
+        }
+        Assert.assertTrue(names.containsAll(Arrays.asList(AgentConstants.SETTINGS_TREZOR_DEVICE, AgentConstants.SETTINGS_KEEPKEY_DEVICE, AgentConstants.SETTINGS_SIMULATOR_DEVICE)));
+
+        Assert.assertEquals(AgentConstants.KEEPKEY_LABEL, SigningBackends.find(" KeepKey").getLabel());
+        Assert.assertNull(SigningBackends.find("ledger"));
+    }
+
+    @Test
+    public void testStartSimulatorBackend() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty(AgentConstants.SETTINGS_KEY_SIMULATOR_LATENCY, "1");
+        SigningBackend backend = SigningBackends.start(SigningBackends.find(AgentConstants.SETTINGS_SIMULATOR_DEVICE), settings, 0);
+
+        Assert.assertTrue(backend instanceof SimulatorService);
+        Assert.assertTrue(backend.isDeviceReady());
+        Assert.assertTrue(backend.supportsCurve(AgentConstants.CURVE_NAME_ED25519));
+        Assert.assertFalse(backend.supportsCurve("secp256k1"));
+        backend.detach();
+    }
+}
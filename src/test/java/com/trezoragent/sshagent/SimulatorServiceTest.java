@@ -0,0 +1,76 @@
+package com.trezoragent.sshagent;
+
+import com.trezoragent.gui.TrayProcess;
+import com.trezoragent.struct.KeyOwner;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import java.net.URI;
+import java.util.Properties;
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class SimulatorServiceTest {
+
+    static byte[] seed = Utils.HEX.decode(AgentConstants.SETTINGS_SIMULATOR_SEED);
+    static URI uri = URI.create(AgentConstants.SETTINGS_BIP32_SSHURI);
+    static byte[] challenge = "simulated userauth request".getBytes();
+
+    SimulatorService simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new SimulatorService(seed, 0, 0, null);
+        TrayProcess.settings = new Properties();
+        TrayProcess.deviceService = simulator;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TrayProcess.identityIndex.removeDevice(simulator);
+        simulator.detach();
+        TrayProcess.deviceService = null;
+    }
+
+    @Test
+    public void testIdentityAndSignNistp256() throws Exception {
+        KeyOwner owner = new KeyOwner(simulator, uri, 0, AgentConstants.CURVE_NAME_NISTP256);
+        SSHPublicKey key = DeviceWrapper.getIdentity(owner);
+        Assert.assertEquals(IdentityUtils.NISTP256_KEY_PREFIX, key.getKeyType());
+        Assert.assertSame(key, DeviceWrapper.getIdentity(owner)); // second request served from identity index
+
+        byte[] signature = DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes());
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature));
+    }
+
+    @Test
+    public void testIdentityAndSignEd25519() throws Exception {
+        KeyOwner owner = new KeyOwner(simulator, uri, 0, AgentConstants.CURVE_NAME_ED25519);
+        SSHPublicKey key = DeviceWrapper.getIdentity(owner);
+        KeyOwner other = new KeyOwner(simulator, uri, 1, AgentConstants.CURVE_NAME_ED25519);
+        Assert.assertNotEquals(key.getFingerprint(), DeviceWrapper.getIdentity(other).getFingerprint());
+
+        byte[] signature = DeviceWrapper.signChallenge(key.getBlob(), challenge, "user".getBytes());
+        Assert.assertTrue(SignatureVerifier.verifyEd25519Signature(key.getBlob(), challenge, signature));
+    }
+
+    @Test
+    public void testCancelPendingSign() throws Exception {
+        SimulatorService slow = new SimulatorService(seed, 0, 60000, null); // user never confirms
+        KeyOwner owner = new KeyOwner(slow, uri, 0, AgentConstants.CURVE_NAME_ED25519);
+        ReadDeviceData<byte[]> signData = slow.checkoutAsyncSignData();
+        slow.requestSign(owner, challenge, "user");
+        slow.requestCancel();
+
+        Assert.assertEquals(1, signData.call().length); // failed or cancelled marker, no signature
+        slow.detach();
+    }
+}
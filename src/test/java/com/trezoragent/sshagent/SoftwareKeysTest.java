@@ -0,0 +1,143 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import com.trezoragent.utils.Ed25519;
+import com.trezoragent.utils.IdentityUtils;
+import com.trezoragent.utils.SignatureVerifier;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.asn1.nist.NISTNamedCurves;
+import org.spongycastle.math.ec.ECPoint;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class SoftwareKeysTest {
+
+    static byte[] ed25519Seed = Utils.HEX.decode("9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60"); // RFC 8032 test 1
+    static BigInteger nistp256Key = new BigInteger("c9afa9d845ba75166b5c215767b1d6934e50c3db36e89b127b8a622b120f6721", 16); // RFC 6979 A.2.5
+    static byte[] challenge = "batch job userauth request".getBytes(Charsets.UTF_8);
+
+    SoftwareKeys keys = new SoftwareKeys(2);
+
+    @After
+    public void tearDown() {
+        keys.shutdown();
+    }
+
+    @Test
+    public void testAddAndSignEd25519() throws Exception {
+        SSHPublicKey key = keys.add(ed25519Request(AgentConstants.SSH2_AGENTC_ADD_IDENTITY, "ci key"));
+        Assert.assertEquals(IdentityUtils.ED25519_KEY_PREFIX, key.getKeyType());
+        Assert.assertEquals("ci key", key.getComment());
+        Assert.assertSame(key, keys.lookup(key.getBlob()));
+
+        byte[] signature = keys.sign(key.getBlob(), challenge);
+        Assert.assertTrue(SignatureVerifier.verifyEd25519Signature(key.getBlob(), challenge, signature));
+    }
+
+    @Test
+    public void testAddAndSignNistp256() throws Exception {
+        SSHPublicKey key = keys.add(nistp256Request());
+        Assert.assertEquals(IdentityUtils.NISTP256_KEY_PREFIX, key.getKeyType());
+
+        byte[] signature = keys.sign(key.getBlob(), challenge);
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(key.getBlob(), challenge, signature));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        SSHPublicKey ed25519 = keys.add(ed25519Request(AgentConstants.SSH2_AGENTC_ADD_IDENTITY, "ci key"));
+        SSHPublicKey nistp256 = keys.add(nistp256Request());
+        Assert.assertEquals(Arrays.asList(ed25519, nistp256), keys.getIdentities());
+
+        Assert.assertTrue(keys.remove(ed25519.getBlob()));
+        Assert.assertFalse(keys.remove(ed25519.getBlob()));
+        Assert.assertEquals(Arrays.asList(nistp256), keys.getIdentities());
+        try {
+            keys.sign(ed25519.getBlob(), challenge);
+            Assert.fail("Removed key signed");
+        } catch (SignFailedException ex) {
+            // expected
+        }
+
+        keys.removeAll();
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void testLifetimeConstraint() throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(ed25519Request(AgentConstants.SSH2_AGENTC_ADD_ID_CONSTRAINED, "short-lived"));
+        request.write(AgentConstants.SSH_AGENT_CONSTRAIN_LIFETIME);
+        new DataOutputStream(request).writeInt(1); // secs
+        SSHPublicKey key = keys.add(request.toByteArray());
+        Assert.assertNotNull(keys.lookup(key.getBlob()));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (keys.lookup(key.getBlob()) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void testRejectInvalidRequests() throws Exception {
+        byte[] request = ed25519Request(AgentConstants.SSH2_AGENTC_ADD_ID_CONSTRAINED, "confirm");
+        request = Arrays.copyOf(request, request.length + 1);
+        request[request.length - 1] = 2; // SSH_AGENT_CONSTRAIN_CONFIRM
+        assertRejected(request);
+
+        request = ed25519Request(AgentConstants.SSH2_AGENTC_ADD_IDENTITY, "");
+        request[1 + 4 + 11 + 4 + 32 + 4] ^= 1; // seed does not match public key
+        assertRejected(request);
+
+        assertRejected(message(AgentConstants.SSH2_AGENTC_ADD_IDENTITY, "ssh-rsa".getBytes(Charsets.UTF_8), new byte[8]));
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    private void assertRejected(byte[] request) {
+        try {
+            keys.add(request);
+            Assert.fail("Key added");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    static byte[] ed25519Request(byte type, String comment) throws IOException {
+        byte[] publicKey = Ed25519.publicKey(ed25519Seed);
+        byte[] secret = new byte[64];
+        System.arraycopy(ed25519Seed, 0, secret, 0, 32);
+        System.arraycopy(publicKey, 0, secret, 32, 32);
+        return message(type, IdentityUtils.ED25519_KEY_PREFIX.getBytes(Charsets.UTF_8), publicKey, secret, comment.getBytes(Charsets.UTF_8));
+    }
+
+    static byte[] nistp256Request() throws IOException {
+        ECPoint q = NISTNamedCurves.getByName("P-256").getG().multiply(nistp256Key).normalize();
+        return message(AgentConstants.SSH2_AGENTC_ADD_IDENTITY, IdentityUtils.NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8),
+                IdentityUtils.NISTP256_CURVE_NAME.getBytes(Charsets.UTF_8), q.getEncoded(false), nistp256Key.toByteArray(), new byte[0]);
+    }
+
+    static byte[] message(byte type, byte[]... strings) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(message);
+        out.writeByte(type);
+        for (byte[] string : strings) {
+            out.writeInt(string.length);
+            out.write(string);
+        }
+        return message.toByteArray();
+    }
+}
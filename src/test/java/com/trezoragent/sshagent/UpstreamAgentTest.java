@@ -0,0 +1,261 @@
+package com.trezoragent.sshagent;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.trezoragent.struct.SSHPublicKey;
+import com.trezoragent.utils.AgentConstants;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Upstream agent client against stand-in SSH agent on local TCP socket
+ *
+ * @author martin.lizner
+ */
+public class UpstreamAgentTest {
+
+    static byte[] rsaKey = keyBlob("ssh-rsa", 1);
+    static byte[] ed25519Key = keyBlob("ssh-ed25519", 2);
+    static byte[] signature = "upstream signature".getBytes(Charsets.UTF_8);
+
+    ServerSocket server;
+    AtomicInteger connections = new AtomicInteger();
+    AtomicInteger identityRequests = new AtomicInteger();
+    volatile Socket served; // connection currently served by stand-in agent
+    UpstreamAgent upstream;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        connections.incrementAndGet();
+                        served = socket;
+                        serve(socket);
+                    } catch (IOException ex) {
+                        // client closed connection or server stopped
+                    }
+                }
+            }
+        }, "upstream-agent-stub");
+        thread.setDaemon(true);
+        thread.start();
+
+        upstream = new UpstreamAgent(new UpstreamAgent.Connector() {
+            @Override
+            public ByteChannel open() throws IOException {
+                return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            }
+        }, 5000, 5000, 5000, "stub");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        upstream.close();
+        server.close();
+    }
+
+    @Test
+    public void testIdentitiesCachedForTtl() throws Exception {
+        List<SSHPublicKey> keys = upstream.getIdentities(1000);
+        Assert.assertEquals(2, keys.size());
+        Assert.assertEquals("ssh-rsa", keys.get(0).getKeyType());
+        Assert.assertEquals("upstream key 2", keys.get(1).getComment());
+        Assert.assertNull(keys.get(0).getOwner());
+
+        Assert.assertSame(keys, upstream.getIdentities(5999)); // within TTL, no round trip
+        Assert.assertNotNull(upstream.lookup(ed25519Key, 5999));
+        Assert.assertNull(upstream.lookup(keyBlob("ssh-ed25519", 3), 5999));
+        Assert.assertEquals(1, identityRequests.get());
+
+        upstream.getIdentities(6000);
+        Assert.assertEquals(2, identityRequests.get());
+        Assert.assertEquals(1, connections.get()); // connection kept open between requests
+    }
+
+    @Test
+    public void testSignForwarded() throws Exception {
+        byte[] answer = upstream.forward(signRequest(ed25519Key));
+        ByteBuffer buffer = ByteBuffer.wrap(answer);
+        Assert.assertEquals(answer.length - 4, buffer.getInt());
+        Assert.assertEquals(AgentConstants.SSH2_AGENT_SIGN_RESPONSE, buffer.get());
+        byte[] returned = new byte[buffer.getInt()];
+        buffer.get(returned);
+        Assert.assertArrayEquals(signature, returned);
+
+        answer = upstream.forward(signRequest(keyBlob("ssh-ed25519", 3))); // unknown key
+        Assert.assertEquals(AgentConstants.SSH_AGENT_FAILURE, answer[4]);
+    }
+
+    @Test
+    public void testReconnectAfterUpstreamRestart() throws Exception {
+        upstream.getIdentities(0);
+        served.close(); // upstream agent drops open connection
+
+        Assert.assertEquals(2, upstream.getIdentities(10000).size());
+        Assert.assertEquals(2, identityRequests.get());
+        Assert.assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void testUnavailableUpstreamGivesNoKeys() throws Exception {
+        server.close();
+        upstream.close();
+        Assert.assertTrue(upstream.getIdentities(0).isEmpty());
+        Assert.assertNull(upstream.lookup(rsaKey, 1));
+        try {
+            upstream.forward(signRequest(rsaKey));
+            Assert.fail("Sign request forwarded to closed agent");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testHungUpstreamTimesOut() throws Exception {
+        final ServerSocket hung = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        final AtomicInteger hungConnections = new AtomicInteger();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Socket> accepted = new ArrayList<>(); // kept open, requests are read by nobody
+                while (!hung.isClosed()) {
+                    try {
+                        accepted.add(hung.accept());
+                        hungConnections.incrementAndGet();
+                    } catch (IOException ex) {
+                        // server stopped
+                    }
+                }
+            }
+        }, "hung-upstream-agent-stub");
+        thread.setDaemon(true);
+        thread.start();
+        UpstreamAgent hungUpstream = new UpstreamAgent(new UpstreamAgent.Connector() {
+            @Override
+            public ByteChannel open() throws IOException {
+                return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), hung.getLocalPort()));
+            }
+        }, 5000, 200, 200, "hung");
+
+        try {
+            Assert.assertTrue(hungUpstream.getIdentities(0).isEmpty()); // timeout is cached as missing agent
+            try {
+                hungUpstream.forward(signRequest(rsaKey));
+                Assert.fail("Sign request answered by hung agent");
+            } catch (InterruptedIOException ex) {
+                // expected
+            }
+            Assert.assertEquals(2, hungConnections.get()); // timed out connection is not reused
+        } finally {
+            hungUpstream.close();
+            hung.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStalledPipeClosedOffCallerThread() throws Exception {
+        final CountDownLatch answered = new CountDownLatch(1); // stalled agent never answers
+        final CountDownLatch closing = new CountDownLatch(1);
+        UpstreamAgent stalledUpstream = new UpstreamAgent(new UpstreamAgent.Connector() {
+            @Override
+            public ByteChannel open() throws IOException {
+                return new ByteChannel() { // named pipe on Windows: close waits for read, interrupt does not stop read
+                    @Override
+                    public int read(ByteBuffer dst) throws IOException {
+                        Uninterruptibles.awaitUninterruptibly(answered);
+                        throw new EOFException();
+                    }
+
+                    @Override
+                    public int write(ByteBuffer src) {
+                        int ret = src.remaining();
+                        src.position(src.limit());
+                        return ret;
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return answered.getCount() > 0;
+                    }
+
+                    @Override
+                    public void close() {
+                        closing.countDown();
+                        Uninterruptibles.awaitUninterruptibly(answered);
+                    }
+                };
+            }
+        }, 5000, 200, 200, "stalled");
+
+        try {
+            Assert.assertTrue(stalledUpstream.getIdentities(0).isEmpty()); // returned while read and close still block
+            Assert.assertTrue(closing.await(10, TimeUnit.SECONDS)); // abandoned connection closed by other thread
+        } finally {
+            answered.countDown();
+        }
+    }
+
+    void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        while (true) {
+            byte[] request = new byte[in.readInt()];
+            in.readFully(request);
+            ByteBuffer answer = ByteBuffer.allocate(1024);
+            answer.putInt(0);
+            if (request[0] == AgentConstants.SSH2_AGENTC_REQUEST_IDENTITIES) {
+                identityRequests.incrementAndGet();
+                answer.put(AgentConstants.SSH2_AGENT_IDENTITIES_ANSWER).putInt(2);
+                answer.putInt(rsaKey.length).put(rsaKey).putInt(12).put("upstream key".getBytes(Charsets.UTF_8));
+                answer.putInt(ed25519Key.length).put(ed25519Key).putInt(14).put("upstream key 2".getBytes(Charsets.UTF_8));
+            } else if (request[0] == AgentConstants.SSH2_AGENTC_SIGN_REQUEST
+                    && Arrays.equals(Arrays.copyOfRange(request, 5, 5 + ed25519Key.length), ed25519Key)) {
+                answer.put(AgentConstants.SSH2_AGENT_SIGN_RESPONSE).putInt(signature.length).put(signature);
+            } else {
+                answer.put((byte) AgentConstants.SSH_AGENT_FAILURE);
+            }
+            answer.putInt(0, answer.position() - 4);
+            out.write(answer.array(), 0, answer.position());
+            out.flush();
+        }
+    }
+
+    static byte[] signRequest(byte[] keyBlob) {
+        byte[] data = "userauth request".getBytes(Charsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(4 + 1 + 4 + keyBlob.length + 4 + data.length + 4);
+        request.putInt(request.capacity() - 4).put(AgentConstants.SSH2_AGENTC_SIGN_REQUEST);
+        request.putInt(keyBlob.length).put(keyBlob).putInt(data.length).put(data).putInt(0);
+        return request.array();
+    }
+
+    static byte[] keyBlob(String keyType, int seed) {
+        byte[] type = keyType.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) seed);
+        return ByteBuffer.allocate(4 + type.length + 4 + key.length).putInt(type.length).put(type).putInt(key.length).put(key).array();
+    }
+}
@@ -0,0 +1,64 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.UserAuthChallenge;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class ChallengeUtilsTest {
+
+    @Test
+    public void testParseTrezorChallenge() throws Exception {
+        UserAuthChallenge challenge = ChallengeUtils.parseUserAuthChallenge(ECDSATest.challengeTrezor);
+
+        Assert.assertEquals(32, challenge.getSessionId().length);
+        Assert.assertEquals("root", challenge.getUser());
+        Assert.assertEquals("ssh-connection", challenge.getService());
+        Assert.assertEquals("publickey", challenge.getMethod());
+        Assert.assertEquals(IdentityUtils.NISTP256_KEY_PREFIX, challenge.getAlgorithm());
+        Assert.assertTrue(Arrays.equals(ECDSATest.pubKeySSHTrezor, challenge.getKeyBlob()));
+
+        ChallengeUtils.checkChallengeMatchesKey(challenge, ECDSATest.pubKeySSHTrezor);
+    }
+
+    @Test
+    public void testParseHostboundChallenge() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        out.write(AgentUtils.frameArray(new byte[32])); // session id
+        out.writeByte(ChallengeUtils.SSH_MSG_USERAUTH_REQUEST);
+        out.write(AgentUtils.frameArray("root".getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray("ssh-connection".getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(ChallengeUtils.HOSTBOUND_METHOD.getBytes(Charsets.UTF_8)));
+        out.writeBoolean(true);
+        out.write(AgentUtils.frameArray(IdentityUtils.NISTP256_KEY_PREFIX.getBytes(Charsets.UTF_8)));
+        out.write(AgentUtils.frameArray(ECDSATest.pubKeySSHTrezor));
+        out.write(AgentUtils.frameArray(ECDSATest.pubKeySSHKeepKey)); // server host key
+
+        UserAuthChallenge challenge = ChallengeUtils.parseUserAuthChallenge(data.toByteArray());
+        Assert.assertEquals(ChallengeUtils.HOSTBOUND_METHOD, challenge.getMethod());
+        Assert.assertTrue(Arrays.equals(ECDSATest.pubKeySSHKeepKey, challenge.getHostKeyBlob()));
+        ChallengeUtils.checkChallengeMatchesKey(challenge, ECDSATest.pubKeySSHTrezor);
+
+        Assert.assertNull(ChallengeUtils.parseUserAuthChallenge(ECDSATest.challengeTrezor).getHostKeyBlob());
+    }
+
+    @Test(expected = SignFailedException.class)
+    public void testChallengeKeyMismatch() throws Exception {
+        UserAuthChallenge challenge = ChallengeUtils.parseUserAuthChallenge(ECDSATest.challengeTrezor);
+        ChallengeUtils.checkChallengeMatchesKey(challenge, ECDSATest.pubKeySSHKeepKey);
+    }
+
+    @Test(expected = SignFailedException.class)
+    public void testTruncatedChallenge() throws Exception {
+        ChallengeUtils.parseUserAuthChallenge(Arrays.copyOf(ECDSATest.challengeTrezor, ECDSATest.challengeTrezor.length - 1));
+    }
+}
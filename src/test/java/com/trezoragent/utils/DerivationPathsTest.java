@@ -0,0 +1,79 @@
+package com.trezoragent.utils;
+
+import com.trezoragent.struct.KeyOwner;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class DerivationPathsTest {
+
+    static final URI SLIP13_URI = URI.create("https://satoshi@bitcoin.org/login");
+    static final long[] SLIP13_PATH = {2147483661L, 2637750992L, 2845082444L, 3761103859L, 4005495825L}; // example from SLIP-0013
+
+    @Test
+    public void testSlip13Vector() throws Exception {
+        int[] path = DerivationPaths.get(SLIP13_URI, 0);
+        Assert.assertEquals(DerivationPaths.PATH_LENGTH, path.length);
+        for (int i = 0; i < path.length; i++) {
+            Assert.assertEquals(SLIP13_PATH[i], path[i] & 0xffffffffL);
+        }
+
+        List<Integer> addressN = IdentityUtils.buildAddressN(SLIP13_URI, 0);
+        for (int i = 0; i < path.length; i++) {
+            Assert.assertEquals(path[i], addressN.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testCachedPathIsNotShared() throws Exception {
+        int[] path = DerivationPaths.get(SLIP13_URI, 0);
+        path[1] = 0;
+        Assert.assertEquals(SLIP13_PATH[1], DerivationPaths.get(SLIP13_URI, 0)[1] & 0xffffffffL);
+    }
+
+    @Test
+    public void testBatchMatchesSingle() throws Exception {
+        List<URI> uris = new ArrayList<>();
+        int[] indexes = new int[2000]; // forked into several tasks
+        for (int i = 0; i < indexes.length; i++) {
+            uris.add(URI.create("ssh://user@host" + i + ".example.com"));
+            indexes[i] = i % 7;
+        }
+
+        int[][] batch = DerivationPaths.computeBatch(uris, indexes);
+        int[][] range = DerivationPaths.computeRange(SLIP13_URI, 0, 300);
+        for (int i = 0; i < indexes.length; i++) {
+            Assert.assertArrayEquals(DerivationPaths.compute(uris.get(i).toASCIIString(), indexes[i]), batch[i]);
+        }
+        for (int i = 0; i < range.length; i++) {
+            Assert.assertArrayEquals(DerivationPaths.compute(SLIP13_URI.toASCIIString(), i), range[i]);
+        }
+        Assert.assertEquals(SLIP13_PATH[4], range[0][4] & 0xffffffffL);
+    }
+
+    @Test
+    public void testPreloadedPathsMatchSingle() throws Exception {
+        List<KeyOwner> identities = new ArrayList<>();
+        for (int i = 0; i < DerivationPaths.MAX_PRELOADED_PATHS; i++) {
+            identities.add(new KeyOwner(null, URI.create("ssh://deploy@web" + i + "/connect"), i, AgentConstants.CURVE_NAME_NISTP256));
+        }
+
+        DerivationPaths.preload(identities);
+        for (KeyOwner identity : identities) {
+            Assert.assertArrayEquals(DerivationPaths.compute(identity.getIdentityUri().toASCIIString(), identity.getIdentityIndex()),
+                    DerivationPaths.get(identity.getIdentityUri(), identity.getIdentityIndex()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchWithMissingIndexes() throws Exception {
+        DerivationPaths.computeBatch(Arrays.asList(SLIP13_URI, SLIP13_URI), new int[1]);
+    }
+}
@@ -50,6 +50,17 @@ public class ECDSATest {
         Assert.assertTrue(validSignatureKeepKey);
     }
 
+    @Test
+    public void testRawSignatureVerification() throws Exception {
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(pubKeySSHTrezor, challengeTrezor, signatureTrezor));
+        Assert.assertTrue(SignatureVerifier.verifyNistp256Signature(pubKeySSHKeepKey, challengeKeepKey, signatureKeepKey));
+
+        Assert.assertFalse(SignatureVerifier.verifyNistp256Signature(pubKeySSHKeepKey, challengeTrezor, signatureTrezor)); // wrong key
+        byte[] tampered = challengeTrezor.clone();
+        tampered[10] ^= 1;
+        Assert.assertFalse(SignatureVerifier.verifyNistp256Signature(pubKeySSHTrezor, tampered, signatureTrezor));
+    }
+
     @Test
     public void testKeepKeySSHKeyConversion() throws Exception {
         ECPublicKey publicKeyFromBytes = IdentityUtils.decodeNISTP256PublicKeyFromBytes(pubKeyKeepKey);
@@ -0,0 +1,85 @@
+package com.trezoragent.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.bitcoinj.core.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test vectors from RFC 8032, section 7.1
+ *
+ * @author martin.lizner
+ */
+public class Ed25519Test {
+
+    static byte[] secretKeyRfc1 = Utils.HEX.decode("9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60");
+    static byte[] pubKeyRfc1 = Utils.HEX.decode("d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a");
+    static byte[] messageRfc1 = new byte[0];
+    static byte[] signatureRfc1 = Utils.HEX.decode("e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065224901555fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b");
+
+    static byte[] secretKeyRfc2 = Utils.HEX.decode("4ccd089b28ff96da9db6c346ec114e0f5b8a319f35aba624da8cf6ed4fb8a6fb");
+    static byte[] pubKeyRfc2 = Utils.HEX.decode("3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c");
+    static byte[] messageRfc2 = Utils.HEX.decode("72");
+    static byte[] signatureRfc2 = Utils.HEX.decode("92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00");
+
+    @Test
+    public void testRfcVectors() throws Exception {
+        Assert.assertTrue(Ed25519.verify(pubKeyRfc1, messageRfc1, signatureRfc1));
+        Assert.assertTrue(Ed25519.verify(pubKeyRfc2, messageRfc2, signatureRfc2));
+    }
+
+    @Test
+    public void testInvalidSignatures() throws Exception {
+        Assert.assertFalse(Ed25519.verify(pubKeyRfc2, messageRfc1, signatureRfc2)); // wrong message
+        Assert.assertFalse(Ed25519.verify(pubKeyRfc1, messageRfc2, signatureRfc2)); // wrong key
+
+        byte[] tampered = signatureRfc2.clone();
+        tampered[10] ^= 0x01;
+        Assert.assertFalse(Ed25519.verify(pubKeyRfc2, messageRfc2, tampered));
+
+        byte[] nonCanonical = signatureRfc2.clone(); // S + L must be rejected
+        byte[] s = Ed25519.encodeInt(Ed25519.decodeInt(Arrays.copyOfRange(signatureRfc2, 32, 64)).add(Ed25519.L));
+        System.arraycopy(s, 0, nonCanonical, 32, 32);
+        Assert.assertFalse(Ed25519.verify(pubKeyRfc2, messageRfc2, nonCanonical));
+
+        Assert.assertFalse(Ed25519.verify(pubKeyRfc2, messageRfc2, Arrays.copyOf(signatureRfc2, 63)));
+    }
+
+    @Test
+    public void testSignRfcVectors() throws Exception {
+        Assert.assertArrayEquals(pubKeyRfc1, Ed25519.publicKey(secretKeyRfc1));
+        Assert.assertArrayEquals(signatureRfc1, Ed25519.sign(secretKeyRfc1, messageRfc1));
+        Assert.assertArrayEquals(pubKeyRfc2, Ed25519.publicKey(secretKeyRfc2));
+        Assert.assertArrayEquals(signatureRfc2, Ed25519.sign(secretKeyRfc2, messageRfc2));
+    }
+
+    @Test
+    public void testSignedByRandomKeysVerifies() throws Exception {
+        Random random = new Random(25519); // constant time signer against BigInteger verifier
+        for (int i = 0; i < 32; i++) {
+            byte[] secretKey = new byte[32];
+            byte[] message = new byte[i * 7];
+            random.nextBytes(secretKey);
+            random.nextBytes(message);
+            byte[] signature = Ed25519.sign(secretKey, message);
+            Assert.assertTrue(Ed25519.verify(Ed25519.publicKey(secretKey), message, signature));
+            Assert.assertTrue(Ed25519.decodeInt(Arrays.copyOfRange(signature, 32, 64)).compareTo(Ed25519.L) < 0);
+        }
+    }
+
+    @Test
+    public void testDeviceSignatureVerification() throws Exception {
+        byte[] keyBlob = IdentityUtils.encodeSSHKeyBlobFromEd25519(concat(new byte[]{0}, pubKeyRfc2)); // device prepends 0x00 to ed25519 key
+        byte[] deviceSignature = concat(new byte[]{0}, signatureRfc2);
+
+        Assert.assertTrue(SignatureVerifier.verifyEd25519Signature(keyBlob, messageRfc2, deviceSignature));
+        Assert.assertFalse(SignatureVerifier.verifyEd25519Signature(keyBlob, messageRfc1, deviceSignature));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+}
@@ -0,0 +1,49 @@
+package com.trezoragent.utils;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class P256Test {
+
+    @Test
+    public void testSSHKeyBlobEncoding() throws Exception {
+        Assert.assertTrue(Arrays.equals(P256.encodeSSHKeyBlob(ECDSATest.pubKeyTrezor), ECDSATest.pubKeySSHTrezor)); // odd Y
+        Assert.assertTrue(Arrays.equals(P256.encodeSSHKeyBlob(ECDSATest.pubKeyKeepKey), ECDSATest.pubKeySSHKeepKey)); // even Y
+    }
+
+    @Test
+    public void testDecompressMatchesGenericCodec() throws Exception {
+        Assert.assertTrue(Arrays.equals(P256.decompress(ECDSATest.pubKeyTrezor), IdentityUtils.unframeUncompressedNistpKeyFromSSHKey(ECDSATest.pubKeySSHTrezor)));
+
+        byte[] uncompressed = P256.decompress(ECDSATest.pubKeyKeepKey);
+        Assert.assertTrue(Arrays.equals(P256.decompress(uncompressed), uncompressed));
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        byte[] uncompressed = P256.decompress(ECDSATest.pubKeyTrezor);
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(uncompressed, 1, 33));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(uncompressed, 33, 65));
+        Assert.assertTrue(Arrays.equals(ECDSATest.pubKeyTrezor, P256.compress(x, y)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPointNotOnCurve() throws Exception {
+        byte[] invalid = P256.decompress(ECDSATest.pubKeyTrezor);
+        invalid[64] ^= 0x01;
+        P256.decompress(invalid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrefix() throws Exception {
+        byte[] invalid = ECDSATest.pubKeyTrezor.clone();
+        invalid[0] = 0x05;
+        P256.decompress(invalid);
+    }
+}
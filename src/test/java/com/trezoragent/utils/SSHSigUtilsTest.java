@@ -0,0 +1,69 @@
+package com.trezoragent.utils;
+
+import com.google.common.base.Charsets;
+import com.trezoragent.exception.SignFailedException;
+import com.trezoragent.struct.SSHSigRequest;
+import com.trezoragent.struct.SSHSignature;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class SSHSigUtilsTest {
+
+    // ssh-keygen -Y sign -n git, ed25519 key
+    static byte[] message = "tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\nauthor A <a@b> 1 +0000\n\ninit\n".getBytes(Charsets.UTF_8);
+    static byte[] pubKeySSH = Base64.decode("AAAAC3NzaC1lZDI1NTE5AAAAIEGhtxb3ru4ldlHQF0YQ4Wd9MqdA0Tc/cM5Peot03PrE");
+    static String armoredSignature = "-----BEGIN SSH SIGNATURE-----\n"
+            + "U1NIU0lHAAAAAQAAADMAAAALc3NoLWVkMjU1MTkAAAAgQaG3Fveu7iV2UdAXRhDhZ30yp0\n"
+            + "DRNz9wzk96i3Tc+sQAAAADZ2l0AAAAAAAAAAZzaGE1MTIAAABTAAAAC3NzaC1lZDI1NTE5\n"
+            + "AAAAQBy7EsWkyLdVPtD1mdtajQOJI7OtzsnpAJ0LmyzioWxtAJvG3n277OcN46xdKu2mPl\n"
+            + "ZAn4m2WqcIuWjMXwZo4gA=\n"
+            + "-----END SSH SIGNATURE-----\n";
+
+    @Test
+    public void testDecodeAndVerifySSHKeygenSignature() throws Exception {
+        SSHSignature signature = SSHSigUtils.decodeSignature(SSHSigUtils.dearmor(armoredSignature));
+        Assert.assertTrue(Arrays.equals(pubKeySSH, signature.getPublicKey()));
+        Assert.assertEquals("git", signature.getNamespace());
+        Assert.assertEquals(SSHSigUtils.HASH_SHA512, signature.getHashAlgorithm());
+
+        byte[] signedData = SSHSigUtils.buildSignedData(signature.getNamespace(), signature.getHashAlgorithm(), message);
+        byte[] deviceSignature = new byte[65]; // signature as returned by device: zero byte + 64 bytes
+        SSHBufferReader reader = new SSHBufferReader(signature.getSignature());
+        Assert.assertEquals(IdentityUtils.ED25519_KEY_PREFIX, reader.readUTF8String());
+        System.arraycopy(reader.readString(), 0, deviceSignature, 1, 64);
+        Assert.assertTrue(SignatureVerifier.verifyEd25519Signature(signature.getPublicKey(), signedData, deviceSignature));
+
+        // agent answer re-encoded into SSHSIG gives the same bytes as ssh-keygen
+        byte[] sigBlob = SSHSigUtils.signatureFromSignResponse(IdentityUtils.createSSHSignResponseFromEd25519Key(deviceSignature));
+        SSHSignature rebuilt = new SSHSignature(pubKeySSH, "git", new byte[0], SSHSigUtils.HASH_SHA512, sigBlob);
+        Assert.assertEquals(armoredSignature, SSHSigUtils.armor(SSHSigUtils.encodeSignature(rebuilt)));
+    }
+
+    @Test
+    public void testParseSignedData() throws Exception {
+        byte[] signedData = SSHSigUtils.buildSignedData("git", SSHSigUtils.HASH_SHA256, message);
+        Assert.assertTrue(SSHSigUtils.isSSHSigData(signedData));
+        Assert.assertFalse(SSHSigUtils.isSSHSigData(ECDSATest.challengeTrezor));
+
+        SSHSigRequest request = SSHSigUtils.parseSignedData(signedData);
+        Assert.assertEquals("git", request.getNamespace());
+        Assert.assertEquals(SSHSigUtils.HASH_SHA256, request.getHashAlgorithm());
+        Assert.assertEquals(32, request.getMessageHash().length);
+    }
+
+    @Test(expected = SignFailedException.class)
+    public void testUnsupportedHash() throws Exception {
+        SSHSigUtils.parseSignedData(SSHSigUtils.buildSignedData("git", new byte[0], "md5", new byte[16]));
+    }
+
+    @Test(expected = SignFailedException.class)
+    public void testEmptyNamespace() throws Exception {
+        SSHSigUtils.parseSignedData(SSHSigUtils.buildSignedData("", SSHSigUtils.HASH_SHA256, message));
+    }
+}
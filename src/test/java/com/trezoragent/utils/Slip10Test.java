@@ -0,0 +1,40 @@
+package com.trezoragent.utils;
+
+import org.bitcoinj.core.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test vector 1 of SLIP-0010
+ *
+ * @author martin.lizner
+ */
+public class Slip10Test {
+
+    static byte[] seed = Utils.HEX.decode("000102030405060708090a0b0c0d0e0f");
+    static int hardened0 = 0x80000000;
+    static int hardened1 = 0x80000001;
+
+    @Test
+    public void testNistp256() throws Exception {
+        Assert.assertEquals("612091aaa12e22dd2abef664f8a01a82cae99ad7441b7ef8110424915c268bc2",
+                Utils.HEX.encode(Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_NISTP256, seed, new int[0])));
+        Assert.assertEquals("6939694369114c67917a182c59ddb8cafc3004e63ca5d3b84403ba8613debc0c",
+                Utils.HEX.encode(Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_NISTP256, seed, new int[]{hardened0})));
+    }
+
+    @Test
+    public void testEd25519() throws Exception {
+        Assert.assertEquals("2b4be7f19ee27bbf30c667b642d5f4aa69fd169872f8fc3059c08ebae2eb19e7",
+                Utils.HEX.encode(Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_ED25519, seed, new int[0])));
+        Assert.assertEquals("68e0fe46dfb67e368c75379acec591dad19df3cde26e63b93a8e704f1dade7a3",
+                Utils.HEX.encode(Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_ED25519, seed, new int[]{hardened0})));
+        Assert.assertEquals("b1d0bad404bf35da785a64ca1ac54b2617211d2777696fbffaf208f746ae84f2",
+                Utils.HEX.encode(Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_ED25519, seed, new int[]{hardened0, hardened1})));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonHardenedPath() throws Exception {
+        Slip10.derivePrivateKey(AgentConstants.CURVE_NAME_ED25519, seed, new int[]{1});
+    }
+}
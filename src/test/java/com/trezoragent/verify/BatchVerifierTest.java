@@ -0,0 +1,119 @@
+package com.trezoragent.verify;
+
+import com.trezoragent.utils.SSHSigUtils;
+import com.trezoragent.struct.SSHSignature;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ *
+ * @author martin.lizner
+ */
+public class BatchVerifierTest {
+
+    // ssh-keygen -Y sign -n git over the same message, ed25519 and ecdsa-sha2-nistp256 keys
+    static byte[] message = "tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\nauthor A <a@b> 1 +0000\n\ninit\n".getBytes();
+    static String ed25519Key = "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIEGhtxb3ru4ldlHQF0YQ4Wd9MqdA0Tc/cM5Peot03PrE";
+    static String ed25519Signature = "-----BEGIN SSH SIGNATURE-----\n"
+            + "U1NIU0lHAAAAAQAAADMAAAALc3NoLWVkMjU1MTkAAAAgQaG3Fveu7iV2UdAXRhDhZ30yp0\n"
+            + "DRNz9wzk96i3Tc+sQAAAADZ2l0AAAAAAAAAAZzaGE1MTIAAABTAAAAC3NzaC1lZDI1NTE5\n"
+            + "AAAAQBy7EsWkyLdVPtD1mdtajQOJI7OtzsnpAJ0LmyzioWxtAJvG3n277OcN46xdKu2mPl\n"
+            + "ZAn4m2WqcIuWjMXwZo4gA=\n"
+            + "-----END SSH SIGNATURE-----\n";
+    static String nistp256Key = "ecdsa-sha2-nistp256 AAAAE2VjZHNhLXNoYTItbmlzdHAyNTYAAAAIbmlzdHAyNTYAAABBBCAVxLrpfmW1a8H9IrQFBEIIQjG3F/ZgRUEMrtz9vRgWrxhkAmDpDa6iWFO/TTu++gGcUiU6jwBNcbhRFcVkk10=";
+    static String nistp256Signature = "-----BEGIN SSH SIGNATURE-----\n"
+            + "U1NIU0lHAAAAAQAAAGgAAAATZWNkc2Etc2hhMi1uaXN0cDI1NgAAAAhuaXN0cDI1NgAAAE\n"
+            + "EEIBXEuul+ZbVrwf0itAUEQghCMbcX9mBFQQyu3P29GBavGGQCYOkNrqJYU79NO776AZxS\n"
+            + "JTqPAE1xuFEVxWSTXQAAAANnaXQAAAAAAAAABnNoYTUxMgAAAGQAAAATZWNkc2Etc2hhMi\n"
+            + "1uaXN0cDI1NgAAAEkAAAAgJRq/Vd4OhPjt1GS1l4TnwKsUjqF/WBpAVjDaZgDsTAQAAAAh\n"
+            + "ALyL6I/PNRzgoKbSiaGrTF5DjhYvrpzht6fnBYqPuiRe\n"
+            + "-----END SSH SIGNATURE-----\n";
+
+    static String allowedSigners = "# team keys\n"
+            + "*@example.com,!mallory@example.com namespaces=\"git,file\" " + ed25519Key + " dev key\n"
+            + "\n"
+            + "ops@example.com valid-before=\"20000101Z\" " + nistp256Key + "\n"
+            + "ci@example.com " + nistp256Key + "\n"
+            + "ca@example.com cert-authority " + nistp256Key + "\n";
+
+    @Test
+    public void testParseAllowedSigners() throws Exception {
+        AllowedSigners signers = AllowedSigners.parse(new StringReader(allowedSigners));
+        Assert.assertEquals(3, signers.size()); // cert-authority line skipped
+
+        byte[] edKey = SSHSigUtils.decodeSignature(SSHSigUtils.dearmor(ed25519Signature)).getPublicKey();
+        Assert.assertEquals(1, signers.findSigners(edKey).size());
+        Assert.assertNotNull(signers.findSigner(edKey, "dev@example.com", "git", System.currentTimeMillis()));
+        Assert.assertNull(signers.findSigner(edKey, "mallory@example.com", "git", System.currentTimeMillis()));
+        Assert.assertNull(signers.findSigner(edKey, "dev@example.com", "email", System.currentTimeMillis()));
+
+        byte[] ecKey = SSHSigUtils.decodeSignature(SSHSigUtils.dearmor(nistp256Signature)).getPublicKey();
+        Assert.assertEquals(2, signers.findSigners(ecKey).size());
+        Assert.assertNull(signers.findSigner(ecKey, "ops@example.com", "git", System.currentTimeMillis())); // expired
+        Assert.assertEquals("ci@example.com", signers.findSigner(ecKey, null, "git", System.currentTimeMillis()).getPrincipals().get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedLine() throws Exception {
+        AllowedSigners.parse(new StringReader("dev@example.com ssh-ed25519 AAAAE2VjZHNhLXNoYTItbmlzdHAyNTYAAAAIbmlzdHAyNTYAAABB\n"));
+    }
+
+    @Test
+    public void testMalformedKeyFailsOnlyItsCheck() throws Exception {
+        byte[] ecSignature = SSHSigUtils.dearmor(nistp256Signature);
+        SSHSignature decoded = SSHSigUtils.decodeSignature(ecSignature);
+        byte[] truncatedKey = Arrays.copyOf(decoded.getPublicKey(), 60); // point cut short, its length still says 65 bytes
+        byte[] malformedSignature = SSHSigUtils.encodeSignature(new SSHSignature(truncatedKey, decoded.getNamespace(),
+                decoded.getReserved(), decoded.getHashAlgorithm(), decoded.getSignature()));
+        AllowedSigners signers = AllowedSigners.parse(new StringReader(allowedSigners
+                + "bad@example.com ecdsa-sha2-nistp256 " + Base64.toBase64String(truncatedKey) + "\n"));
+
+        List<SignatureCheck> checks = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            checks.add(new SignatureCheck("ec" + i, message, ecSignature, null));
+            checks.add(new SignatureCheck("bad" + i, message, malformedSignature, "bad@example.com"));
+        }
+
+        Assert.assertEquals(40, new BatchVerifier(signers, "git").verifyAll(checks, System.currentTimeMillis()));
+        Assert.assertTrue(checks.get(0).isValid());
+        Assert.assertFalse(checks.get(1).isValid());
+        Assert.assertTrue(checks.get(1).getError().startsWith("malformed key or signature"));
+    }
+
+    @Test
+    public void testBatchVerification() throws Exception {
+        AllowedSigners signers = AllowedSigners.parse(new StringReader(allowedSigners));
+        byte[] edSignature = SSHSigUtils.dearmor(ed25519Signature);
+        byte[] ecSignature = SSHSigUtils.dearmor(nistp256Signature);
+        byte[] tampered = message.clone();
+        tampered[0] ^= 1;
+
+        List<SignatureCheck> checks = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            checks.add(new SignatureCheck("ed" + i, message, edSignature, "dev@example.com"));
+            checks.add(new SignatureCheck("ec" + i, message, ecSignature, null));
+        }
+        SignatureCheck badMessage = new SignatureCheck("tampered", tampered, edSignature, null);
+        SignatureCheck badPrincipal = new SignatureCheck("mallory", message, edSignature, "mallory@example.com");
+        SignatureCheck expired = new SignatureCheck("expired", message, ecSignature, "ops@example.com");
+        checks.add(badMessage);
+        checks.add(badPrincipal);
+        checks.add(expired);
+
+        int valid = new BatchVerifier(signers, "git").verifyAll(checks, System.currentTimeMillis());
+        Assert.assertEquals(100, valid);
+        Assert.assertEquals("ci@example.com", checks.get(1).getSigner().getPrincipals().get(0));
+        Assert.assertFalse(badMessage.isValid());
+        Assert.assertEquals("signature does not verify", badMessage.getError());
+        Assert.assertFalse(badPrincipal.isValid());
+        Assert.assertFalse(expired.isValid());
+
+        SignatureCheck otherNamespace = new SignatureCheck("file", message, edSignature, null);
+        Assert.assertFalse(new BatchVerifier(signers, "file").verify(otherNamespace, System.currentTimeMillis()));
+    }
+}